@@ -0,0 +1,72 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The generated datasets the benchmarks run on (see `DatasetGenerator`).
+ * They always use the same seed, so results from different runs (and
+ * commits) are comparable.
+ * <p>
+ * The number of owners (and companies) grows with the size, so that a
+ * query for one owner matches a similar share of the todos at every size,
+ * as it would in a real deployment with more people in it. They're spread
+ * evenly (no skew), so that it doesn't matter much which owners a
+ * benchmark happens to pick.
+ */
+public final class BenchmarkData {
+
+  /** The seed every benchmark uses. */
+  public static final long SEED = 3601;
+
+  // Each owner has about this many todos, and each company about this many
+  // users (but there are always at least a few of each).
+  private static final int TODOS_PER_OWNER = 500;
+  private static final int USERS_PER_COMPANY = 50;
+  private static final int MIN_OWNERS = 6;
+  private static final int MIN_COMPANIES = 20;
+  private static final int CATEGORIES = 12;
+
+  private BenchmarkData() {
+  }
+
+  /**
+   * @param size the number of todos or users
+   * @return the generator for a dataset of that size
+   */
+  public static DatasetGenerator generator(int size) {
+    return DatasetGenerator.parse(List.of("--seed=" + SEED,
+        "--owners=" + Math.max(MIN_OWNERS, size / TODOS_PER_OWNER),
+        "--companies=" + Math.max(MIN_COMPANIES, size / USERS_PER_COMPANY),
+        "--categories=" + CATEGORIES));
+  }
+
+  /**
+   * Write a todo data file.
+   *
+   * @param file where to write it
+   * @param size how many todos to write
+   * @throws IOException if it can't be written
+   */
+  public static void writeTodos(Path file, int size) throws IOException {
+    try (OutputStream out = Files.newOutputStream(file)) {
+      generator(size).writeTodos(out, size);
+    }
+  }
+
+  /**
+   * Write a user data file.
+   *
+   * @param file where to write it
+   * @param size how many users to write
+   * @throws IOException if it can't be written
+   */
+  public static void writeUsers(Path file, int size) throws IOException {
+    try (OutputStream out = Files.newOutputStream(file)) {
+      generator(size).writeUsers(out, size);
+    }
+  }
+}
@@ -0,0 +1,192 @@
+package umm3601.todos;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import umm3601.BenchmarkData;
+import umm3601.DatasetGenerator;
+
+/**
+ * Benchmarks for `TodoDatabase`'s queries, on generated todos (see
+ * `BenchmarkData`) of each size in `Todos.size`.
+ * <p>
+ * `listTodos()` is run with each `Queries.shape` of query, with
+ * `Queries.cache` saying whether the results should come from the query
+ * cache (`hit`) or be worked out from scratch (`miss`). Each call uses the
+ * next of a set of different queries of that shape (different owners,
+ * words, and so on), so we don't just measure the one query that happens to
+ * be fastest.
+ * <p>
+ * Run them with `./gradlew jmh` (see `build.gradle`).
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g"})
+@SuppressWarnings({"MagicNumber"})
+public class TodoDatabaseBenchmark {
+
+  // How many different queries (or ids) each benchmark cycles through, so
+  // the results aren't all for the same few todos.
+  private static final int QUERIES = 4096;
+  // How many of those queries a cache `hit` benchmark cycles through.
+  private static final int CACHED_QUERIES = 16;
+  // `contains` searches for one of this many of the most common words, so
+  // they find something.
+  private static final int COMMON_WORDS = 256;
+  private static final int MIN_LIMIT = 10;
+  private static final int LIMITS = 1000;
+  private static final String[] ORDER_BY = {"owner", "category", "body", "status,owner"};
+  private static final String[] STATUSES = {"complete", "incomplete"};
+
+  /**
+   * A database of generated todos.
+   */
+  @State(Scope.Benchmark)
+  @SuppressWarnings({"VisibilityModifier"})
+  public static class Todos {
+    /** How many todos there are. */
+    @Param({"300", "100000", "1000000"})
+    public int size;
+
+    TodoDatabase db;
+    String[] ids;
+    int next;
+
+    /**
+     * Generate the todos, and load them into a new database.
+     *
+     * @throws IOException if the data file can't be written or read
+     */
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+      Path file = Files.createTempFile("todos-" + size + "-", ".json");
+      try {
+        BenchmarkData.writeTodos(file, size);
+        db = new TodoDatabase(file.toString());
+      } finally {
+        Files.delete(file);
+      }
+      DatasetGenerator generator = BenchmarkData.generator(size);
+      Random random = new Random(BenchmarkData.SEED);
+      ids = new String[QUERIES];
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = generator.id(random.nextInt(size));
+      }
+    }
+
+    String nextId() {
+      next = (next + 1) % ids.length;
+      return ids[next];
+    }
+  }
+
+  /**
+   * The queries to run against the todos.
+   */
+  @State(Scope.Thread)
+  @SuppressWarnings({"VisibilityModifier"})
+  public static class Queries {
+    /**
+     * What the queries look for: one `owner`; `all` of owner, category,
+     * and status; a word the body `contains`; or everything sorted by
+     * (`orderBy`) one or two fields and cut off at a `limit`.
+     */
+    @Param({"owner", "all", "contains", "orderByLimit"})
+    public String shape;
+
+    /** Whether the results should already be cached (`hit`) or not (`miss`). */
+    @Param({"hit", "miss"})
+    public String cache;
+
+    List<Map<String, List<String>>> queries;
+    boolean miss;
+    int next;
+
+    /**
+     * Make up the queries.
+     *
+     * @param todos the todos they'll be run against
+     */
+    @Setup(Level.Trial)
+    public void makeQueries(Todos todos) {
+      DatasetGenerator generator = BenchmarkData.generator(todos.size);
+      Random random = new Random(BenchmarkData.SEED);
+      miss = cache.equals("miss");
+      queries = new ArrayList<>();
+      for (int i = 0; i < (miss ? QUERIES : CACHED_QUERIES); i++) {
+        if (shape.equals("owner")) {
+          queries.add(Map.of("owner", List.of(generator.owner(random.nextInt(generator.owners())))));
+        } else if (shape.equals("all")) {
+          queries.add(Map.of("owner", List.of(generator.owner(random.nextInt(generator.owners()))),
+              "category", List.of(generator.category(random.nextInt(generator.categories()))),
+              "status", List.of(STATUSES[random.nextInt(STATUSES.length)])));
+        } else if (shape.equals("contains")) {
+          queries.add(Map.of("contains", List.of(generator.word(random.nextInt(COMMON_WORDS)))));
+        } else if (shape.equals("orderByLimit")) {
+          queries.add(Map.of("orderBy", List.of(ORDER_BY[random.nextInt(ORDER_BY.length)]),
+              "limit", List.of(String.valueOf(MIN_LIMIT + random.nextInt(LIMITS)))));
+        } else {
+          throw new IllegalArgumentException("Unknown query shape '" + shape + "'");
+        }
+      }
+    }
+
+    Map<String, List<String>> nextQuery() {
+      next = (next + 1) % queries.size();
+      return queries.get(next);
+    }
+  }
+
+  /**
+   * Look up a todo by its id.
+   *
+   * @param todos the database
+   * @return the todo
+   */
+  @Benchmark
+  public Todo getTodo(Todos todos) {
+    return todos.db.getTodo(todos.nextId());
+  }
+
+  /**
+   * Run a query. A cache `miss` runs the query against the current
+   * snapshot directly, which is everything `listTodos()` does on a miss
+   * apart from putting the result in the cache (some of the queries
+   * would be repeated if we went through the cache, for the smaller
+   * datasets with only a few owners).
+   *
+   * @param todos the database
+   * @param queries the queries to run
+   * @return the todos the query found
+   */
+  @Benchmark
+  public Todo[] listTodos(Todos todos, Queries queries) {
+    Map<String, List<String>> query = queries.nextQuery();
+    if (queries.miss) {
+      TodoSnapshot snapshot = todos.db.snapshot();
+      return snapshot.toTodos(snapshot.findRows(query));
+    }
+    return todos.db.listTodos(query);
+  }
+}
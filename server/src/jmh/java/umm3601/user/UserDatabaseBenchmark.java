@@ -0,0 +1,118 @@
+package umm3601.user;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import umm3601.BenchmarkData;
+import umm3601.DatasetGenerator;
+
+/**
+ * Benchmarks for `UserDatabase.listUsers()`, on generated users (see
+ * `BenchmarkData`) of each size in `size`, with each `shape` of query.
+ * <p>
+ * Users can only be filtered by `company` and `age`, so there's no
+ * `contains` or `orderBy` to benchmark. `UserDatabase` always goes through
+ * its query cache, so a cache `miss` cycles through more different queries
+ * than the cache holds: by the time a query comes round again it's been
+ * evicted. There are only 63 different ages, though (and only 20
+ * companies for the 300 users), so `age` queries, and `company` queries on
+ * the 300 users, are really cache hits either way.
+ * <p>
+ * Run them with `./gradlew jmh` (see `build.gradle`).
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g"})
+@State(Scope.Benchmark)
+@SuppressWarnings({"MagicNumber", "VisibilityModifier"})
+public class UserDatabaseBenchmark {
+
+  // How many different queries a cache `miss` cycles through (the cache
+  // holds 1,024), and how many a cache `hit` does.
+  private static final int QUERIES = 4096;
+  private static final int CACHED_QUERIES = 16;
+
+  /** How many users there are. */
+  @Param({"300", "100000", "1000000"})
+  public int size;
+
+  /**
+   * What the queries look for: one `company`, one `age`, or `all` (both).
+   */
+  @Param({"company", "age", "all"})
+  public String shape;
+
+  /** Whether the results should already be cached (`hit`) or not (`miss`). */
+  @Param({"hit", "miss"})
+  public String cache;
+
+  private UserDatabase db;
+  private List<Map<String, List<String>>> queries;
+  private int next;
+
+  /**
+   * Generate the users, load them into a new database, and make up the
+   * queries.
+   *
+   * @throws IOException if the data file can't be written or read
+   */
+  @Setup(Level.Trial)
+  public void load() throws IOException {
+    Path file = Files.createTempFile("users-" + size + "-", ".json");
+    try {
+      BenchmarkData.writeUsers(file, size);
+      db = new UserDatabase(file.toString());
+    } finally {
+      Files.delete(file);
+    }
+
+    DatasetGenerator generator = BenchmarkData.generator(size);
+    Random random = new Random(BenchmarkData.SEED);
+    queries = new ArrayList<>();
+    for (int i = 0; i < (cache.equals("miss") ? QUERIES : CACHED_QUERIES); i++) {
+      String company = generator.company(random.nextInt(generator.companies()));
+      String age = String.valueOf(random.nextInt(generator.minAge(), generator.maxAge() + 1));
+      if (shape.equals("company")) {
+        queries.add(Map.of("company", List.of(company)));
+      } else if (shape.equals("age")) {
+        queries.add(Map.of("age", List.of(age)));
+      } else if (shape.equals("all")) {
+        queries.add(Map.of("company", List.of(company), "age", List.of(age)));
+      } else {
+        throw new IllegalArgumentException("Unknown query shape '" + shape + "'");
+      }
+    }
+  }
+
+  /**
+   * Run the next query.
+   *
+   * @return the users it found
+   */
+  @Benchmark
+  public User[] listUsers() {
+    next = (next + 1) % queries.size();
+    return db.listUsers(queries.get(next));
+  }
+}
@@ -0,0 +1,109 @@
+package umm3601;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+
+/**
+ * Looks up a batch of records by id in one request, e.g., `POST
+ * /api/todos/_batch` with the body `{"ids":["58895985a22c04e761776d54",
+ * ...]}`, for pages (like a list of pinned todos) that would otherwise
+ * make a `GET /api/todos/{id}` request for every id.
+ * <p>
+ * Each id is found with the database's id index, and each record is
+ * streamed (from its pre-serialized JSON, see `JsonRecords`) as soon as
+ * it's found, so a big batch never has to be put together in memory. The
+ * response is an object with the records that were found, in the order
+ * they were asked for, followed by the ids that weren't, e.g.,
+ * `{"todos":[...],"missing":["no-such-id"]}`. Asking for an id more than
+ * once gets it once.
+ */
+public final class BatchLookup {
+
+  /** The most ids one request can ask for. */
+  public static final int MAX_IDS = 5000;
+
+  private BatchLookup() {
+  }
+
+  /**
+   * Finds records by id, and writes them.
+   */
+  public interface Finder {
+    /**
+     * Write the records with the given ids, in the same order.
+     *
+     * @param ids the ids to look for
+     * @param out where to write the records
+     * @return the ids there weren't any records for, in the same order
+     * @throws IOException if the records can't be written
+     */
+    List<String> write(List<String> ids, JsonRecords.RecordWriter out) throws IOException;
+  }
+
+  /**
+   * Read the ids from a batch request's body, `{"ids":[...]}`, without any
+   * repeats.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the ids, in the order they were first given
+   * @throws BadRequestResponse if the body isn't a list of (at most
+   *                            `MAX_IDS`) string ids
+   */
+  @SuppressWarnings("unchecked")
+  public static List<String> ids(Context ctx) {
+    Map<String, Object> body;
+    try {
+      body = ctx.bodyAsClass(Map.class);
+    } catch (Exception e) {
+      // The body isn't JSON, or is JSON but not an object (e.g., just the
+      // list of ids). Jackson's exceptions are checked, but Javalin doesn't
+      // declare them.
+      body = null;
+    }
+    if (body == null || !(body.get("ids") instanceof List) || body.size() != 1) {
+      throw new BadRequestResponse("The request body must be an object with just a list of \"ids\".");
+    }
+    List<Object> ids = (List<Object>) body.get("ids");
+    if (ids.size() > MAX_IDS) {
+      throw new BadRequestResponse("A batch can have at most " + MAX_IDS + " ids, not " + ids.size() + ".");
+    }
+    Set<String> unique = new LinkedHashSet<>();
+    for (Object id : ids) {
+      if (!(id instanceof String)) {
+        throw new BadRequestResponse("Every id in the batch must be a string.");
+      }
+      unique.add((String) id);
+    }
+    return new ArrayList<>(unique);
+  }
+
+  /**
+   * Respond to a batch request: read the ids, then stream the records that
+   * were found and the ids that weren't, gzipped if the client accepts
+   * gzip (see `ResponseCompression.stream()`).
+   *
+   * @param ctx a Javalin HTTP context
+   * @param compression how to compress the response
+   * @param field the name of the list of records in the response, e.g.,
+   *              `todos`
+   * @param finder finds the records
+   * @throws IOException if the response can't be written
+   */
+  public static void send(Context ctx, ResponseCompression compression, String field, Finder finder)
+      throws IOException {
+    // Everything that can reject the request happens before anything's
+    // written.
+    List<String> ids = ids(ctx);
+    ctx.contentType(JsonRecords.CONTENT_TYPE);
+    JsonRecords.RecordWriter out = new JsonRecords.RecordWriter(compression.stream(ctx), field);
+    List<String> missing = finder.write(ids, out);
+    out.finish(Map.of("missing", missing));
+  }
+}
@@ -0,0 +1,131 @@
+package umm3601;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches a data file, and calls back whenever it changes, so that the
+ * "databases" can reload it without restarting the server.
+ * <p>
+ * This uses Java's `WatchService`, which gets told about changes by the
+ * operating system rather than checking the file over and over. It can
+ * only watch directories, so we watch the file's directory and ignore
+ * changes to anything else in it. Saving a file often takes several steps
+ * (e.g., truncating it and then writing it, or writing a temporary file
+ * and renaming it), so we wait until the directory has been quiet for a
+ * little while before calling back, rather than reloading a half-written
+ * file.
+ */
+public final class DataFileWatcher implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DataFileWatcher.class);
+
+  private final Path file;
+  private final long quietMillis;
+  private final Runnable onChange;
+  private final WatchService watchService;
+  private final Thread thread;
+
+  /**
+   * Start watching a file.
+   *
+   * @param file the file to watch
+   * @param quietMillis how long nothing in the file's directory must have
+   *                    changed before calling back
+   * @param onChange what to do when the file changes; called on the
+   *                 watcher's own thread
+   * @throws IOException if the file's directory can't be watched
+   */
+  public DataFileWatcher(Path file, long quietMillis, Runnable onChange) throws IOException {
+    this.file = file.toAbsolutePath();
+    this.quietMillis = quietMillis;
+    this.onChange = onChange;
+    watchService = this.file.getFileSystem().newWatchService();
+    this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_MODIFY);
+    thread = new Thread(this::watch, "watch " + this.file.getFileName());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Start watching a data file, if it's in the filesystem. Files on the
+   * classpath can't change while the server's running, so there's no
+   * point watching them.
+   *
+   * @param dataFile a filesystem path, or the path of a classpath resource
+   * @param quietMillis how long nothing in the file's directory must have
+   *                    changed before calling back
+   * @param onChange what to do when the file changes
+   * @return the watcher, or `null` if the file isn't in the filesystem
+   * @throws IOException if the file's directory can't be watched
+   */
+  public static DataFileWatcher forDataFile(String dataFile, long quietMillis, Runnable onChange)
+      throws IOException {
+    Path path = Path.of(dataFile);
+    if (!Files.isRegularFile(path)) {
+      LOGGER.info("Not watching {}, which isn't in the filesystem", dataFile);
+      return null;
+    }
+    return new DataFileWatcher(path, quietMillis, onChange);
+  }
+
+  private void watch() {
+    try {
+      while (true) {
+        WatchKey key = watchService.take();
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+          changed |= file.getFileName().equals(event.context());
+        }
+        if (!key.reset()) {
+          LOGGER.warn("Stopped watching {}, since its directory has gone", file);
+          return;
+        }
+        if (changed) {
+          waitUntilQuiet();
+          LOGGER.info("{} changed", file);
+          try {
+            onChange.run();
+          } catch (RuntimeException e) {
+            LOGGER.error("Couldn't handle a change to {}", file, e);
+          }
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // We've been closed.
+      return;
+    }
+  }
+
+  // Wait until nothing has changed in the directory for `quietMillis`.
+  private void waitUntilQuiet() throws InterruptedException {
+    for (WatchKey key = watchService.poll(quietMillis, TimeUnit.MILLISECONDS); key != null;
+        key = watchService.poll(quietMillis, TimeUnit.MILLISECONDS)) {
+      key.pollEvents();
+      key.reset();
+    }
+  }
+
+  /**
+   * Stop watching the file.
+   *
+   * @throws IOException if the watch service can't be closed
+   */
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+    thread.interrupt();
+  }
+}
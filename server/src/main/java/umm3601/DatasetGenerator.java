@@ -0,0 +1,467 @@
+package umm3601;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * Makes up todo and user datasets of any size, for benchmarks and load
+ * tests: the bundled `todos.json` and `users.json` are far too small to
+ * show how anything scales.
+ * <p>
+ * Run it from the command line (or with `./gradlew generateData`, see
+ * `build.gradle`):
+ * <pre>
+ *   DatasetGenerator todos|users COUNT FILE [--option=value ...]
+ * </pre>
+ * where `FILE` is `-` for standard output. The options (see `parse()`)
+ * say how the values are spread out: how many owners, categories, and
+ * companies there are, how skewed towards the most common owners (and
+ * companies) the records are, how long todo bodies are, and what fraction
+ * of todos are complete. The records are written as they're made up, so
+ * only the lists of names are held in memory, however many records there
+ * are.
+ * <p>
+ * The same seed and options always give exactly the same records, in
+ * either format, so benchmark and load test runs can be repeated.
+ * <p>
+ * Owners (and companies) are chosen from a Zipf distribution with the
+ * given skew: the owner of rank `k` (counting from 1) owns a share of the
+ * todos proportional to `1 / k^skew`. A skew of 0 shares them out evenly,
+ * and around 1 gives a few owners most of the todos, the way real usage
+ * tends to. Body words are always chosen that way with a skew of 1, as
+ * words in real text are.
+ */
+public final class DatasetGenerator {
+
+  /** The name of the JSON array format, which the databases can load. */
+  public static final String JSON = "json";
+  /** The name of the newline-delimited JSON format: one object per line. */
+  public static final String NDJSON = "ndjson";
+
+  // The defaults for the options.
+  private static final long DEFAULT_SEED = 3601;
+  private static final int DEFAULT_OWNERS = 100;
+  private static final int DEFAULT_CATEGORIES = 4;
+  private static final int DEFAULT_COMPANIES = 50;
+  private static final int DEFAULT_MIN_WORDS = 5;
+  private static final int DEFAULT_MAX_WORDS = 20;
+  private static final double DEFAULT_COMPLETE = 0.5;
+
+  // The categories in the bundled `todos.json`, which are used first.
+  private static final List<String> BUNDLED_CATEGORIES = List.of("groceries", "homework", "software design",
+      "video games");
+  // Body words come from a vocabulary of this many made up words, each
+  // between `MIN_WORD_LETTERS` and `MIN_WORD_LETTERS + EXTRA_WORD_LETTERS - 1`
+  // letters long.
+  private static final int VOCABULARY = 4096;
+  private static final int MIN_WORD_LETTERS = 2;
+  private static final int EXTRA_WORD_LETTERS = 9;
+  private static final double WORD_SKEW = 1.0;
+  private static final int MIN_AGE = 18;
+  private static final int MAX_AGE = 80;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DatasetGenerator.class);
+  private static final long NANOS_PER_MILLI = 1_000_000;
+  private static final int EXIT_USAGE = 2;
+  // The arguments before the options: `todos` or `users`, the count, and
+  // the file.
+  private static final int POSITIONAL_ARGS = 3;
+  private static final String USAGE = String.join("\n",
+      "Usage: DatasetGenerator todos|users COUNT FILE [--option=value ...]",
+      "FILE is - for standard output. The options are:",
+      "  --seed=N        the random seed (" + DEFAULT_SEED + ")",
+      "  --format=F      " + JSON + " (an array) or " + NDJSON + " (one object per line)",
+      "  --owners=N      how many owners todos have (" + DEFAULT_OWNERS + ")",
+      "  --categories=N  how many categories todos are in (" + DEFAULT_CATEGORIES + ")",
+      "  --companies=N   how many companies users work for (" + DEFAULT_COMPANIES + ")",
+      "  --skew=S        how skewed owners and companies are: 0 (the default) for even, about 1 for Zipf",
+      "  --min-words=N   the fewest words in a todo's body (" + DEFAULT_MIN_WORDS + ")",
+      "  --max-words=N   the most words in a todo's body (" + DEFAULT_MAX_WORDS + ")",
+      "  --complete=F    the fraction of todos that are complete (" + DEFAULT_COMPLETE + ")");
+
+  // The options, which `parse()` sets.
+  private long seed = DEFAULT_SEED;
+  private String format = JSON;
+  private int owners = DEFAULT_OWNERS;
+  private int categories = DEFAULT_CATEGORIES;
+  private int companies = DEFAULT_COMPANIES;
+  private double skew;
+  private int minWords = DEFAULT_MIN_WORDS;
+  private int maxWords = DEFAULT_MAX_WORDS;
+  private double complete = DEFAULT_COMPLETE;
+  // What `parse()` works out from the options: the words todo bodies are
+  // made of, and the Zipf distributions to choose owners, companies, and
+  // words from.
+  private String[] words;
+  private Zipf ownerRanks;
+  private Zipf companyRanks;
+  private Zipf wordRanks;
+
+  private DatasetGenerator() {
+  }
+
+  /**
+   * Read the generator's options, each of the form `--name=value`: `seed`,
+   * `format` (`json` or `ndjson`), `owners`, `categories`, `companies`,
+   * `skew`, `min-words`, `max-words`, and `complete`. Any that aren't given
+   * get their default (see the usage message).
+   *
+   * @param options the options
+   * @return a generator with those options
+   * @throws IllegalArgumentException if an option isn't valid
+   */
+  public static DatasetGenerator parse(List<String> options) {
+    DatasetGenerator generator = new DatasetGenerator();
+    for (String option : options) {
+      int equals = option.indexOf('=');
+      if (!option.startsWith("--") || equals < 0) {
+        throw new IllegalArgumentException("Option '" + option + "' should look like --name=value");
+      }
+      String name = option.substring(2, equals);
+      String value = option.substring(equals + 1);
+      try {
+        generator.set(name, value);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Option '" + name + "' can't be '" + value + "'", e);
+      }
+    }
+    generator.check();
+
+    generator.words = makeVocabulary(generator.seed);
+    generator.ownerRanks = new Zipf(generator.owners, generator.skew);
+    generator.companyRanks = new Zipf(generator.companies, generator.skew);
+    generator.wordRanks = new Zipf(generator.words.length, WORD_SKEW);
+    return generator;
+  }
+
+  private void set(String name, String value) {
+    if (name.equals("seed")) {
+      seed = Long.parseLong(value);
+    } else if (name.equals("format")) {
+      format = value.toLowerCase();
+    } else if (name.equals("owners")) {
+      owners = Integer.parseInt(value);
+    } else if (name.equals("categories")) {
+      categories = Integer.parseInt(value);
+    } else if (name.equals("companies")) {
+      companies = Integer.parseInt(value);
+    } else if (name.equals("skew")) {
+      skew = Double.parseDouble(value);
+    } else if (name.equals("min-words")) {
+      minWords = Integer.parseInt(value);
+    } else if (name.equals("max-words")) {
+      maxWords = Integer.parseInt(value);
+    } else if (name.equals("complete")) {
+      complete = Double.parseDouble(value);
+    } else {
+      throw new IllegalArgumentException("Unknown option '" + name + "'");
+    }
+  }
+
+  private void check() {
+    if (!format.equals(JSON) && !format.equals(NDJSON)) {
+      throw new IllegalArgumentException("Format '" + format + "' must be " + JSON + " or " + NDJSON);
+    }
+    if (owners < 1 || categories < 1 || companies < 1 || minWords < 1) {
+      throw new IllegalArgumentException("There must be at least 1 owner, category, company, and word");
+    }
+    if (minWords > maxWords) {
+      throw new IllegalArgumentException("min-words (" + minWords + ") can't be more than max-words ("
+          + maxWords + ")");
+    }
+    // Written this way round so that NaN fails too.
+    if (!(skew >= 0)) {
+      throw new IllegalArgumentException("The skew can't be negative, not " + skew);
+    }
+    if (!(complete >= 0 && complete <= 1)) {
+      throw new IllegalArgumentException("The fraction complete must be from 0 to 1, not " + complete);
+    }
+  }
+
+  /**
+   * @return the format records are written in (`json` or `ndjson`)
+   */
+  public String format() {
+    return format;
+  }
+
+  /**
+   * @return how many owners todos have
+   */
+  public int owners() {
+    return owners;
+  }
+
+  /**
+   * @param rank which owner, from 0 (the most common) to `owners() - 1`
+   * @return that owner's name
+   */
+  public String owner(int rank) {
+    return "Owner " + rank;
+  }
+
+  /**
+   * @return how many categories todos are in
+   */
+  public int categories() {
+    return categories;
+  }
+
+  /**
+   * @param index which category, from 0 to `categories() - 1`
+   * @return that category (the bundled ones come first)
+   */
+  public String category(int index) {
+    return index < BUNDLED_CATEGORIES.size() ? BUNDLED_CATEGORIES.get(index) : "category " + index;
+  }
+
+  /**
+   * @return how many companies users work for
+   */
+  public int companies() {
+    return companies;
+  }
+
+  /**
+   * @param rank which company, from 0 (the most common) to
+   *             `companies() - 1`
+   * @return that company's name
+   */
+  public String company(int rank) {
+    return "COMPANY" + rank;
+  }
+
+  /**
+   * @return the youngest a user can be
+   */
+  public int minAge() {
+    return MIN_AGE;
+  }
+
+  /**
+   * @return the oldest a user can be
+   */
+  public int maxAge() {
+    return MAX_AGE;
+  }
+
+  /**
+   * @param rank which word, from 0 (the most common) up
+   * @return that word, as it's written in todo bodies (in lower case)
+   */
+  public String word(int rank) {
+    return words[rank];
+  }
+
+  /**
+   * Get the id of a record: 24 hex digits, like a MongoDB `ObjectId`. The
+   * first 8 come from the seed, and the rest from the record's number, so
+   * they're all different and in order.
+   *
+   * @param row the record's number, from 0
+   * @return its id
+   */
+  public String id(long row) {
+    HexFormat hex = HexFormat.of();
+    return hex.toHexDigits((int) seed) + hex.toHexDigits(row);
+  }
+
+  /**
+   * Write some todos.
+   *
+   * @param out where to write them (which is left open)
+   * @param count how many todos to write
+   * @throws IOException if they can't be written
+   */
+  public void writeTodos(OutputStream out, long count) throws IOException {
+    SplittableRandom random = new SplittableRandom(seed);
+    try (JsonGenerator json = startWriting(out)) {
+      StringBuilder body = new StringBuilder();
+      for (long row = 0; row < count; row++) {
+        json.writeStartObject();
+        json.writeStringField("_id", id(row));
+        json.writeStringField("owner", owner(ownerRanks.sample(random)));
+        json.writeBooleanField("status", random.nextDouble() < complete);
+        body.setLength(0);
+        int length = random.nextInt(minWords, maxWords + 1);
+        for (int i = 0; i < length; i++) {
+          String word = words[wordRanks.sample(random)];
+          if (i == 0) {
+            body.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+          } else {
+            body.append(' ').append(word);
+          }
+        }
+        json.writeStringField("body", body.append('.').toString());
+        json.writeStringField("category", category(random.nextInt(categories)));
+        json.writeEndObject();
+      }
+      finishWriting(json);
+    }
+  }
+
+  /**
+   * Write some users.
+   *
+   * @param out where to write them (which is left open)
+   * @param count how many users to write
+   * @throws IOException if they can't be written
+   */
+  public void writeUsers(OutputStream out, long count) throws IOException {
+    SplittableRandom random = new SplittableRandom(seed);
+    try (JsonGenerator json = startWriting(out)) {
+      for (long row = 0; row < count; row++) {
+        String company = company(companyRanks.sample(random));
+        json.writeStartObject();
+        json.writeStringField("_id", id(row));
+        json.writeStringField("name", "User " + row);
+        json.writeNumberField("age", random.nextInt(MIN_AGE, MAX_AGE + 1));
+        json.writeStringField("company", company);
+        json.writeStringField("email", "user" + row + "@" + company.toLowerCase() + ".com");
+        json.writeEndObject();
+      }
+      finishWriting(json);
+    }
+  }
+
+  // Start writing records in our format. In NDJSON they're just
+  // separate objects, one per line.
+  private JsonGenerator startWriting(OutputStream out) throws IOException {
+    JsonGenerator json = new JsonFactory().createGenerator(out, JsonEncoding.UTF8)
+        .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    if (format.equals(JSON)) {
+      json.writeStartArray();
+    } else {
+      json.setRootValueSeparator(new SerializedString("\n"));
+    }
+    return json;
+  }
+
+  private void finishWriting(JsonGenerator json) throws IOException {
+    if (format.equals(JSON)) {
+      json.writeEndArray();
+    }
+    json.writeRaw('\n');
+  }
+
+  // Make up the words that todo bodies are made of.
+  private static String[] makeVocabulary(long seed) {
+    Random random = new Random(seed);
+    String[] vocabulary = new String[VOCABULARY];
+    for (int i = 0; i < vocabulary.length; i++) {
+      char[] letters = new char[MIN_WORD_LETTERS + random.nextInt(EXTRA_WORD_LETTERS)];
+      for (int j = 0; j < letters.length; j++) {
+        letters[j] = (char) ('a' + random.nextInt('z' - 'a' + 1));
+      }
+      vocabulary[i] = new String(letters);
+    }
+    return vocabulary;
+  }
+
+  /**
+   * Write a dataset, as the command line asks (see the usage message).
+   *
+   * @param args `todos` or `users`, how many, the file (or `-`), and any
+   *             options
+   * @throws IOException if the file can't be written
+   * @throws IllegalArgumentException if the arguments aren't valid
+   */
+  public static void run(String[] args) throws IOException {
+    if (args.length < POSITIONAL_ARGS || !(args[0].equals("todos") || args[0].equals("users"))) {
+      throw new IllegalArgumentException("Expected todos or users, a count, and a file");
+    }
+    long count;
+    try {
+      count = Long.parseLong(args[1]);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("The count '" + args[1] + "' isn't a number", e);
+    }
+    DatasetGenerator generator = parse(Arrays.asList(args).subList(POSITIONAL_ARGS, args.length));
+
+    long startTime = System.nanoTime();
+    boolean toFile = !args[2].equals("-");
+    if (toFile && Path.of(args[2]).toAbsolutePath().getParent() != null) {
+      Files.createDirectories(Path.of(args[2]).toAbsolutePath().getParent());
+    }
+    OutputStream out = toFile ? new BufferedOutputStream(Files.newOutputStream(Path.of(args[2]))) : System.out;
+    try {
+      if (args[0].equals("todos")) {
+        generator.writeTodos(out, count);
+      } else {
+        generator.writeUsers(out, count);
+      }
+    } finally {
+      if (toFile) {
+        out.close();
+      } else {
+        out.flush();
+      }
+    }
+    LOGGER.info("Wrote {} {} to {} in {} ms", count, args[0], args[2],
+        (System.nanoTime() - startTime) / NANOS_PER_MILLI);
+  }
+
+  /**
+   * Write a dataset, as the command line asks (see the usage message).
+   *
+   * @param args `todos` or `users`, how many, the file (or `-`), and any
+   *             options
+   * @throws IOException if the file can't be written
+   */
+  public static void main(String[] args) throws IOException {
+    try {
+      run(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      System.exit(EXIT_USAGE);
+    }
+  }
+
+  /**
+   * Chooses ranks from 0 to `n - 1` at random, rank `k` with probability
+   * proportional to `1 / (k + 1)^skew`. With a skew of 0 they're all just
+   * as likely.
+   */
+  static final class Zipf {
+    // The probability of each rank or any before it; the last is 1.
+    private final double[] cumulative;
+
+    Zipf(int n, double skew) {
+      cumulative = new double[n];
+      double total = 0;
+      for (int k = 0; k < n; k++) {
+        total += Math.pow(k + 1, -skew);
+        cumulative[k] = total;
+      }
+      for (int k = 0; k < n; k++) {
+        cumulative[k] /= total;
+      }
+    }
+
+    int sample(SplittableRandom random) {
+      // The first rank whose cumulative probability is more than a uniform
+      // random number. (It can't be past the end, but just in case
+      // rounding left the last one a hair under 1, clamp it.)
+      int found = Arrays.binarySearch(cumulative, random.nextDouble());
+      int rank = found >= 0 ? found + 1 : -found - 1;
+      return Math.min(rank, cumulative.length - 1);
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package umm3601;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * Counts of records grouped by the values of some of their fields, for the
+ * `/stats` endpoints.
+ * <p>
+ * The databases keep counts of how many records have each combination of
+ * the fields we can group by (and update them on every write), so a stats
+ * query just adds those counts up into the groups asked for. That takes
+ * time proportional to the number of combinations rather than the number
+ * of records, and the response is a small object instead of every record.
+ * <p>
+ * Groups come out sorted by their values, in the order of the `groupBy`
+ * fields (with `null` first).
+ */
+public final class GroupedCounts {
+
+  // Values are all strings, booleans, or numbers, so within a field they're
+  // always comparable with each other.
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static final Comparator<Object> VALUES = Comparator.nullsFirst((a, b) -> ((Comparable) a).compareTo(b));
+  private static final Comparator<Object[]> GROUPS = (a, b) -> Arrays.compare(a, b, VALUES);
+
+  private final String[] fields;
+  private final TreeMap<Object[], long[]> groups = new TreeMap<>(GROUPS);
+  private long total;
+
+  /**
+   * Start counting.
+   *
+   * @param fields the fields to group by, most significant first
+   */
+  public GroupedCounts(String[] fields) {
+    this.fields = fields.clone();
+  }
+
+  /**
+   * Read the `groupBy` query parameter: a comma-separated list of fields,
+   * e.g., `groupBy=owner,category`. Without one, everything is counted as
+   * a single group.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @param allowed the fields that can be grouped by
+   * @return the fields to group by, most significant first
+   * @throws BadRequestResponse if a field can't be grouped by, or is
+   *                            given twice
+   */
+  public static String[] parseGroupBy(Map<String, List<String>> queryParams, Collection<String> allowed) {
+    if (!queryParams.containsKey("groupBy") || queryParams.get("groupBy").get(0).isBlank()) {
+      return new String[0];
+    }
+    String[] fields = queryParams.get("groupBy").get(0).split(",");
+    for (int i = 0; i < fields.length; i++) {
+      fields[i] = fields[i].trim();
+      if (!allowed.contains(fields[i])) {
+        throw new BadRequestResponse("Specified groupBy field '" + fields[i] + "' must be one of " + allowed);
+      }
+      if (Arrays.asList(fields).subList(0, i).contains(fields[i])) {
+        throw new BadRequestResponse("Specified groupBy field '" + fields[i] + "' is given more than once");
+      }
+    }
+    return fields;
+  }
+
+  /**
+   * @return the fields being grouped by
+   */
+  public String[] fields() {
+    return fields.clone();
+  }
+
+  /**
+   * Count some records into their group.
+   *
+   * @param values the records' value for each field being grouped by, in
+   *               the same order as the fields; the array mustn't be
+   *               changed afterwards
+   * @param count how many records there are
+   */
+  public void add(Object[] values, long count) {
+    if (count == 0) {
+      return;
+    }
+    groups.computeIfAbsent(values, group -> new long[1])[0] += count;
+    total += count;
+  }
+
+  /**
+   * @return the number of records counted, in all the groups together
+   */
+  public long total() {
+    return total;
+  }
+
+  /**
+   * Describe the counts, ready to be sent as JSON: the `groupBy` fields,
+   * the `total`, and the `groups`, each with its value for every field and
+   * its `count`. Groups that no records fell into are left out.
+   *
+   * @return the counts
+   */
+  public Map<String, Object> toJson() {
+    Map<String, Object> json = new LinkedHashMap<>();
+    json.put("groupBy", fields.clone());
+    json.put("total", total);
+    Object[] list = new Object[groups.size()];
+    int i = 0;
+    for (Map.Entry<Object[], long[]> group : groups.entrySet()) {
+      Map<String, Object> entry = new LinkedHashMap<>();
+      for (int field = 0; field < fields.length; field++) {
+        entry.put(fields[field], group.getKey()[field]);
+      }
+      entry.put("count", group.getValue()[0]);
+      list[i++] = entry;
+    }
+    json.put("groups", list);
+    return json;
+  }
+}
@@ -0,0 +1,168 @@
+package umm3601;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Validators (`ETag`s) and `Cache-Control` headers for our GET responses,
+ * so that clients (and proxies) polling for data that hasn't changed get
+ * a tiny `304 Not Modified` instead of the same response all over again.
+ * <p>
+ * A response depends only on the version of the data it came from, the
+ * query parameters that make a difference to it (normalized as in
+ * `QueryCache.key()`), and whether it was asked for as NDJSON or gzipped.
+ * So the `ETag` is made from just those, and can be worked out, and
+ * checked against the request's `If-None-Match`, before the query is run
+ * at all.
+ * <p>
+ * Versions start again at 1 each time the server starts, so the `ETag`
+ * also includes a random "epoch" picked at startup: a client can't get a
+ * `304` for a response it got from an earlier run of the server.
+ * <p>
+ * The `Cache-Control` header for each route can be configured (see
+ * `parse()`). By default it's `no-cache`, which lets clients keep
+ * responses but makes them check back (with `If-None-Match`) every time,
+ * since the data can change at any moment.
+ */
+public final class HttpCaching {
+
+  /** The `Cache-Control` header for routes that don't configure one. */
+  public static final String DEFAULT_CACHE_CONTROL = "no-cache";
+
+  /** Every route gets `DEFAULT_CACHE_CONTROL`. */
+  public static final HttpCaching DEFAULT = new HttpCaching(Map.of());
+
+  /** The request headers our responses depend on, besides the URL. */
+  public static final String VARY = "Accept, Accept-Encoding";
+
+  // 64-bit FNV-1a, for hashing normalized queries.
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+  private static final int BYTE_MASK = 0xff;
+  private static final int HEX = 16;
+  private static final int RADIX = 36;
+
+  // Picked once per run of the server; see the class comment.
+  private static final String EPOCH = Long.toString(new SecureRandom().nextLong() >>> 1, RADIX);
+
+  private final Map<String, String> cacheControl;
+
+  /**
+   * Set up caching headers.
+   *
+   * @param cacheControl the `Cache-Control` header for each route that
+   *                     shouldn't get `DEFAULT_CACHE_CONTROL`, keyed by
+   *                     the route's path (e.g., `/api/todos/{id}`)
+   */
+  public HttpCaching(Map<String, String> cacheControl) {
+    this.cacheControl = Collections.unmodifiableMap(new HashMap<>(cacheControl));
+  }
+
+  /**
+   * Read a `Cache-Control` configuration (e.g., from the `CACHE_CONTROL`
+   * environment variable): routes and their headers, separated by `;`, as
+   * in `/api/users=max-age=60, public;/api/todos/stats=no-store`.
+   *
+   * @param config the configuration (`null` or blank for the defaults)
+   * @return the caching headers
+   * @throws IllegalArgumentException if an entry isn't `route=header`
+   */
+  public static HttpCaching parse(String config) {
+    Map<String, String> cacheControl = new HashMap<>();
+    if (config != null) {
+      for (String entry : config.split(";")) {
+        if (entry.isBlank()) {
+          continue;
+        }
+        int equals = entry.indexOf('=');
+        if (equals <= 0 || entry.substring(equals + 1).isBlank()) {
+          throw new IllegalArgumentException("Cache-Control entry '" + entry + "' must be route=header");
+        }
+        cacheControl.put(entry.substring(0, equals).trim(), entry.substring(equals + 1).trim());
+      }
+    }
+    return new HttpCaching(cacheControl);
+  }
+
+  /**
+   * @param route a route's path
+   * @return the `Cache-Control` header for it
+   */
+  public String cacheControl(String route) {
+    return cacheControl.getOrDefault(route, DEFAULT_CACHE_CONTROL);
+  }
+
+  /**
+   * Make the `ETag` for a response.
+   *
+   * @param version the version of the data the response comes from
+   * @param query the normalized query (see `QueryCache.key()`), plus
+   *              anything else that changes the response
+   * @return the (strong, quoted) `ETag`
+   */
+  public static String etag(long version, String query) {
+    long hash = FNV_OFFSET_BASIS;
+    for (byte b : query.getBytes(StandardCharsets.UTF_8)) {
+      hash = (hash ^ (b & BYTE_MASK)) * FNV_PRIME;
+    }
+    return "\"" + EPOCH + "-" + version + "-" + Long.toUnsignedString(hash, HEX) + "\"";
+  }
+
+  /**
+   * Set the caching headers on a GET response, and decide whether the
+   * client already has it. If it does, the response becomes a `304 Not
+   * Modified` (with no body), and the handler should stop there, before
+   * doing any work.
+   * <p>
+   * Read the version before finding the data for the response, not after:
+   * if a write sneaks in between, the response is newer than its `ETag`
+   * says, which just costs the client a full response next time, rather
+   * than a stale one.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param route the route's path, for its `Cache-Control`
+   * @param version the version of the data the response will come from
+   * @param query the normalized query (see `etag()`)
+   * @return true if the response is a `304`, and there's nothing more to do
+   */
+  public boolean notModified(Context ctx, String route, long version, String query) {
+    String accept = ctx.header("Accept");
+    boolean ndjson = accept != null && accept.contains(JsonRecords.NDJSON_CONTENT_TYPE);
+    // A gzipped response is a different representation from a plain one
+    // (see `ResponseCompression`), so it gets a different `ETag` too.
+    boolean gzip = ResponseCompression.acceptsGzip(ctx.header("Accept-Encoding"));
+    String etag = etag(version, query + (ndjson ? "#ndjson" : "") + (gzip ? "#gzip" : ""));
+    ctx.header("ETag", etag);
+    ctx.header("Cache-Control", cacheControl(route));
+    ctx.header("Vary", VARY);
+    if (matches(ctx.header("If-None-Match"), etag)) {
+      ctx.status(HttpStatus.NOT_MODIFIED);
+      return true;
+    }
+    return false;
+  }
+
+  // Whether an `If-None-Match` header lists the `ETag` (or is `*`).
+  // `If-None-Match` uses weak comparison, so a `W/` prefix is ignored.
+  static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      String tag = candidate.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals("*") || tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
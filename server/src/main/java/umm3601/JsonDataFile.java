@@ -0,0 +1,124 @@
+package umm3601;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads the JSON data files that the "databases" are loaded from.
+ * <p>
+ * A data file is a JSON array of objects. Rather than having Jackson build
+ * the whole array (and the list it collects the elements in first) before
+ * we can copy the data into our own structures, we walk through the file
+ * with Jackson's streaming `JsonParser` and hand each object to the caller
+ * as we reach it. That way loading only needs memory for the data we
+ * actually keep, however big the file is.
+ */
+public final class JsonDataFile {
+
+  private JsonDataFile() {
+  }
+
+  /**
+   * Reads one object from a data file.
+   */
+  public interface ElementReader {
+    /**
+     * Read one object. The parser is at the object's `START_OBJECT`, and
+     * should be left at its `END_OBJECT`.
+     *
+     * @param parser the parser
+     * @throws IOException if the object can't be read
+     */
+    void read(JsonParser parser) throws IOException;
+  }
+
+  /**
+   * Open a data file. If there's a file at the given path in the
+   * filesystem we use that; otherwise we look for the path on the
+   * classpath (which is where the small example files are).
+   *
+   * @param dataFile a filesystem path, or the path of a classpath resource
+   * @return the file's contents
+   * @throws IOException if there's no such file
+   */
+  public static InputStream open(String dataFile) throws IOException {
+    Path path = Path.of(dataFile);
+    if (Files.isRegularFile(path)) {
+      return new BufferedInputStream(Files.newInputStream(path));
+    }
+    // The `.getResourceAsStream` method searches for the given resource in
+    // the classpath, and returns `null` if it isn't found. We want to throw
+    // an IOException if the data file isn't found, so we need to check for
+    // `null` ourselves, and throw an IOException if necessary.
+    InputStream resourceAsStream = JsonDataFile.class.getResourceAsStream(dataFile);
+    if (resourceAsStream == null) {
+      throw new IOException("Could not find " + dataFile);
+    }
+    return resourceAsStream;
+  }
+
+  /**
+   * Read each object in a data file, in order.
+   *
+   * @param dataFile a filesystem path, or the path of a classpath resource
+   * @param reader reads each object
+   * @return the number of objects read
+   * @throws IOException if the file can't be found or isn't an array of
+   *                     objects
+   */
+  public static int readArray(String dataFile, ElementReader reader) throws IOException {
+    int count = 0;
+    try (JsonParser parser = new JsonFactory().createParser(open(dataFile))) {
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+        throw new IOException(dataFile + " should hold a JSON array");
+      }
+      for (JsonToken token = parser.nextToken(); token != JsonToken.END_ARRAY; token = parser.nextToken()) {
+        if (token != JsonToken.START_OBJECT) {
+          throw new IOException("Element " + count + " of " + dataFile + " should be a JSON object");
+        }
+        reader.read(parser);
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Start measuring the peak heap usage afresh, e.g., before loading a
+   * data file.
+   */
+  public static void resetPeakHeap() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+
+  /**
+   * Get the peak heap usage since the last `resetPeakHeap()`. The JVM only
+   * tracks peaks for each part ("pool") of the heap separately, so this
+   * adds those up; the real peak can't have been any higher than that.
+   *
+   * @return the peak heap usage in bytes
+   */
+  public static long peakHeapBytes() {
+    long bytes = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        bytes += pool.getPeakUsage().getUsed();
+      }
+    }
+    return bytes;
+  }
+}
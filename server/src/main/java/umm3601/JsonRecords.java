@@ -0,0 +1,315 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.http.Context;
+
+/**
+ * Pre-serialized JSON for the records we serve.
+ * <p>
+ * Letting Javalin turn an array of todos (or users) into JSON means
+ * Jackson walks every field of every record, by reflection, on every
+ * request, even though the records hardly ever change. Instead the
+ * databases serialize each record once, when it's loaded or written, and
+ * keep the UTF-8 bytes. A list response is then just those bytes copied
+ * back to back into one array, with `[`, commas, and `]` in between.
+ * <p>
+ * The bytes are exactly what Jackson would have produced for the record,
+ * so clients can't tell the difference.
+ * <p>
+ * For big results, clients can also ask for the records to be streamed
+ * (see `startStream()`): each record is written to the response as soon as
+ * it's found, so memory use doesn't grow with the size of the result and
+ * the first records arrive before the last ones have been found.
+ */
+public final class JsonRecords {
+
+  /** The content type to send JSON with. */
+  public static final String CONTENT_TYPE = "application/json";
+  /** The content type of newline-delimited JSON: one record per line. */
+  public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+
+  // How much of a record that isn't on the heap we copy at a time.
+  private static final int COPY_BUFFER_BYTES = 8192;
+
+  // Jackson mappers are thread safe once configured, and cache what they
+  // learn about each class, so one is shared by everyone.
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private JsonRecords() {
+  }
+
+  /**
+   * Where to find each record's JSON, for `toArray()`.
+   */
+  public interface Source {
+    /**
+     * @param i which record (0 up to the count given to `toArray()`)
+     * @return the length of that record's JSON in bytes
+     */
+    int length(int i);
+
+    /**
+     * Copy a record's JSON into an array.
+     *
+     * @param i which record
+     * @param destination the array to copy to
+     * @param at where to put the first byte
+     */
+    void copy(int i, byte[] destination, int at);
+  }
+
+  /**
+   * Serialize a record.
+   *
+   * @param record the record
+   * @return its JSON, as UTF-8
+   */
+  public static byte[] serialize(Object record) {
+    try {
+      return MAPPER.writeValueAsBytes(record);
+    } catch (JsonProcessingException e) {
+      // Our records are plain objects of strings, numbers, and booleans,
+      // which can always be serialized.
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // A string as JSON, with quotes (and escapes).
+  private static String serializeString(String value) {
+    return new String(serialize(value), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Assemble a JSON array out of pre-serialized records. The array is
+   * allocated at exactly the right size, and each record is copied into
+   * it just once.
+   *
+   * @param count the number of records
+   * @param records where to find them
+   * @return the JSON array, as UTF-8
+   */
+  public static byte[] toArray(int count, Source records) {
+    // `[` and `]`, plus a comma between each pair of records.
+    long length = 2 + Math.max(count - 1, 0);
+    for (int i = 0; i < count; i++) {
+      length += records.length(i);
+    }
+    if (length > Integer.MAX_VALUE) {
+      throw new IllegalStateException("A response of " + length + " bytes is too big to send");
+    }
+    byte[] json = new byte[(int) length];
+    int at = 0;
+    json[at++] = '[';
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        json[at++] = ',';
+      }
+      records.copy(i, json, at);
+      at += records.length(i);
+    }
+    json[at] = ']';
+    return json;
+  }
+
+  /**
+   * Decide whether a request wants its records streamed: either as a JSON
+   * array, with `?stream=true`, or as newline-delimited JSON, with
+   * `Accept: application/x-ndjson` (which is always streamed). If so, set
+   * the content type and return a writer for the records.
+   * <p>
+   * Nothing is written until the first record (or `finish()`), so a
+   * request can still fail with an error response before then. Since we
+   * don't know how long the response will be, the server sends it with
+   * chunked transfer encoding.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return a writer for the records, or `null` if the request didn't ask
+   *         for them to be streamed
+   * @throws IOException if the response can't be started
+   */
+  public static RecordWriter startStream(Context ctx) throws IOException {
+    return startStream(ctx, ResponseCompression.DEFAULT);
+  }
+
+  /**
+   * Decide whether a request wants its records streamed, as above, and if
+   * so start streaming them, gzipped if the client accepts gzip (see
+   * `ResponseCompression.stream()`).
+   *
+   * @param ctx a Javalin HTTP context
+   * @param compression how to compress the response
+   * @return a writer for the records, or `null` if the request didn't ask
+   *         for them to be streamed
+   * @throws IOException if the response can't be started
+   */
+  public static RecordWriter startStream(Context ctx, ResponseCompression compression) throws IOException {
+    String accept = ctx.header("Accept");
+    boolean ndjson = accept != null && accept.contains(NDJSON_CONTENT_TYPE);
+    if (!ndjson && !"true".equals(ctx.queryParam("stream"))) {
+      return null;
+    }
+    ctx.contentType(ndjson ? NDJSON_CONTENT_TYPE : CONTENT_TYPE);
+    return new RecordWriter(compression.stream(ctx), ndjson);
+  }
+
+  /**
+   * Writes pre-serialized records to a stream one at a time, either as a
+   * JSON array or as newline-delimited JSON. The array can also be a field
+   * of an object, with more fields after it, e.g., `{"todos":[...],
+   * "missing":[...]}`.
+   */
+  public static final class RecordWriter {
+    private final OutputStream out;
+    private final boolean ndjson;
+    // What comes before the array, if it's a field of an object: `{` and
+    // the field's name.
+    private final byte[] objectStart;
+    private byte[] copyBuffer;
+    private boolean started;
+
+    /**
+     * Start writing records.
+     *
+     * @param out where to write them
+     * @param ndjson true for newline-delimited JSON, false for a JSON array
+     */
+    public RecordWriter(OutputStream out, boolean ndjson) {
+      this.out = out;
+      this.ndjson = ndjson;
+      this.objectStart = null;
+    }
+
+    /**
+     * Start writing records as a JSON array that's the first field of an
+     * object. `finish(Map)` adds the rest of the object's fields.
+     *
+     * @param out where to write them
+     * @param field the name of the array's field
+     */
+    public RecordWriter(OutputStream out, String field) {
+      this.out = out;
+      this.ndjson = false;
+      this.objectStart = ("{" + serializeString(field) + ":").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a record.
+     *
+     * @param json the record's JSON
+     * @throws IOException if it can't be written
+     */
+    public void write(byte[] json) throws IOException {
+      write(json, 0, json.length);
+    }
+
+    /**
+     * Write a record held in part of an array.
+     *
+     * @param json the array holding the record's JSON
+     * @param offset where the record starts
+     * @param length how long it is
+     * @throws IOException if it can't be written
+     */
+    public void write(byte[] json, int offset, int length) throws IOException {
+      separate();
+      out.write(json, offset, length);
+      terminate();
+    }
+
+    /**
+     * Write a record held in part of a buffer (e.g., a page of a
+     * `TextColumn`, which might be mapped from a file rather than on the
+     * heap).
+     *
+     * @param page the buffer holding the record's JSON
+     * @param offset where the record starts
+     * @param length how long it is
+     * @throws IOException if it can't be written
+     */
+    public void write(ByteBuffer page, int offset, int length) throws IOException {
+      if (page.hasArray()) {
+        write(page.array(), page.arrayOffset() + offset, length);
+        return;
+      }
+      separate();
+      if (copyBuffer == null) {
+        copyBuffer = new byte[COPY_BUFFER_BYTES];
+      }
+      for (int done = 0; done < length; done += COPY_BUFFER_BYTES) {
+        int chunk = Math.min(COPY_BUFFER_BYTES, length - done);
+        page.get(offset + done, copyBuffer, 0, chunk);
+        out.write(copyBuffer, 0, chunk);
+      }
+      terminate();
+    }
+
+    // What goes before each record: the start of the array, or a comma.
+    private void separate() throws IOException {
+      if (!ndjson) {
+        if (!started && objectStart != null) {
+          out.write(objectStart);
+        }
+        out.write(started ? ',' : '[');
+      }
+      started = true;
+    }
+
+    // What goes after each record: a newline, for NDJSON.
+    private void terminate() throws IOException {
+      if (ndjson) {
+        out.write('\n');
+      }
+    }
+
+    /**
+     * Finish writing: close the array, if it's an array, finish the
+     * compressed stream, if it's compressed, and flush everything written
+     * so far.
+     *
+     * @throws IOException if it can't be written
+     */
+    public void finish() throws IOException {
+      finish(Map.of());
+    }
+
+    /**
+     * Finish writing, as above, adding some more fields after the array if
+     * it's a field of an object (see `RecordWriter(OutputStream, String)`).
+     *
+     * @param moreFields the other fields of the object, in order; they're
+     *                   serialized with Jackson
+     * @throws IOException if it can't be written
+     */
+    public void finish(Map<String, ?> moreFields) throws IOException {
+      if (!ndjson) {
+        if (!started) {
+          if (objectStart != null) {
+            out.write(objectStart);
+          }
+          out.write('[');
+        }
+        out.write(']');
+      }
+      if (objectStart != null) {
+        for (Map.Entry<String, ?> field : moreFields.entrySet()) {
+          out.write(("," + serializeString(field.getKey()) + ":").getBytes(StandardCharsets.UTF_8));
+          out.write(serialize(field.getValue()));
+        }
+        out.write('}');
+      }
+      if (out instanceof ResponseCompression.GzipStream) {
+        ((ResponseCompression.GzipStream) out).finish();
+      }
+      out.flush();
+    }
+  }
+}
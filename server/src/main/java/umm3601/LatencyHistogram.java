@@ -0,0 +1,130 @@
+package umm3601;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, in nanoseconds, that many threads can record
+ * into at once without locking or allocating anything.
+ * <p>
+ * Like an HdrHistogram, it counts values in buckets whose width grows
+ * with the value: each power of two is split into 64 equal buckets, so
+ * any value is known to within 1/64 (about 1.6%) of itself, whether it's
+ * 200 nanoseconds or 20 seconds. That takes 2,240 counters to cover
+ * everything up to about 18 minutes (2^40 nanoseconds); anything longer is
+ * counted as that. Recording a value is just working out its bucket and
+ * incrementing that bucket's counter, plus a few more atomic updates for
+ * the count, sum, and maximum.
+ * <p>
+ * Reading the histogram (e.g., `valueAtQuantile()`) while values are
+ * being recorded may see some of those updates and not others, so
+ * quantiles can be off by the few requests that were finishing at that
+ * moment. That's fine for monitoring.
+ */
+public final class LatencyHistogram {
+
+  /** The largest value that's recorded as itself. */
+  public static final long MAX_VALUE = (1L << 40) - 1;
+
+  // Values below `SUB_BUCKETS` each get their own bucket; above that, each
+  // power of two gets `HALF_SUB_BUCKETS` buckets.
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+  private static final int HALF_SUB_BUCKET_BITS = SUB_BUCKET_BITS - 1;
+  private static final int BUCKETS = bucketOf(MAX_VALUE) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  // The bucket a value goes in.
+  private static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    // How far to shift the value right to leave its top `SUB_BUCKET_BITS`
+    // bits, which pick a bucket within its power of two.
+    int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - HALF_SUB_BUCKET_BITS;
+    return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+  }
+
+  // The smallest value in a bucket.
+  private static long lowestValueIn(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / HALF_SUB_BUCKETS - 1;
+    return (long) (bucket - shift * HALF_SUB_BUCKETS) << shift;
+  }
+
+  /**
+   * Record a latency.
+   *
+   * @param nanos the latency, in nanoseconds (negative values count as 0)
+   */
+  public void record(long nanos) {
+    long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+    counts.incrementAndGet(bucketOf(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long highest = max.get();
+    while (value > highest && !max.compareAndSet(highest, value)) {
+      highest = max.get();
+    }
+  }
+
+  /**
+   * @return the number of latencies recorded
+   */
+  public long count() {
+    return count.get();
+  }
+
+  /**
+   * @return the sum of the latencies recorded, in nanoseconds
+   */
+  public long sum() {
+    return sum.get();
+  }
+
+  /**
+   * @return the largest latency recorded, in nanoseconds (exactly)
+   */
+  public long max() {
+    return max.get();
+  }
+
+  /**
+   * Find a quantile (e.g., 0.99 for the 99th percentile) of the latencies
+   * recorded: a value that at least that fraction of them are no bigger
+   * than. It's the top of the bucket the quantile falls in, so it's never
+   * an underestimate, and is within 1.6% of the true value (or the
+   * largest latency, if that's smaller).
+   *
+   * @param quantile the quantile, from 0 to 1
+   * @return the latency at that quantile, in nanoseconds, or 0 if nothing
+   *         has been recorded
+   */
+  public long valueAtQuantile(double quantile) {
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      snapshot[bucket] = counts.get(bucket);
+      total += snapshot[bucket];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      seen += snapshot[bucket];
+      if (seen >= rank) {
+        return Math.min(lowestValueIn(bucket + 1) - 1, max());
+      }
+    }
+    return max();
+  }
+}
@@ -1,6 +1,9 @@
 package umm3601;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
 
 import umm3601.todos.TodoController;
 import umm3601.user.UserController;
@@ -11,13 +14,24 @@ public class Main {
 
   public static void main(String[] args) throws IOException {
 
+    // With `CLIENT_FINGERPRINTS=true`, the client's files are read into
+    // memory once, compressed, and served under fingerprinted names (see
+    // `StaticAssets`), which is faster but means restarting the server to
+    // see changes to them. Otherwise they're served straight from the
+    // disk, so changes show up right away.
+    boolean fingerprintClient = parseEnv(() -> parseFlag(env("CLIENT_FINGERPRINTS", "false")),
+        "CLIENT_FINGERPRINTS");
+
     // The implementations of `Controller` used for the server. These will presumably
     // be one or more controllers, each of which implements the `Controller` interface.
     // You'll add your own controllers in `getControllers` as you create them.
-    final Controller[] controllers = Main.getControllers();
+    final Controller[] controllers = Main.getControllers(fingerprintClient);
 
-    // Construct the server
-    Server server = new Server(controllers);
+    // Construct the server, handling requests on the threads the
+    // environment asks for (see `RequestThreads`).
+    RequestThreads threads = parseEnv(() -> RequestThreads.parse(env("SERVER_THREADS", null),
+        env("SERVER_MAX_THREADS", null)), "SERVER_THREADS", "SERVER_MAX_THREADS");
+    Server server = new Server(controllers, threads, fingerprintClient ? null : Server.CLIENT_DIRECTORY);
 
     // Start the server
     server.startServer();
@@ -30,18 +44,93 @@ public class Main {
    * implements the `Controller` interface. You'll add your own controllers
    * in to the array returned by this method as you create them.
    *
+   * @param fingerprintClient Whether to serve the client's files with
+   *                          `StaticAssets` (rather than having the server
+   *                          serve them from the disk)
    * @return An array of implementations of `Controller` for the server.
    * @throws IOException
    */
-  static Controller[] getControllers() throws IOException {
-    Controller[] controllers = new Controller[] {
+  static Controller[] getControllers(boolean fingerprintClient) throws IOException {
+    // The `Cache-Control` header for some routes (see `HttpCaching.parse()`).
+    HttpCaching caching = parseEnv(() -> HttpCaching.parse(env("CACHE_CONTROL", null)), "CACHE_CONTROL");
+    // How big API responses get gzipped, and how hard (see `ResponseCompression`).
+    ResponseCompression compression = parseEnv(() -> ResponseCompression.parse(env("COMPRESSION_MIN_BYTES", null),
+        env("COMPRESSION_LEVEL", null)), "COMPRESSION_MIN_BYTES", "COMPRESSION_LEVEL");
+    // How long to wait to batch more todo changes into each write to the
+    // log (if there is one).
+    long logBatchMicros = parseEnv(() -> Long.parseLong(env("TODO_LOG_BATCH_MICROS", "0").trim()),
+        "TODO_LOG_BATCH_MICROS");
+    List<Controller> controllers = new ArrayList<>(List.of(
       // You would add additional controllers here, as you create them,
       // although you need to make sure that each of your new controllers implements
       // the `Controller` interface.
-      UserController.buildUserController(USER_DATA_FILE),
-      TodoController.buildTodoController(TODO_DATA_FILE)
-    };
-    return controllers;
+      UserController.buildUserController(dataFile("USER_DATA_FILE", USER_DATA_FILE), caching, compression),
+      TodoController.buildTodoController(dataFile("TODO_DATA_FILE", TODO_DATA_FILE),
+          dataFile("TODO_SNAPSHOT_FILE", null), dataFile("TODO_LOG_FILE", null),
+          logBatchMicros, caching, compression)
+    ));
+    if (fingerprintClient) {
+      // The client's HTML, JavaScript, and CSS.
+      controllers.add(StaticAssets.load(Server.CLIENT_DIRECTORY));
+    }
+    return controllers.toArray(new Controller[0]);
+  }
+
+  /**
+   * Get the data file to load, which can be set with an environment
+   * variable (e.g., `TODO_DATA_FILE=/data/todos.json`) to load a bigger
+   * dataset from the filesystem instead of the small example on the
+   * classpath. `TODO_SNAPSHOT_FILE` sets where to save a binary snapshot
+   * of the todos, which later starts can open instead of the JSON, and
+   * `TODO_LOG_FILE` where to log changes to the todos so they survive a
+   * restart.
+   *
+   * @param variable the name of the environment variable
+   * @param defaultFile the data file to use if the variable isn't set
+   * @return the data file
+   */
+  static String dataFile(String variable, String defaultFile) {
+    String dataFile = System.getenv(variable);
+    return dataFile == null || dataFile.isBlank() ? defaultFile : dataFile;
+  }
+
+  /**
+   * Get a setting (other than a file) from an environment variable.
+   *
+   * @param name the name of the environment variable
+   * @param defaultValue the value to use if the variable isn't set
+   * @return the setting
+   */
+  static String env(String name, String defaultValue) {
+    String value = System.getenv(name);
+    return value == null || value.isBlank() ? defaultValue : value;
+  }
+
+  // Parse a `true` or `false` setting.
+  private static boolean parseFlag(String value) {
+    if (!value.trim().equals("true") && !value.trim().equals("false")) {
+      throw new IllegalArgumentException("'" + value + "' must be true or false");
+    }
+    return value.trim().equals("true");
+  }
+
+  /**
+   * Parse settings read with `env()`, so that if they aren't valid the
+   * server won't start, with an error that says which environment
+   * variables to fix.
+   *
+   * @param parse reads and parses the settings
+   * @param names the environment variables it reads
+   * @return the parsed settings
+   * @throws IllegalArgumentException if the settings aren't valid
+   */
+  static <T> T parseEnv(Supplier<T> parse, String... names) {
+    try {
+      return parse.get();
+    } catch (IllegalArgumentException e) {
+      // `NumberFormatException`s are `IllegalArgumentException`s, too.
+      throw new IllegalArgumentException("Invalid " + String.join(" or ", names) + ": " + e.getMessage(), e);
+    }
   }
 
 }
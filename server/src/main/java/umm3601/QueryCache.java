@@ -0,0 +1,171 @@
+package umm3601;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Remembers the results of recent queries, so that asking the same
+ * question again (as dashboards do, over and over) is just a lookup.
+ * <p>
+ * Queries are identified by a "normalized" version of their query
+ * parameters (see `key()`), so the order of the parameters, and any
+ * parameters that don't affect the result, make no difference. Results
+ * are only good for one version of the data: as soon as a query is made
+ * against a newer version, everything cached is thrown away. (Versions
+ * have to go up each time the data changes.)
+ * <p>
+ * The cache holds a limited number of results, and a limited total
+ * "weight" (e.g., the number of rows in all the results put together).
+ * When it's full, the least recently used results are evicted first.
+ * A single result heavier than the whole limit isn't cached at all.
+ *
+ * @param <V> the type of the results
+ */
+public final class QueryCache<V> {
+
+  // The defaults for a `HashMap`.
+  private static final int INITIAL_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.75f;
+
+  private final int maxEntries;
+  private final long maxWeight;
+  private final ToLongFunction<V> weigher;
+
+  // Everything below is guarded by `this`.
+  // A `LinkedHashMap` in access order keeps the least recently used entry
+  // first, which is the one to evict.
+  private final LinkedHashMap<String, V> entries = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+  private long version = Long.MIN_VALUE;
+  private long weight;
+  private long hits;
+  private long misses;
+  private long evictions;
+  private long invalidations;
+
+  /**
+   * Create an empty cache.
+   *
+   * @param maxEntries the most results to hold
+   * @param maxWeight the most total weight to hold
+   * @param weigher how heavy a result is
+   */
+  public QueryCache(int maxEntries, long maxWeight, ToLongFunction<V> weigher) {
+    this.maxEntries = maxEntries;
+    this.maxWeight = maxWeight;
+    this.weigher = weigher;
+  }
+
+  /**
+   * Make the cache key for a query: the parameters that affect its result,
+   * in alphabetical order, with their (first) values. Those are the only
+   * values the databases look at.
+   *
+   * @param queryParams the query parameters
+   * @param relevant the names of the parameters that affect the result
+   * @return the key
+   */
+  public static String key(Map<String, List<String>> queryParams, Set<String> relevant) {
+    StringBuilder key = new StringBuilder();
+    for (String name : new TreeSet<>(relevant)) {
+      List<String> values = queryParams.get(name);
+      if (values != null && !values.isEmpty()) {
+        key.append(key.length() == 0 ? "" : "&").append(name).append('=')
+            .append(URLEncoder.encode(values.get(0), StandardCharsets.UTF_8));
+      }
+    }
+    return key.toString();
+  }
+
+  /**
+   * Get the cached result of a query, or run the query and cache its
+   * result. The query runs without holding any locks, so slow queries
+   * don't hold up lookups of other ones.
+   *
+   * @param dataVersion the version of the data being queried
+   * @param key the query's key, from `key()`
+   * @param query runs the query
+   * @return the result, which may be shared with other callers, so it
+   *         shouldn't be changed
+   */
+  public V get(long dataVersion, String key, Supplier<V> query) {
+    boolean stale;
+    synchronized (this) {
+      // A query against data older than the newest we've seen can't use
+      // (or add to) the cache, which only has results for the newer data.
+      stale = dataVersion < version;
+      if (!stale) {
+        invalidateIfChanged(dataVersion);
+        V cached = entries.get(key);
+        if (cached != null) {
+          hits++;
+          return cached;
+        }
+      }
+      misses++;
+    }
+    V result = query.get();
+    long resultWeight = weigher.applyAsLong(result);
+    if (stale || resultWeight > maxWeight) {
+      return result;
+    }
+    synchronized (this) {
+      // The data may have changed while we were running the query, in
+      // which case the result is already out of date.
+      if (dataVersion == version) {
+        V replaced = entries.put(key, result);
+        if (replaced != null) {
+          weight -= weigher.applyAsLong(replaced);
+        }
+        weight += resultWeight;
+        evictUntilWithinLimits();
+      }
+    }
+    return result;
+  }
+
+  private void invalidateIfChanged(long dataVersion) {
+    if (dataVersion != version) {
+      if (!entries.isEmpty()) {
+        invalidations++;
+      }
+      entries.clear();
+      weight = 0;
+      version = dataVersion;
+    }
+  }
+
+  private void evictUntilWithinLimits() {
+    Iterator<V> leastRecentlyUsed = entries.values().iterator();
+    while (entries.size() > maxEntries || weight > maxWeight) {
+      weight -= weigher.applyAsLong(leastRecentlyUsed.next());
+      leastRecentlyUsed.remove();
+      evictions++;
+    }
+  }
+
+  /**
+   * Describe the cache: how full it is, and how well it's working.
+   *
+   * @return the number of entries and their total weight, and counts of
+   *         hits, misses, evictions, and invalidations (times everything
+   *         was thrown away because the data changed)
+   */
+  public synchronized Map<String, Object> stats() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("entries", entries.size());
+    stats.put("weight", weight);
+    stats.put("hits", hits);
+    stats.put("misses", misses);
+    stats.put("evictions", evictions);
+    stats.put("invalidations", invalidations);
+    return stats;
+  }
+}
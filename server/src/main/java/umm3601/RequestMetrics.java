@@ -0,0 +1,232 @@
+package umm3601;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+
+/**
+ * Measures every request the server handles, by route: how many there
+ * were, how many failed, and how long they took (see `LatencyHistogram`),
+ * along with how many are being handled right now. `GET /api/metrics`
+ * shows all of it in the Prometheus text format, for Prometheus (or a
+ * person) to read.
+ * <p>
+ * This works with before and after handlers, which Javalin runs around
+ * every route, so controllers don't need to do anything to be measured.
+ * (Javalin only works out which route a request is for after the before
+ * handlers have run, so requests in progress are counted for the whole
+ * server rather than by route.) Requests that don't match any route are
+ * counted under the route `(unmatched)`.
+ * <p>
+ * The before handler keeps the time a request started in a (reused)
+ * per-thread slot rather than a request attribute, which would box the
+ * time and add an entry to the request's attribute map every time. That
+ * works because Javalin runs a request's before, endpoint, and after
+ * handlers one after another on the same thread (we don't use
+ * `ctx.future()`, which would change that). So on the platform thread
+ * pool, `started()` and `finished()` don't lock or allocate anything,
+ * apart from the first request on each thread, which sets up its slot,
+ * and the first request to each route, which sets up its histogram. With
+ * a virtual thread per request (see `RequestThreads`), every request is on
+ * a new thread, and so gets a new slot (about 180 bytes). Either way,
+ * Javalin itself allocates about 1 KB a request to run a before and an
+ * after handler at all, against the 20 KB or so it takes to handle a
+ * request. The quantiles are over every request since the server started.
+ */
+public final class RequestMetrics implements Controller {
+
+  /** The `Content-Type` of the Prometheus text format. */
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  /** The route that requests no route matched are counted under. */
+  public static final String UNMATCHED = "(unmatched)";
+
+  // The quantiles we report, and their labels.
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  private static final String[] QUANTILE_LABELS = {"0.5", "0.9", "0.99", "0.999"};
+
+  private static final int FIRST_SERVER_ERROR = 500;
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  // The measurements for one route.
+  private static final class RouteMetrics {
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+  }
+
+  // When the request a thread is handling started, if the before handler
+  // saw it start.
+  private static final class StartTime {
+    private long nanos;
+    private boolean started;
+  }
+
+  private final AtomicLong inFlight = new AtomicLong();
+  // Each thread's `StartTime`, which is reused for every request it handles.
+  private final ThreadLocal<StartTime> startTimes = ThreadLocal.withInitial(StartTime::new);
+  // Every method's routes. The `EnumMap` is filled in once, up front, and
+  // only read after that, so it's safe to share.
+  private final Map<HandlerType, Map<String, RouteMetrics>> routes = new EnumMap<>(HandlerType.class);
+
+  /**
+   * Start measuring (nothing, so far).
+   */
+  public RequestMetrics() {
+    for (HandlerType method : HandlerType.values()) {
+      routes.put(method, new ConcurrentHashMap<>());
+    }
+  }
+
+  /**
+   * Measure every request, and add the route for the metrics.
+   *
+   * @param server The Javalin server instance
+   */
+  @Override
+  public void addRoutes(Javalin server) {
+    server.before(this::started);
+    server.after(this::finished);
+    // Get all the metrics, in the Prometheus text format
+    server.get("/api/metrics", this::getMetrics);
+  }
+
+  /**
+   * Note that a request has started (a before handler, so on the thread
+   * that will handle the rest of it).
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void started(Context ctx) {
+    inFlight.incrementAndGet();
+    StartTime start = startTimes.get();
+    start.started = true;
+    start.nanos = System.nanoTime();
+  }
+
+  /**
+   * Record a request that has finished (an after handler, on the same
+   * thread as `started()`), under the route it matched.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void finished(Context ctx) {
+    long now = System.nanoTime();
+    StartTime start = startTimes.get();
+    if (!start.started) {
+      // The before handler never saw it, so there's nothing to measure.
+      return;
+    }
+    start.started = false;
+    inFlight.decrementAndGet();
+    String route = ctx.endpointHandlerPath();
+    record(ctx.method(), route == null || route.isEmpty() ? UNMATCHED : route, ctx.statusCode(),
+        now - start.nanos);
+  }
+
+  /**
+   * Record a request.
+   *
+   * @param method the request's method
+   * @param route the path of the route it matched (e.g., `/api/todos/{id}`)
+   * @param status the response's status code
+   * @param nanos how long it took, in nanoseconds
+   */
+  public void record(HandlerType method, String route, int status, long nanos) {
+    Map<String, RouteMetrics> methodRoutes = routes.get(method);
+    RouteMetrics metrics = methodRoutes.get(route);
+    if (metrics == null) {
+      metrics = methodRoutes.computeIfAbsent(route, newRoute -> new RouteMetrics());
+    }
+    metrics.latency.record(nanos);
+    if (status >= FIRST_SERVER_ERROR) {
+      metrics.errors.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return the number of requests being handled right now
+   */
+  public long inFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * Get all the metrics, in the Prometheus text format.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getMetrics(Context ctx) {
+    ctx.contentType(CONTENT_TYPE);
+    ctx.result(prometheus());
+  }
+
+  /**
+   * Write out all the metrics in the Prometheus text format, with the
+   * routes in order.
+   *
+   * @return the metrics
+   */
+  public String prometheus() {
+    // Every route, labelled, in order.
+    Map<String, RouteMetrics> labelled = new TreeMap<>();
+    for (Map.Entry<HandlerType, Map<String, RouteMetrics>> method : routes.entrySet()) {
+      for (Map.Entry<String, RouteMetrics> route : method.getValue().entrySet()) {
+        labelled.put("method=\"" + method.getKey() + "\",route=\"" + escape(route.getKey()) + "\"", route.getValue());
+      }
+    }
+
+    StringBuilder out = new StringBuilder();
+    header(out, "http_requests_in_flight", "gauge", "Requests being handled right now.");
+    out.append("http_requests_in_flight ").append(inFlight.get()).append('\n');
+
+    header(out, "http_requests_total", "counter", "Requests handled, by route.");
+    for (Map.Entry<String, RouteMetrics> route : labelled.entrySet()) {
+      line(out, "http_requests_total", route.getKey(), route.getValue().latency.count());
+    }
+
+    header(out, "http_request_errors_total", "counter", "Requests that got a 5xx response, by route.");
+    for (Map.Entry<String, RouteMetrics> route : labelled.entrySet()) {
+      line(out, "http_request_errors_total", route.getKey(), route.getValue().errors.get());
+    }
+
+    header(out, "http_request_duration_seconds", "summary",
+        "How long requests took, by route, since the server started.");
+    for (Map.Entry<String, RouteMetrics> route : labelled.entrySet()) {
+      LatencyHistogram latency = route.getValue().latency;
+      for (int i = 0; i < QUANTILES.length; i++) {
+        line(out, "http_request_duration_seconds", route.getKey() + ",quantile=\"" + QUANTILE_LABELS[i] + "\"",
+            latency.valueAtQuantile(QUANTILES[i]) / NANOS_PER_SECOND);
+      }
+      line(out, "http_request_duration_seconds_sum", route.getKey(), latency.sum() / NANOS_PER_SECOND);
+      line(out, "http_request_duration_seconds_count", route.getKey(), latency.count());
+    }
+
+    header(out, "http_request_duration_seconds_max", "gauge",
+        "The longest request, by route, since the server started.");
+    for (Map.Entry<String, RouteMetrics> route : labelled.entrySet()) {
+      line(out, "http_request_duration_seconds_max", route.getKey(),
+          route.getValue().latency.max() / NANOS_PER_SECOND);
+    }
+    return out.toString();
+  }
+
+  private static void header(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void line(StringBuilder out, String name, String labels, Object value) {
+    out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+  }
+
+  // Escape a label value, as the Prometheus text format needs.
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
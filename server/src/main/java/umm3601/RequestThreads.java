@@ -0,0 +1,163 @@
+package umm3601;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * Which threads the server handles requests on: a fixed-size pool of
+ * ordinary ("platform") threads, or a new virtual thread for each task.
+ * <p>
+ * A platform thread is tied up for the whole of a request, including the
+ * time spent waiting for a slow client to take the response, or for the
+ * disk to save a change. With a pool of 250 threads, the 251st request
+ * waits in line even if the CPU has nothing to do. Virtual threads are cheap enough
+ * to have one per request however many there are: while one waits, it
+ * gives up its carrier thread, so the number of requests in progress is
+ * limited by memory rather than by the size of a pool.
+ * <p>
+ * The platform pool is the default, since it's what Javalin has always
+ * used. Virtual threads are chosen with `SERVER_THREADS=virtual` (see
+ * `Main`). On Java 21, a virtual thread that waits inside a
+ * `synchronized` block keeps its carrier thread, so anything requests
+ * wait on for long (like `WriteAheadLog`, which writes wait on for the
+ * disk) uses a `java.util.concurrent` lock instead.
+ */
+public final class RequestThreads {
+
+  /** The name of the platform thread mode. */
+  public static final String PLATFORM = "platform";
+  /** The name of the virtual thread mode. */
+  public static final String VIRTUAL = "virtual";
+
+  /** The size of the platform pool, unless configured (Javalin's default). */
+  public static final int DEFAULT_MAX_THREADS = 250;
+
+  /** A platform pool of the default size. */
+  public static final RequestThreads DEFAULT = new RequestThreads(false, DEFAULT_MAX_THREADS);
+
+  // The rest of the platform pool's settings, also Javalin's defaults.
+  private static final int MIN_THREADS = 8;
+  private static final int IDLE_TIMEOUT_MILLIS = 60_000;
+
+  private final boolean virtual;
+  private final int maxThreads;
+
+  /**
+   * Choose the threads to handle requests on.
+   *
+   * @param virtual true for a virtual thread per task, false for a pool
+   *                of platform threads
+   * @param maxThreads the size of the platform pool (not used for virtual
+   *                   threads)
+   */
+  public RequestThreads(boolean virtual, int maxThreads) {
+    if (maxThreads < MIN_THREADS) {
+      throw new IllegalArgumentException("The server needs at least " + MIN_THREADS + " threads, not " + maxThreads);
+    }
+    this.virtual = virtual;
+    this.maxThreads = maxThreads;
+  }
+
+  /**
+   * Read the thread settings (e.g., from the `SERVER_THREADS` and
+   * `SERVER_MAX_THREADS` environment variables).
+   *
+   * @param mode `platform` or `virtual`, or `null` for the default
+   *             (`platform`)
+   * @param maxThreads the size of the platform pool, or `null` for the
+   *                   default
+   * @return the thread settings
+   * @throws IllegalArgumentException if a setting isn't valid
+   */
+  public static RequestThreads parse(String mode, String maxThreads) {
+    String name = mode == null ? PLATFORM : mode.trim().toLowerCase();
+    if (!name.equals(PLATFORM) && !name.equals(VIRTUAL)) {
+      throw new IllegalArgumentException("Thread mode '" + mode + "' must be " + PLATFORM + " or " + VIRTUAL);
+    }
+    return new RequestThreads(name.equals(VIRTUAL),
+        maxThreads == null ? DEFAULT_MAX_THREADS : Integer.parseInt(maxThreads.trim()));
+  }
+
+  /**
+   * @return true if requests are handled on virtual threads
+   */
+  public boolean isVirtual() {
+    return virtual;
+  }
+
+  /**
+   * Make a new thread pool for Jetty (the web server inside Javalin) to
+   * run everything on: accepting connections, reading requests, and
+   * running our handlers.
+   *
+   * @return the thread pool
+   */
+  public ThreadPool threadPool() {
+    if (virtual) {
+      return new VirtualThreadPool();
+    }
+    QueuedThreadPool pool = new QueuedThreadPool(maxThreads, MIN_THREADS, IDLE_TIMEOUT_MILLIS);
+    pool.setName("request");
+    return pool;
+  }
+
+  /**
+   * Make the Jetty server for Javalin to use, which runs on a new thread
+   * pool (see `threadPool()`).
+   *
+   * @return the Jetty server
+   */
+  public Server jettyServer() {
+    return new Server(threadPool());
+  }
+
+  /**
+   * A Jetty "thread pool" that runs each task on a new virtual thread.
+   * There's nothing to pool, so it's never low on threads, and none of
+   * them are ever idle.
+   */
+  static final class VirtualThreadPool implements ThreadPool {
+    private final ExecutorService executor =
+        Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("request-", 0).factory());
+    // The number of tasks running right now.
+    private final AtomicInteger running = new AtomicInteger();
+
+    @Override
+    public void execute(Runnable task) {
+      executor.execute(() -> {
+        running.incrementAndGet();
+        try {
+          task.run();
+        } finally {
+          running.decrementAndGet();
+        }
+      });
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int getThreads() {
+      return running.get();
+    }
+
+    @Override
+    public int getIdleThreads() {
+      return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+      return false;
+    }
+  }
+}
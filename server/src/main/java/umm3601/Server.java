@@ -15,6 +15,16 @@ public class Server {
   // The `controllers` field is an array of all the `Controller` implementations
   // for the server. This is used to add routes to the server.
   private Controller[] controllers;
+  // The threads requests are handled on.
+  private RequestThreads threads;
+  // The directory Javalin serves the client's files from, straight from
+  // the disk, or `null` if they're served some other way (by
+  // `StaticAssets`) or not at all.
+  private String clientDirectory;
+  // Measures every request, for `/api/metrics`.
+  private RequestMetrics metrics = new RequestMetrics();
+  // The running Javalin server, once it's been started.
+  private Javalin javalin;
 
   /**
    * Construct a `Server` object that we'll use (via `startServer()`) to configure
@@ -23,12 +33,38 @@ public class Server {
    * @param controllers The implementations of `Controller` used for this server
    */
   public Server(Controller[] controllers) {
+    this(controllers, RequestThreads.DEFAULT);
+  }
+
+  /**
+   * Construct a `Server` object that handles requests on the given
+   * threads (see `RequestThreads`).
+   *
+   * @param controllers The implementations of `Controller` used for this server
+   * @param threads The threads to handle requests on
+   */
+  public Server(Controller[] controllers, RequestThreads threads) {
+    this(controllers, threads, null);
+  }
+
+  /**
+   * Construct a `Server` object that handles requests on the given
+   * threads, and also serves the files in a directory straight from the
+   * disk (so changes to them show up right away).
+   *
+   * @param controllers The implementations of `Controller` used for this server
+   * @param threads The threads to handle requests on
+   * @param clientDirectory The directory of files to serve, or `null` for none
+   */
+  public Server(Controller[] controllers, RequestThreads threads, String clientDirectory) {
     // This is what is known as a "defensive copy". We make a copy of
     // the array so that if the caller modifies the array after passing
     // it in, we don't have to worry about it. If we didn't do this,
     // the caller could modify the array after passing it in, and then
     // we'd be using the modified array without realizing it.
     this.controllers = Arrays.copyOf(controllers, controllers.length);
+    this.threads = threads;
+    this.clientDirectory = clientDirectory;
   }
 
   /**
@@ -39,9 +75,31 @@ public class Server {
    * JVM is shut down.
    */
   void startServer() {
-    Javalin javalin = configureJavalin();
+    start(SERVER_PORT);
+  }
+
+  /**
+   * Configure and start the server on the given port, e.g., so a load test
+   * can run it in the same JVM (see `umm3601.load.LoadTest`).
+   *
+   * @param port The port to listen on, or 0 for any free port
+   * @return The port the server is listening on
+   */
+  public int start(int port) {
+    javalin = configureJavalin();
     setupRoutes(javalin);
-    javalin.start(SERVER_PORT);
+    javalin.start(port);
+    return javalin.port();
+  }
+
+  /**
+   * Stop the server, if it's running.
+   */
+  public void stop() {
+    if (javalin != null) {
+      javalin.stop();
+      javalin = null;
+    }
   }
 
   /**
@@ -53,6 +111,11 @@ public class Server {
    *   JVM is shut down.
    * - Setting up a handler for uncaught exceptions to return an HTTP 500
    *   error.
+   * - Running requests on the threads we were given (see
+   *   `RequestThreads`), with no compression of Javalin's own (see
+   *   `ResponseCompression`).
+   * - Serving the client's files from the disk, if we were given a
+   *   directory for them.
    *
    * @return The Javalin server instance
    */
@@ -72,9 +135,21 @@ public class Server {
      * and  port you're actually using, if they are different.)
      */
     Javalin server = Javalin.create(config -> {
+      // We don't use Javalin's compression: API responses are compressed
+      // by `ResponseCompression`, and the client's files are either
+      // served (already compressed) by `StaticAssets` or straight from
+      // the disk, so having Javalin compress them too would just waste
+      // CPU.
+      config.compression.none();
       // This tells the server where to look for static files,
-      // like HTML and JavaScript.
-      config.staticFiles.add(CLIENT_DIRECTORY, Location.EXTERNAL);
+      // like HTML and JavaScript, if it's serving them from the disk.
+      // (Javalin won't start if the directory doesn't exist.)
+      if (clientDirectory != null) {
+        config.staticFiles.add(clientDirectory, Location.EXTERNAL);
+      }
+      // Run Jetty (and so every request) on the threads we picked:
+      // a pool of platform threads, or a virtual thread per request.
+      config.jetty.server(threads::jettyServer);
       // This adds a Javalin plugin that will list all of the
       // routes/endpoints that we add below on a page reachable
       // via the "/api" path.
@@ -103,6 +178,9 @@ public class Server {
    * @param server The Javalin server instance
    */
   private void setupRoutes(Javalin server) {
+    // Measure the requests to every route (including the ones added
+    // below), and serve the measurements at `/api/metrics`.
+    metrics.addRoutes(server);
     setDefaultRoutes(server);
     // Add the routes for each of the implementations of `Controller` in the
     // `controllers` array.
@@ -0,0 +1,280 @@
+package umm3601;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.NotFoundResponse;
+
+/**
+ * Serves the client's files (HTML, JavaScript, and CSS) from memory,
+ * compressed ahead of time, with names that change whenever their
+ * contents do.
+ * <p>
+ * At startup, every file in the client directory is read in and gzipped
+ * (at the slowest, smallest level, since it only happens once). If a file
+ * has a Brotli-compressed copy next to it (e.g., `todos.js.br`, made by
+ * running `brotli` as part of a build), that's sent to clients that
+ * accept Brotli. (The JDK can't do Brotli itself, which is also why API
+ * responses are only ever gzipped; see `ResponseCompression`.)
+ * <p>
+ * Each JavaScript and CSS file is also served under a "fingerprinted"
+ * name, with part of a hash of its contents in it (e.g.,
+ * `/javascript/todos.3f2a9c01be.js`), and the HTML pages are rewritten to
+ * load those names instead. Since a fingerprinted name always means the
+ * same bytes, browsers may keep those files for a year without checking
+ * back (`immutable`); a new version of a file gets a new name, and the
+ * (always revalidated) HTML points to it. Everything else, including the
+ * original names, is sent with `no-cache` and an `ETag`.
+ * <p>
+ * Since the files are only read at startup, changes to them don't show up
+ * until the server is restarted, so this is only used with
+ * `CLIENT_FINGERPRINTS=true` (see `Main`). Otherwise the server serves the
+ * files straight from the disk, uncompressed.
+ */
+public final class StaticAssets implements Controller {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StaticAssets.class);
+
+  /** The `Cache-Control` header for fingerprinted files. */
+  public static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+  // How many hex digits of the hash go into a fingerprinted name, and
+  // into an `ETag`.
+  private static final int FINGERPRINT_LENGTH = 10;
+  private static final int ETAG_LENGTH = 16;
+  // The gzip level for files compressed at startup.
+  private static final int GZIP_LEVEL = 9;
+
+  private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+  private static final Map<String, String> CONTENT_TYPES = Map.of(
+      "html", "text/html; charset=utf-8",
+      "js", "text/javascript; charset=utf-8",
+      "css", "text/css; charset=utf-8",
+      "json", "application/json",
+      "txt", "text/plain; charset=utf-8",
+      "svg", "image/svg+xml",
+      "png", "image/png",
+      "ico", "image/x-icon");
+  // The kinds of files that get fingerprinted names.
+  private static final Set<String> FINGERPRINTED = Set.of("js", "css");
+
+  /**
+   * A file, ready to send.
+   *
+   * @param contentType its `Content-Type`
+   * @param cacheControl its `Cache-Control` header
+   * @param etag its `ETag`, quoted
+   * @param identity its contents
+   * @param gzip its contents, gzipped (or `null` if that doesn't help)
+   * @param brotli its contents, in Brotli (or `null` if there's no `.br`)
+   */
+  private record Asset(String contentType, String cacheControl, String etag, byte[] identity, byte[] gzip,
+      byte[] brotli) {
+
+    // The same file, under a fingerprinted name.
+    Asset immutable() {
+      return new Asset(contentType, IMMUTABLE, etag, identity, gzip, brotli);
+    }
+  }
+
+  // Every file, by the path it's served at.
+  private final Map<String, Asset> assets;
+
+  private StaticAssets(Map<String, Asset> assets) {
+    this.assets = Collections.unmodifiableMap(assets);
+  }
+
+  /**
+   * Read, fingerprint, and compress the files in a directory.
+   *
+   * @param directory the client directory
+   * @return the files, ready to serve
+   * @throws NoSuchFileException if the directory doesn't exist (e.g., the
+   *                             server was started from somewhere else)
+   * @throws IOException if a file can't be read
+   */
+  public static StaticAssets load(String directory) throws IOException {
+    Path root = Paths.get(directory);
+    if (!Files.isDirectory(root)) {
+      throw new NoSuchFileException(root.toAbsolutePath().toString(), null, "The client directory doesn't exist");
+    }
+    List<Path> files = new ArrayList<>();
+    try (Stream<Path> walk = Files.walk(root)) {
+      walk.filter(Files::isRegularFile)
+          .filter(file -> !file.toString().endsWith(".br") && !file.toString().endsWith(".gz"))
+          .sorted()
+          .forEach(files::add);
+    }
+
+    // First the fingerprinted names, so the HTML can be rewritten to use
+    // them.
+    Map<String, byte[]> contents = new TreeMap<>();
+    Map<String, String> fingerprinted = new TreeMap<>();
+    for (Path file : files) {
+      String path = "/" + root.relativize(file).toString().replace('\\', '/');
+      byte[] bytes = Files.readAllBytes(file);
+      contents.put(path, bytes);
+      if (FINGERPRINTED.contains(extension(path))) {
+        String extension = extension(path);
+        String base = path.substring(0, path.length() - extension.length());
+        fingerprinted.put(path, base + sha256(bytes).substring(0, FINGERPRINT_LENGTH) + "." + extension);
+      }
+    }
+
+    Map<String, Asset> assets = new TreeMap<>();
+    for (Path file : files) {
+      String path = "/" + root.relativize(file).toString().replace('\\', '/');
+      byte[] bytes = contents.get(path);
+      boolean rewritten = false;
+      if (extension(path).equals("html")) {
+        byte[] html = rewrite(bytes, fingerprinted);
+        rewritten = html != bytes;
+        bytes = html;
+      }
+      // A `.br` copy of a page we've rewritten would be of the old page.
+      Path br = file.resolveSibling(file.getFileName() + ".br");
+      byte[] brotli = !rewritten && Files.isRegularFile(br)
+          && Files.getLastModifiedTime(br).compareTo(Files.getLastModifiedTime(file)) >= 0
+          ? Files.readAllBytes(br) : null;
+      Asset asset = asset(extension(path), bytes, brotli);
+      assets.put(path, asset);
+      if (fingerprinted.containsKey(path)) {
+        assets.put(fingerprinted.get(path), asset.immutable());
+      }
+      if (path.equals("/index.html")) {
+        assets.put("/", asset);
+      }
+    }
+    LOGGER.info("Serving {} client files from {}", files.size(), root.toAbsolutePath());
+    return new StaticAssets(assets);
+  }
+
+  // Get a file ready to send, compressing it if it's text and that makes
+  // it smaller.
+  private static Asset asset(String extension, byte[] bytes, byte[] brotli) {
+    String contentType = CONTENT_TYPES.getOrDefault(extension, DEFAULT_CONTENT_TYPE);
+    byte[] gzip = null;
+    if (isText(contentType)) {
+      gzip = ResponseCompression.gzip(bytes, GZIP_LEVEL);
+      if (gzip.length >= bytes.length) {
+        gzip = null;
+      }
+    }
+    if (brotli != null && brotli.length >= bytes.length) {
+      brotli = null;
+    }
+    String etag = "\"" + sha256(bytes).substring(0, ETAG_LENGTH) + "\"";
+    return new Asset(contentType, HttpCaching.DEFAULT_CACHE_CONTROL, etag, bytes, gzip, brotli);
+  }
+
+  private static boolean isText(String contentType) {
+    return contentType.startsWith("text/") || contentType.contains("json") || contentType.contains("svg");
+  }
+
+  // Point an HTML page's `src="..."` and `href="..."` at the fingerprinted
+  // names. Returns the same array if nothing changed.
+  private static byte[] rewrite(byte[] html, Map<String, String> fingerprinted) {
+    String page = new String(html, StandardCharsets.UTF_8);
+    String rewritten = page;
+    for (Map.Entry<String, String> name : fingerprinted.entrySet()) {
+      rewritten = rewritten.replace("\"" + name.getKey() + "\"", "\"" + name.getValue() + "\"");
+    }
+    return rewritten.equals(page) ? html : rewritten.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String extension(String path) {
+    int dot = path.lastIndexOf('.');
+    return dot < path.lastIndexOf('/') ? "" : path.substring(dot + 1);
+  }
+
+  private static String sha256(byte[] bytes) {
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+    } catch (NoSuchAlgorithmException e) {
+      // Every JDK has SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the paths of all the files, including the fingerprinted names
+   */
+  public Set<String> paths() {
+    return assets.keySet();
+  }
+
+  /**
+   * Add a GET route for every file.
+   *
+   * @param server The Javalin server instance
+   */
+  @Override
+  public void addRoutes(Javalin server) {
+    for (String path : assets.keySet()) {
+      server.get(path, ctx -> send(ctx, path));
+    }
+  }
+
+  /**
+   * Send a file, in the smallest encoding the client accepts: Brotli, then
+   * gzip, then as it is. Each encoding is a different representation, with
+   * its own `ETag`, and any of them is just a `304 Not Modified` if the
+   * client already has it.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param path the path of the file
+   * @throws NotFoundResponse if there's no such file
+   */
+  public void send(Context ctx, String path) {
+    Asset asset = assets.get(path);
+    if (asset == null) {
+      throw new NotFoundResponse("No client file at " + path);
+    }
+    String acceptEncoding = ctx.header("Accept-Encoding");
+    byte[] body = asset.identity();
+    String encoding = null;
+    if (asset.brotli() != null && ResponseCompression.accepts(acceptEncoding, "br")) {
+      body = asset.brotli();
+      encoding = "br";
+    } else if (asset.gzip() != null && ResponseCompression.acceptsGzip(acceptEncoding)) {
+      body = asset.gzip();
+      encoding = "gzip";
+    }
+    String etag = encoding == null ? asset.etag()
+        : asset.etag().substring(0, asset.etag().length() - 1) + "-" + encoding + "\"";
+    ctx.header("ETag", etag);
+    ctx.header("Cache-Control", asset.cacheControl());
+    if (asset.gzip() != null || asset.brotli() != null) {
+      ctx.header("Vary", "Accept-Encoding");
+    }
+    if (HttpCaching.matches(ctx.header("If-None-Match"), etag)) {
+      ctx.status(HttpStatus.NOT_MODIFIED);
+      return;
+    }
+    ctx.contentType(asset.contentType());
+    if (encoding != null) {
+      ctx.header("Content-Encoding", encoding);
+    }
+    ctx.result(body);
+  }
+}
@@ -0,0 +1,386 @@
+package umm3601;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only log of changes, which makes changes to the in-memory
+ * "databases" survive a restart: each change is written to the log (and
+ * forced to disk) before we tell the client it worked, and when the
+ * server starts up it replays the log on top of the data it loaded.
+ * <p>
+ * Forcing data to disk (`fsync`) is slow, often milliseconds, so doing it
+ * once per change would cap us at a few hundred changes per second. Instead
+ * we use "group commit": `append()` just adds the record to a buffer, and
+ * a single background thread writes out everything that's built up and
+ * forces it to disk in one go. Callers then `awaitDurable()` until their
+ * record has made it. While one batch is being forced the next one fills
+ * up, so the busier we are the bigger the batches get. The flusher can
+ * also wait a little (the "batch window") before each batch, trading some
+ * latency for even bigger batches.
+ * <p>
+ * Each record is stored as its length, a CRC32C checksum, and then its
+ * bytes. If the server dies part way through writing a record, `replay()`
+ * notices the truncated or garbled record at the end, ignores it (nobody
+ * was ever told it had been saved), and cuts it off the file so new records
+ * follow on from the last good one.
+ */
+public final class WriteAheadLog implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WriteAheadLog.class);
+  // Each record starts with its length and checksum.
+  private static final int HEADER_BYTES = 2 * Integer.BYTES;
+  private static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+  private static final long NANOS_PER_MICRO = 1000;
+
+  /**
+   * Handles one record while replaying a log.
+   */
+  public interface RecordReader {
+    /**
+     * @param record the bytes of the record
+     * @throws IOException if the record can't be handled
+     */
+    void read(ByteBuffer record) throws IOException;
+  }
+
+  private final Path path;
+  private final FileChannel channel;
+  private final long batchWindowNanos;
+  private final Thread flusher;
+
+  // Everything below is guarded by `lock`. (It's a `ReentrantLock` rather
+  // than a monitor so that a writer on a virtual thread can wait for the
+  // disk without tying up the platform thread it runs on; see
+  // `RequestThreads`.)
+  private final ReentrantLock lock = new ReentrantLock();
+  // Signalled when a record is appended, or the log is closed.
+  private final Condition appendedMore = lock.newCondition();
+  // Signalled when a batch reaches the disk, or writing it fails.
+  private final Condition flushed = lock.newCondition();
+  // Records appended but not yet handed to the flusher.
+  private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+  // The buffer the flusher last wrote out, to reuse for `pending` next time.
+  private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+  // Records are numbered from 1 as they're appended; these are the numbers
+  // of the last one appended and the last one known to be on disk.
+  private long appended;
+  private long durable;
+  // Statistics about the batches flushed so far.
+  private long batches;
+  private IOException failure;
+  private boolean closed;
+
+  /**
+   * Open a log to append to, creating it if need be. Any existing records
+   * should have been replayed first, with `replay()`.
+   *
+   * @param path the log file
+   * @param batchWindowMicros how long the flusher waits for more records
+   *                          before writing out a batch; 0 writes each
+   *                          batch as soon as the previous one is done
+   * @throws IOException if the log can't be opened
+   */
+  public WriteAheadLog(Path path, long batchWindowMicros) throws IOException {
+    this.path = path;
+    this.batchWindowNanos = batchWindowMicros * NANOS_PER_MICRO;
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND);
+    flusher = new Thread(this::flushBatches, "log-flusher " + path.getFileName());
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Read every complete record in a log, in order. A damaged record (and
+   * anything after it) is the remains of a write that was interrupted by
+   * a crash, so it's logged, skipped, and cut off the end of the file.
+   * <p>
+   * This is for when nothing else is writing to the log, like when the
+   * server starts up. Use `read()` to read a log that's open.
+   *
+   * @param path the log file; if it doesn't exist there's nothing to read
+   * @param reader handles each record
+   * @return the number of records read
+   * @throws IOException if the log can't be read, or `reader` fails
+   */
+  public static int replay(Path path, RecordReader reader) throws IOException {
+    int[] count = new int[1];
+    try (FileChannel in = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      long end = read(in, 0, record -> {
+        reader.read(record);
+        count[0]++;
+      });
+      if (end < in.size()) {
+        LOGGER.warn("Cut off {} bytes of incomplete writes at the end of {}", in.size() - end, path);
+        in.truncate(end);
+        in.force(true);
+      }
+    }
+    return count[0];
+  }
+
+  /**
+   * Read the complete records in a log, in order, starting part way
+   * through. This leaves the file alone, so it's safe to use on a log
+   * that's being written to; a record that's still being written just
+   * doesn't get read yet.
+   *
+   * @param path the log file
+   * @param position where to start: 0, or where an earlier `read()` ended
+   * @param reader handles each record
+   * @return where the last complete record ends, to carry on from later
+   * @throws IOException if the log can't be read, or `reader` fails
+   */
+  public static long read(Path path, long position, RecordReader reader) throws IOException {
+    try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+      return read(in, position, reader);
+    }
+  }
+
+  private static long read(FileChannel in, long start, RecordReader reader) throws IOException {
+    long size = in.size();
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    long position = start;
+    CRC32C crc = new CRC32C();
+    while (position < size) {
+      header.clear();
+      if (!readFully(in, header, position)) {
+        break;
+      }
+      int length = header.getInt(0);
+      if (length < 0 || length > size - position - HEADER_BYTES) {
+        break;
+      }
+      ByteBuffer record = ByteBuffer.allocate(length);
+      readFully(in, record, position + HEADER_BYTES);
+      crc.reset();
+      crc.update(record.array());
+      if ((int) crc.getValue() != header.getInt(Integer.BYTES)) {
+        break;
+      }
+      reader.read(record.flip());
+      position += HEADER_BYTES + length;
+    }
+    return position;
+  }
+
+  // Read from `position` until `buffer` is full, or the file ends.
+  private static boolean readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+    int start = buffer.position();
+    while (buffer.hasRemaining()) {
+      if (in.read(buffer, position + buffer.position() - start) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Add a record to the end of the log. It won't necessarily be on disk
+   * until `awaitDurable()` returns.
+   * <p>
+   * Records are stored in the order they're appended, so a caller that
+   * needs its records in the same order as its changes should append
+   * while holding whatever lock orders the changes.
+   *
+   * @param record the bytes of the record
+   * @return the record's sequence number, to pass to `awaitDurable()`
+   * @throws IOException if the log has been closed, or has failed
+   */
+  public long append(byte[] record) throws IOException {
+    CRC32C crc = new CRC32C();
+    crc.update(record);
+    lock.lock();
+    try {
+      if (failure != null) {
+        throw failure;
+      }
+      if (closed) {
+        throw new IOException(path + " has been closed");
+      }
+      if (pending.remaining() < HEADER_BYTES + record.length) {
+        int capacity = Math.max(2 * pending.capacity(), pending.position() + HEADER_BYTES + record.length);
+        pending = ByteBuffer.allocate(capacity).put(pending.flip());
+      }
+      pending.putInt(record.length).putInt((int) crc.getValue()).put(record);
+      appended++;
+      appendedMore.signal();
+      return appended;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wait until a record is safely on disk.
+   *
+   * @param sequence the record's sequence number, from `append()`
+   * @throws IOException if writing to the log failed, or we were
+   *                     interrupted while waiting
+   */
+  public void awaitDurable(long sequence) throws IOException {
+    lock.lock();
+    try {
+      while (durable < sequence) {
+        if (failure != null) {
+          throw failure;
+        }
+        try {
+          flushed.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for " + path);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wait until everything appended so far is safely on disk.
+   *
+   * @throws IOException if writing to the log failed, or we were
+   *                     interrupted while waiting
+   */
+  public void sync() throws IOException {
+    long sequence;
+    lock.lock();
+    try {
+      sequence = appended;
+    } finally {
+      lock.unlock();
+    }
+    awaitDurable(sequence);
+  }
+
+  /**
+   * @return the number of batches written to disk so far
+   */
+  public long batches() {
+    lock.lock();
+    try {
+      return batches;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of records written to disk so far
+   */
+  public long records() {
+    lock.lock();
+    try {
+      return durable;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // The flusher thread: repeatedly write out whatever has been appended,
+  // force it to disk, and wake up whoever's waiting for it.
+  private void flushBatches() {
+    while (true) {
+      lock.lock();
+      try {
+        while (appended == durable && !closed) {
+          // Nothing interrupts the flusher; just keep waiting.
+          appendedMore.awaitUninterruptibly();
+        }
+        if (appended == durable) {
+          return;
+        }
+      } finally {
+        lock.unlock();
+      }
+      if (batchWindowNanos > 0) {
+        // Give other writers a chance to join this batch.
+        LockSupport.parkNanos(batchWindowNanos);
+      }
+      ByteBuffer batch;
+      long batchEnd;
+      lock.lock();
+      try {
+        batch = pending.flip();
+        batchEnd = appended;
+        pending = spare;
+      } finally {
+        lock.unlock();
+      }
+      IOException error = null;
+      try {
+        while (batch.hasRemaining()) {
+          channel.write(batch);
+        }
+        channel.force(false);
+      } catch (IOException e) {
+        error = e;
+      }
+      lock.lock();
+      try {
+        if (error != null) {
+          LOGGER.error("Couldn't write to {}", path, error);
+          // Once a write has failed we can't tell what made it to disk,
+          // so stop accepting changes at all.
+          failure = error;
+          closed = true;
+        } else {
+          durable = batchEnd;
+          batches++;
+        }
+        spare = batch.clear();
+        flushed.signalAll();
+        if (failure != null) {
+          return;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Finish writing whatever has been appended, and close the log.
+   *
+   * @throws IOException if the log can't be written or closed
+   */
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      closed = true;
+      appendedMore.signal();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    channel.close();
+    lock.lock();
+    try {
+      if (failure != null) {
+        throw failure;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,502 @@
+package umm3601.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * An inverted n-gram index for substring search.
+ * <p>
+ * For every run of `n` consecutive bytes (an "n-gram", by default a
+ * trigram) appearing in the UTF-8 encoding of any of the indexed texts, we
+ * keep a sorted
+ * "posting list" of the rows whose text contains it. Any row containing a
+ * search term must contain every n-gram of that term, so intersecting
+ * the posting lists for the term's n-grams gives a (usually tiny) set of
+ * candidate rows. Candidates still have to be checked with a real substring
+ * search, since having all the n-grams doesn't guarantee they appear in
+ * the right order. (Working on UTF-8 bytes rather than `char`s is fine:
+ * a string contains another exactly when its UTF-8 encoding contains the
+ * other's, and it means we can index text without decoding it.)
+ * <p>
+ * To keep the index from growing without bound, n-grams are dropped from
+ * the index, most common first, until there are at most
+ * `maxPostingsPerRow` postings per row on average. The most common
+ * n-grams are also the least useful for narrowing a search, so this
+ * costs us very little. A search term whose n-grams were all dropped (or
+ * that is shorter than `n`) can't be narrowed, and `candidates()` returns
+ * `null` to say the caller should just scan.
+ * <p>
+ * An index can be saved in a snapshot file with `writeTo()`. Reading it
+ * back with `readFrom()` maps the posting lists straight out of the file
+ * instead of loading them, so only the hash table of n-grams is rebuilt.
+ */
+public final class NGramIndex {
+
+  /** The n-gram length used if none is specified. */
+  public static final int DEFAULT_GRAM_LENGTH = 3;
+  /** The default limit on the average number of postings per row. */
+  public static final int DEFAULT_MAX_POSTINGS_PER_ROW = 32;
+
+  // We pack each n-gram's bytes into a `long`.
+  private static final int MAX_GRAM_LENGTH = Long.BYTES;
+  private static final int BYTE_MASK = 0xff;
+  // In a snapshot, the posting lists are stored back to back in sections
+  // of at most this many `int`s, so that each section can be mapped.
+  private static final int MAX_SECTION_INTS = 1 << 28;
+
+  private final int gramLength;
+  private final int rowCount;
+  private final LongToIntMap gramIds = new LongToIntMap();
+  // The posting list for each n-gram id; `null` if it was dropped.
+  private int[][] postings;
+  // Or, for an index read from a snapshot, the sections holding the lists,
+  // and where each list starts (section number in the high 32 bits) and
+  // how long it is (0 if it was dropped).
+  private IntBuffer[] sections;
+  private long[] listStarts;
+  private IntBuffer listLengths;
+  private long retainedPostings;
+  private int retainedGrams;
+
+  private NGramIndex(int gramLength, int rowCount) {
+    this.gramLength = gramLength;
+    this.rowCount = rowCount;
+  }
+
+  /**
+   * Build a trigram index with the default memory bound.
+   *
+   * @param texts the text of each row, in row order
+   * @return the index
+   */
+  public static NGramIndex build(String[] texts) {
+    return build(texts, DEFAULT_GRAM_LENGTH, DEFAULT_MAX_POSTINGS_PER_ROW);
+  }
+
+  /**
+   * Build an n-gram index over some strings.
+   *
+   * @param texts the text of each row, in row order
+   * @param gramLength the length `n` of the n-grams, in bytes, from 1 to 8
+   * @param maxPostingsPerRow the average number of postings per row to keep
+   * @return the index
+   */
+  public static NGramIndex build(String[] texts, int gramLength, int maxPostingsPerRow) {
+    TextColumn column = new TextColumn();
+    for (String text : texts) {
+      column.add(text);
+    }
+    return build(column, gramLength, maxPostingsPerRow);
+  }
+
+  /**
+   * Build a trigram index with the default memory bound over a column of
+   * text.
+   *
+   * @param texts the text of each row
+   * @return the index
+   */
+  public static NGramIndex build(TextColumn texts) {
+    return build(texts, DEFAULT_GRAM_LENGTH, DEFAULT_MAX_POSTINGS_PER_ROW);
+  }
+
+  /**
+   * Build an n-gram index over a column of text. The text is read in
+   * place, without decoding it into `String`s.
+   *
+   * @param texts the text of each row
+   * @param gramLength the length `n` of the n-grams, in bytes, from 1 to 8
+   * @param maxPostingsPerRow the average number of postings per row to keep
+   * @return the index
+   */
+  public static NGramIndex build(TextColumn texts, int gramLength, int maxPostingsPerRow) {
+    if (gramLength < 1 || gramLength > MAX_GRAM_LENGTH) {
+      throw new IllegalArgumentException("n-gram length must be between 1 and " + MAX_GRAM_LENGTH);
+    }
+    int rowCount = texts.size();
+    NGramIndex index = new NGramIndex(gramLength, rowCount);
+
+    // First pass: count how many rows contain each n-gram. `lastRow` lets us
+    // count an n-gram only once per row, however often it appears there.
+    int[] rowCounts = new int[0];
+    int[] lastRow = new int[0];
+    for (int row = 0; row < rowCount; row++) {
+      ByteBuffer bytes = texts.page(row);
+      int end = texts.offset(row) + texts.length(row);
+      for (int i = texts.offset(row); i + gramLength <= end; i++) {
+        int id = index.gramIds.putIfAbsent(pack(bytes, i, gramLength), index.gramIds.size());
+        if (id >= rowCounts.length) {
+          rowCounts = Arrays.copyOf(rowCounts, Math.max(id + 1, rowCounts.length * 2));
+          lastRow = Arrays.copyOf(lastRow, rowCounts.length);
+        }
+        if (lastRow[id] != row + 1) {
+          lastRow[id] = row + 1;
+          rowCounts[id]++;
+        }
+      }
+    }
+
+    // Decide which n-grams to keep: drop the most common ones until we're
+    // within the memory bound.
+    int gramCount = index.gramIds.size();
+    boolean[] keep = chooseGramsToKeep(rowCounts, gramCount, (long) maxPostingsPerRow * rowCount);
+
+    // Second pass: fill in the posting lists. Rows are visited in order, so
+    // each list comes out sorted.
+    index.postings = new int[gramCount][];
+    int[] filled = new int[gramCount];
+    for (int id = 0; id < gramCount; id++) {
+      if (keep[id]) {
+        index.postings[id] = new int[rowCounts[id]];
+        index.retainedPostings += rowCounts[id];
+        index.retainedGrams++;
+      }
+    }
+    for (int row = 0; row < rowCount; row++) {
+      ByteBuffer bytes = texts.page(row);
+      int end = texts.offset(row) + texts.length(row);
+      for (int i = texts.offset(row); i + gramLength <= end; i++) {
+        int id = index.gramIds.get(pack(bytes, i, gramLength));
+        int[] list = index.postings[id];
+        if (list != null && (filled[id] == 0 || list[filled[id] - 1] != row)) {
+          list[filled[id]++] = row;
+        }
+      }
+    }
+    return index;
+  }
+
+  private static boolean[] chooseGramsToKeep(int[] rowCounts, int gramCount, long budget) {
+    boolean[] keep = new boolean[gramCount];
+    Arrays.fill(keep, true);
+    long total = 0;
+    for (int id = 0; id < gramCount; id++) {
+      total += rowCounts[id];
+    }
+    if (total <= budget) {
+      return keep;
+    }
+    // Sort the n-gram ids by how many rows contain them, most common first.
+    // Packing (count, id) into a `long` lets us use a primitive sort.
+    long[] byCount = new long[gramCount];
+    for (int id = 0; id < gramCount; id++) {
+      byCount[id] = ((long) rowCounts[id] << Integer.SIZE) | id;
+    }
+    Arrays.sort(byCount);
+    for (int i = gramCount - 1; i >= 0 && total > budget; i--) {
+      int id = (int) byCount[i];
+      keep[id] = false;
+      total -= rowCounts[id];
+    }
+    return keep;
+  }
+
+  private static long pack(byte[] bytes, int start, int length) {
+    long gram = 0;
+    for (int i = start; i < start + length; i++) {
+      gram = (gram << Byte.SIZE) | (bytes[i] & BYTE_MASK);
+    }
+    return gram;
+  }
+
+  private static long pack(ByteBuffer bytes, int start, int length) {
+    long gram = 0;
+    for (int i = start; i < start + length; i++) {
+      gram = (gram << Byte.SIZE) | (bytes.get(i) & BYTE_MASK);
+    }
+    return gram;
+  }
+
+  /**
+   * Find the rows that might contain the given term.
+   *
+   * @param term the substring being searched for
+   * @return a superset of the rows whose text contains `term`, or `null` if
+   *         the index can't narrow the search and the caller should scan
+   *         every row instead
+   */
+  public BitSet candidates(String term) {
+    byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+    IntBuffer[] lists = new IntBuffer[Math.max(bytes.length - gramLength + 1, 0)];
+    int usable = 0;
+    for (int i = 0; i + gramLength <= bytes.length; i++) {
+      int id = gramIds.get(pack(bytes, i, gramLength));
+      if (id < 0) {
+        // No row contains this n-gram, so no row can contain the term.
+        return new BitSet();
+      }
+      IntBuffer list = postingList(id);
+      if (list != null) {
+        lists[usable++] = list;
+      }
+    }
+    if (usable == 0) {
+      return null;
+    }
+    // Intersect the shortest lists first so the running result stays small.
+    Arrays.sort(lists, 0, usable, (a, b) -> Integer.compare(a.remaining(), b.remaining()));
+    int[] result = new int[lists[0].remaining()];
+    lists[0].get(0, result);
+    int resultLength = result.length;
+    for (int i = 1; i < usable && resultLength > 0; i++) {
+      int[] next = new int[resultLength];
+      resultLength = intersect(result, resultLength, lists[i], next);
+      result = next;
+    }
+    BitSet rows = new BitSet(rowCount);
+    for (int i = 0; i < resultLength; i++) {
+      rows.set(result[i]);
+    }
+    return rows;
+  }
+
+  // Intersect two sorted lists into `out`, returning the number of entries
+  // written.
+  private static int intersect(int[] a, int aLength, IntBuffer b, int[] out) {
+    int i = 0;
+    int j = 0;
+    int k = 0;
+    while (i < aLength && j < b.limit()) {
+      if (a[i] < b.get(j)) {
+        i++;
+      } else if (a[i] > b.get(j)) {
+        j++;
+      } else {
+        out[k++] = a[i];
+        i++;
+        j++;
+      }
+    }
+    return k;
+  }
+
+  // The posting list for an n-gram id, or `null` if it was dropped.
+  private IntBuffer postingList(int id) {
+    if (postings != null) {
+      return postings[id] == null ? null : IntBuffer.wrap(postings[id]);
+    }
+    int length = listLengths.get(id);
+    if (length == 0) {
+      return null;
+    }
+    long start = listStarts[id];
+    return sections[(int) (start >>> Integer.SIZE)].slice((int) start, length);
+  }
+
+  /**
+   * Write the index to a snapshot.
+   *
+   * @param out the snapshot being written
+   * @throws IOException if it can't be written
+   */
+  public void writeTo(SnapshotWriter out) throws IOException {
+    int gramCount = gramIds.size();
+    out.writeInt(gramLength);
+    out.writeInt(rowCount);
+    out.writeInt(gramCount);
+    out.writeInt(retainedGrams);
+    out.writeLong(retainedPostings);
+    out.writeLongs(LongBuffer.wrap(gramIds.keysById()));
+    int[] lengths = new int[gramCount];
+    for (int id = 0; id < gramCount; id++) {
+      IntBuffer list = postingList(id);
+      lengths[id] = list == null ? 0 : list.remaining();
+    }
+    out.writeInts(IntBuffer.wrap(lengths));
+    // Then the lists themselves, split into sections the same way
+    // `placeLists()` will expect when they're read back.
+    long[] starts = placeLists(lengths);
+    int[] sectionInts = new int[(int) (starts[gramCount] >>> Integer.SIZE) + 1];
+    for (int id = 0; id < gramCount; id++) {
+      sectionInts[(int) (starts[id] >>> Integer.SIZE)] += lengths[id];
+    }
+    out.writeInt(sectionInts.length);
+    int id = 0;
+    for (int section = 0; section < sectionInts.length; section++) {
+      out.writeInt(sectionInts[section]);
+      out.writeInts(IntBuffer.allocate(0));
+      for (; id < gramCount && starts[id] >>> Integer.SIZE == section; id++) {
+        if (lengths[id] > 0) {
+          out.appendInts(postingList(id));
+        }
+      }
+    }
+  }
+
+  // Work out where each list goes, given their lengths: back to back, but
+  // starting a new section whenever one won't fit in the current one. The
+  // extra entry at the end is where the next list would go.
+  private static long[] placeLists(int[] lengths) {
+    long[] starts = new long[lengths.length + 1];
+    long section = 0;
+    int offset = 0;
+    for (int id = 0; id < lengths.length; id++) {
+      if (offset > MAX_SECTION_INTS - lengths[id]) {
+        section++;
+        offset = 0;
+      }
+      starts[id] = (section << Integer.SIZE) | offset;
+      offset += lengths[id];
+    }
+    starts[lengths.length] = (section << Integer.SIZE) | offset;
+    return starts;
+  }
+
+  /**
+   * Read an index back from a snapshot. The posting lists are mapped from
+   * the file, not copied onto the heap.
+   *
+   * @param in the snapshot being read
+   * @return the index
+   * @throws IOException if it can't be read
+   */
+  public static NGramIndex readFrom(SnapshotReader in) throws IOException {
+    NGramIndex index = new NGramIndex(in.readInt(), in.readInt());
+    int gramCount = in.readInt();
+    index.retainedGrams = in.readInt();
+    index.retainedPostings = in.readLong();
+    LongBuffer keys = in.readLongs(gramCount);
+    for (int id = 0; id < gramCount; id++) {
+      index.gramIds.putIfAbsent(keys.get(id), id);
+    }
+    index.listLengths = in.readInts(gramCount);
+    int[] lengths = new int[gramCount];
+    index.listLengths.get(0, lengths);
+    index.listStarts = placeLists(lengths);
+    index.sections = new IntBuffer[in.readInt()];
+    for (int section = 0; section < index.sections.length; section++) {
+      index.sections[section] = in.readInts(in.readInt());
+    }
+    return index;
+  }
+
+  /**
+   * @return the length `n` (in bytes) of the n-grams in this index
+   */
+  public int gramLength() {
+    return gramLength;
+  }
+
+  /**
+   * @return the number of distinct n-grams that have posting lists
+   */
+  public int retainedGrams() {
+    return retainedGrams;
+  }
+
+  /**
+   * @return the number of distinct n-grams that appeared in the texts,
+   *         including ones dropped from the index
+   */
+  public int totalGrams() {
+    return gramIds.size();
+  }
+
+  /**
+   * @return the total number of entries across all the posting lists
+   */
+  public long retainedPostings() {
+    return retainedPostings;
+  }
+
+  /**
+   * A rough estimate of the heap used by the index: the posting lists
+   * themselves, plus the array and hash table overhead per n-gram.
+   *
+   * @return the estimated size of the index in bytes
+   */
+  public long estimatedBytes() {
+    final int arrayHeaderBytes = 16;
+    final int perGramBytes = Long.BYTES + Integer.BYTES * 2 + arrayHeaderBytes;
+    return retainedPostings * Integer.BYTES + (long) gramIds.capacity() * perGramBytes;
+  }
+
+  /**
+   * A minimal open-addressing hash map from `long` n-grams to `int` ids,
+   * so that we don't box a `Long` for every n-gram of every row.
+   */
+  private static final class LongToIntMap {
+    private static final long MIX = 0x9e3779b97f4a7c15L;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    // Value plus one, so that 0 means "empty slot".
+    private int[] values = new int[INITIAL_CAPACITY];
+    private int size;
+
+    int size() {
+      return size;
+    }
+
+    int capacity() {
+      return keys.length;
+    }
+
+    // All the keys, indexed by their values.
+    long[] keysById() {
+      long[] byId = new long[size];
+      for (int slot = 0; slot < keys.length; slot++) {
+        if (values[slot] != 0) {
+          byId[values[slot] - 1] = keys[slot];
+        }
+      }
+      return byId;
+    }
+
+    int get(long key) {
+      int mask = keys.length - 1;
+      for (int slot = slot(key, mask); values[slot] != 0; slot = (slot + 1) & mask) {
+        if (keys[slot] == key) {
+          return values[slot] - 1;
+        }
+      }
+      return -1;
+    }
+
+    int putIfAbsent(long key, int value) {
+      int mask = keys.length - 1;
+      int slot = slot(key, mask);
+      while (values[slot] != 0) {
+        if (keys[slot] == key) {
+          return values[slot] - 1;
+        }
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = key;
+      values[slot] = value + 1;
+      size++;
+      if (size * 2 > keys.length) {
+        grow();
+      }
+      return value;
+    }
+
+    private void grow() {
+      long[] oldKeys = keys;
+      int[] oldValues = values;
+      keys = new long[oldKeys.length * 2];
+      values = new int[oldValues.length * 2];
+      int mask = keys.length - 1;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldValues[i] != 0) {
+          int slot = slot(oldKeys[i], mask);
+          while (values[slot] != 0) {
+            slot = (slot + 1) & mask;
+          }
+          keys[slot] = oldKeys[i];
+          values[slot] = oldValues[i];
+        }
+      }
+    }
+
+    private static int slot(long key, int mask) {
+      long hash = key * MIX;
+      return (int) (hash >>> Integer.SIZE) & mask;
+    }
+  }
+}
@@ -0,0 +1,300 @@
+package umm3601.index;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntToLongFunction;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A primary-key index from `_id` strings to row numbers.
+ * <p>
+ * The ids in our data files are MongoDB ObjectIds: 24 lowercase hex
+ * characters, which is really just 12 bytes. Instead of keeping a
+ * `HashMap<String, Integer>` (a boxed `Integer` and a `String` per entry,
+ * plus hashing all 24 characters through `String.hashCode()`), we decode
+ * each id into a `long` (the first 16 hex characters) and an `int` (the
+ * last 8) and store those in parallel arrays of an open-addressing hash
+ * table. Looking an id up decodes the query string character by character,
+ * so `find()` doesn't allocate anything and takes constant time no matter
+ * how many rows there are.
+ * <p>
+ * Any id that isn't a well-formed ObjectId (someone hand-edited the JSON,
+ * say) is kept in a small ordinary `HashMap` on the side, so those still
+ * work, just not as cheaply.
+ */
+public final class ObjectIdIndex {
+
+  /** The number of hex characters in an ObjectId. */
+  public static final int OBJECT_ID_LENGTH = 24;
+
+  // The first 16 hex characters (8 bytes) go into the "high" `long`,
+  // the remaining 8 characters (4 bytes) into the "low" `int`.
+  private static final int HIGH_LENGTH = 16;
+  private static final int BITS_PER_HEX_DIGIT = 4;
+  private static final int HEX_LETTER_OFFSET = 10;
+  private static final int HEX_DIGIT_MASK = 0xf;
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  // `ranksOf()` sorts ids 16 bits at a time: 2 passes for the low `int`,
+  // and 4 more for the high `long`.
+  private static final int RADIX_BITS = 16;
+  private static final int RADIX = 1 << RADIX_BITS;
+  private static final int LOW_PASSES = Integer.SIZE / RADIX_BITS;
+  private static final int RADIX_PASSES = LOW_PASSES + Long.SIZE / RADIX_BITS;
+
+  // Constants from the MurmurHash3 64-bit finalizer, used to spread the
+  // bits of the decoded id before we pick a slot.
+  private static final long MIX_1 = 0xff51afd7ed558ccdL;
+  private static final long MIX_2 = 0xc4ceb9fe1a85ec53L;
+  private static final int MIX_SHIFT = 33;
+
+  // Slot arrays of the open-addressing table. `slotRows` holds the row
+  // number plus one, so that 0 can mean "empty slot".
+  private final long[] slotHighs;
+  private final int[] slotLows;
+  private final int[] slotRows;
+  private final int mask;
+
+  // Rows whose ids couldn't be decoded as ObjectIds.
+  private final Map<String, Integer> irregularIds = new HashMap<>();
+
+  private ObjectIdIndex(int capacity) {
+    slotHighs = new long[capacity];
+    slotLows = new int[capacity];
+    slotRows = new int[capacity];
+    mask = capacity - 1;
+  }
+
+  /**
+   * Build an index over the given ids, where `ids[i]` is the id of row `i`.
+   * <p>
+   * If the same id appears more than once, the first row wins, which
+   * matches what a linear `findFirst()` scan would have returned.
+   *
+   * @param ids the id of each row, in row order
+   * @return an index mapping each id to its row number
+   */
+  public static ObjectIdIndex build(String[] ids) {
+    ObjectIdIndex index = withCapacity(ids.length);
+    for (int row = 0; row < ids.length; row++) {
+      index.add(ids[row], row);
+    }
+    return index;
+  }
+
+  /**
+   * Create an empty index with room for the given number of rows, to be
+   * filled in with `add()`.
+   *
+   * @param rows the number of rows that will be added
+   * @return an empty index
+   */
+  public static ObjectIdIndex withCapacity(int rows) {
+    // Keep the table at most half full so probe sequences stay short.
+    int capacity = Integer.highestOneBit(Math.max(rows, 1) * 2 - 1) << 1;
+    return new ObjectIdIndex(capacity);
+  }
+
+  /**
+   * Find the row holding the given id.
+   *
+   * @param id the id to look for (may be `null`)
+   * @return the row number for that id, or -1 if there is no such row
+   */
+  public int find(String id) {
+    if (!isObjectId(id)) {
+      Integer row = id == null ? null : irregularIds.get(id);
+      return row == null ? -1 : row;
+    }
+    long high = decodeHigh(id);
+    int low = decodeLow(id);
+    for (int slot = slotFor(high, low); slotRows[slot] != 0; slot = (slot + 1) & mask) {
+      if (slotHighs[slot] == high && slotLows[slot] == low) {
+        return slotRows[slot] - 1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Add a row to the index. If the id is already present, the earlier row
+   * wins, which matches what a linear `findFirst()` scan would return.
+   *
+   * @param id the row's id
+   * @param row the row number
+   */
+  public void add(String id, int row) {
+    if (!isObjectId(id)) {
+      if (id != null) {
+        irregularIds.putIfAbsent(id, row);
+      }
+      return;
+    }
+    add(decodeHigh(id), decodeLow(id), row);
+  }
+
+  /**
+   * Add a row whose id is an already decoded ObjectId.
+   *
+   * @param high the first 8 bytes of the id, as from `decodeHigh()`
+   * @param low the last 4 bytes of the id, as from `decodeLow()`
+   * @param row the row number
+   */
+  public void add(long high, int low, int row) {
+    int slot = slotFor(high, low);
+    while (slotRows[slot] != 0) {
+      if (slotHighs[slot] == high && slotLows[slot] == low) {
+        // Duplicate id; keep the earlier row.
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+    slotHighs[slot] = high;
+    slotLows[slot] = low;
+    slotRows[slot] = row + 1;
+  }
+
+  private int slotFor(long high, int low) {
+    long hash = high ^ ((long) low * MIX_2);
+    hash = (hash ^ (hash >>> MIX_SHIFT)) * MIX_1;
+    hash = (hash ^ (hash >>> MIX_SHIFT)) * MIX_2;
+    return (int) (hash ^ (hash >>> MIX_SHIFT)) & mask;
+  }
+
+  /**
+   * Check whether the given string is a well-formed ObjectId, i.e., exactly
+   * 24 lowercase hex characters.
+   *
+   * @param id the string to check
+   * @return true if `id` is 24 lowercase hex characters
+   */
+  public static boolean isObjectId(String id) {
+    if (id == null || id.length() != OBJECT_ID_LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < OBJECT_ID_LENGTH; i++) {
+      if (hexValue(id.charAt(i)) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Decode the first 16 hex characters of an ObjectId into a `long`.
+   *
+   * @param id a string for which `isObjectId()` is true
+   * @return the first 8 bytes of the id
+   */
+  public static long decodeHigh(String id) {
+    long high = 0;
+    for (int i = 0; i < HIGH_LENGTH; i++) {
+      high = (high << BITS_PER_HEX_DIGIT) | hexValue(id.charAt(i));
+    }
+    return high;
+  }
+
+  /**
+   * Decode the last 8 hex characters of an ObjectId into an `int`.
+   *
+   * @param id a string for which `isObjectId()` is true
+   * @return the last 4 bytes of the id
+   */
+  public static int decodeLow(String id) {
+    int low = 0;
+    for (int i = HIGH_LENGTH; i < OBJECT_ID_LENGTH; i++) {
+      low = (low << BITS_PER_HEX_DIGIT) | hexValue(id.charAt(i));
+    }
+    return low;
+  }
+
+  /**
+   * Turn a decoded ObjectId back into its 24-character string form.
+   *
+   * @param high the first 8 bytes of the id
+   * @param low the last 4 bytes of the id
+   * @return the id as lowercase hex
+   */
+  public static String format(long high, int low) {
+    char[] id = new char[OBJECT_ID_LENGTH];
+    for (int i = HIGH_LENGTH - 1; i >= 0; i--) {
+      id[i] = HEX_DIGITS[(int) (high & HEX_DIGIT_MASK)];
+      high >>>= BITS_PER_HEX_DIGIT;
+    }
+    for (int i = OBJECT_ID_LENGTH - 1; i >= HIGH_LENGTH; i--) {
+      id[i] = HEX_DIGITS[low & HEX_DIGIT_MASK];
+      low >>>= BITS_PER_HEX_DIGIT;
+    }
+    return new String(id);
+  }
+
+  /**
+   * Compute the dense rank (see `RowOrder.ranksOf()`) of each row's id,
+   * where every row's id is an already decoded ObjectId.
+   * <p>
+   * ObjectIds are fixed-length lowercase hex, so they sort as strings just
+   * as their bytes sort as unsigned numbers. That lets us radix sort the
+   * decoded ids 16 bits at a time (six passes of a counting sort, each
+   * linear in the number of rows) instead of comparing strings, which is
+   * many times faster for a million ids.
+   *
+   * @param rowCount the number of rows
+   * @param highs the first 8 bytes of each row's id, as from `decodeHigh()`
+   * @param lows the last 4 bytes of each row's id, as from `decodeLow()`
+   * @return the rank of each row's id
+   */
+  public static int[] ranksOf(int rowCount, IntToLongFunction highs, IntUnaryOperator lows) {
+    int[] rows = new int[rowCount];
+    for (int row = 0; row < rowCount; row++) {
+      rows[row] = row;
+    }
+    int[] sorted = new int[rowCount];
+    int[] counts = new int[RADIX + 1];
+    // Least significant digit first: the two halves of the low `int`, then
+    // the four quarters of the high `long`.
+    for (int pass = 0; pass < RADIX_PASSES; pass++) {
+      Arrays.fill(counts, 0);
+      for (int row : rows) {
+        counts[digit(pass, highs, lows, row) + 1]++;
+      }
+      for (int digit = 0; digit < RADIX; digit++) {
+        counts[digit + 1] += counts[digit];
+      }
+      for (int row : rows) {
+        sorted[counts[digit(pass, highs, lows, row)]++] = row;
+      }
+      int[] swap = rows;
+      rows = sorted;
+      sorted = swap;
+    }
+    int[] ranks = new int[rowCount];
+    int rank = 0;
+    for (int i = 0; i < rowCount; i++) {
+      if (i > 0 && (highs.applyAsLong(rows[i]) != highs.applyAsLong(rows[i - 1])
+          || lows.applyAsInt(rows[i]) != lows.applyAsInt(rows[i - 1]))) {
+        rank++;
+      }
+      ranks[rows[i]] = rank;
+    }
+    return ranks;
+  }
+
+  // One 16-bit digit of a row's id, for a pass of the radix sort.
+  private static int digit(int pass, IntToLongFunction highs, IntUnaryOperator lows, int row) {
+    if (pass < LOW_PASSES) {
+      return (lows.applyAsInt(row) >>> (pass * RADIX_BITS)) & (RADIX - 1);
+    }
+    return (int) (highs.applyAsLong(row) >>> ((pass - LOW_PASSES) * RADIX_BITS)) & (RADIX - 1);
+  }
+
+  private static int hexValue(char c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    } else if (c >= 'a' && c <= 'f') {
+      return c - 'a' + HEX_LETTER_OFFSET;
+    } else {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package umm3601.index;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of row numbers that can be "changed" cheaply by making
+ * a modified copy.
+ * <p>
+ * The bits are split into fixed-size segments. Setting a bit copies just
+ * the segment holding it, plus the (short) array of segment references,
+ * and shares every other segment with the original. So a writer can
+ * produce a new version of the set in time proportional to the number of
+ * segments, while readers holding the old version keep seeing exactly what
+ * they saw before, with no locking on either side.
+ */
+public final class PersistentBitSet {
+
+  /** The empty set. */
+  public static final PersistentBitSet EMPTY = new PersistentBitSet(new long[0][], 0);
+
+  // Each segment covers 4096 rows, in 64 `long`s.
+  private static final int SEGMENT_SHIFT = 12;
+  private static final int SEGMENT_WORDS = (1 << SEGMENT_SHIFT) / Long.SIZE;
+  private static final int WORD_SHIFT = 6;
+  private static final int WORD_MASK = SEGMENT_WORDS - 1;
+
+  // `null` segments have no bits set.
+  private final long[][] segments;
+  private final int cardinality;
+
+  private PersistentBitSet(long[][] segments, int cardinality) {
+    this.segments = segments;
+    this.cardinality = cardinality;
+  }
+
+  /**
+   * @param row a row number
+   * @return true if the row is in the set
+   */
+  public boolean get(int row) {
+    int segment = row >>> SEGMENT_SHIFT;
+    if (segment >= segments.length || segments[segment] == null) {
+      return false;
+    }
+    return (segments[segment][(row >>> WORD_SHIFT) & WORD_MASK] & (1L << row)) != 0;
+  }
+
+  /**
+   * Make a copy of this set with one more row in it.
+   *
+   * @param row the row number to add
+   * @return the new set (or this set, if the row was already in it)
+   */
+  public PersistentBitSet with(int row) {
+    if (get(row)) {
+      return this;
+    }
+    int segment = row >>> SEGMENT_SHIFT;
+    long[][] copy = Arrays.copyOf(segments, Math.max(segments.length, segment + 1));
+    copy[segment] = copy[segment] == null ? new long[SEGMENT_WORDS] : copy[segment].clone();
+    copy[segment][(row >>> WORD_SHIFT) & WORD_MASK] |= 1L << row;
+    return new PersistentBitSet(copy, cardinality + 1);
+  }
+
+  /**
+   * @return the number of rows in the set
+   */
+  public int cardinality() {
+    return cardinality;
+  }
+
+  /**
+   * Count the rows in the set that are less than the given row.
+   *
+   * @param end the (exclusive) upper bound
+   * @return the number of rows in the set below `end`
+   */
+  public int countBelow(int end) {
+    int count = 0;
+    for (int row = nextSetBit(0); row >= 0 && row < end; row = nextSetBit(row + 1)) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Find the first row in the set at or after the given one.
+   *
+   * @param from the row to start looking at
+   * @return the row, or -1 if there isn't one
+   */
+  public int nextSetBit(int from) {
+    for (int segment = from >>> SEGMENT_SHIFT; segment < segments.length; segment++) {
+      long[] words = segments[segment];
+      if (words == null) {
+        continue;
+      }
+      int base = segment << SEGMENT_SHIFT;
+      for (int word = Math.max(from - base, 0) >>> WORD_SHIFT; word < SEGMENT_WORDS; word++) {
+        long bits = words[word];
+        int wordStart = base + (word << WORD_SHIFT);
+        if (wordStart < from) {
+          bits &= -1L << from;
+        }
+        if (bits != 0) {
+          return wordStart + Long.numberOfTrailingZeros(bits);
+        }
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,353 @@
+package umm3601.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * A plan for evaluating a conjunction of filters over the rows of a table
+ * in a single pass.
+ * <p>
+ * Each filter is added as a `Step` along with an estimate (from statistics
+ * gathered when the data was loaded) of how many rows it lets through. When
+ * the plan runs it:
+ * <ol>
+ * <li>orders the steps so that the cheapest and most selective ones come
+ * first,</li>
+ * <li>uses bitmap indexes for steps that have them while the set of
+ * candidate rows is still large (ANDing bitmaps costs one operation per 64
+ * rows, however many rows are left), and</li>
+ * <li>evaluates every remaining step as one fused, short-circuiting check
+ * per candidate row, so there's a single pass over the data and no
+ * intermediate arrays.</li>
+ * </ol>
+ * It also records how many rows were left after each step, so `explain()`
+ * can show estimated and actual row counts side by side.
+ */
+public final class QueryPlan {
+
+  /**
+   * A check on a single row.
+   */
+  @FunctionalInterface
+  public interface RowPredicate {
+    /**
+     * @param row a row number
+     * @return true if the row passes this check
+     */
+    boolean test(int row);
+  }
+
+  // Relative costs of checking one row: looking a code up in an array is
+  // cheap, searching a string is not.
+  /** The relative per-row cost of a simple field comparison. */
+  public static final double FIELD_CHECK_COST = 1.0;
+  /** The relative per-row cost of a substring search. */
+  public static final double SUBSTRING_CHECK_COST = 20.0;
+
+  // ANDing a bitmap touches one `long` per 64 rows.
+  private static final int ROWS_PER_BITMAP_WORD = 64;
+
+  private final int rowCount;
+  private final List<Step> steps = new ArrayList<>();
+  // The steps checked row by row, in the order they run, once `prepare()`
+  // has chosen them.
+  private List<Step> rowChecks;
+  private long estimatedRows;
+  private long actualRows;
+  private boolean executed;
+
+  /**
+   * Start a plan over a table with the given number of rows.
+   *
+   * @param rowCount the number of rows in the table
+   */
+  public QueryPlan(int rowCount) {
+    this.rowCount = rowCount;
+  }
+
+  /**
+   * Add a filter that can be checked row by row.
+   *
+   * @param description a human-readable description, e.g., "owner = Fry"
+   * @param expectedRows how many rows (of the whole table) are expected to
+   *                     pass this filter
+   * @param cost the relative cost of checking one row
+   * @param predicate the per-row check
+   * @param bitmap the rows passing this filter if there's an index for it,
+   *               or `null` if there isn't
+   */
+  public void addFilter(String description, long expectedRows, double cost, RowPredicate predicate, BitSet bitmap) {
+    steps.add(new Step(description, expectedRows, cost, predicate, bitmap, false));
+  }
+
+  /**
+   * Add an index-only filter, one whose bitmap is a superset of the matching
+   * rows (like the candidates from an n-gram index). It's always applied by
+   * ANDing its bitmap, and there must be some other (row-by-row) filter
+   * that does the exact check.
+   *
+   * @param description a human-readable description
+   * @param candidates the candidate rows
+   */
+  public void addCandidates(String description, BitSet candidates) {
+    steps.add(new Step(description, candidates.cardinality(), 0, null, candidates, true));
+  }
+
+  /**
+   * Run the plan.
+   *
+   * @param limit stop once this many matching rows have been found; this
+   *              should be `Integer.MAX_VALUE` if the caller is going to
+   *              sort the rows afterwards
+   * @return the matching rows, in row order
+   */
+  public int[] execute(int limit) {
+    BitSet candidates = prepare();
+    int[] result = new int[Math.min(limit, candidates == null ? rowCount : candidates.cardinality())];
+    int found = scan(candidates, limit, new IntConsumer() {
+      private int next;
+
+      @Override
+      public void accept(int row) {
+        result[next++] = row;
+      }
+    });
+    return Arrays.copyOf(result, found);
+  }
+
+  /**
+   * Run the plan, handing each matching row to `visitor` as soon as it's
+   * found rather than collecting them all first. This is for callers that
+   * can deal with the rows one at a time (e.g., by sending them to a
+   * client), so that they don't need room for all of them at once.
+   *
+   * @param limit stop once this many matching rows have been found
+   * @param visitor called with each matching row, in row order
+   * @return the number of matching rows
+   */
+  public int execute(int limit, IntConsumer visitor) {
+    return scan(prepare(), limit, visitor);
+  }
+
+  // Choose the order and access path of the steps, and AND together the
+  // bitmaps of the ones that use an index. Returns the candidate rows left
+  // by the indexes, or `null` if no index was used.
+  private BitSet prepare() {
+    if (executed) {
+      throw new IllegalStateException("A query plan can only be executed once");
+    }
+    executed = true;
+
+    // Order the steps by "rank": the cost of the check divided by the
+    // fraction of rows it removes. This is the classic ordering that
+    // minimizes the expected cost of a chain of independent filters.
+    // Candidate sets don't have a row check at all, so they go first.
+    steps.sort(Comparator.comparing((Step step) -> !step.candidatesOnly).thenComparingDouble(this::rank));
+
+    // Pick the access path for each step, estimating the number of rows left
+    // as we go by assuming the filters are independent. ANDing a bitmap
+    // costs the same however few rows are left, while row checks get
+    // cheaper as the candidates thin out, so once there are few enough
+    // candidates we stop using the indexes.
+    List<Step> indexSteps = new ArrayList<>();
+    rowChecks = new ArrayList<>();
+    double remaining = rowCount;
+    for (Step step : steps) {
+      boolean worthAnding = (double) rowCount / ROWS_PER_BITMAP_WORD < remaining * step.cost;
+      if (step.bitmap != null && (step.candidatesOnly || indexSteps.isEmpty() || worthAnding)) {
+        step.access = step.candidatesOnly ? "n-gram index" : "bitmap index";
+        indexSteps.add(step);
+      } else {
+        step.access = "row check";
+        rowChecks.add(step);
+      }
+      remaining = remaining * selectivity(step);
+    }
+
+    // Put the steps in the order they'll actually run in: indexes first,
+    // then the row checks.
+    steps.clear();
+    steps.addAll(indexSteps);
+    steps.addAll(rowChecks);
+    remaining = rowCount;
+    for (Step step : steps) {
+      remaining = remaining * selectivity(step);
+      step.estimatedRows = Math.round(remaining);
+    }
+    estimatedRows = Math.round(remaining);
+
+    BitSet candidates = null;
+    for (Step step : indexSteps) {
+      if (candidates == null) {
+        candidates = (BitSet) step.bitmap.clone();
+      } else {
+        candidates.and(step.bitmap);
+      }
+      step.actualRows = candidates.cardinality();
+    }
+    return candidates;
+  }
+
+  // The single fused pass over whatever rows the indexes left us with.
+  private int scan(BitSet candidates, int limit, IntConsumer visitor) {
+    RowPredicate[] checks = rowChecks.stream().map(step -> step.predicate).toArray(RowPredicate[]::new);
+    long[] passed = new long[checks.length];
+    int found = 0;
+    int row = candidates == null ? 0 : candidates.nextSetBit(0);
+    while (row >= 0 && row < rowCount && found < limit) {
+      int check = 0;
+      while (check < checks.length && checks[check].test(row)) {
+        passed[check++]++;
+      }
+      if (check == checks.length) {
+        visitor.accept(row);
+        found++;
+      }
+      row = candidates == null ? row + 1 : candidates.nextSetBit(row + 1);
+    }
+    for (int i = 0; i < checks.length; i++) {
+      rowChecks.get(i).actualRows = passed[i];
+    }
+    actualRows = found;
+    return found;
+  }
+
+  /**
+   * Run the plan, returning the matching rows as a set. This is for callers
+   * that are going to look rows up in the result (e.g., while walking a
+   * presorted permutation) rather than loop over it.
+   *
+   * @return the matching rows, or `null` if the plan has no filters at all
+   *         and so every row matches (in which case no work is done)
+   */
+  public BitSet executeAsBitSet() {
+    if (steps.isEmpty()) {
+      if (executed) {
+        throw new IllegalStateException("A query plan can only be executed once");
+      }
+      executed = true;
+      estimatedRows = rowCount;
+      actualRows = rowCount;
+      return null;
+    }
+    BitSet matching = new BitSet(rowCount);
+    for (int row : execute(Integer.MAX_VALUE)) {
+      matching.set(row);
+    }
+    return matching;
+  }
+
+  /**
+   * Turn the plan into a check on single rows, instead of running it over
+   * the whole table. This is for callers that will only look at a few rows
+   * (e.g., walking a presorted permutation until they have a page of
+   * them), for whom finding every matching row first would cost far more
+   * than the rows they look at. Steps with an index check the row's bit in
+   * the bitmap; the others use their row checks.
+   *
+   * @return a check that passes exactly the rows `execute()` would return,
+   *         or `null` if the plan has no filters at all
+   */
+  public RowPredicate asPredicate() {
+    if (executed) {
+      throw new IllegalStateException("A query plan can only be executed once");
+    }
+    executed = true;
+    if (steps.isEmpty()) {
+      return null;
+    }
+    steps.sort(Comparator.comparingDouble(this::rank));
+    RowPredicate[] checks = new RowPredicate[steps.size()];
+    for (int i = 0; i < checks.length; i++) {
+      Step step = steps.get(i);
+      step.access = "row check";
+      checks[i] = step.bitmap != null ? step.bitmap::get : step.predicate;
+    }
+    return row -> {
+      for (RowPredicate check : checks) {
+        if (!check.test(row)) {
+          return false;
+        }
+      }
+      return true;
+    };
+  }
+
+  /**
+   * Estimate how many rows the plan will find, assuming that the filters
+   * are independent.
+   *
+   * @return the estimated number of matching rows
+   */
+  public long estimateRows() {
+    double remaining = rowCount;
+    for (Step step : steps) {
+      remaining = remaining * selectivity(step);
+    }
+    return Math.round(remaining);
+  }
+
+  private double selectivity(Step step) {
+    return rowCount == 0 ? 0 : Math.min(1.0, (double) step.estimatedRows / rowCount);
+  }
+
+  private double rank(Step step) {
+    double removed = 1.0 - selectivity(step);
+    return removed <= 0 ? Double.MAX_VALUE : step.cost / removed;
+  }
+
+  /**
+   * Describe the plan, as chosen and run by `execute()`.
+   *
+   * @return a description suitable for turning into JSON
+   */
+  public Map<String, Object> explain() {
+    Map<String, Object> explanation = new LinkedHashMap<>();
+    List<Map<String, Object>> stepDescriptions = new ArrayList<>();
+    for (Step step : steps) {
+      Map<String, Object> description = new LinkedHashMap<>();
+      description.put("filter", step.description);
+      description.put("access", step.access);
+      description.put("estimatedRows", step.estimatedRows);
+      description.put("actualRows", step.actualRows);
+      stepDescriptions.add(description);
+    }
+    explanation.put("totalRows", rowCount);
+    explanation.put("steps", stepDescriptions);
+    explanation.put("estimatedRows", estimatedRows);
+    explanation.put("actualRows", actualRows);
+    return explanation;
+  }
+
+  /**
+   * One filter in the plan. Before execution `estimatedRows` is the
+   * filter's estimate on its own; afterwards it (like `actualRows`) is the
+   * number of rows left after this step and all the ones before it.
+   */
+  private static final class Step {
+    private final String description;
+    private final double cost;
+    private final RowPredicate predicate;
+    private final BitSet bitmap;
+    private final boolean candidatesOnly;
+    private long estimatedRows;
+    private long actualRows;
+    private String access = "not run";
+
+    Step(String description, long estimatedRows, double cost, RowPredicate predicate, BitSet bitmap,
+        boolean candidatesOnly) {
+      this.description = description;
+      this.estimatedRows = estimatedRows;
+      this.cost = cost;
+      this.predicate = predicate;
+      this.bitmap = bitmap;
+      this.candidatesOnly = candidatesOnly;
+    }
+  }
+}
@@ -0,0 +1,198 @@
+package umm3601.index;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A sort order over rows, and a bounded top-K selection that uses it.
+ * <p>
+ * Rather than comparing field values (`String.compareTo()`, or boxing a
+ * `boolean` into a `Boolean`) every time two rows are compared, each
+ * orderable field is turned into a "rank" array once, when the data is
+ * loaded: `ranks[row]` is the position of that row's value among all the
+ * distinct values of the field, in sorted order. Comparing two rows on a
+ * field is then just comparing two `int`s, and multi-key orders compare
+ * one rank array after another. Ties on every key are broken by row
+ * number, so the order is total and results are deterministic.
+ * <p>
+ * A key doesn't have to be an array: any function from a row to its rank
+ * will do, which lets columns that are stored some other way (a bit per
+ * row, say) be sorted on without first expanding them into an `int[]`.
+ */
+public final class RowOrder {
+
+  private final IntUnaryOperator[] keys;
+  private final boolean[] descending;
+
+  /**
+   * Build an order that sorts by each key in turn.
+   *
+   * @param keyRanks the rank array for each key, most significant first
+   * @param descending whether each key is sorted in descending order
+   */
+  public RowOrder(int[][] keyRanks, boolean[] descending) {
+    this(Arrays.stream(keyRanks).map(RowOrder::rankFunction).toArray(IntUnaryOperator[]::new), descending);
+  }
+
+  /**
+   * Build an order that sorts by each key in turn.
+   *
+   * @param keys a function giving each row's rank for each key, most
+   *             significant first
+   * @param descending whether each key is sorted in descending order
+   */
+  public RowOrder(IntUnaryOperator[] keys, boolean[] descending) {
+    if (keys.length != descending.length) {
+      throw new IllegalArgumentException("Need a direction for every sort key");
+    }
+    this.keys = keys.clone();
+    this.descending = descending.clone();
+  }
+
+  private static IntUnaryOperator rankFunction(int[] ranks) {
+    return row -> ranks[row];
+  }
+
+  /**
+   * Compare two rows.
+   *
+   * @param a a row number
+   * @param b another row number
+   * @return negative, zero or positive as `a` sorts before, equal to, or
+   *         after `b`
+   */
+  public int compare(int a, int b) {
+    for (int key = 0; key < keys.length; key++) {
+      int rankA = keys[key].applyAsInt(a);
+      int rankB = keys[key].applyAsInt(b);
+      if (rankA != rankB) {
+        int result = Integer.compare(rankA, rankB);
+        return descending[key] ? -result : result;
+      }
+    }
+    return Integer.compare(a, b);
+  }
+
+  /**
+   * Compare a row with a point in this order that needn't be a row at all,
+   * given by its position among the ranks of each key: twice the rank of
+   * the point's value, or, if no row has that value, the odd number
+   * between the ranks either side of it (see `SortPermutation.seek()`).
+   *
+   * @param row a row number
+   * @param positions the point's position for each key
+   * @return negative, zero or positive as the row sorts before, at, or
+   *         after the point
+   */
+  public int compareWith(int row, int[] positions) {
+    for (int key = 0; key < keys.length; key++) {
+      int position = 2 * keys[key].applyAsInt(row);
+      if (position != positions[key]) {
+        int result = Integer.compare(position, positions[key]);
+        return descending[key] ? -result : result;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Select the first `k` rows in this order, sorted.
+   * <p>
+   * This keeps a max-heap of the best `k` rows seen so far, so it runs in
+   * O(n log k) time and O(k) extra space instead of sorting all `n` rows.
+   * Asking for `k >= n` rows just sorts them all (as a heap sort).
+   *
+   * @param rows the candidate rows; the first `count` entries are used
+   * @param count the number of candidate rows
+   * @param k the number of rows wanted
+   * @return the first `min(k, count)` rows in this order
+   */
+  public int[] topK(int[] rows, int count, int k) {
+    int size = Math.min(k, count);
+    if (size <= 0) {
+      return new int[0];
+    }
+    int[] heap = new int[size];
+    int heapSize = 0;
+    for (int i = 0; i < count; i++) {
+      int row = rows[i];
+      if (heapSize < size) {
+        heap[heapSize] = row;
+        siftUp(heap, heapSize++);
+      } else if (compare(row, heap[0]) < 0) {
+        heap[0] = row;
+        siftDown(heap, 0, heapSize);
+      }
+    }
+    // Repeatedly move the worst remaining row to the end; this leaves the
+    // heap array sorted from best to worst.
+    for (int end = size - 1; end > 0; end--) {
+      int worst = heap[0];
+      heap[0] = heap[end];
+      heap[end] = worst;
+      siftDown(heap, 0, end);
+    }
+    return heap;
+  }
+
+  // The heap is a max-heap under `compare()`: the root is the row that
+  // sorts last, which is the one to evict when a better row comes along.
+  private void siftUp(int[] heap, int index) {
+    int row = heap[index];
+    while (index > 0) {
+      int parent = (index - 1) / 2;
+      if (compare(heap[parent], row) >= 0) {
+        break;
+      }
+      heap[index] = heap[parent];
+      index = parent;
+    }
+    heap[index] = row;
+  }
+
+  private void siftDown(int[] heap, int index, int size) {
+    int row = heap[index];
+    while (true) {
+      int child = 2 * index + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && compare(heap[child + 1], heap[child]) > 0) {
+        child++;
+      }
+      if (compare(row, heap[child]) >= 0) {
+        break;
+      }
+      heap[index] = heap[child];
+      index = child;
+    }
+    heap[index] = row;
+  }
+
+  /**
+   * Compute dense ranks for a field: each row gets the position of its
+   * value among the distinct values in sorted order, so equal values get
+   * equal ranks. `null`s come before everything else.
+   *
+   * @param values the value of the field for each row
+   * @return the rank of each row's value
+   */
+  public static <T extends Comparable<T>> int[] ranksOf(T[] values) {
+    Integer[] byValue = new Integer[values.length];
+    for (int i = 0; i < values.length; i++) {
+      byValue[i] = i;
+    }
+    Comparator<T> order = Comparator.nullsFirst(Comparator.naturalOrder());
+    Arrays.sort(byValue, (a, b) -> order.compare(values[a], values[b]));
+    int[] ranks = new int[values.length];
+    int rank = 0;
+    for (int i = 0; i < byValue.length; i++) {
+      if (i > 0 && order.compare(values[byValue[i]], values[byValue[i - 1]]) != 0) {
+        rank++;
+      }
+      ranks[byValue[i]] = rank;
+    }
+    return ranks;
+  }
+}
@@ -0,0 +1,159 @@
+package umm3601.index;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads back a snapshot file written by `SnapshotWriter`.
+ * <p>
+ * Small values are read as usual, but sections are memory-mapped with
+ * `FileChannel.map()` rather than read: `readInts()` and friends return
+ * buffers that look straight into the file. That's almost free no matter
+ * how big the section is, and the operating system only actually reads
+ * the parts of the file we touch (and can drop them again under memory
+ * pressure, since they're backed by the file). The mappings stay valid
+ * after the reader is closed.
+ * <p>
+ * A single mapping can't be bigger than 2 GB, so neither can a section;
+ * bigger structures need to be split up when they're written.
+ */
+public final class SnapshotReader implements Closeable {
+
+  private final FileChannel channel;
+  private final ByteBuffer scratch = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+  private long position;
+
+  /**
+   * Open a snapshot file.
+   *
+   * @param path the file
+   * @param kind what the snapshot should hold (as given to `SnapshotWriter`)
+   * @throws IOException if the file can't be read, or isn't a snapshot of
+   *                     that kind in the current format
+   */
+  public SnapshotReader(Path path, String kind) throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      if (channel.size() < Long.BYTES || readLong() != SnapshotWriter.MAGIC) {
+        throw new IOException(path + " is not a snapshot file");
+      }
+      int version = readInt();
+      if (version != SnapshotWriter.FORMAT_VERSION) {
+        throw new IOException(path + " is in snapshot format " + version + ", not "
+            + SnapshotWriter.FORMAT_VERSION);
+      }
+      String actualKind = readString();
+      if (!kind.equals(actualKind)) {
+        throw new IOException(path + " is a snapshot of " + actualKind + ", not " + kind);
+      }
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  // Read the next `bytes` bytes into `scratch`.
+  private ByteBuffer fill(int bytes) throws IOException {
+    scratch.clear().limit(bytes);
+    while (scratch.hasRemaining()) {
+      if (channel.read(scratch, position + scratch.position()) < 0) {
+        throw new EOFException("Snapshot ends unexpectedly");
+      }
+    }
+    position += bytes;
+    return scratch.flip();
+  }
+
+  /**
+   * @return the next `int`
+   * @throws IOException if it can't be read
+   */
+  public int readInt() throws IOException {
+    return fill(Integer.BYTES).getInt();
+  }
+
+  /**
+   * @return the next `long`
+   * @throws IOException if it can't be read
+   */
+  public long readLong() throws IOException {
+    return fill(Long.BYTES).getLong();
+  }
+
+  /**
+   * @return the next `String` (which may be `null`)
+   * @throws IOException if it can't be read
+   */
+  public String readString() throws IOException {
+    int length = readInt();
+    if (length < 0) {
+      return null;
+    }
+    ByteBuffer bytes = ByteBuffer.allocate(length);
+    while (bytes.hasRemaining()) {
+      if (channel.read(bytes, position + bytes.position()) < 0) {
+        throw new EOFException("Snapshot ends unexpectedly");
+      }
+    }
+    position += length;
+    return new String(bytes.array(), StandardCharsets.UTF_8);
+  }
+
+  // Map the next section, of `bytes` bytes.
+  private ByteBuffer map(long bytes) throws IOException {
+    position += (SnapshotWriter.ALIGNMENT - position % SnapshotWriter.ALIGNMENT) % SnapshotWriter.ALIGNMENT;
+    if (bytes > Integer.MAX_VALUE || position + bytes > channel.size()) {
+      throw new EOFException("Snapshot section of " + bytes + " bytes doesn't fit in the file");
+    }
+    ByteBuffer section = channel.map(FileChannel.MapMode.READ_ONLY, position, bytes);
+    position += bytes;
+    return section.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Map the next section as `int`s.
+   *
+   * @param count the number of `int`s in the section
+   * @return a read-only view of them
+   * @throws IOException if the section can't be mapped
+   */
+  public IntBuffer readInts(int count) throws IOException {
+    return map((long) count * Integer.BYTES).asIntBuffer();
+  }
+
+  /**
+   * Map the next section as `long`s.
+   *
+   * @param count the number of `long`s in the section
+   * @return a read-only view of them
+   * @throws IOException if the section can't be mapped
+   */
+  public LongBuffer readLongs(int count) throws IOException {
+    return map((long) count * Long.BYTES).asLongBuffer();
+  }
+
+  /**
+   * Map the next section as bytes.
+   *
+   * @param length the number of bytes in the section
+   * @return a read-only view of them
+   * @throws IOException if the section can't be mapped
+   */
+  public ByteBuffer readBytes(int length) throws IOException {
+    return map(length);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
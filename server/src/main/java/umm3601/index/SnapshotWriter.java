@@ -0,0 +1,208 @@
+package umm3601.index;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a binary snapshot file, which `SnapshotReader` can later open by
+ * memory-mapping it.
+ * <p>
+ * A snapshot is just a sequence of values written one after another:
+ * small ones (`int`s, `long`s, and `String`s) and big "sections" (arrays
+ * of `int`s, `long`s, or bytes, like a whole column). Each structure
+ * knows how to write itself (e.g., `TextColumn.writeTo()`) and read
+ * itself back (`TextColumn.readFrom()`), in the same order. Sections start
+ * on an 8-byte boundary so that the reader can view them in place as
+ * `IntBuffer`s or `LongBuffer`s. Everything is little-endian, which is
+ * what the machines we run on use natively.
+ */
+public final class SnapshotWriter implements Closeable {
+
+  /** Marks the start of every snapshot file: the ASCII bytes `UMM3601S`. */
+  static final long MAGIC = 0x53313036334d4d55L;
+  /** Bumped whenever the layout of any snapshot changes. */
+  static final int FORMAT_VERSION = 3;
+  /** Sections start at multiples of this many bytes. */
+  static final int ALIGNMENT = Long.BYTES;
+
+  private static final int BUFFER_BYTES = 1 << 20;
+
+  private final FileChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+  private long position;
+
+  /**
+   * Create (or replace) a snapshot file.
+   *
+   * @param path where to write it
+   * @param kind what the snapshot holds (e.g., "todos"); `SnapshotReader`
+   *             checks that it matches
+   * @throws IOException if the file can't be created
+   */
+  public SnapshotWriter(Path path, String kind) throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.WRITE);
+    writeLong(MAGIC);
+    writeInt(FORMAT_VERSION);
+    writeString(kind);
+  }
+
+  // Make sure there's room for `bytes` more bytes in the buffer.
+  private void reserve(int bytes) throws IOException {
+    if (buffer.remaining() < bytes) {
+      flush();
+    }
+  }
+
+  private void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * @param value an `int` to write
+   * @throws IOException if it can't be written
+   */
+  public void writeInt(int value) throws IOException {
+    reserve(Integer.BYTES);
+    buffer.putInt(value);
+    position += Integer.BYTES;
+  }
+
+  /**
+   * @param value a `long` to write
+   * @throws IOException if it can't be written
+   */
+  public void writeLong(long value) throws IOException {
+    reserve(Long.BYTES);
+    buffer.putLong(value);
+    position += Long.BYTES;
+  }
+
+  /**
+   * @param value a `String` (which may be `null`) to write
+   * @throws IOException if it can't be written
+   */
+  public void writeString(String value) throws IOException {
+    if (value == null) {
+      writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeInt(bytes.length);
+    put(ByteBuffer.wrap(bytes));
+  }
+
+  // Pad with zeros up to the next section boundary.
+  private void align() throws IOException {
+    while (position % ALIGNMENT != 0) {
+      reserve(1);
+      buffer.put((byte) 0);
+      position++;
+    }
+  }
+
+  /**
+   * Write a section of `int`s: everything from the buffer's position to
+   * its limit (leaving the buffer's position alone).
+   *
+   * @param values the `int`s to write
+   * @throws IOException if they can't be written
+   */
+  public void writeInts(IntBuffer values) throws IOException {
+    align();
+    appendInts(values);
+  }
+
+  /**
+   * Add more `int`s to the end of the section of `int`s just written by
+   * `writeInts()`, so that a big section can be written a piece at a time.
+   *
+   * @param values the `int`s to write
+   * @throws IOException if they can't be written
+   */
+  public void appendInts(IntBuffer values) throws IOException {
+    IntBuffer rest = values.duplicate();
+    position += (long) rest.remaining() * Integer.BYTES;
+    while (rest.hasRemaining()) {
+      reserve(Integer.BYTES);
+      int chunk = Math.min(rest.remaining(), buffer.remaining() / Integer.BYTES);
+      buffer.asIntBuffer().put(rest.slice(rest.position(), chunk));
+      rest.position(rest.position() + chunk);
+      buffer.position(buffer.position() + chunk * Integer.BYTES);
+    }
+  }
+
+  /**
+   * Write a section of `long`s: everything from the buffer's position to
+   * its limit (leaving the buffer's position alone).
+   *
+   * @param values the `long`s to write
+   * @throws IOException if they can't be written
+   */
+  public void writeLongs(LongBuffer values) throws IOException {
+    align();
+    LongBuffer rest = values.duplicate();
+    position += (long) rest.remaining() * Long.BYTES;
+    while (rest.hasRemaining()) {
+      reserve(Long.BYTES);
+      int chunk = Math.min(rest.remaining(), buffer.remaining() / Long.BYTES);
+      buffer.asLongBuffer().put(rest.slice(rest.position(), chunk));
+      rest.position(rest.position() + chunk);
+      buffer.position(buffer.position() + chunk * Long.BYTES);
+    }
+  }
+
+  /**
+   * Write a section of bytes: everything from the buffer's position to its
+   * limit (leaving the buffer's position alone).
+   *
+   * @param bytes the bytes to write
+   * @throws IOException if they can't be written
+   */
+  public void writeBytes(ByteBuffer bytes) throws IOException {
+    align();
+    put(bytes.duplicate());
+  }
+
+  // Write out the rest of `rest`.
+  private void put(ByteBuffer rest) throws IOException {
+    position += rest.remaining();
+    while (rest.hasRemaining()) {
+      if (!buffer.hasRemaining()) {
+        flush();
+      }
+      int chunk = Math.min(rest.remaining(), buffer.remaining());
+      int limit = rest.limit();
+      rest.limit(rest.position() + chunk);
+      buffer.put(rest);
+      rest.limit(limit);
+    }
+  }
+
+  /**
+   * Finish writing, making sure everything has actually reached the disk.
+   *
+   * @throws IOException if the file can't be written
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+  }
+}
@@ -0,0 +1,250 @@
+package umm3601.index;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * All the rows of a table, pre-sorted by one field.
+ * <p>
+ * Built once (when a snapshot of the data is made) from the field's dense
+ * ranks, so that a query ordered by just that field can read its answer
+ * straight off the front of the permutation instead of sorting anything.
+ * Like `RowOrder`, ties are broken by row number, in both directions,
+ * unless the permutation is built with some other order for the ties.
+ * <p>
+ * A permutation can also pick up where an earlier walk left off (see
+ * `seek()` and `after()`), which is how paged queries fetch the next page
+ * without walking past all the earlier ones again.
+ */
+public final class SortPermutation {
+
+  // The rows, sorted by rank and then by row number (or the tie order).
+  private final int[] rows;
+  // Where each rank's run of rows starts in `rows`; `groupStarts[rank + 1]`
+  // is where it ends.
+  private final int[] groupStarts;
+
+  private SortPermutation(int[] rows, int[] groupStarts) {
+    this.rows = rows;
+    this.groupStarts = groupStarts;
+  }
+
+  /**
+   * Sort the rows of a table by a field. Since the ranks are dense this is
+   * a counting sort, so it takes linear time.
+   *
+   * @param rowCount the number of rows
+   * @param ranks the dense rank (see `RowOrder.ranksOf()`) of each row's
+   *              value, from 0 up to `rankCount - 1`
+   * @param rankCount the number of distinct ranks
+   * @return the permutation
+   */
+  public static SortPermutation build(int rowCount, IntUnaryOperator ranks, int rankCount) {
+    return build(rowCount, ranks, rankCount, null);
+  }
+
+  /**
+   * Sort the rows of a table by a field, breaking ties by some other order
+   * rather than by row number. The counting sort is stable, so visiting
+   * the rows in the tie order leaves each group of ties in that order.
+   *
+   * @param rowCount the number of rows
+   * @param ranks the dense rank of each row's value, from 0 up to
+   *              `rankCount - 1`
+   * @param rankCount the number of distinct ranks
+   * @param ties the order to put ties in, or `null` for row order
+   * @return the permutation
+   */
+  public static SortPermutation build(int rowCount, IntUnaryOperator ranks, int rankCount, SortPermutation ties) {
+    int[] groupStarts = new int[rankCount + 1];
+    for (int row = 0; row < rowCount; row++) {
+      groupStarts[ranks.applyAsInt(row) + 1]++;
+    }
+    for (int rank = 0; rank < rankCount; rank++) {
+      groupStarts[rank + 1] += groupStarts[rank];
+    }
+    int[] next = groupStarts.clone();
+    int[] rows = new int[rowCount];
+    for (int i = 0; i < rowCount; i++) {
+      int row = ties == null ? i : ties.rows[i];
+      rows[next[ranks.applyAsInt(row)]++] = row;
+    }
+    return new SortPermutation(rows, groupStarts);
+  }
+
+  /**
+   * Get the first `k` rows in this order (or in reverse order of the field,
+   * still breaking ties by ascending row number), optionally skipping any
+   * that don't pass a filter.
+   *
+   * @param k the number of rows wanted
+   * @param descending whether to sort the field in descending order
+   * @param filter which rows may be returned, or `null` for all of them
+   * @return up to `k` rows, in order
+   */
+  public int[] first(int k, boolean descending, IntPredicate filter) {
+    int[] result = new int[Math.min(k, rows.length)];
+    int found = 0;
+    if (!descending) {
+      for (int i = 0; i < rows.length && found < result.length; i++) {
+        if (filter == null || filter.test(rows[i])) {
+          result[found++] = rows[i];
+        }
+      }
+    } else {
+      // Walk the groups of equal values from last to first, but each group
+      // from front to back, so that ties stay in row order.
+      for (int rank = groupStarts.length - 2; rank >= 0 && found < result.length; rank--) {
+        for (int i = groupStarts[rank]; i < groupStarts[rank + 1] && found < result.length; i++) {
+          if (filter == null || filter.test(rows[i])) {
+            result[found++] = rows[i];
+          }
+        }
+      }
+    }
+    return found == result.length ? result : Arrays.copyOf(result, found);
+  }
+
+  /**
+   * Find where a value falls in this order, by binary search.
+   * <p>
+   * The result is a "position" that `after()` understands: twice the
+   * value's rank if some row has the value, or, if none does, the odd
+   * number between twice the ranks of the values either side of it (so
+   * `-1` if it's smaller than every row's value). Either way, comparing a row's `2 * rank` with the position compares
+   * the row's value with the one being looked for.
+   *
+   * @param compare compares a row's value with the one being looked for:
+   *                negative if the row's is smaller, zero if they're equal,
+   *                and positive if the row's is bigger
+   * @return the value's position
+   */
+  public int seek(IntUnaryOperator compare) {
+    int low = 0;
+    int high = rows.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (compare.applyAsInt(rows[middle]) < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    if (low == rows.length) {
+      return 2 * rankAt(rows.length - 1) + 1;
+    }
+    int rank = rankAt(low);
+    return compare.applyAsInt(rows[low]) == 0 ? 2 * rank : 2 * rank - 1;
+  }
+
+  /**
+   * Get the first `k` rows that come after a given point in this order (or
+   * in reverse order of the field), optionally skipping any that don't pass
+   * a filter. The point is given as a position (from `seek()`) for the
+   * field, and a position for the tie-breaking field; ties must be in
+   * ascending order of that field (see `build()`), in both directions.
+   *
+   * @param k the number of rows wanted
+   * @param descending whether to sort the field in descending order
+   * @param filter which rows may be returned, or `null` for all of them
+   * @param position where the point falls among the field's ranks
+   * @param tieRanks the rank of each row in the tie-breaking field
+   * @param tiePosition where the point falls among the tie-breaking ranks
+   * @return up to `k` rows after the point, in order
+   */
+  public int[] after(int k, boolean descending, IntPredicate filter, int position, IntUnaryOperator tieRanks,
+      int tiePosition) {
+    int[] result = new int[Math.min(k, rows.length)];
+    int found = 0;
+    if (position % 2 == 0 && position / 2 < groupStarts.length - 1) {
+      // Some rows have the point's value: the ones that come after it are at
+      // the end of that group.
+      int rank = position / 2;
+      int low = groupStarts[rank];
+      int high = groupStarts[rank + 1];
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (2 * tieRanks.applyAsInt(rows[middle]) <= tiePosition) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      found = collect(low, groupStarts[rank + 1], filter, result, found);
+    }
+    if (!descending) {
+      int rank = Math.floorDiv(position, 2) + 1;
+      found = collect(groupStarts[Math.max(Math.min(rank, groupStarts.length - 1), 0)], rows.length, filter, result,
+          found);
+    } else {
+      int rank = Math.min(-Math.floorDiv(-position, 2), groupStarts.length - 1) - 1;
+      for (; rank >= 0 && found < result.length; rank--) {
+        found = collect(groupStarts[rank], groupStarts[rank + 1], filter, result, found);
+      }
+    }
+    return found == result.length ? result : Arrays.copyOf(result, found);
+  }
+
+  /**
+   * Get the rows with one rank (i.e., one value of the field), in order of
+   * the ties, optionally skipping any that don't pass a filter.
+   *
+   * @param rank the rank
+   * @param filter which rows may be returned, or `null` for all of them
+   * @return the rows with that rank
+   */
+  public int[] group(int rank, IntPredicate filter) {
+    int[] result = new int[groupStarts[rank + 1] - groupStarts[rank]];
+    int found = collect(groupStarts[rank], groupStarts[rank + 1], filter, result, 0);
+    return found == result.length ? result : Arrays.copyOf(result, found);
+  }
+
+  /**
+   * @return the number of ranks (some of which may have no rows)
+   */
+  public int rankCount() {
+    return groupStarts.length - 1;
+  }
+
+  // Add the rows between two points of `rows` that pass the filter to the
+  // result, until it's full, and return how full it is now.
+  private int collect(int from, int to, IntPredicate filter, int[] result, int found) {
+    for (int i = from; i < to && found < result.length; i++) {
+      if (filter == null || filter.test(rows[i])) {
+        result[found++] = rows[i];
+      }
+    }
+    return found;
+  }
+
+  // The rank of the row at a point in `rows`.
+  private int rankAt(int index) {
+    int low = 0;
+    int high = groupStarts.length - 2;
+    // Find the last rank starting at or before `index`.
+    while (low < high) {
+      int middle = (low + high + 1) >>> 1;
+      if (groupStarts[middle] <= index) {
+        low = middle;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @return the number of rows
+   */
+  public int size() {
+    return rows.length;
+  }
+
+  /**
+   * @return the estimated size of the permutation in bytes
+   */
+  public long estimatedBytes() {
+    return (long) (rows.length + groupStarts.length) * Integer.BYTES;
+  }
+}
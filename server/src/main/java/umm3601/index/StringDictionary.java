@@ -0,0 +1,158 @@
+package umm3601.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A dictionary for dictionary-encoding a column of strings.
+ * <p>
+ * Fields like a todo's owner or category only take a handful of distinct
+ * values, so rather than keeping a `String` reference per row we store
+ * a small `int` "code" per row and keep each distinct string once, here.
+ * Codes are assigned in sorted order of the values (with `null` first), so
+ * comparing two codes gives the same answer as comparing the strings, and
+ * a column of codes can be used directly for sorting.
+ */
+public final class StringDictionary {
+
+  private static final Comparator<String> VALUE_ORDER = Comparator.nullsFirst(Comparator.naturalOrder());
+
+  private final String[] values;
+  private final Map<String, Integer> codes;
+
+  private StringDictionary(String[] values) {
+    this.values = values;
+    this.codes = new HashMap<>(values.length * 2);
+    for (int code = 0; code < values.length; code++) {
+      codes.put(values[code], code);
+    }
+  }
+
+  /**
+   * @return the number of distinct values
+   */
+  public int size() {
+    return values.length;
+  }
+
+  /**
+   * Look up the code for a value.
+   *
+   * @param value the value to look up (may be `null`)
+   * @return its code, or -1 if it isn't in the dictionary
+   */
+  public int codeOf(String value) {
+    Integer code = codes.get(value);
+    return code == null ? -1 : code;
+  }
+
+  /**
+   * Look up the value for a code.
+   *
+   * @param code a code from this dictionary
+   * @return the corresponding value
+   */
+  public String valueOf(int code) {
+    return values[code];
+  }
+
+  /**
+   * A rough estimate of the heap used by the dictionary, assuming each
+   * distinct value is stored only here.
+   *
+   * @return the estimated size in bytes
+   */
+  public long estimatedBytes() {
+    final int perEntryOverhead = 96;
+    long bytes = 0;
+    for (String value : values) {
+      bytes += perEntryOverhead + (value == null ? 0 : value.length());
+    }
+    return bytes;
+  }
+
+  /**
+   * Write the dictionary to a snapshot.
+   *
+   * @param out the snapshot being written
+   * @throws IOException if it can't be written
+   */
+  public void writeTo(SnapshotWriter out) throws IOException {
+    out.writeInt(values.length);
+    for (String value : values) {
+      out.writeString(value);
+    }
+  }
+
+  /**
+   * Read a dictionary back from a snapshot. Dictionaries are small, so
+   * this just reads the values onto the heap.
+   *
+   * @param in the snapshot being read
+   * @return the dictionary
+   * @throws IOException if it can't be read
+   */
+  public static StringDictionary readFrom(SnapshotReader in) throws IOException {
+    String[] values = new String[in.readInt()];
+    for (int code = 0; code < values.length; code++) {
+      values[code] = in.readString();
+    }
+    return new StringDictionary(values);
+  }
+
+  /**
+   * Collects the distinct values of a column as it's being loaded, handing
+   * out provisional codes in order of first appearance. `build()` then sorts
+   * the values and says how to translate provisional codes to final ones.
+   */
+  public static final class Builder {
+    private final List<String> values = new ArrayList<>();
+    private final Map<String, Integer> codes = new HashMap<>();
+
+    /**
+     * Get the provisional code for a value, adding it if it's new.
+     *
+     * @param value the value (may be `null`)
+     * @return its provisional code
+     */
+    public int add(String value) {
+      Integer code = codes.get(value);
+      if (code == null) {
+        code = values.size();
+        codes.put(value, code);
+        values.add(value);
+      }
+      return code;
+    }
+
+    /**
+     * Build the dictionary.
+     *
+     * @param remap filled in with the final code for each provisional code;
+     *              must have room for at least as many entries as there are
+     *              distinct values
+     * @return the dictionary
+     */
+    public StringDictionary build(int[] remap) {
+      String[] sorted = values.toArray(new String[0]);
+      Arrays.sort(sorted, VALUE_ORDER);
+      StringDictionary dictionary = new StringDictionary(sorted);
+      for (int provisional = 0; provisional < values.size(); provisional++) {
+        remap[provisional] = dictionary.codeOf(values.get(provisional));
+      }
+      return dictionary;
+    }
+
+    /**
+     * @return the number of distinct values added so far
+     */
+    public int size() {
+      return values.size();
+    }
+  }
+}
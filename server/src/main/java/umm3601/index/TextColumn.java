@@ -0,0 +1,283 @@
+package umm3601.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A column of strings stored as UTF-8 bytes, back to back, in a few large
+ * pages.
+ * <p>
+ * A `String` per row costs a 24-byte `String` header and a 16-byte array
+ * header on top of the text itself, plus a reference from whatever holds
+ * it, and the rows end up scattered around the heap. Here each row costs
+ * its bytes plus 12 bytes of bookkeeping (where it starts and how long it
+ * is), and scanning the column walks through memory in order. Rows are
+ * never split across pages, and pages are at most 16 MB, so the column can
+ * hold far more than the 2 GB a single array could.
+ * <p>
+ * Strings are only decoded back into `String`s when someone asks for one;
+ * substring searches run directly against the bytes.
+ * <p>
+ * The pages and bookkeeping are kept in `java.nio` buffers, which are
+ * backed by ordinary arrays while the column is built, but can also be
+ * mapped straight out of a snapshot file (see `readFrom()`). A column read
+ * from a snapshot can't have rows added to it.
+ */
+public final class TextColumn {
+
+  // Rows are addressed by a `long` position: the page number in the high
+  // bits, and the offset within the page in the low `PAGE_BITS` bits.
+  private static final int PAGE_BITS = 24;
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+  private static final long OFFSET_MASK = PAGE_SIZE - 1;
+  private static final int INITIAL_ROWS = 16;
+  private static final int INITIAL_PAGE_SIZE = 1024;
+  // A `null` row is recorded with this length.
+  private static final int NULL_LENGTH = -1;
+
+  private ByteBuffer[] pages = {ByteBuffer.allocate(INITIAL_PAGE_SIZE)};
+  // How much of the last page has been used.
+  private int pageFill;
+  private LongBuffer positions = LongBuffer.allocate(INITIAL_ROWS);
+  private IntBuffer lengths = IntBuffer.allocate(INITIAL_ROWS);
+  private int size;
+
+  /**
+   * Append a row.
+   *
+   * @param text the row's text (may be `null`)
+   * @return the new row's number
+   */
+  public int add(String text) {
+    return add(text == null ? null : text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Append a row that's already UTF-8 encoded.
+   *
+   * @param utf8 the row's text (may be `null`)
+   * @return the new row's number
+   */
+  public int add(byte[] utf8) {
+    if (size == positions.capacity()) {
+      int capacity = Math.max(size * 2, INITIAL_ROWS);
+      positions = LongBuffer.wrap(Arrays.copyOf(positions.array(), capacity));
+      lengths = IntBuffer.wrap(Arrays.copyOf(lengths.array(), capacity));
+    }
+    if (utf8 == null) {
+      lengths.put(size, NULL_LENGTH);
+      positions.put(size, position(pages.length - 1, pageFill));
+      return size++;
+    }
+    reserve(utf8.length);
+    int page = pages.length - 1;
+    pages[page].put(pageFill, utf8);
+    positions.put(size, position(page, pageFill));
+    lengths.put(size, utf8.length);
+    pageFill += utf8.length;
+    return size++;
+  }
+
+  // Make sure there's room for `length` more bytes in the last page, by
+  // growing it (while it's still smaller than a full page) or starting a
+  // new one.
+  private void reserve(int length) {
+    int page = pages.length - 1;
+    int needed = pageFill + length;
+    int capacity = pages[page].capacity();
+    if (needed <= capacity) {
+      return;
+    }
+    if (needed <= PAGE_SIZE) {
+      pages[page] = ByteBuffer.wrap(Arrays.copyOf(pages[page].array(),
+          Math.min(PAGE_SIZE, Math.max(needed, capacity * 2))));
+    } else {
+      // Remember how much of the old page is used, for `writeTo()`.
+      pages[page].limit(pageFill);
+      pages = Arrays.copyOf(pages, pages.length + 1);
+      // A row bigger than a page gets an oversized page of its own.
+      pages[pages.length - 1] = ByteBuffer.allocate(Math.max(length, PAGE_SIZE));
+      pageFill = 0;
+    }
+  }
+
+  private static long position(int page, int offset) {
+    return ((long) page << PAGE_BITS) | offset;
+  }
+
+  /**
+   * @return the number of rows
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param row a row number
+   * @return true if the row's text is `null`
+   */
+  public boolean isNull(int row) {
+    return lengths.get(row) == NULL_LENGTH;
+  }
+
+  /**
+   * Decode a row back into a `String`.
+   *
+   * @param row a row number
+   * @return the row's text (which may be `null`)
+   */
+  public String get(int row) {
+    if (isNull(row)) {
+      return null;
+    }
+    ByteBuffer page = page(row);
+    if (page.hasArray()) {
+      return new String(page.array(), page.arrayOffset() + offset(row), lengths.get(row), StandardCharsets.UTF_8);
+    }
+    byte[] bytes = new byte[lengths.get(row)];
+    page.get(offset(row), bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * The page holding a row's bytes. Together with `offset()` and `length()`
+   * this lets callers read the bytes in place, without copying them.
+   *
+   * @param row a row number
+   * @return the page holding the row
+   */
+  public ByteBuffer page(int row) {
+    return pages[(int) (positions.get(row) >>> PAGE_BITS)];
+  }
+
+  /**
+   * @param row a row number
+   * @return where the row starts in its page
+   */
+  public int offset(int row) {
+    return (int) (positions.get(row) & OFFSET_MASK);
+  }
+
+  /**
+   * @param row a row number
+   * @return the length of the row in bytes (0 for a `null` row)
+   */
+  public int length(int row) {
+    return Math.max(lengths.get(row), 0);
+  }
+
+  /**
+   * Copy a row's bytes into an array (nothing, for a `null` row).
+   *
+   * @param row a row number
+   * @param destination the array to copy to
+   * @param at where to put the first byte
+   */
+  public void copyTo(int row, byte[] destination, int at) {
+    page(row).get(offset(row), destination, at, length(row));
+  }
+
+  /**
+   * Check whether a row contains the given bytes. Since UTF-8 is
+   * self-synchronizing, this is the same as checking whether the decoded
+   * row contains the decoded needle.
+   *
+   * @param row a row number
+   * @param needle the UTF-8 bytes to look for
+   * @return true if the row isn't `null` and contains `needle`
+   */
+  public boolean contains(int row, byte[] needle) {
+    if (isNull(row)) {
+      return false;
+    }
+    ByteBuffer page = page(row);
+    int start = offset(row);
+    int last = start + lengths.get(row) - needle.length;
+    if (needle.length == 0) {
+      return true;
+    }
+    byte first = needle[0];
+    for (int i = start; i <= last; i++) {
+      if (page.get(i) == first && matchesAt(page, i, needle)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean matchesAt(ByteBuffer page, int at, byte[] needle) {
+    for (int j = 1; j < needle.length; j++) {
+      if (page.get(at + j) != needle[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Release the spare room left over from growing the arrays, once all the
+   * rows have been added.
+   */
+  public void trimToSize() {
+    positions = LongBuffer.wrap(Arrays.copyOf(positions.array(), size));
+    lengths = IntBuffer.wrap(Arrays.copyOf(lengths.array(), size));
+    int last = pages.length - 1;
+    pages[last] = ByteBuffer.wrap(Arrays.copyOf(pages[last].array(), pageFill));
+  }
+
+  /**
+   * A rough estimate of the heap used by the column.
+   *
+   * @return the estimated size in bytes
+   */
+  public long estimatedBytes() {
+    long bytes = (long) positions.capacity() * Long.BYTES + (long) lengths.capacity() * Integer.BYTES;
+    for (ByteBuffer page : pages) {
+      bytes += page.capacity();
+    }
+    return bytes;
+  }
+
+  /**
+   * Write the column to a snapshot.
+   *
+   * @param out the snapshot being written
+   * @throws IOException if it can't be written
+   */
+  public void writeTo(SnapshotWriter out) throws IOException {
+    out.writeInt(size);
+    out.writeInt(pages.length);
+    for (int page = 0; page < pages.length; page++) {
+      int used = page == pages.length - 1 ? pageFill : pages[page].limit();
+      out.writeInt(used);
+      out.writeBytes(pages[page].duplicate().position(0).limit(used));
+    }
+    out.writeLongs(positions.duplicate().position(0).limit(size));
+    out.writeInts(lengths.duplicate().position(0).limit(size));
+  }
+
+  /**
+   * Read a column back from a snapshot, mapping it rather than copying it
+   * onto the heap.
+   *
+   * @param in the snapshot being read
+   * @return the column
+   * @throws IOException if it can't be read
+   */
+  public static TextColumn readFrom(SnapshotReader in) throws IOException {
+    TextColumn column = new TextColumn();
+    column.size = in.readInt();
+    column.pages = new ByteBuffer[in.readInt()];
+    for (int page = 0; page < column.pages.length; page++) {
+      column.pageFill = in.readInt();
+      column.pages[page] = in.readBytes(column.pageFill);
+    }
+    column.positions = in.readLongs(column.size);
+    column.lengths = in.readInts(column.size);
+    return column;
+  }
+}
@@ -0,0 +1,121 @@
+package umm3601.load;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Makes requests at a fixed rate (an "open" workload), the way lots of
+ * independent users do, whether or not the server is keeping up.
+ * <p>
+ * The obvious way to write a load test, a few threads that each send a
+ * request and wait for the response before sending the next, is "closed":
+ * when the server slows down, the test slows down with it and sends fewer
+ * requests, so the requests that would have had to wait are never sent
+ * and never measured. That's "coordinated omission", and it can make a
+ * server that stalls for a whole second look like it has a good 99th
+ * percentile. Here, request `i` is due at `i / rate` seconds, whatever
+ * happened to the others; each one is sent on its own virtual thread, and
+ * its latency is measured from when it was due. If the driver itself
+ * falls behind (e.g., the JVM pauses), the late requests are sent at once
+ * and their lateness counts as latency.
+ * <p>
+ * To keep a server that has stopped responding from using up all our
+ * memory, at most `maxInFlight` requests are outstanding at once; any
+ * more are "dropped" and count as failures.
+ */
+public final class LoadDriver {
+
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  /**
+   * Sends one request.
+   */
+  public interface Sender {
+    /**
+     * Send a request and wait for the response.
+     *
+     * @param path the request's path and query string
+     * @return the response's status code
+     * @throws Exception if there's no response (e.g., it times out)
+     */
+    int send(String path) throws Exception;
+  }
+
+  private final double rate;
+  private final long warmupNanos;
+  private final long durationNanos;
+  private final int maxInFlight;
+
+  /**
+   * Set up a load test.
+   *
+   * @param rate how many requests to send per second
+   * @param warmupNanos how long to send requests for before measuring them
+   * @param durationNanos how long to measure requests for, after the warmup
+   * @param maxInFlight the most requests to have outstanding at once
+   */
+  public LoadDriver(double rate, long warmupNanos, long durationNanos, int maxInFlight) {
+    if (!(rate > 0) || warmupNanos < 0 || durationNanos <= 0 || maxInFlight < 1) {
+      throw new IllegalArgumentException("The rate, duration, and requests in flight must be positive");
+    }
+    this.rate = rate;
+    this.warmupNanos = warmupNanos;
+    this.durationNanos = durationNanos;
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Run the load test, and wait for every request to finish.
+   *
+   * @param workload the requests to make
+   * @param seed the seed for choosing them, so the same requests are made
+   *             every time
+   * @param sender sends each request
+   * @return what happened to the requests made after the warmup
+   */
+  public LoadResults run(Workload workload, long seed, Sender sender) {
+    LoadResults results = new LoadResults(workload.kinds(), rate, durationNanos);
+    SplittableRandom random = new SplittableRandom(seed);
+    AtomicInteger inFlight = new AtomicInteger();
+    long start = System.nanoTime();
+    long measureFrom = start + warmupNanos;
+    long end = measureFrom + durationNanos;
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (long i = 0;; i++) {
+        long due = start + (long) (i * NANOS_PER_SECOND / rate);
+        if (due - end >= 0) {
+          break;
+        }
+        for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+          LockSupport.parkNanos(wait);
+        }
+        Workload.Request request = workload.next(random);
+        boolean measured = due - measureFrom >= 0;
+        if (inFlight.get() >= maxInFlight) {
+          if (measured) {
+            results.dropped(request.kind());
+          }
+          continue;
+        }
+        inFlight.incrementAndGet();
+        executor.execute(() -> {
+          int status;
+          try {
+            status = sender.send(request.path());
+          } catch (Exception e) {
+            status = 0;
+          }
+          long finished = System.nanoTime();
+          inFlight.decrementAndGet();
+          if (measured) {
+            results.record(request.kind(), status, finished - due, finished - end < 0);
+          }
+        });
+      }
+    }
+    return results;
+  }
+}
@@ -0,0 +1,234 @@
+package umm3601.load;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import umm3601.LatencyHistogram;
+
+/**
+ * What happened to the requests a load test made (see `LoadDriver`),
+ * overall and for each kind of request: how many were sent, how long they
+ * took, and how many failed.
+ * <p>
+ * Only requests that were due to be sent during the measured part of the
+ * test (after the warmup) count. Each one's latency is measured from when
+ * it was <em>due</em> to be sent, not when it actually was, so if the
+ * load test itself falls behind (or runs out of room for requests in
+ * flight), that still shows up as latency rather than being quietly left
+ * out. A request fails if it gets a 4xx or 5xx response, no response at
+ * all (e.g., a timeout), or is never sent because too many are already in
+ * flight ("dropped").
+ */
+public final class LoadResults {
+
+  // The quantiles we report, and their labels.
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  private static final String[] QUANTILE_LABELS = {"p50", "p90", "p99", "p99.9"};
+
+  // The label for all the kinds of request put together.
+  private static final String ALL = "all";
+  private static final int FIRST_ERROR_STATUS = 400;
+  private static final double NANOS_PER_SECOND = 1e9;
+  private static final double NANOS_PER_MILLI = 1e6;
+  private static final double PERCENT = 100;
+
+  // The results for one kind of request (or all of them).
+  private static final class KindResults {
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+  }
+
+  private final double targetRate;
+  private final long windowNanos;
+  // The results for each kind of request, and then all of them. The map is
+  // filled in up front, and only read after that.
+  private final Map<String, KindResults> kinds = new LinkedHashMap<>();
+  private final KindResults all = new KindResults();
+  // How many responses came back during the measured part of the test.
+  private final AtomicLong completedInWindow = new AtomicLong();
+  // How many responses there were with each status (or 0 for none at all).
+  private final Map<Integer, AtomicLong> statuses = new ConcurrentHashMap<>();
+
+  /**
+   * Start with no results.
+   *
+   * @param kinds the kinds of request that will be made
+   * @param targetRate the number of requests per second the test makes
+   * @param windowNanos how long the measured part of the test lasts
+   */
+  public LoadResults(List<String> kinds, double targetRate, long windowNanos) {
+    for (String kind : kinds) {
+      this.kinds.put(kind, new KindResults());
+    }
+    this.kinds.put(ALL, all);
+    this.targetRate = targetRate;
+    this.windowNanos = windowNanos;
+  }
+
+  /**
+   * Record a request that got a response (or failed).
+   *
+   * @param kind which kind of request it was
+   * @param status its status, or 0 if there wasn't a response
+   * @param nanos how long after it was due to be sent the response came
+   * @param inWindow true if the response came during the measured part of
+   *                 the test
+   */
+  public void record(String kind, int status, long nanos, boolean inWindow) {
+    boolean failed = status == 0 || status >= FIRST_ERROR_STATUS;
+    for (KindResults results : List.of(kinds.get(kind), all)) {
+      results.sent.incrementAndGet();
+      results.latency.record(nanos);
+      if (failed) {
+        results.errors.incrementAndGet();
+      }
+    }
+    statuses.computeIfAbsent(status, newStatus -> new AtomicLong()).incrementAndGet();
+    if (inWindow) {
+      completedInWindow.incrementAndGet();
+    }
+  }
+
+  /**
+   * Record a request that was never sent, because too many were already in
+   * flight.
+   *
+   * @param kind which kind of request it was
+   */
+  public void dropped(String kind) {
+    for (KindResults results : List.of(kinds.get(kind), all)) {
+      results.dropped.incrementAndGet();
+      results.errors.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return the number of requests sent (or that failed to send)
+   */
+  public long sent() {
+    return all.sent.get();
+  }
+
+  /**
+   * @return the number of requests that failed, including dropped ones
+   */
+  public long errors() {
+    return all.errors.get();
+  }
+
+  /**
+   * @return the number of requests that were never sent
+   */
+  public long dropped() {
+    return all.dropped.get();
+  }
+
+  /**
+   * @param kind a kind of request
+   * @return the latencies of those requests, in nanoseconds
+   */
+  public LatencyHistogram latency(String kind) {
+    return kinds.get(kind).latency;
+  }
+
+  /**
+   * @return the latencies of all the requests, in nanoseconds
+   */
+  public LatencyHistogram latency() {
+    return all.latency;
+  }
+
+  /**
+   * @return the number of responses (of any status) per second during the
+   *         measured part of the test
+   */
+  public double achievedRate() {
+    return completedInWindow.get() * NANOS_PER_SECOND / windowNanos;
+  }
+
+  /**
+   * @return the fraction of requests, including dropped ones, that failed
+   */
+  public double errorRate() {
+    long total = all.sent.get() + all.dropped.get();
+    return total == 0 ? 0 : (double) all.errors.get() / total;
+  }
+
+  /**
+   * @return how many responses there were with each status, in order (0
+   *         for requests that got no response at all)
+   */
+  public Map<Integer, Long> statuses() {
+    Map<Integer, Long> counts = new TreeMap<>();
+    statuses.forEach((status, count) -> counts.put(status, count.get()));
+    return counts;
+  }
+
+  /**
+   * Put the results in a map, ready to save as JSON: the target and
+   * achieved rates, the statuses, and for each kind of request (and
+   * `all`), how many were sent, failed, and dropped, and their latency
+   * quantiles and maximum in milliseconds.
+   *
+   * @return the results
+   */
+  public Map<String, Object> toMap() {
+    Map<String, Object> results = new LinkedHashMap<>();
+    results.put("targetRate", targetRate);
+    results.put("achievedRate", achievedRate());
+    results.put("seconds", windowNanos / NANOS_PER_SECOND);
+    results.put("errorRate", errorRate());
+    results.put("statuses", statuses());
+    Map<String, Object> byKind = new LinkedHashMap<>();
+    for (Map.Entry<String, KindResults> kind : kinds.entrySet()) {
+      KindResults kindResults = kind.getValue();
+      Map<String, Object> summary = new LinkedHashMap<>();
+      summary.put("sent", kindResults.sent.get());
+      summary.put("errors", kindResults.errors.get());
+      summary.put("dropped", kindResults.dropped.get());
+      Map<String, Double> millis = new LinkedHashMap<>();
+      for (int i = 0; i < QUANTILES.length; i++) {
+        millis.put(QUANTILE_LABELS[i], kindResults.latency.valueAtQuantile(QUANTILES[i]) / NANOS_PER_MILLI);
+      }
+      millis.put("max", kindResults.latency.max() / NANOS_PER_MILLI);
+      summary.put("latencyMillis", millis);
+      byKind.put(kind.getKey(), summary);
+    }
+    results.put("kinds", byKind);
+    return results;
+  }
+
+  /**
+   * Describe the results for a person: a line for the rates, and a table
+   * with a row for each kind of request.
+   *
+   * @return the description
+   */
+  public String report() {
+    StringBuilder out = new StringBuilder();
+    out.append(String.format("Target %.1f requests/s, achieved %.1f responses/s over %.1f s; %.3f%% failed%n",
+        targetRate, achievedRate(), windowNanos / NANOS_PER_SECOND, errorRate() * PERCENT));
+    out.append(String.format("Statuses (0 = no response): %s%n", statuses()));
+    out.append(String.format("%-8s %9s %7s %7s", "kind", "sent", "errors", "dropped"));
+    for (String label : QUANTILE_LABELS) {
+      out.append(String.format(" %9s", label));
+    }
+    out.append(String.format(" %9s  (latencies in ms)%n", "max"));
+    for (Map.Entry<String, KindResults> kind : kinds.entrySet()) {
+      KindResults kindResults = kind.getValue();
+      out.append(String.format("%-8s %9d %7d %7d", kind.getKey(), kindResults.sent.get(), kindResults.errors.get(),
+          kindResults.dropped.get()));
+      for (double quantile : QUANTILES) {
+        out.append(String.format(" %9.3f", kindResults.latency.valueAtQuantile(quantile) / NANOS_PER_MILLI));
+      }
+      out.append(String.format(" %9.3f%n", kindResults.latency.max() / NANOS_PER_MILLI));
+    }
+    return out.toString();
+  }
+}
@@ -0,0 +1,274 @@
+package umm3601.load;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import umm3601.Controller;
+import umm3601.DatasetGenerator;
+import umm3601.RequestThreads;
+import umm3601.Server;
+import umm3601.todos.TodoController;
+import umm3601.user.UserController;
+
+/**
+ * Load tests the whole server, end to end over HTTP, on one machine, so we
+ * can see what a change does to throughput and latency under a realistic
+ * mix of requests (see `Workload`) at a fixed rate (see `LoadDriver`).
+ * <p>
+ * Run it from the command line (or with `./gradlew loadTest`, see
+ * `build.gradle`):
+ * <pre>
+ *   LoadTest [--option=value ...]
+ * </pre>
+ * By default it makes up a dataset (with `DatasetGenerator`), starts a
+ * `Server` for it in this JVM on a free port, runs the test, prints the
+ * results, and stops the server. With `--url` it tests a server that's
+ * already running instead, which should have been loaded with a dataset
+ * made with the same options (so the queries find things). The options
+ * are listed in the usage message (which any bad option prints, e.g.,
+ * `--help`); any it doesn't know are passed on to `DatasetGenerator`.
+ * <p>
+ * Running the server in the same JVM as the load is simplest, but they
+ * compete for the CPU: for the most accurate numbers, run the server
+ * separately (perhaps pinned to other cores) and use `--url`.
+ */
+public final class LoadTest {
+
+  private static final int DEFAULT_TODOS = 10_000;
+  private static final int DEFAULT_USERS = 1_000;
+  private static final double DEFAULT_RATE = 500;
+  private static final double DEFAULT_SECONDS = 10;
+  private static final double DEFAULT_WARMUP_SECONDS = 2;
+  private static final int DEFAULT_MAX_IN_FLIGHT = 5_000;
+  private static final double DEFAULT_TIMEOUT_SECONDS = 10;
+  private static final long DEFAULT_SEED = 3601;
+  private static final double NANOS_PER_SECOND = 1e9;
+  private static final int EXIT_USAGE = 2;
+  // Our own options; the rest are for `DatasetGenerator`.
+  private static final Set<String> OPTIONS = Set.of("url", "todos", "users", "threads", "rate", "seconds",
+      "warmup", "max-in-flight", "timeout", "mix", "report", "seed");
+  private static final String USAGE = String.join("\n",
+      "Usage: LoadTest [--option=value ...]",
+      "  --url=U            test the server at U (e.g., http://localhost:4567) instead of one in this JVM",
+      "  --todos=N          how many todos there are (" + DEFAULT_TODOS + ")",
+      "  --users=N          how many users there are (" + DEFAULT_USERS + ")",
+      "  --threads=T        platform or virtual: the threads the server in this JVM uses (platform)",
+      "  --rate=R           requests per second (" + DEFAULT_RATE + ")",
+      "  --seconds=S        how long to measure for (" + DEFAULT_SECONDS + ")",
+      "  --warmup=S         how long to send requests for before measuring (" + DEFAULT_WARMUP_SECONDS + ")",
+      "  --max-in-flight=N  the most requests outstanding before they're dropped (" + DEFAULT_MAX_IN_FLIGHT + ")",
+      "  --timeout=S        how long to wait for a response (" + DEFAULT_TIMEOUT_SECONDS + ")",
+      "  --mix=M            the kinds of request and their weights (" + Workload.DEFAULT_MIX + ")",
+      "  --report=FILE      also save the results as JSON",
+      "  --seed=N           the seed for the dataset and the requests (" + DEFAULT_SEED + ")",
+      "Any other options (e.g., --owners=500 --skew=1) are for DatasetGenerator.");
+
+  // The options, which `parse()` sets.
+  private URI url;
+  private long todos = DEFAULT_TODOS;
+  private long users = DEFAULT_USERS;
+  private RequestThreads threads = RequestThreads.DEFAULT;
+  private double rate = DEFAULT_RATE;
+  private double seconds = DEFAULT_SECONDS;
+  private double warmup = DEFAULT_WARMUP_SECONDS;
+  private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+  private double timeout = DEFAULT_TIMEOUT_SECONDS;
+  private String mix = Workload.DEFAULT_MIX;
+  private Path report;
+  private long seed = DEFAULT_SEED;
+  // What `parse()` works out from the options.
+  private DatasetGenerator data;
+  private Workload workload;
+  private LoadDriver driver;
+
+  private LoadTest() {
+  }
+
+  /**
+   * Read the load test's options, each of the form `--name=value` (see the
+   * usage message).
+   *
+   * @param options the options
+   * @return a load test with those options
+   * @throws IllegalArgumentException if an option isn't valid
+   */
+  public static LoadTest parse(List<String> options) {
+    LoadTest test = new LoadTest();
+    List<String> generatorOptions = new ArrayList<>();
+    for (String option : options) {
+      int equals = option.indexOf('=');
+      if (!option.startsWith("--") || equals < 0) {
+        throw new IllegalArgumentException("Option '" + option + "' should look like --name=value");
+      }
+      String name = option.substring(2, equals);
+      String value = option.substring(equals + 1);
+      if (!OPTIONS.contains(name)) {
+        generatorOptions.add(option);
+        continue;
+      }
+      try {
+        test.set(name, value);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Option '" + name + "' can't be '" + value + "'", e);
+      }
+    }
+    generatorOptions.add("--seed=" + test.seed);
+    test.data = DatasetGenerator.parse(generatorOptions);
+    if (!test.data.format().equals(DatasetGenerator.JSON)) {
+      throw new IllegalArgumentException("The server can only load " + DatasetGenerator.JSON + " datasets");
+    }
+    test.workload = Workload.parse(test.mix, test.data, test.todos, test.users);
+    test.driver = new LoadDriver(test.rate, (long) (test.warmup * NANOS_PER_SECOND),
+        (long) (test.seconds * NANOS_PER_SECOND), test.maxInFlight);
+    if (!(test.timeout > 0)) {
+      throw new IllegalArgumentException("The timeout must be positive, not " + test.timeout);
+    }
+    return test;
+  }
+
+  private void set(String name, String value) {
+    if (name.equals("url")) {
+      url = URI.create(value);
+    } else if (name.equals("todos")) {
+      todos = Long.parseLong(value);
+    } else if (name.equals("users")) {
+      users = Long.parseLong(value);
+    } else if (name.equals("threads")) {
+      threads = RequestThreads.parse(value, null);
+    } else if (name.equals("rate")) {
+      rate = Double.parseDouble(value);
+    } else if (name.equals("seconds")) {
+      seconds = Double.parseDouble(value);
+    } else if (name.equals("warmup")) {
+      warmup = Double.parseDouble(value);
+    } else if (name.equals("max-in-flight")) {
+      maxInFlight = Integer.parseInt(value);
+    } else if (name.equals("timeout")) {
+      timeout = Double.parseDouble(value);
+    } else if (name.equals("mix")) {
+      mix = value;
+    } else if (name.equals("report")) {
+      report = Path.of(value);
+    } else {
+      seed = Long.parseLong(value);
+    }
+  }
+
+  /**
+   * Run the load test: against the server at `--url` if there is one, or
+   * else against a new server in this JVM, for a new dataset. The results
+   * are saved to the `--report` file, if there is one.
+   *
+   * @return the results
+   * @throws IOException if the dataset can't be written or loaded, or the
+   *                     report can't be saved
+   */
+  public LoadResults run() throws IOException {
+    LoadResults results;
+    if (url != null) {
+      results = run(url);
+    } else {
+      Path todoFile = Files.createTempFile("load-todos", ".json");
+      Path userFile = Files.createTempFile("load-users", ".json");
+      try {
+        try (OutputStream out = Files.newOutputStream(todoFile)) {
+          data.writeTodos(out, todos);
+        }
+        try (OutputStream out = Files.newOutputStream(userFile)) {
+          data.writeUsers(out, users);
+        }
+        results = run(new Controller[] {
+          UserController.buildUserController(userFile.toString()),
+          TodoController.buildTodoController(todoFile.toString())
+        }, threads);
+      } finally {
+        Files.deleteIfExists(todoFile);
+        Files.deleteIfExists(userFile);
+      }
+    }
+    if (report != null) {
+      new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(report.toFile(), results.toMap());
+    }
+    return results;
+  }
+
+  /**
+   * Start a `Server` with the given controllers in this JVM, on a free
+   * port, run the load test against it, and then stop it.
+   *
+   * @param controllers the server's controllers
+   * @param serverThreads the threads the server handles requests on
+   * @return the results
+   */
+  public LoadResults run(Controller[] controllers, RequestThreads serverThreads) {
+    Server server = new Server(controllers, serverThreads);
+    int port = server.start(0);
+    try {
+      return run(URI.create("http://localhost:" + port));
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * Run the load test against a server that's already running.
+   *
+   * @param server the server's URL, e.g., `http://localhost:4567`
+   * @return the results
+   */
+  public LoadResults run(URI server) {
+    Duration requestTimeout = Duration.ofNanos((long) (timeout * NANOS_PER_SECOND));
+    try (HttpClient client = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(requestTimeout)
+        .build()) {
+      return driver.run(workload, seed, path -> {
+        HttpRequest request = HttpRequest.newBuilder(server.resolve(path))
+            .timeout(requestTimeout)
+            // Browsers always ask for compressed responses, so we do too.
+            .header("Accept-Encoding", "gzip")
+            .GET()
+            .build();
+        return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+      });
+    }
+  }
+
+  /**
+   * Run a load test, as the command line asks (see the usage message), and
+   * print the results.
+   *
+   * @param args the options
+   * @throws IOException if the dataset can't be written or loaded, or the
+   *                     report can't be saved
+   */
+  public static void main(String[] args) throws IOException {
+    LoadTest test;
+    try {
+      test = parse(List.of(args));
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      System.exit(EXIT_USAGE);
+      return;
+    }
+    long startTime = System.nanoTime();
+    LoadResults results = test.run();
+    System.out.print(results.report());
+    System.out.printf("(took %d s in all)%n", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startTime));
+  }
+}
@@ -0,0 +1,198 @@
+package umm3601.load;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import umm3601.DatasetGenerator;
+
+/**
+ * The mix of requests a load test makes: which kinds of request, and how
+ * often each comes up. The queries are for the same owners, categories,
+ * companies, words, and ids as a dataset made by a `DatasetGenerator`
+ * (with the same options), so they find things the way real ones would.
+ * <p>
+ * The kinds of request are:
+ * <ul>
+ * <li>`filter`: an owner's todos, perhaps just those in a category and/or
+ * with a status (as someone looking at their own list would ask for)
+ * <li>`search`: todos whose body contains a word that's neither very
+ * common nor very rare
+ * <li>`sort`: todos sorted by one or two fields, cut off at a limit
+ * <li>`id`: one todo, by its id
+ * <li>`users`: users at a company and/or of an age
+ * </ul>
+ */
+public final class Workload {
+
+  /** The kinds of request, in the order they're described above. */
+  public static final List<String> KINDS = List.of("filter", "search", "sort", "id", "users");
+
+  /** The default mix: mostly filters and id lookups, like the client makes. */
+  public static final String DEFAULT_MIX = "filter:35,search:10,sort:10,id:30,users:15";
+
+  // `search` looks for one of the words from rank `MIN_WORD_RANK` to
+  // `MIN_WORD_RANK + WORD_RANKS - 1`: the most common ones would find a big
+  // chunk of the todos every time, and the rarest hardly any.
+  private static final int MIN_WORD_RANK = 100;
+  private static final int WORD_RANKS = 900;
+  // `sort` asks for between `MIN_LIMIT` and `MIN_LIMIT + LIMITS - 1` todos.
+  private static final int MIN_LIMIT = 10;
+  private static final int LIMITS = 91;
+  private static final List<String> ORDER_BY = List.of("owner", "category", "body", "status,owner");
+  private static final List<String> STATUSES = List.of("complete", "incomplete");
+  // Each filter a `filter` or `users` request might have is a bit, and
+  // each request has a random set of them (but always an owner, or at
+  // least one user filter).
+  private static final int CATEGORY_FILTER = 1;
+  private static final int STATUS_FILTER = 2;
+  private static final int ALL_TODO_FILTERS = CATEGORY_FILTER | STATUS_FILTER;
+  private static final int COMPANY_FILTER = 1;
+  private static final int AGE_FILTER = 2;
+  private static final int ALL_USER_FILTERS = COMPANY_FILTER | AGE_FILTER;
+
+  /**
+   * A request to make.
+   *
+   * @param kind which kind of request it is (one of `KINDS`)
+   * @param path its path and query string, e.g., `/api/todos?owner=Owner+3`
+   */
+  public record Request(String kind, String path) {
+  }
+
+  private final DatasetGenerator data;
+  private final long todos;
+  // The kinds in the mix, and each one's weight plus the weights of the
+  // kinds before it (so we can pick one with a single random number).
+  private final String[] kinds;
+  private final int[] cumulativeWeights;
+
+  private Workload(DatasetGenerator data, long todos, String[] kinds, int[] cumulativeWeights) {
+    this.data = data;
+    this.todos = todos;
+    this.kinds = kinds;
+    this.cumulativeWeights = cumulativeWeights;
+  }
+
+  /**
+   * Read a mix of requests, e.g., `filter:35,id:50,users:15`: each kind of
+   * request with its weight. Kinds that aren't mentioned aren't made.
+   *
+   * @param mix the mix
+   * @param data the generator the dataset was made with
+   * @param todos how many todos there are
+   * @param users how many users there are
+   * @return the workload
+   * @throws IllegalArgumentException if the mix isn't valid
+   */
+  public static Workload parse(String mix, DatasetGenerator data, long todos, long users) {
+    Map<String, Integer> weights = new LinkedHashMap<>();
+    for (String part : mix.split(",")) {
+      String[] kindAndWeight = part.trim().split(":");
+      if (kindAndWeight.length != 2 || !KINDS.contains(kindAndWeight[0])) {
+        throw new IllegalArgumentException("'" + part + "' in the mix should be one of " + KINDS
+            + " and a weight, like id:30");
+      }
+      int weight;
+      try {
+        weight = Integer.parseInt(kindAndWeight[1]);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("The weight in '" + part + "' isn't a number", e);
+      }
+      if (weight < 0) {
+        throw new IllegalArgumentException("The weight in '" + part + "' can't be negative");
+      }
+      weights.merge(kindAndWeight[0], weight, Integer::sum);
+    }
+
+    List<String> kinds = new ArrayList<>();
+    List<Integer> cumulative = new ArrayList<>();
+    int total = 0;
+    for (Map.Entry<String, Integer> weight : weights.entrySet()) {
+      if (weight.getValue() > 0) {
+        total += weight.getValue();
+        kinds.add(weight.getKey());
+        cumulative.add(total);
+      }
+    }
+    if (total == 0) {
+      throw new IllegalArgumentException("The mix '" + mix + "' doesn't make any requests");
+    }
+    if ((todos < 1 && !kinds.equals(List.of("users"))) || (users < 1 && kinds.contains("users"))) {
+      throw new IllegalArgumentException("The mix '" + mix + "' needs some todos and/or users to ask for");
+    }
+    return new Workload(data, todos, kinds.toArray(new String[0]),
+        cumulative.stream().mapToInt(Integer::intValue).toArray());
+  }
+
+  /**
+   * @return the kinds of request in the mix
+   */
+  public List<String> kinds() {
+    return List.of(kinds);
+  }
+
+  /**
+   * Make up the next request.
+   *
+   * @param random where to get random numbers
+   * @return the request
+   */
+  public Request next(SplittableRandom random) {
+    int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+    int k = 0;
+    while (pick >= cumulativeWeights[k]) {
+      k++;
+    }
+    String kind = kinds[k];
+    return new Request(kind, path(kind, random));
+  }
+
+  // The path for a request of the given kind.
+  private String path(String kind, SplittableRandom random) {
+    Map<String, String> query = new LinkedHashMap<>();
+    if (kind.equals("filter")) {
+      query.put("owner", data.owner(random.nextInt(data.owners())));
+      int filters = random.nextInt(ALL_TODO_FILTERS + 1);
+      if ((filters & CATEGORY_FILTER) != 0) {
+        query.put("category", data.category(random.nextInt(data.categories())));
+      }
+      if ((filters & STATUS_FILTER) != 0) {
+        query.put("status", STATUSES.get(random.nextInt(STATUSES.size())));
+      }
+      return "/api/todos" + queryString(query);
+    } else if (kind.equals("search")) {
+      query.put("contains", data.word(MIN_WORD_RANK + random.nextInt(WORD_RANKS)));
+      return "/api/todos" + queryString(query);
+    } else if (kind.equals("sort")) {
+      query.put("orderBy", ORDER_BY.get(random.nextInt(ORDER_BY.size())));
+      query.put("limit", String.valueOf(MIN_LIMIT + random.nextInt(LIMITS)));
+      return "/api/todos" + queryString(query);
+    } else if (kind.equals("id")) {
+      return "/api/todos/" + data.id(random.nextLong(todos));
+    } else {
+      // Users at a company, of an age, or both.
+      int filters = 1 + random.nextInt(ALL_USER_FILTERS);
+      if ((filters & COMPANY_FILTER) != 0) {
+        query.put("company", data.company(random.nextInt(data.companies())));
+      }
+      if ((filters & AGE_FILTER) != 0) {
+        query.put("age", String.valueOf(random.nextInt(data.minAge(), data.maxAge() + 1)));
+      }
+      return "/api/users" + queryString(query);
+    }
+  }
+
+  private static String queryString(Map<String, String> query) {
+    StringBuilder out = new StringBuilder();
+    for (Map.Entry<String, String> param : query.entrySet()) {
+      out.append(out.length() == 0 ? '?' : '&').append(param.getKey()).append('=')
+          .append(URLEncoder.encode(param.getValue(), StandardCharsets.UTF_8));
+    }
+    return out.toString();
+  }
+}
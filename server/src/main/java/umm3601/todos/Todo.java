@@ -1,5 +1,7 @@
 package umm3601.todos;
 
+import java.util.Objects;
+
 // There are two examples of suppressing CheckStyle
 // warnings in this class. If you create new classes
 // that mirror data in the database and that will be managed
@@ -26,4 +28,22 @@ public class Todo {
   public boolean status;
   public String body;
   public String category;
+
+  // `TodoDatabase` creates a fresh `Todo` every time one is requested, so
+  // two todos are equal if all their fields are, not just if they're the
+  // same object.
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof Todo)) {
+      return false;
+    }
+    Todo todo = (Todo) other;
+    return Objects.equals(_id, todo._id) && Objects.equals(owner, todo.owner) && status == todo.status
+        && Objects.equals(body, todo.body) && Objects.equals(category, todo.category);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(_id, owner, status, body, category);
+  }
 }
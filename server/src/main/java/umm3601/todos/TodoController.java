@@ -1,19 +1,36 @@
 package umm3601.todos;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import umm3601.BatchLookup;
 import umm3601.Controller;
+import umm3601.HttpCaching;
+import umm3601.JsonRecords;
+import umm3601.QueryCache;
+import umm3601.ResponseCompression;
 
 /**
  * Controller that manages requests for info about todo.
  */
 public class TodoController implements Controller {
 
+  // The query parameters that make a difference to the response of each
+  // route, for its `ETag` (see `HttpCaching`).
+  private static final Set<String> LIST_PARAMS = Set.of("owner", "status", "category", "contains", "orderBy",
+      "limit", "cursor", "stream", "explain");
+  private static final Set<String> STATS_PARAMS = Set.of("owner", "status", "category", "contains", "groupBy");
+
   private TodoDatabase todoDatabase;
+  private HttpCaching caching;
+  private ResponseCompression compression;
 
   /**
    * Construct a controller for todo.
@@ -25,7 +42,21 @@ public class TodoController implements Controller {
    * @param database the `Database` containing user data
    */
   public TodoController(TodoDatabase todoDatabase) {
+    this(todoDatabase, HttpCaching.DEFAULT, ResponseCompression.DEFAULT);
+  }
+
+  /**
+   * Construct a controller for todo, with its own `Cache-Control` headers
+   * and compression settings.
+   *
+   * @param todoDatabase the `Database` containing todo data
+   * @param caching the `Cache-Control` header for each route
+   * @param compression how to compress big responses
+   */
+  public TodoController(TodoDatabase todoDatabase, HttpCaching caching, ResponseCompression compression) {
     this.todoDatabase = todoDatabase;
+    this.caching = caching;
+    this.compression = compression;
   }
 
   /***
@@ -39,10 +70,68 @@ public class TodoController implements Controller {
    * @throws IOException
    */
   public static TodoController buildTodoController(String todoDataFile) throws IOException {
+    return buildTodoController(todoDataFile, null);
+  }
+
+  /***
+   * Create a database using the json file, or a binary snapshot file made
+   * from it (see `TodoDatabase`), and use it as data source for a new
+   * todoController.
+   *
+   * @param todoDataFile the JSON data file
+   * @param snapshotFile the snapshot file, or `null` to always load the
+   *                     JSON data file
+   * @throws IOException if the data can't be loaded
+   */
+  public static TodoController buildTodoController(String todoDataFile, String snapshotFile) throws IOException {
+    return buildTodoController(todoDataFile, snapshotFile, null, 0);
+  }
+
+  /***
+   * Create a database as above, replay and keep logging writes to a log
+   * file (see `TodoDatabase.openLog()`), and use it as data source for a
+   * new todoController.
+   *
+   * @param todoDataFile the JSON data file
+   * @param snapshotFile the snapshot file, or `null` to always load the
+   *                     JSON data file
+   * @param logFile the log file, or `null` to not save writes at all
+   * @param batchWindowMicros how long to wait for more writes before
+   *                          forcing a batch of them to disk
+   * @throws IOException if the data or the log can't be loaded
+   */
+  public static TodoController buildTodoController(String todoDataFile, String snapshotFile, String logFile,
+      long batchWindowMicros) throws IOException {
+    return buildTodoController(todoDataFile, snapshotFile, logFile, batchWindowMicros, HttpCaching.DEFAULT,
+        ResponseCompression.DEFAULT);
+  }
+
+  /***
+   * Create a database as above, and use it as data source for a new
+   * todoController that sends the given `Cache-Control` headers, and
+   * compresses big responses as given.
+   *
+   * @param todoDataFile the JSON data file
+   * @param snapshotFile the snapshot file, or `null` to always load the
+   *                     JSON data file
+   * @param logFile the log file, or `null` to not save writes at all
+   * @param batchWindowMicros how long to wait for more writes before
+   *                          forcing a batch of them to disk
+   * @param caching the `Cache-Control` header for each route
+   * @param compression how to compress big responses
+   * @throws IOException if the data or the log can't be loaded
+   */
+  public static TodoController buildTodoController(String todoDataFile, String snapshotFile, String logFile,
+      long batchWindowMicros, HttpCaching caching, ResponseCompression compression) throws IOException {
     TodoController todoController = null;
 
-    TodoDatabase todoDatabase = new TodoDatabase(todoDataFile);
-    todoController = new TodoController(todoDatabase);
+    TodoDatabase todoDatabase = new TodoDatabase(todoDataFile, snapshotFile);
+    if (logFile != null) {
+      todoDatabase.openLog(logFile, batchWindowMicros);
+    }
+    // Reload the todos whenever the data file changes.
+    todoDatabase.watchDataFile();
+    todoController = new TodoController(todoDatabase, caching, compression);
 
     return todoController;
   }
@@ -54,10 +143,15 @@ public class TodoController implements Controller {
    */
   public void getTodo(Context ctx) {
     String id = ctx.pathParam("id");
+    // Read the version before looking the todo up (see `HttpCaching`).
+    long version = todoDatabase.version();
     Todo user = todoDatabase.getTodo(id);
     if (user != null) {
-      ctx.json(user);
-      ctx.status(HttpStatus.OK);
+      // Only a todo that exists can be "not modified".
+      if (!caching.notModified(ctx, "/api/todos/{id}", version, id)) {
+        ctx.json(user);
+        ctx.status(HttpStatus.OK);
+      }
     } else {
       throw new NotFoundResponse("No todo with id " + id + " was found.");
     }
@@ -65,12 +159,193 @@ public class TodoController implements Controller {
 
   /**
    * Get a JSON response with a list of all the todo in the "database".
+   * <p>
+   * With `?stream=true` the todos are streamed as a JSON array instead, and
+   * with `Accept: application/x-ndjson` as newline-delimited JSON (see
+   * `JsonRecords.startStream()`), so that even a huge list doesn't need to
+   * fit in memory.
+   * <p>
+   * With a `cursor` parameter the todos come a page at a time instead,
+   * wrapped in an object along with the cursor for the next page (see
+   * `TodoSnapshot.pageJson()`). Pages are small, so they're never streamed.
+   * <p>
+   * If the client already has the response (its `If-None-Match` holds the
+   * `ETag` for this version of the todos and this query), we just say so,
+   * without running the query (see `HttpCaching`).
    *
    * @param ctx a Javalin HTTP context
+   * @throws IOException if a streamed response can't be written
    */
-  public void getTodos(Context ctx) {
-    Todo[] todo = todoDatabase.listTodos(ctx.queryParamMap());
+  public void getTodos(Context ctx) throws IOException {
+    if (caching.notModified(ctx, "/api/todos", todoDatabase.version(),
+        QueryCache.key(ctx.queryParamMap(), LIST_PARAMS))) {
+      return;
+    }
+    // With `?explain=true`, describe how the query would be run (and how
+    // many rows each step actually let through) instead of returning
+    // the matching todos.
+    if ("true".equals(ctx.queryParam("explain"))) {
+      ctx.json(todoDatabase.explainTodos(ctx.queryParamMap()));
+      return;
+    }
+    if (ctx.queryParamMap().containsKey("cursor")) {
+      ctx.contentType(JsonRecords.CONTENT_TYPE);
+      compression.send(ctx, todoDatabase.listTodosPage(ctx.queryParamMap()));
+      return;
+    }
+    JsonRecords.RecordWriter stream = JsonRecords.startStream(ctx, compression);
+    if (stream != null) {
+      todoDatabase.streamTodos(ctx.queryParamMap(), stream);
+      stream.finish();
+      return;
+    }
+    // The todos' JSON is already serialized, so we send those bytes
+    // rather than having `ctx.json()` serialize every todo again, gzipped
+    // if the client accepts that (see `ResponseCompression`).
+    ctx.contentType(JsonRecords.CONTENT_TYPE);
+    compression.send(ctx, todoDatabase.listTodosJson(ctx.queryParamMap()));
+  }
+
+  /**
+   * Get the todos with the ids in the request body, `{"ids":[...]}`, in one
+   * response (see `BatchLookup`), instead of one request for each todo.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if the response can't be written
+   */
+  public void getTodoBatch(Context ctx) throws IOException {
+    BatchLookup.send(ctx, compression, "todos", todoDatabase::streamTodosById);
+  }
+
+  /**
+   * Add a new todo from the JSON in the request body, which needs a
+   * non-empty `owner`, `body`, and `category` (and may have a `status`).
+   * Responds with the new todo's id.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void addNewTodo(Context ctx) {
+    Todo newTodo = readBody(ctx, Todo.class, "a todo");
+    if (newTodo == null) {
+      throw new BadRequestResponse("The request body must be a todo.");
+    }
+    requireText("owner", newTodo.owner);
+    requireText("body", newTodo.body);
+    requireText("category", newTodo.category);
+    String id = todoDatabase.addTodo(newTodo);
+    ctx.json(Map.of("id", id));
+    ctx.status(HttpStatus.CREATED);
+  }
+
+  /**
+   * Change some of the fields of the todo specified by the `id` parameter,
+   * using the fields in the JSON request body (`owner`, `status`, `body`,
+   * and/or `category`). Responds with the changed todo.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  @SuppressWarnings("unchecked")
+  public void updateTodo(Context ctx) {
+    String id = ctx.pathParam("id");
+    Map<String, Object> changes = readBody(ctx, Map.class, "an object of the fields to change");
+    if (changes == null) {
+      throw new BadRequestResponse("The request body must be an object of the fields to change.");
+    }
+    // Check everything before changing anything, so a bad request doesn't
+    // change half a todo.
+    for (Map.Entry<String, Object> change : changes.entrySet()) {
+      switch (change.getKey()) {
+        case "owner":
+        case "body":
+        case "category":
+          requireText(change.getKey(), change.getValue());
+          break;
+        case "status":
+          if (!(change.getValue() instanceof Boolean)) {
+            throw new BadRequestResponse("The todo's status must be true or false.");
+          }
+          break;
+        default:
+          throw new BadRequestResponse("Can't change the todo field '" + change.getKey() + "'.");
+      }
+    }
+    Todo todo = todoDatabase.updateTodo(id, changed -> {
+      changed.owner = (String) changes.getOrDefault("owner", changed.owner);
+      changed.status = (Boolean) changes.getOrDefault("status", changed.status);
+      changed.body = (String) changes.getOrDefault("body", changed.body);
+      changed.category = (String) changes.getOrDefault("category", changed.category);
+    });
+    if (todo == null) {
+      throw new NotFoundResponse("No todo with id " + id + " was found.");
+    }
     ctx.json(todo);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Delete the todo specified by the `id` parameter.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void deleteTodo(Context ctx) {
+    String id = ctx.pathParam("id");
+    if (!todoDatabase.deleteTodo(id)) {
+      throw new NotFoundResponse("No todo with id " + id + " was found.");
+    }
+    ctx.status(HttpStatus.OK);
+  }
+
+  // Parse the JSON request body, throwing a `BadRequestResponse` if it
+  // isn't JSON at all, or isn't the right shape (e.g., an array, or a todo
+  // with fields todos don't have). Jackson's exceptions would otherwise
+  // become a 500 with Jackson's own message in it.
+  private static <T> T readBody(Context ctx, Class<T> type, String expected) {
+    try {
+      return ctx.bodyAsClass(type);
+    } catch (Exception e) {
+      // Jackson's exceptions are checked, but Javalin doesn't declare them.
+      throw new BadRequestResponse("The request body must be " + expected + ".");
+    }
+  }
+
+  // Throw a `BadRequestResponse` unless the value of a field is a
+  // non-blank string.
+  private static void requireText(String field, Object value) {
+    if (!(value instanceof String) || ((String) value).isBlank()) {
+      throw new BadRequestResponse("The todo's " + field + " must be a non-empty string.");
+    }
+  }
+
+  /**
+   * Get counts of the todos, grouped by some of their fields, e.g.,
+   * `GET /api/todos/stats?groupBy=owner,category&status=incomplete`. This
+   * is much smaller (and quicker) than the list of todos it counts.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getTodoStats(Context ctx) {
+    if (caching.notModified(ctx, "/api/todos/stats", todoDatabase.version(),
+        QueryCache.key(ctx.queryParamMap(), STATS_PARAMS))) {
+      return;
+    }
+    ctx.json(todoDatabase.todoStats(ctx.queryParamMap()));
+  }
+
+  /**
+   * Describe the todos we're serving: which version of the data file
+   * (which goes up each time the file changes and is reloaded), how long
+   * that took to load, how many todos there are, and how well the cache of
+   * query results is working.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getDataset(Context ctx) {
+    Map<String, Object> dataset = new LinkedHashMap<>();
+    dataset.put("version", todoDatabase.datasetVersion());
+    dataset.put("lastReloadMillis", todoDatabase.lastReloadMillis());
+    dataset.put("size", todoDatabase.size());
+    dataset.put("cache", todoDatabase.cacheStats());
+    ctx.json(dataset);
   }
 
   /**
@@ -80,8 +355,20 @@ public class TodoController implements Controller {
    * - `GET /api/todo?age=NUMBER&company=STRING&name=STRING`
    * - List todo, filtered using query parameters
    * - `age`, `company`, and `name` are optional query parameters
+   * - `GET /api/todos/dataset`
+   * - Describe the version of the data file being served
+   * - `GET /api/todos/stats?groupBy=owner,category&status=incomplete`
+   * - Count the todos, grouped by some of their fields
    * - `GET /api/todo/:id`
    * - Get the specified user
+   * - `POST /api/todos`
+   * - Add a new todo
+   * - `POST /api/todos/_batch`
+   * - Get the todos with the given ids, e.g., `{"ids":["58895985..."]}`
+   * - `PATCH /api/todos/:id`
+   * - Change some fields of the specified todo
+   * - `DELETE /api/todos/:id`
+   * - Delete the specified todo
    *
    * GROUPS SHOULD CREATE THEIR OWN CONTROLLER FOR TODOS THAT
    * IMPLEMENTS THE `Controller` INTERFACE.
@@ -94,10 +381,25 @@ public class TodoController implements Controller {
    */
   @Override
   public void addRoutes(Javalin server) {
+    // Describe the dataset, and count the todos. These have to come before
+    // `{id}`, or "dataset" and "stats" would be taken as ids.
+    server.get("/api/todos/dataset", this::getDataset);
+    server.get("/api/todos/stats", this::getTodoStats);
+
     // Get specific user
     server.get("/api/todos/{id}", this::getTodo);
 
     // List todo, filtered using query parameters
     server.get("/api/todos", this::getTodos);
+
+    // Add a new todo
+    server.post("/api/todos", this::addNewTodo);
+
+    // Get lots of todos by id at once
+    server.post("/api/todos/_batch", this::getTodoBatch);
+
+    // Change or delete a specific todo
+    server.patch("/api/todos/{id}", this::updateTodo);
+    server.delete("/api/todos/{id}", this::deleteTodo);
   }
 }
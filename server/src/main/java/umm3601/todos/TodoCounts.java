@@ -0,0 +1,197 @@
+package umm3601.todos;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * How many todos have each combination of owner, category, and status,
+ * kept alongside a snapshot so that grouped counts (see
+ * `TodoSnapshot.stats()`) never have to look at the todos themselves.
+ * <p>
+ * Each combination that any todo has ever had is a "cell", numbered in the
+ * order they were first seen. The cells found when a snapshot's base is
+ * built are numbered in sorted order; any new ones (from writes) go on the
+ * end. Like the `TodoTail`, the list of cells is shared by every version
+ * of the counts over the same base, and each version only looks at the
+ * cells that existed when it was made.
+ * <p>
+ * The count for each cell is kept in fixed-size segments, like a
+ * `PersistentBitSet`: a write makes a new version of the counts that
+ * copies just the segment holding the cell it changed, and shares the
+ * rest. So a write costs about the same no matter how many todos there
+ * are, and readers of older versions never see the change.
+ * <p>
+ * Only one thread may make new versions at a time, and always from the
+ * latest version; `TodoDatabase` makes sure of that.
+ */
+final class TodoCounts {
+
+  // Each segment holds the counts for 256 cells.
+  private static final int SEGMENT_SHIFT = 8;
+  private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+  private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+  /**
+   * A combination of owner, category, and status.
+   *
+   * @param owner the owner (may be `null`)
+   * @param category the category (may be `null`)
+   * @param status the status
+   */
+  record Cell(String owner, String category, boolean status) {
+  }
+
+  // Every cell, shared by all the versions of the counts over the same
+  // base. Only ever appended to.
+  private static final class Cells {
+    // Replaced (never modified) when it fills up.
+    private volatile Cell[] cells;
+    private final Map<Cell, Integer> numbers = new ConcurrentHashMap<>();
+
+    Cells(Cell[] cells, int count) {
+      this.cells = cells;
+      for (int number = 0; number < count; number++) {
+        numbers.put(cells[number], number);
+      }
+    }
+
+    // The number of a cell, adding it (as number `count`) if it's new.
+    int numberOf(Cell cell, int count) {
+      Integer number = numbers.get(cell);
+      if (number != null) {
+        return number;
+      }
+      if (count == cells.length) {
+        cells = Arrays.copyOf(cells, Math.max(count * 2, 1));
+      }
+      cells[count] = cell;
+      numbers.put(cell, count);
+      return count;
+    }
+  }
+
+  private final Cells cells;
+  private final int cellCount;
+  // `null` segments are all zeros.
+  private final int[][] segments;
+  private final int total;
+
+  private TodoCounts(Cells cells, int cellCount, int[][] segments, int total) {
+    this.cells = cells;
+    this.cellCount = cellCount;
+    this.segments = segments;
+    this.total = total;
+  }
+
+  /**
+   * Count the todos in a store, by cell.
+   *
+   * @param store the todos
+   * @return the counts
+   */
+  static TodoCounts of(TodoStore store) {
+    // Number every todo's cell by its codes, which sort the same way as
+    // the values, and then count how many todos have each number.
+    int size = store.size();
+    long categoryCount = store.categories().size();
+    long cube = store.owners().size() * categoryCount * 2;
+    long[] keys;
+    int[] keyCounts;
+    if (cube <= size) {
+      // Few enough possible cells to count them all in an array.
+      int[] all = new int[(int) cube];
+      for (int row = 0; row < size; row++) {
+        all[(int) cellKey(store, row, categoryCount)]++;
+      }
+      keys = new long[all.length];
+      keyCounts = new int[all.length];
+      int distinct = 0;
+      for (int key = 0; key < all.length; key++) {
+        if (all[key] > 0) {
+          keys[distinct] = key;
+          keyCounts[distinct++] = all[key];
+        }
+      }
+      keys = Arrays.copyOf(keys, distinct);
+    } else {
+      // Otherwise sort the numbers, so each cell's todos are together.
+      long[] sorted = new long[size];
+      for (int row = 0; row < size; row++) {
+        sorted[row] = cellKey(store, row, categoryCount);
+      }
+      Arrays.sort(sorted);
+      keys = new long[size];
+      keyCounts = new int[size];
+      int distinct = 0;
+      for (int row = 0; row < size; row++) {
+        if (row == 0 || sorted[row] != sorted[row - 1]) {
+          keys[distinct++] = sorted[row];
+        }
+        keyCounts[distinct - 1]++;
+      }
+      keys = Arrays.copyOf(keys, distinct);
+    }
+    Cell[] cells = new Cell[keys.length];
+    int[][] segments = new int[(keys.length + SEGMENT_MASK) >>> SEGMENT_SHIFT][SEGMENT_SIZE];
+    for (int number = 0; number < keys.length; number++) {
+      long codes = keys[number] / 2;
+      cells[number] = new Cell(store.owners().valueOf((int) (codes / categoryCount)),
+          store.categories().valueOf((int) (codes % categoryCount)), keys[number] % 2 == 1);
+      segments[number >>> SEGMENT_SHIFT][number & SEGMENT_MASK] = keyCounts[number];
+    }
+    return new TodoCounts(new Cells(cells, cells.length), cells.length, segments, size);
+  }
+
+  // The number of the cell a row of a store is in.
+  private static long cellKey(TodoStore store, int row, long categoryCount) {
+    return (store.ownerCode(row) * categoryCount + store.categoryCode(row)) * 2 + (store.status(row) ? 1 : 0);
+  }
+
+  /**
+   * Make a new version of the counts with one todo added or taken away.
+   *
+   * @param todo the todo
+   * @param change `1` to add the todo, or `-1` to take it away
+   * @return the new counts
+   */
+  TodoCounts with(Todo todo, int change) {
+    int number = cells.numberOf(new Cell(todo.owner, todo.category, todo.status), cellCount);
+    int segment = number >>> SEGMENT_SHIFT;
+    int[][] copy = Arrays.copyOf(segments, Math.max(segments.length, segment + 1));
+    copy[segment] = copy[segment] == null ? new int[SEGMENT_SIZE] : copy[segment].clone();
+    copy[segment][number & SEGMENT_MASK] += change;
+    return new TodoCounts(cells, Math.max(cellCount, number + 1), copy, total + change);
+  }
+
+  /**
+   * @return the number of cells, including any with no todos (any more)
+   */
+  int cellCount() {
+    return cellCount;
+  }
+
+  /**
+   * @param number a cell number, less than `cellCount()`
+   * @return the cell
+   */
+  Cell cell(int number) {
+    return cells.cells[number];
+  }
+
+  /**
+   * @param number a cell number, less than `cellCount()`
+   * @return how many todos are in the cell
+   */
+  int count(int number) {
+    int[] segment = segments[number >>> SEGMENT_SHIFT];
+    return segment == null ? 0 : segment[number & SEGMENT_MASK];
+  }
+
+  /**
+   * @return the number of todos, in all the cells together
+   */
+  int total() {
+    return total;
+  }
+}
@@ -0,0 +1,116 @@
+package umm3601.todos;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * Where a page of todos ended, so that the next page can carry on from
+ * there.
+ * <p>
+ * Paged queries (see `TodoSnapshot.pageJson()`) are ordered by their
+ * `orderBy` fields and then by `_id`, so every todo has its own place in
+ * the order. A cursor records that place for the last todo on a page: its
+ * value for each `orderBy` field, and its `_id`. The next page is then the
+ * todos that come after that place. Since the cursor holds values, rather
+ * than a row number or an offset, it still means the same thing after
+ * todos are added, changed, or deleted (even the one it came from), and
+ * finding where to carry on is a binary search instead of a walk past
+ * every earlier page.
+ * <p>
+ * Clients should treat cursors as opaque strings. They're the URL-safe
+ * base64 of a small JSON array: the `orderBy` parameter, the `_id`, and
+ * then the values (statuses as `"true"` or `"false"`).
+ */
+public final class TodoCursor {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final String orderBy;
+  private final String id;
+  private final String[] values;
+
+  /**
+   * Make a cursor.
+   *
+   * @param orderBy the `orderBy` parameter of the query (`""` if it has none)
+   * @param id the `_id` of the last todo on the page
+   * @param values that todo's value for each `orderBy` field, in order
+   */
+  public TodoCursor(String orderBy, String id, String[] values) {
+    this.orderBy = orderBy;
+    this.id = id;
+    this.values = values.clone();
+  }
+
+  /**
+   * @return the `orderBy` parameter of the query the cursor came from
+   */
+  public String orderBy() {
+    return orderBy;
+  }
+
+  /**
+   * @return the `_id` of the todo the cursor came from
+   */
+  public String id() {
+    return id;
+  }
+
+  /**
+   * @return the number of `orderBy` fields the cursor has values for
+   */
+  public int valueCount() {
+    return values.length;
+  }
+
+  /**
+   * @param i which `orderBy` field
+   * @return the value of that field for the todo the cursor came from
+   */
+  public String value(int i) {
+    return values[i];
+  }
+
+  /**
+   * Turn the cursor into the string we give to clients.
+   *
+   * @return the encoded cursor
+   */
+  public String encode() {
+    String[] fields = new String[values.length + 2];
+    fields[0] = orderBy;
+    fields[1] = id;
+    System.arraycopy(values, 0, fields, 2, values.length);
+    try {
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(MAPPER.writeValueAsBytes(fields));
+    } catch (IOException e) {
+      // An array of strings can always be serialized.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Turn a string from a client back into a cursor.
+   *
+   * @param cursor the encoded cursor
+   * @return the cursor
+   * @throws BadRequestResponse if the string isn't a cursor we made
+   */
+  public static TodoCursor decode(String cursor) {
+    String[] fields;
+    try {
+      fields = MAPPER.readValue(Base64.getUrlDecoder().decode(cursor), String[].class);
+    } catch (IOException | IllegalArgumentException e) {
+      fields = null;
+    }
+    if (fields == null || fields.length < 2 || fields[0] == null) {
+      throw new BadRequestResponse("Specified cursor '" + cursor + "' isn't a valid cursor");
+    }
+    return new TodoCursor(fields[0], fields[1], Arrays.copyOfRange(fields, 2, fields.length));
+  }
+}
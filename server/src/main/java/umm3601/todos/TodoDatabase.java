@@ -1,16 +1,40 @@
 package umm3601.todos;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.Arrays;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Comparator;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import io.javalin.http.BadRequestResponse;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import umm3601.DataFileWatcher;
+import umm3601.JsonDataFile;
+import umm3601.JsonRecords;
+import umm3601.QueryCache;
+import umm3601.WriteAheadLog;
+import umm3601.index.NGramIndex;
+import umm3601.index.SnapshotReader;
+import umm3601.index.SnapshotWriter;
 
 /**
  * A fake "database" of todo info
@@ -19,30 +43,564 @@ import io.javalin.http.BadRequestResponse;
  * to instead just read a bunch of todo data from a specified JSON file, and
  * then provide various database-like methods that allow the `TodoController` to
  * "query" the "database".
+ * <p>
+ * The todos themselves are kept in a column-oriented `TodoStore` rather than
+ * as an array of `Todo` objects; `Todo`s are only created for the todos
+ * that are actually returned. The store and all its indexes are wrapped up
+ * in an immutable `TodoSnapshot`, which is what queries actually run
+ * against. The database just holds on to the current snapshot, which
+ * requests can read without taking any locks. The first snapshot can also
+ * be saved to, and later reopened from, a binary snapshot file, which
+ * makes restarting the server much quicker.
+ * <p>
+ * Writes (adding, changing, and deleting todos) never change a snapshot.
+ * Instead each one makes a slightly different copy (see `TodoSnapshot`'s
+ * `with...()` methods) and publishes that as the new current snapshot, so
+ * requests that are already running just carry on with the one they
+ * started with. Writes are done one at a time, holding `writeLock`, but
+ * each one only takes a moment. New versions of todos are kept in a
+ * "tail" that queries check by brute force, so once the tail gets long
+ * enough a background thread rebuilds the snapshot (and its indexes)
+ * with everything in the base, and then re-applies any writes that
+ * happened in the meantime.
+ * <p>
+ * Writes can also be saved to a `WriteAheadLog` (see `openLog()`), so they
+ * survive a restart. Each write is appended to the log and applied while
+ * holding `writeLock`, without letting go of it in between (so the log has
+ * them in the same order they were made), but we wait for it to reach the
+ * disk after letting go of the lock, so that lots of writes can be forced
+ * to disk together. That means a write is visible to other requests a
+ * moment before it's durable: the client that made it doesn't get its
+ * response until it's on disk, but others could read it first. If the log
+ * then fails to reach the disk, the todos in memory have writes the log
+ * might not; we log an error, fail that write and every write after it
+ * (see `awaitLogged()`), and the server needs restarting to get back to
+ * what's on disk.
  */
 public class TodoDatabase {
 
-  private Todo[] allTodos;
+  private static final Logger LOGGER = LoggerFactory.getLogger(TodoDatabase.class);
+  private static final double BYTES_PER_MEGABYTE = 1024.0 * 1024.0;
+  private static final long NANOS_PER_MILLI = 1_000_000;
+  // What `SnapshotReader` checks a snapshot file holds.
+  private static final String SNAPSHOT_KIND = "todos";
+  // Compact once the tail holds at least this many todos, or a
+  // sixteenth as many as the base, whichever is more.
+  private static final int MIN_COMPACTION_TAIL = 1024;
+  private static final int COMPACTION_TAIL_DIVISOR = 16;
+  // If writes come in faster than compaction can keep up with, the tail
+  // (which every query has to scan) would just keep growing, so once it's
+  // this many times the compaction threshold writers wait for the running
+  // compaction to finish. Readers never wait.
+  private static final int MAX_TAIL_FACTOR = 4;
+  // The parts of a new id, which has the same layout as a MongoDB
+  // ObjectId: 4 bytes of timestamp, 5 random bytes, and a 3 byte counter.
+  private static final long MILLIS_PER_SECOND = 1000;
+  private static final long RANDOM_ID_MASK = 0xFF_FFFF_FFFFL;
+  private static final int ID_COUNTER_MASK = 0xFF_FFFF;
+  // The kinds of record in the log: a todo's new contents (whether it's
+  // new or changed), or the id of a deleted todo.
+  private static final byte PUT_RECORD = 'P';
+  private static final byte DELETE_RECORD = 'D';
+  // How long the data file's directory has to be left alone before we
+  // reload the file.
+  private static final long WATCH_QUIET_MILLIS = 200;
+  // The query parameters that make a difference to `listTodos()`.
+  private static final Set<String> QUERY_PARAMS = Set.of("owner", "status", "category", "contains", "orderBy",
+      "limit");
+  // How many results, with how many todos in all, to cache.
+  private static final int CACHED_QUERIES = 1024;
+  private static final long CACHED_TODOS = 1_000_000;
+
+  // The current snapshot. It's `volatile` so that a request on any thread
+  // always sees a completely built snapshot.
+  private volatile TodoSnapshot snapshot;
+
+  // Held while writing, so writes happen one at a time.
+  private final Object writeLock = new Object();
+  // While a compaction is running, the writes made since it started, so
+  // they can be re-applied to the compacted snapshot; otherwise `null`.
+  private List<UnaryOperator<TodoSnapshot>> writesDuringCompaction;
+  private boolean compactionQueued;
+  // Runs on the `compactor` thread after a compaction has started (without
+  // holding `writeLock`); see `setDuringCompaction()`.
+  private volatile Runnable duringCompaction = () -> { };
+  private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "todo-compactor");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final long randomIdPart = new Random().nextLong() & RANDOM_ID_MASK;
+  private int idCounter = new Random().nextInt();
+  // Where writes are logged, if anywhere. Only changed while holding
+  // `writeLock`.
+  private WriteAheadLog log;
+  private Path logFile;
+
+  // Where the todos were loaded from, so they can be reloaded.
+  private final String todoDataFile;
+  private final String snapshotFile;
+  // Counts how many times the data file has been loaded; only changed on
+  // the `compactor` thread.
+  private volatile long datasetVersion = 1;
+  private volatile long lastReloadMillis;
+  private DataFileWatcher watcher;
 
+  // The rows found by recent `listTodos()` queries, which are thrown away
+  // whenever the version of the snapshot changes.
+  private final QueryCache<int[]> queryCache = new QueryCache<>(CACHED_QUERIES, CACHED_TODOS,
+      rows -> rows.length + 1);
+
+  /**
+   * Load the todos from a data file.
+   *
+   * @param todoDataFile a filesystem path, or the path of a classpath
+   *                     resource, holding a JSON array of todos
+   * @throws IOException if the file can't be found or read
+   */
   public TodoDatabase(String todoDataFile) throws IOException {
-    // The `.getResourceAsStream` method searches for the given resource in
-    // the classpath, and returns `null` if it isn't found. We want to throw
-    // an IOException if the data file isn't found, so we need to check for
-    // `null` ourselves, and throw an IOException if necessary.
-    InputStream resourceAsStream = getClass().getResourceAsStream(todoDataFile);
-    if (resourceAsStream == null) {
-      throw new IOException("Could not find " + todoDataFile);
-    }
-    InputStreamReader reader = new InputStreamReader(resourceAsStream);
-    // A Jackson JSON mapper knows how to parse JSON into sensible 'Todo'
-    // objects.
-    ObjectMapper objectMapper = new ObjectMapper();
-    // Read our todo data file into an array of Todo objects.
-    allTodos = objectMapper.readValue(reader, Todo[].class);
+    this(todoDataFile, null);
+  }
+
+  /**
+   * Load the todos from a binary snapshot file, if there's one that was
+   * made from the current version of the data file. Otherwise load them
+   * from the data file, and save a snapshot file for next time.
+   * <p>
+   * Opening a snapshot file just maps it into memory, and skips building
+   * the slowest indexes, so it's far quicker than parsing the JSON again.
+   *
+   * @param todoDataFile a filesystem path, or the path of a classpath
+   *                     resource, holding a JSON array of todos
+   * @param snapshotFile the path of the snapshot file, or `null` to always
+   *                     load the data file
+   * @throws IOException if the data file can't be found or read
+   */
+  public TodoDatabase(String todoDataFile, String snapshotFile) throws IOException {
+    this.todoDataFile = todoDataFile;
+    this.snapshotFile = snapshotFile;
+    long startTime = System.nanoTime();
+    snapshot = load(todoDataFile, snapshotFile);
+    lastReloadMillis = (System.nanoTime() - startTime) / NANOS_PER_MILLI;
+  }
+
+  // Load the snapshot file, or else the data file (see the constructor).
+  private static TodoSnapshot load(String todoDataFile, String snapshotFile) throws IOException {
+    String source = describeSource(todoDataFile);
+    TodoSnapshot loaded = snapshotFile == null ? null : openSnapshot(Path.of(snapshotFile), source);
+    if (loaded == null) {
+      loaded = loadDataFile(todoDataFile);
+      if (snapshotFile != null) {
+        saveSnapshot(loaded, Path.of(snapshotFile), source);
+      }
+    }
+    TodoStore store = loaded.store();
+    LOGGER.info("Stored {} todos in about {} MB", store.size(),
+        String.format("%.1f", store.estimatedBytes() / BYTES_PER_MEGABYTE));
+    NGramIndex bodyIndex = loaded.bodyIndex();
+    LOGGER.info("Indexed {} todo bodies: kept {} of {} {}-grams, {} postings, about {} MB",
+        store.size(), bodyIndex.retainedGrams(), bodyIndex.totalGrams(), bodyIndex.gramLength(),
+        bodyIndex.retainedPostings(), String.format("%.1f", bodyIndex.estimatedBytes() / BYTES_PER_MEGABYTE));
+    return loaded;
+  }
+
+  private static TodoSnapshot loadDataFile(String todoDataFile) throws IOException {
+    long startTime = System.nanoTime();
+    JsonDataFile.resetPeakHeap();
+    // Parse the todos one at a time straight into the columns of the
+    // store, reusing a single `Todo` to hold each one's fields on the way.
+    TodoStore.Builder builder = new TodoStore.Builder();
+    Todo todo = new Todo();
+    JsonDataFile.readArray(todoDataFile, parser -> builder.add(readTodo(parser, todo)));
+    TodoStore store = builder.build();
+    LOGGER.info("Loaded {} todos from {} in {} ms, peak heap at most {} MB", store.size(), todoDataFile,
+        (System.nanoTime() - startTime) / NANOS_PER_MILLI,
+        String.format("%.1f", JsonDataFile.peakHeapBytes() / BYTES_PER_MEGABYTE));
+    return new TodoSnapshot(1, store);
+  }
+
+  // Describe where the todos came from, so we can tell whether a snapshot
+  // file is out of date. For a file in the filesystem that includes its
+  // size and modification time, so changing the file invalidates the
+  // snapshot; classpath resources only change when the server is rebuilt.
+  private static String describeSource(String todoDataFile) throws IOException {
+    Path path = Path.of(todoDataFile);
+    if (Files.isRegularFile(path)) {
+      return path.toAbsolutePath() + " " + Files.size(path) + " bytes, modified "
+          + Files.getLastModifiedTime(path).toMillis();
+    }
+    return "classpath " + todoDataFile;
+  }
+
+  // Open a snapshot file, or return `null` if there isn't a usable one.
+  private static TodoSnapshot openSnapshot(Path snapshotFile, String source) {
+    if (!Files.isRegularFile(snapshotFile)) {
+      return null;
+    }
+    long startTime = System.nanoTime();
+    try (SnapshotReader in = new SnapshotReader(snapshotFile, SNAPSHOT_KIND)) {
+      String snapshotSource = in.readString();
+      if (!source.equals(snapshotSource)) {
+        LOGGER.info("Ignoring snapshot {}, which was made from {}, not {}", snapshotFile, snapshotSource, source);
+        return null;
+      }
+      TodoSnapshot opened = TodoSnapshot.readFrom(in, 1);
+      LOGGER.info("Opened snapshot {} of {} todos in {} ms", snapshotFile, opened.size(),
+          (System.nanoTime() - startTime) / NANOS_PER_MILLI);
+      return opened;
+    } catch (IOException e) {
+      LOGGER.warn("Ignoring snapshot {}, which can't be read: {}", snapshotFile, e.getMessage());
+      return null;
+    }
+  }
+
+  // Save a snapshot file. It's written to a temporary file first and then
+  // moved into place, so a crash part way through can't leave a broken
+  // snapshot behind. If it can't be saved we just carry on without one.
+  private static void saveSnapshot(TodoSnapshot saved, Path snapshotFile, String source) {
+    long startTime = System.nanoTime();
+    Path partial = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".partial");
+    try {
+      try (SnapshotWriter out = new SnapshotWriter(partial, SNAPSHOT_KIND)) {
+        out.writeString(source);
+        saved.writeTo(out);
+      }
+      Files.move(partial, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      LOGGER.info("Saved snapshot {} of {} todos ({} MB) in {} ms", snapshotFile, saved.size(),
+          String.format("%.1f", Files.size(snapshotFile) / BYTES_PER_MEGABYTE),
+          (System.nanoTime() - startTime) / NANOS_PER_MILLI);
+    } catch (IOException e) {
+      LOGGER.warn("Couldn't save snapshot {}: {}", snapshotFile, e.getMessage());
+    }
+  }
+
+  /**
+   * Replay the writes saved in a log file on top of the todos we loaded,
+   * and save all future writes to the end of it.
+   * <p>
+   * The log only holds writes, so it has to be replayed on top of the
+   * same data file every time.
+   *
+   * @param logFileName the log file, which is created if it doesn't exist
+   * @param batchWindowMicros how long to wait for more writes before
+   *                          forcing a batch of them to disk (see
+   *                          `WriteAheadLog`)
+   * @return the number of writes replayed
+   * @throws IOException if the log can't be read or opened
+   */
+  public int openLog(String logFileName, long batchWindowMicros) throws IOException {
+    long startTime = System.nanoTime();
+    Path path = Path.of(logFileName);
+    int replayed;
+    synchronized (writeLock) {
+      if (log != null) {
+        throw new IllegalStateException("The todo log is already open");
+      }
+      replayed = WriteAheadLog.replay(path, record -> write(replayRecord(record)));
+      log = new WriteAheadLog(path, batchWindowMicros);
+      this.logFile = path;
+    }
+    LOGGER.info("Replayed {} writes from {} in {} ms", replayed, path,
+        (System.nanoTime() - startTime) / NANOS_PER_MILLI);
+    return replayed;
+  }
+
+  /**
+   * Close the log opened with `openLog()`, once everything written to it
+   * has reached the disk. Any later writes fail.
+   *
+   * @throws IOException if the log can't be written or closed
+   */
+  public void closeLog() throws IOException {
+    WriteAheadLog closing;
+    synchronized (writeLock) {
+      closing = log;
+    }
+    if (closing != null) {
+      closing.close();
+    }
+  }
+
+  /**
+   * Load the data file (or the snapshot file made from it) again, replay
+   * the log on top of it, and swap it in once it's ready. Requests carry on
+   * using the old todos until then, and writes are only held up while the
+   * last few writes in the log are replayed, right at the end. If there's
+   * no log, writes made since the server started are dropped, just as if
+   * it had been restarted.
+   * <p>
+   * If the file can't be loaded (e.g., it's only half written) we keep
+   * the todos we've got.
+   *
+   * @throws IOException if the file can't be found or read
+   */
+  public void reload() throws IOException {
+    try {
+      // Reloading on the compactor thread means it never overlaps with a
+      // compaction, which would otherwise swap in the old todos when it
+      // finished.
+      compactor.submit(() -> {
+        reloadNow();
+        return null;
+      }).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reloading " + todoDataFile);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IllegalStateException("Couldn't reload " + todoDataFile, e.getCause());
+    }
+  }
+
+  // Only ever runs on the `compactor` thread.
+  private void reloadNow() throws IOException {
+    long startTime = System.nanoTime();
+    TodoSnapshot[] reloaded = {load(todoDataFile, snapshotFile)};
+    Path replayedLog;
+    synchronized (writeLock) {
+      replayedLog = logFile;
+    }
+    // Replay most of the log without holding up any writes...
+    long logPosition = 0;
+    if (replayedLog != null) {
+      logPosition = WriteAheadLog.read(replayedLog, 0,
+          record -> reloaded[0] = replayRecord(record).apply(reloaded[0]));
+      if (reloaded[0].tailLength() > 0) {
+        reloaded[0] = reloaded[0].compacted(reloaded[0].version());
+      }
+    }
+    synchronized (writeLock) {
+      // ... and then the few that were written meanwhile.
+      if (log != null) {
+        log.sync();
+        // (The log can't have changed, just been opened, since it can
+        // only be opened once.)
+        WriteAheadLog.read(logFile, replayedLog != null ? logPosition : 0,
+            record -> reloaded[0] = replayRecord(record).apply(reloaded[0]));
+      }
+      snapshot = reloaded[0].withVersion(snapshot.version() + 1);
+      datasetVersion++;
+      lastReloadMillis = (System.nanoTime() - startTime) / NANOS_PER_MILLI;
+      compactIfNeeded();
+    }
+    LOGGER.info("Swapped in version {} of the todos, {} todos, after {} ms", datasetVersion, snapshot.size(),
+        lastReloadMillis);
+  }
+
+  /**
+   * Start reloading the data file whenever it changes. This does nothing if
+   * the data file is on the classpath, since that can't change.
+   *
+   * @return whether the file is being watched
+   * @throws IOException if the file can't be watched
+   */
+  public boolean watchDataFile() throws IOException {
+    synchronized (writeLock) {
+      if (watcher == null) {
+        watcher = DataFileWatcher.forDataFile(todoDataFile, WATCH_QUIET_MILLIS, () -> {
+          try {
+            reload();
+          } catch (IOException e) {
+            LOGGER.error("Couldn't reload {}; still using version {}", todoDataFile, datasetVersion, e);
+          }
+        });
+      }
+      return watcher != null;
+    }
+  }
+
+  /**
+   * Stop watching the data file.
+   *
+   * @throws IOException if the watcher can't be stopped
+   */
+  public void stopWatching() throws IOException {
+    synchronized (writeLock) {
+      if (watcher != null) {
+        watcher.close();
+        watcher = null;
+      }
+    }
+  }
+
+  /**
+   * @return the version of the data file we're using: 1 for the one loaded
+   *         when we started, and one more each time it's reloaded
+   */
+  public long datasetVersion() {
+    return datasetVersion;
+  }
+
+  /**
+   * @return how long the last (re)load of the data file took, in
+   *         milliseconds
+   */
+  public long lastReloadMillis() {
+    return lastReloadMillis;
+  }
+
+  // Turn a log record back into the change it describes.
+  private static UnaryOperator<TodoSnapshot> replayRecord(ByteBuffer record) throws IOException {
+    byte kind = record.get();
+    if (kind != PUT_RECORD && kind != DELETE_RECORD) {
+      throw new IOException("Unknown kind of todo log record: " + kind);
+    }
+    String id = readString(record);
+    if (kind == DELETE_RECORD) {
+      return current -> {
+        int row = current.findRow(id);
+        return row < 0 ? current : current.withDeleted(row);
+      };
+    }
+    Todo todo = new Todo();
+    todo._id = id;
+    todo.owner = readString(record);
+    todo.status = record.get() != 0;
+    todo.body = readString(record);
+    todo.category = readString(record);
+    return current -> {
+      int row = current.findRow(id);
+      return row < 0 ? current.withAdded(todo) : current.withReplaced(row, todo);
+    };
+  }
+
+  private static String readString(ByteBuffer record) {
+    int length = record.getInt();
+    if (length < 0) {
+      return null;
+    }
+    String value = new String(record.array(), record.position(), length, StandardCharsets.UTF_8);
+    record.position(record.position() + length);
+    return value;
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  // Append a record of a write to the log, if there is one, returning its
+  // sequence number (or 0 if there's no log). Only called while holding
+  // `writeLock`, before making the write.
+  private long logWrite(byte kind, String id, Todo todo) {
+    if (log == null) {
+      return 0;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(kind);
+      writeString(out, id);
+      if (todo != null) {
+        writeString(out, todo.owner);
+        out.writeBoolean(todo.status);
+        writeString(out, todo.body);
+        writeString(out, todo.category);
+      }
+      return log.append(bytes.toByteArray());
+    } catch (IOException e) {
+      throw new UncheckedIOException("Couldn't log a change to todo " + id, e);
+    }
+  }
+
+  // Wait for a logged write to reach the disk. Called after letting go of
+  // `writeLock`, so that other writes can join the same batch. By then the
+  // write has been published, so if it doesn't reach the disk, memory and
+  // the log no longer agree: the log refuses any more writes once it has
+  // failed (see `WriteAheadLog.append()`), so all we can do is say so
+  // loudly, and fail this write too.
+  private void awaitLogged(long sequence) {
+    WriteAheadLog current;
+    Path currentFile;
+    synchronized (writeLock) {
+      current = log;
+      currentFile = logFile;
+    }
+    if (sequence == 0 || current == null) {
+      return;
+    }
+    try {
+      current.awaitDurable(sequence);
+    } catch (InterruptedIOException e) {
+      // The write may still reach the disk; we just stopped waiting.
+      throw new UncheckedIOException("Interrupted while saving a change to the todos", e);
+    } catch (IOException e) {
+      LOGGER.error("Couldn't save a change to the todos in {}: the todos being served now include writes that may "
+          + "not be in the log, and no more writes will be accepted; restart the server to go back to what's on disk",
+          currentFile, e);
+      throw new UncheckedIOException("Couldn't save a change to the todos", e);
+    }
+  }
+
+  /**
+   * Read the fields of one todo from a data file.
+   *
+   * @param parser a parser at the todo's `START_OBJECT`, which is left at
+   *               its `END_OBJECT`
+   * @param todo where to put the fields
+   * @return `todo`
+   * @throws IOException if the todo can't be parsed
+   */
+  static Todo readTodo(JsonParser parser, Todo todo) throws IOException {
+    todo._id = null;
+    todo.owner = null;
+    todo.status = false;
+    todo.body = null;
+    todo.category = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.currentName();
+      parser.nextToken();
+      switch (field) {
+        case "_id":
+          todo._id = parser.getValueAsString();
+          break;
+        case "owner":
+          todo.owner = parser.getValueAsString();
+          break;
+        case "status":
+          todo.status = parser.getValueAsBoolean();
+          break;
+        case "body":
+          todo.body = parser.getValueAsString();
+          break;
+        case "category":
+          todo.category = parser.getValueAsString();
+          break;
+        default:
+          // Ignore fields we don't know about.
+          parser.skipChildren();
+          break;
+      }
+    }
+    return todo;
+  }
+
+  /**
+   * Get the current snapshot of the todos. Everything a request does should
+   * go through a single snapshot, so that it sees a consistent set of todos
+   * even if a newer snapshot is published while it's running.
+   *
+   * @return the current snapshot
+   */
+  public TodoSnapshot snapshot() {
+    return snapshot;
+  }
+
+  /**
+   * @return the version number of the current snapshot
+   */
+  public long version() {
+    return snapshot.version();
   }
 
   public int size() {
-    return allTodos.length;
+    return snapshot.size();
   }
 
   /**
@@ -53,7 +611,7 @@ public class TodoDatabase {
    * @return the todo with the given ID, or null if there is no todo with that ID
    */
   public Todo getTodo(String id) {
-    return Arrays.stream(allTodos).filter(x -> x._id.equals(id)).findFirst().orElse(null);
+    return snapshot.getTodo(id);
   }
 
   /**
@@ -63,77 +621,292 @@ public class TodoDatabase {
    * @return an array of all the todos matching the given criteria
    */
   public Todo[] listTodos(Map<String, List<String>> queryParams) {
-    Todo[] filteredTodos = allTodos;
-
-    // Filter status if defined
-    if (queryParams.containsKey("status")) {
-      String statusParam = queryParams.get("status").get(0);
-      filteredTodos = filterTodosByStatus(filteredTodos, statusParam);
-    }
-    // Filter body if defined
-    if (queryParams.containsKey("contains")) {
-      String targetBody = queryParams.get("contains").get(0);
-      filteredTodos = filterTodosByBody(filteredTodos, targetBody);
-    }
-    // Filter category if defined
-    if (queryParams.containsKey("category")) {
-      String targetCategory = queryParams.get("category").get(0);
-      filteredTodos = filterTodosByCategory(filteredTodos, targetCategory);
-    }
-    // Filter owner if defined
-    if (queryParams.containsKey("owner")) {
-      String targetOwner = queryParams.get("owner").get(0);
-      filteredTodos = filterTodosByOwner(filteredTodos, targetOwner);
-    }
-    // Filter limit if defined
-    if (queryParams.containsKey("limit")) {
-      String limitParam = queryParams.get("limit").get(0);
-      try {
-        int targetLimit = Integer.parseInt(limitParam);
-        filteredTodos = Arrays.copyOfRange(filteredTodos, 0, targetLimit);
-      } catch (NumberFormatException e) {
-        throw new BadRequestResponse("Specified limit '" + limitParam + "' can't be parsed to an integer");
-      }
-    }
-    // Sorting Array
+    TodoSnapshot current = snapshot;
+    return current.toTodos(findRows(current, queryParams));
+  }
+
+  /**
+   * Get a JSON array of all the todos satisfying the queries in the
+   * params, put together from each todo's pre-serialized JSON (see
+   * `TodoSnapshot.toJson()`). This is what `GET /api/todos` sends.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return a JSON array of all the todos matching the given criteria, as
+   *         UTF-8
+   */
+  public byte[] listTodosJson(Map<String, List<String>> queryParams) {
+    TodoSnapshot current = snapshot;
+    return current.toJson(findRows(current, queryParams));
+  }
+
+  /**
+   * Get one page of the todos satisfying the queries in the params, and a
+   * cursor for the next page (see `TodoSnapshot.pageJson()`). Pages don't
+   * go through the query cache: finding the next page is already cheap,
+   * and each cursor is only ever asked for once.
+   *
+   * @param queryParams map of key-value pairs for the query, including
+   *                    `cursor`
+   * @return a JSON object with the page of todos and the next cursor, as
+   *         UTF-8
+   */
+  public byte[] listTodosPage(Map<String, List<String>> queryParams) {
+    return snapshot.pageJson(queryParams);
+  }
+
+  /**
+   * Write all the todos satisfying the queries in the params to a stream,
+   * one at a time (see `TodoSnapshot.streamJson()`). The rows of ordered
+   * queries come from the cache if they can; unordered queries are
+   * written as they're found, without going through the cache, since
+   * they're the ones that can match any number of todos.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @param out where to write the todos
+   * @throws IOException if they can't be written
+   */
+  public void streamTodos(Map<String, List<String>> queryParams, JsonRecords.RecordWriter out) throws IOException {
+    TodoSnapshot current = snapshot;
     if (queryParams.containsKey("orderBy")) {
-      String targetOrder = queryParams.get("orderBy").get(0);
-      if (targetOrder.equals("body")) {
-        Arrays.sort(filteredTodos, Comparator.comparing(x -> x.body));
-      }
-      if (targetOrder.equals("owner")) {
-        Arrays.sort(filteredTodos, Comparator.comparing(x -> x.owner));
-      }
-      if (targetOrder.equals("status")) {
-        Arrays.sort(filteredTodos, Comparator.comparing(x -> x.status));
+      current.writeJson(findRows(current, queryParams), out);
+    } else {
+      current.streamJson(queryParams, out);
+    }
+  }
+
+  /**
+   * Write the todos with the given ids to a stream, in the same order,
+   * finding each one with the id index (see
+   * `TodoSnapshot.writeJsonById()`). Every id is looked up in the same
+   * snapshot, so a batch never sees half of a write.
+   *
+   * @param ids the ids to look for
+   * @param out where to write the todos
+   * @return the ids of todos that don't exist, in the same order
+   * @throws IOException if the todos can't be written
+   */
+  public List<String> streamTodosById(List<String> ids, JsonRecords.RecordWriter out) throws IOException {
+    return snapshot.writeJsonById(ids, out);
+  }
+
+  // The rows of a snapshot matching a query, from the cache if we can.
+  private int[] findRows(TodoSnapshot current, Map<String, List<String>> queryParams) {
+    return queryCache.get(current.version(), QueryCache.key(queryParams, QUERY_PARAMS),
+        () -> current.findRows(queryParams));
+  }
+
+  /**
+   * @return how full the cache of query results is, and how well it's
+   *         working (see `QueryCache.stats()`)
+   */
+  public Map<String, Object> cacheStats() {
+    return queryCache.stats();
+  }
+
+  /**
+   * Count the todos satisfying the filters in the params, grouped by the
+   * fields in the `groupBy` parameter (see `TodoSnapshot.stats()`). This is
+   * what `GET /api/todos/stats` returns.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the grouped counts
+   */
+  public Map<String, Object> todoStats(Map<String, List<String>> queryParams) {
+    return snapshot.stats(queryParams);
+  }
+
+  /**
+   * Run the query in the params, and describe how it was run instead of
+   * returning the todos. This is what `?explain=true` returns.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return a description of the query plan, with estimated and actual row
+   *         counts for each step
+   */
+  public Map<String, Object> explainTodos(Map<String, List<String>> queryParams) {
+    return snapshot.explainTodos(queryParams);
+  }
+
+  /**
+   * Add a new todo, giving it a new id.
+   *
+   * @param newTodo the todo to add; its `_id` is ignored
+   * @return the id of the new todo
+   */
+  public String addTodo(Todo newTodo) {
+    Todo todo = new Todo();
+    todo.owner = newTodo.owner;
+    todo.status = newTodo.status;
+    todo.body = newTodo.body;
+    todo.category = newTodo.category;
+    long sequence;
+    synchronized (writeLock) {
+      awaitRoomInTail();
+      todo._id = newId();
+      sequence = logWrite(PUT_RECORD, todo._id, todo);
+      write(current -> current.withAdded(todo));
+    }
+    awaitLogged(sequence);
+    return todo._id;
+  }
+
+  /**
+   * Change the todo with the given id.
+   *
+   * @param id the ID of the todo to change
+   * @param changes makes the changes to (a copy of) the todo; it shouldn't
+   *                change `_id`
+   * @return the changed todo, or null if there is no todo with that ID
+   */
+  public Todo updateTodo(String id, Consumer<Todo> changes) {
+    long sequence;
+    Todo changed;
+    synchronized (writeLock) {
+      awaitRoomInTail();
+      int row = snapshot.findRow(id);
+      if (row < 0) {
+        return null;
       }
-      if (targetOrder.equals("category")) {
-        Arrays.sort(filteredTodos, Comparator.comparing(x -> x.category));
+      Todo todo = snapshot.toTodo(row);
+      changes.accept(todo);
+      todo._id = id;
+      sequence = logWrite(PUT_RECORD, id, todo);
+      write(current -> {
+        int currentRow = current.findRow(id);
+        return currentRow < 0 ? current : current.withReplaced(currentRow, todo);
+      });
+      changed = snapshot.toTodo(snapshot.findRow(id));
+    }
+    awaitLogged(sequence);
+    return changed;
+  }
+
+  /**
+   * Delete the todo with the given id.
+   *
+   * @param id the ID of the todo to delete
+   * @return true if the todo was deleted, or false if there is no todo
+   *         with that ID
+   */
+  public boolean deleteTodo(String id) {
+    long sequence;
+    synchronized (writeLock) {
+      awaitRoomInTail();
+      if (snapshot.findRow(id) < 0) {
+        return false;
       }
+      sequence = logWrite(DELETE_RECORD, id, null);
+      write(current -> {
+        int currentRow = current.findRow(id);
+        return currentRow < 0 ? current : current.withDeleted(currentRow);
+      });
     }
+    awaitLogged(sequence);
+    return true;
+  }
 
+  /**
+   * Fold all the writes so far into a freshly indexed snapshot, waiting
+   * for that to finish. This normally happens in the background whenever
+   * the tail gets long, so this is mostly useful for testing.
+   *
+   * @throws InterruptedException if interrupted while waiting
+   * @throws ExecutionException if building the new snapshot failed
+   */
+  public void compact() throws InterruptedException, ExecutionException {
+    compactor.submit(this::runCompaction).get();
+  }
 
+  // Make a new id, in the same format as a MongoDB ObjectId. Only called
+  // while holding `writeLock`.
+  private String newId() {
+    long seconds = System.currentTimeMillis() / MILLIS_PER_SECOND;
+    idCounter++;
+    return String.format("%08x%010x%06x", (int) seconds, randomIdPart, idCounter & ID_COUNTER_MASK);
+  }
 
-    return filteredTodos;
+  // If the tail is too long (see `MAX_TAIL_FACTOR`), wait for the running
+  // compaction to finish. Waiting lets go of `writeLock`, so other writes
+  // can happen meanwhile: this has to be called at the very start of a
+  // write, while holding `writeLock`, before the write reads the snapshot
+  // or logs anything, or it could overwrite a change it never saw, or log
+  // its change in a different order than it's made.
+  private void awaitRoomInTail() {
+    while (writesDuringCompaction != null && snapshot.tailLength() >= MAX_TAIL_FACTOR * compactionThreshold()) {
+      try {
+        writeLock.wait();
+      } catch (InterruptedException e) {
+        // Go ahead with the write anyway; the tail will just be a bit longer.
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
   }
 
-  public Todo[] filterTodosByStatus(Todo[] todos, String targetStatus) {
-    if (targetStatus.equals("complete")) {
-      return Arrays.stream(todos).filter(x -> x.status).toArray(Todo[]::new);
-      } else if (targetStatus.equals("incomplete")) {
-      return Arrays.stream(todos).filter(x -> !x.status).toArray(Todo[]::new);
-      } else {
-      throw new IllegalArgumentException("Invalid targetStatus: " + targetStatus);
+  // Apply a write to the current snapshot and publish the result. Only
+  // called while holding `writeLock`, which this never lets go of (see
+  // `awaitRoomInTail()`).
+  private void write(UnaryOperator<TodoSnapshot> change) {
+    snapshot = change.apply(snapshot);
+    if (writesDuringCompaction != null) {
+      writesDuringCompaction.add(change);
+    } else {
+      compactIfNeeded();
     }
   }
-  public Todo[] filterTodosByBody(Todo[] todos, String targetBody) {
-    return Arrays.stream(todos).filter(x -> x.body.contains(targetBody)).toArray(Todo[]::new);
+
+  // Start a compaction if the tail has got long enough (and there isn't
+  // one already on the way). Only called while holding `writeLock`.
+  private void compactIfNeeded() {
+    if (!compactionQueued && snapshot.tailLength() >= compactionThreshold()) {
+      compactionQueued = true;
+      compactor.execute(this::runCompaction);
+    }
   }
-  public Todo[] filterTodosByCategory(Todo[] todos, String targetCategory) {
-    return Arrays.stream(todos).filter(x -> x.category.equals(targetCategory)).toArray(Todo[]::new);
+
+  private int compactionThreshold() {
+    return Math.max(MIN_COMPACTION_TAIL, snapshot.store().size() / COMPACTION_TAIL_DIVISOR);
   }
-  public Todo[] filterTodosByOwner(Todo[] todos, String targetOwner) {
-    return Arrays.stream(todos).filter(x -> x.owner.equals(targetOwner)).toArray(Todo[]::new);
+
+  /**
+   * Set something to run on the compaction thread each time a compaction
+   * starts, before it does anything (and without holding the write lock),
+   * so tests can hold a compaction up and make writers wait for it.
+   *
+   * @param hook what to run
+   */
+  void setDuringCompaction(Runnable hook) {
+    duringCompaction = hook;
   }
 
+  // Build a compacted copy of the current snapshot without holding the
+  // lock, so writes can carry on meanwhile, then catch it up with those
+  // writes and publish it. Only ever runs on the `compactor` thread.
+  private void runCompaction() {
+    TodoSnapshot start;
+    synchronized (writeLock) {
+      start = snapshot;
+      writesDuringCompaction = new ArrayList<>();
+    }
+    TodoSnapshot compacted = null;
+    try {
+      duringCompaction.run();
+      long startTime = System.nanoTime();
+      compacted = start.compacted(start.version());
+      LOGGER.info("Compacted {} todos ({} in the tail) in {} ms", compacted.size(), start.tailLength(),
+          (System.nanoTime() - startTime) / NANOS_PER_MILLI);
+    } finally {
+      synchronized (writeLock) {
+        if (compacted != null) {
+          for (UnaryOperator<TodoSnapshot> change : writesDuringCompaction) {
+            compacted = change.apply(compacted);
+          }
+          snapshot = compacted.withVersion(snapshot.version() + 1);
+        }
+        writesDuringCompaction = null;
+        compactionQueued = false;
+        writeLock.notifyAll();
+      }
+    }
+  }
 }
@@ -0,0 +1,1235 @@
+package umm3601.todos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Predicate;
+
+import io.javalin.http.BadRequestResponse;
+import umm3601.GroupedCounts;
+import umm3601.JsonRecords;
+import umm3601.index.NGramIndex;
+import umm3601.index.ObjectIdIndex;
+import umm3601.index.PersistentBitSet;
+import umm3601.index.QueryPlan;
+import umm3601.index.RowOrder;
+import umm3601.index.SnapshotReader;
+import umm3601.index.SnapshotWriter;
+import umm3601.index.SortPermutation;
+import umm3601.index.TextColumn;
+
+/**
+ * An immutable, versioned snapshot of the todos, along with every index
+ * built over them.
+ * <p>
+ * Everything here is computed once, in the constructor, and never changed
+ * afterwards, so any number of requests can query a snapshot at the same
+ * time without any locking: each request just grabs the current snapshot
+ * from `TodoDatabase` and works against it. In particular, queries never
+ * sort (or otherwise rearrange) shared data in place; a query ordered by a
+ * single field reads its answer off a permutation that was sorted when the
+ * snapshot was built, and anything fancier sorts just the matching rows
+ * into an array of its own.
+ * <p>
+ * A snapshot is made of a columnar "base" (a `TodoStore` and its indexes),
+ * plus the writes made since the base was built: a `TodoTail` of new and
+ * changed todos, and a set of deleted rows. Rows `0` up to
+ * `store.size() - 1` are in the base, and row `store.size() + i` is entry
+ * `i` of the tail. A write creates a new snapshot that shares the base (and
+ * the tail) with the old one, so it costs time proportional to the size of
+ * the tail rather than the size of the base; the base indexes are never
+ * rebuilt for a write, and the tail is small enough to scan. Every so
+ * often `TodoDatabase` folds the tail into a new base with `compacted()`.
+ */
+public final class TodoSnapshot {
+
+  /** The number of todos on a page, for paged queries without a `limit`. */
+  public static final int DEFAULT_PAGE_SIZE = 100;
+
+  private static final BitSet EMPTY_BITMAP = new BitSet();
+  private static final Comparator<String> STRINGS = Comparator.nullsFirst(Comparator.naturalOrder());
+  // The fields `stats()` can group by.
+  private static final List<String> STATS_FIELDS = List.of("owner", "category", "status");
+
+  private final long version;
+  private final TodoStore store;
+  private final ObjectIdIndex idIndex;
+
+  // Bitmap indexes for the equality filters in `listTodos()`. For each
+  // owner (and category) code there's a `BitSet` with bit `i` set if
+  // row `i` has that owner (or category), and there's one `BitSet`
+  // for each of the two statuses. Combining filters is then just ANDing
+  // a few bitmaps together.
+  private final BitSet[] ownerIndex;
+  private final BitSet[] categoryIndex;
+  private final BitSet completeTodos;
+  private final BitSet incompleteTodos;
+
+  // How many todos have each owner, category (by code) and status. The
+  // query planner uses these to estimate how selective each filter is.
+  private final int[] ownerCounts;
+  private final int[] categoryCounts;
+  private final int completeCount;
+
+  // An inverted trigram index over the todo bodies, used to narrow down
+  // `contains` searches before checking them against the body bytes.
+  private final NGramIndex bodyIndex;
+  // The rank of each row's body, which (unlike owner and category codes)
+  // takes a full sort to work out.
+  private final IntBuffer bodyRanks;
+  // The rank of each row's `_id`, and the rows sorted by `_id`, which break
+  // ties in paged queries (see `pageJson()`).
+  private final IntBuffer idRanks;
+  private final SortPermutation idOrder;
+
+  // For each field we can sort by, the rank of every row's value among all
+  // the values of that field (see `RowOrder`), and all the rows sorted by
+  // that field. Owner and category codes are already ranks.
+  private final Map<String, SortKey> sortKeys;
+
+  // The writes since the base was built: this snapshot sees the first
+  // `tailLength` entries of the tail, and none of the rows (base or tail)
+  // in `deletedRows`.
+  private final TodoTail tail;
+  private final int tailLength;
+  private final PersistentBitSet deletedRows;
+  private final int deletedBaseRows;
+  // How many todos (base and tail, not counting deleted ones) have each
+  // owner, category, and status, for `stats()`.
+  private final TodoCounts counts;
+
+  /**
+   * Build a snapshot, and all its indexes, over a store of todos.
+   *
+   * @param version the version number of this snapshot
+   * @param store the todos
+   */
+  public TodoSnapshot(long version, TodoStore store) {
+    this(version, store, NGramIndex.build(store.bodies()), IntBuffer.wrap(bodyRanks(store)),
+        IntBuffer.wrap(store.idRanks()));
+  }
+
+  // Build a snapshot given the indexes that are slow to build (e.g., ones
+  // read back from a snapshot file).
+  private TodoSnapshot(long version, TodoStore store, NGramIndex bodyIndex, IntBuffer bodyRanks, IntBuffer idRanks) {
+    this.version = version;
+    this.store = store;
+    this.tail = new TodoTail();
+    this.tailLength = 0;
+    this.deletedRows = PersistentBitSet.EMPTY;
+    this.deletedBaseRows = 0;
+    this.counts = TodoCounts.of(store);
+    int size = store.size();
+    // Build the `_id` index once up front so that `getTodo()` doesn't have to
+    // scan every todo on every request.
+    idIndex = store.buildIdIndex();
+    ownerIndex = buildBitmapIndex(store.owners().size(), store::ownerCode);
+    categoryIndex = buildBitmapIndex(store.categories().size(), store::categoryCode);
+    completeTodos = new BitSet(size);
+    for (int i = 0; i < size; i++) {
+      completeTodos.set(i, store.status(i));
+    }
+    incompleteTodos = (BitSet) completeTodos.clone();
+    incompleteTodos.flip(0, size);
+    ownerCounts = countsOf(ownerIndex);
+    categoryCounts = countsOf(categoryIndex);
+    completeCount = completeTodos.cardinality();
+    this.bodyIndex = bodyIndex;
+    this.bodyRanks = bodyRanks;
+    this.idRanks = idRanks;
+    idOrder = SortPermutation.build(size, idRanks::get, rankCount(idRanks, size));
+
+    // Statuses sort the same way as the strings "false" and "true", which is
+    // how paged queries' cursors hold them.
+    Map<String, SortKey> keys = new LinkedHashMap<>();
+    keys.put("owner", sortKey(store::ownerCode, store.owners().size(), todo -> todo.owner));
+    keys.put("category", sortKey(store::categoryCode, store.categories().size(), todo -> todo.category));
+    keys.put("status", sortKey(row -> store.status(row) ? 1 : 0, 2, todo -> String.valueOf(todo.status)));
+    keys.put("body", sortKey(bodyRanks::get, rankCount(bodyRanks, size), todo -> todo.body));
+    sortKeys = Collections.unmodifiableMap(keys);
+  }
+
+  private SortKey sortKey(IntUnaryOperator ranks, int rankCount, Function<Todo, String> field) {
+    return new SortKey(store.size(), ranks, rankCount, field,
+        Comparator.comparing(row -> field.apply(todoValue(row)), STRINGS), idOrder);
+  }
+
+  private static int rankCount(IntBuffer ranks, int size) {
+    int rankCount = 0;
+    for (int row = 0; row < size; row++) {
+      rankCount = Math.max(rankCount, ranks.get(row) + 1);
+    }
+    return rankCount;
+  }
+
+  // A new version of a snapshot, sharing its base and tail.
+  private TodoSnapshot(TodoSnapshot previous, long version, int tailLength, PersistentBitSet deletedRows,
+      int deletedBaseRows, TodoCounts counts) {
+    this.version = version;
+    this.store = previous.store;
+    this.idIndex = previous.idIndex;
+    this.ownerIndex = previous.ownerIndex;
+    this.categoryIndex = previous.categoryIndex;
+    this.completeTodos = previous.completeTodos;
+    this.incompleteTodos = previous.incompleteTodos;
+    this.ownerCounts = previous.ownerCounts;
+    this.categoryCounts = previous.categoryCounts;
+    this.completeCount = previous.completeCount;
+    this.bodyIndex = previous.bodyIndex;
+    this.bodyRanks = previous.bodyRanks;
+    this.idRanks = previous.idRanks;
+    this.idOrder = previous.idOrder;
+    this.sortKeys = previous.sortKeys;
+    this.tail = previous.tail;
+    this.tailLength = tailLength;
+    this.deletedRows = deletedRows;
+    this.deletedBaseRows = deletedBaseRows;
+    this.counts = counts;
+  }
+
+  /**
+   * Save this snapshot's todos, and the indexes that take longest to
+   * build, to a snapshot file. Only a snapshot with no writes since its
+   * base was built (e.g., a freshly loaded or compacted one) can be saved.
+   *
+   * @param out the snapshot file being written
+   * @throws IOException if it can't be written
+   */
+  public void writeTo(SnapshotWriter out) throws IOException {
+    if (tailLength > 0 || deletedBaseRows > 0) {
+      throw new IllegalStateException("Can't save a snapshot with writes that haven't been compacted");
+    }
+    store.writeTo(out);
+    bodyIndex.writeTo(out);
+    out.writeInts(bodyRanks);
+    out.writeInts(idRanks);
+  }
+
+  /**
+   * Read a snapshot back from a snapshot file. The todos and the saved
+   * indexes are mapped from the file; only the cheap indexes are rebuilt.
+   *
+   * @param in the snapshot file being read
+   * @param version the version number for the snapshot
+   * @return the snapshot
+   * @throws IOException if it can't be read
+   */
+  public static TodoSnapshot readFrom(SnapshotReader in, long version) throws IOException {
+    TodoStore store = TodoStore.readFrom(in);
+    NGramIndex bodyIndex = NGramIndex.readFrom(in);
+    IntBuffer bodyRanks = in.readInts(store.size());
+    return new TodoSnapshot(version, store, bodyIndex, bodyRanks, in.readInts(store.size()));
+  }
+
+  /**
+   * Make a copy of this snapshot with a todo added.
+   *
+   * @param todo the new todo; it mustn't be changed afterwards
+   * @return the new snapshot
+   */
+  public TodoSnapshot withAdded(Todo todo) {
+    tail.append(tailLength, todo);
+    return new TodoSnapshot(this, version + 1, tailLength + 1, deletedRows, deletedBaseRows, counts.with(todo, 1));
+  }
+
+  /**
+   * Make a copy of this snapshot with the todo in one row replaced.
+   *
+   * @param row the row of the todo being replaced, from `findRow()`
+   * @param todo the new version of the todo; it mustn't be changed afterwards
+   * @return the new snapshot
+   */
+  public TodoSnapshot withReplaced(int row, Todo todo) {
+    TodoCounts changedCounts = counts.with(todoValue(row), -1).with(todo, 1);
+    tail.append(tailLength, todo);
+    return new TodoSnapshot(this, version + 1, tailLength + 1, deletedRows.with(row),
+        deletedBaseRows + (row < store.size() ? 1 : 0), changedCounts);
+  }
+
+  /**
+   * Make a copy of this snapshot with the todo in one row deleted.
+   *
+   * @param row the row of the todo to delete, from `findRow()`
+   * @return the new snapshot
+   */
+  public TodoSnapshot withDeleted(int row) {
+    return new TodoSnapshot(this, version + 1, tailLength, deletedRows.with(row),
+        deletedBaseRows + (row < store.size() ? 1 : 0), counts.with(todoValue(row), -1));
+  }
+
+  /**
+   * Make a copy of this snapshot with a different version number.
+   *
+   * @param newVersion the version number for the copy
+   * @return the new snapshot
+   */
+  public TodoSnapshot withVersion(long newVersion) {
+    return new TodoSnapshot(this, newVersion, tailLength, deletedRows, deletedBaseRows, counts);
+  }
+
+  /**
+   * Build a new snapshot holding the same todos as this one, but with all
+   * of them in the (freshly indexed) base and an empty tail. Todos keep
+   * the same relative order.
+   *
+   * @param newVersion the version number for the new snapshot
+   * @return the new snapshot
+   */
+  public TodoSnapshot compacted(long newVersion) {
+    TodoStore.Builder builder = new TodoStore.Builder();
+    for (int row = 0; row < store.size() + tailLength; row++) {
+      if (!deletedRows.get(row)) {
+        builder.add(todoValue(row));
+      }
+    }
+    return new TodoSnapshot(newVersion, builder.build());
+  }
+
+  /**
+   * @return the number of entries in the tail (including ones for todos
+   *         that have since been changed or deleted)
+   */
+  public int tailLength() {
+    return tailLength;
+  }
+
+  /**
+   * Find the row holding the todo with the given id.
+   *
+   * @param id the id to look for
+   * @return the row, or -1 if there's no such todo in this snapshot
+   */
+  public int findRow(String id) {
+    int baseSize = store.size();
+    int tailIndex = tail.latest(id, tailLength, index -> deletedRows.get(baseSize + index));
+    if (tailIndex >= 0) {
+      return baseSize + tailIndex;
+    }
+    int row = idIndex.find(id);
+    return row < 0 || deletedRows.get(row) ? -1 : row;
+  }
+
+  /**
+   * Create a `Todo` object for one row.
+   *
+   * @param row a row number, in the base or the tail
+   * @return a new `Todo` with that row's values
+   */
+  public Todo toTodo(int row) {
+    if (row < store.size()) {
+      return store.toTodo(row);
+    }
+    Todo stored = tail.peek(row - store.size());
+    Todo todo = new Todo();
+    todo._id = stored._id;
+    todo.owner = stored.owner;
+    todo.status = stored.status;
+    todo.body = stored.body;
+    todo.category = stored.category;
+    return todo;
+  }
+
+  // A todo's values, without copying tail entries. Not to be given out.
+  private Todo todoValue(int row) {
+    return row < store.size() ? store.toTodo(row) : tail.peek(row - store.size());
+  }
+
+  /**
+   * Build a bitmap index over one dictionary-encoded field of the todos.
+   *
+   * @param codeCount the number of distinct codes
+   * @param field the code of the field in each row
+   * @return the set of rows having each code
+   */
+  private BitSet[] buildBitmapIndex(int codeCount, IntUnaryOperator field) {
+    BitSet[] index = new BitSet[codeCount];
+    for (int code = 0; code < codeCount; code++) {
+      index[code] = new BitSet(store.size());
+    }
+    for (int i = 0; i < store.size(); i++) {
+      index[field.applyAsInt(i)].set(i);
+    }
+    return index;
+  }
+
+  private static int[] countsOf(BitSet[] index) {
+    int[] counts = new int[index.length];
+    for (int code = 0; code < index.length; code++) {
+      counts[code] = index[code].cardinality();
+    }
+    return counts;
+  }
+
+  private static int[] bodyRanks(TodoStore store) {
+    String[] bodies = new String[store.size()];
+    for (int i = 0; i < bodies.length; i++) {
+      bodies[i] = store.bodies().get(i);
+    }
+    return RowOrder.ranksOf(bodies);
+  }
+
+  /**
+   * @return this snapshot's version number
+   */
+  public long version() {
+    return version;
+  }
+
+  /**
+   * @return the todos in this snapshot
+   */
+  public TodoStore store() {
+    return store;
+  }
+
+  /**
+   * @return the trigram index over the todo bodies
+   */
+  public NGramIndex bodyIndex() {
+    return bodyIndex;
+  }
+
+  /**
+   * @return the number of todos in this snapshot
+   */
+  public int size() {
+    return store.size() + tailLength - deletedRows.cardinality();
+  }
+
+  /**
+   * Get the single todo specified by the given ID.
+   *
+   * @param id the ID of the desired todo
+   * @return the todo with the given ID, or null if there is no todo with that ID
+   */
+  public Todo getTodo(String id) {
+    int row = findRow(id);
+    return row < 0 ? null : toTodo(row);
+  }
+
+  /**
+   * Get an array of all the todos satisfying the queries in the params.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return an array of all the todos matching the given criteria
+   */
+  public Todo[] listTodos(Map<String, List<String>> queryParams) {
+    return toTodos(findRows(queryParams));
+  }
+
+  /**
+   * Find the rows of all the todos satisfying the queries in the params.
+   * The rows only mean anything to this snapshot (see `toTodos()` and
+   * `toJson()`).
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the rows of all the todos matching the given criteria, in
+   *         order
+   */
+  public int[] findRows(Map<String, List<String>> queryParams) {
+    return runQuery(queryParams, planFilters(queryParams), null);
+  }
+
+  /**
+   * Run the query in the params, and describe how it was run instead of
+   * returning the todos.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return a description of the query plan, with estimated and actual row
+   *         counts for each step
+   */
+  public Map<String, Object> explainTodos(Map<String, List<String>> queryParams) {
+    QueryPlan plan = planFilters(queryParams);
+    Map<String, Object> sortDescription = new LinkedHashMap<>();
+    int[] rows = runQuery(queryParams, plan, sortDescription);
+    Map<String, Object> explanation = plan.explain();
+    explanation.put("orderBy", queryParams.containsKey("orderBy") ? queryParams.get("orderBy").get(0) : null);
+    explanation.putAll(sortDescription);
+    explanation.put("limit", queryParams.containsKey("limit") ? queryParams.get("limit").get(0) : null);
+    explanation.put("returnedRows", rows.length);
+    explanation.put("version", version);
+    explanation.put("tailRows", tailLength);
+    explanation.put("deletedRows", deletedRows.cardinality());
+    return explanation;
+  }
+
+  /**
+   * Count the todos satisfying the filters in the params, grouped by the
+   * fields in the `groupBy` parameter (any of `owner`, `category`, and
+   * `status`), e.g., `groupBy=owner,category&status=incomplete`.
+   * <p>
+   * The owner, category, and status filters are answered from the counts
+   * kept with the snapshot (see `TodoCounts`), so this takes time
+   * proportional to the number of different combinations of those fields,
+   * however many todos there are. The counts know nothing about bodies,
+   * though, so with a `contains` filter we have to find the matching todos
+   * and count them one by one.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the counts (see `GroupedCounts.toJson()`)
+   */
+  public Map<String, Object> stats(Map<String, List<String>> queryParams) {
+    GroupedCounts groups = new GroupedCounts(GroupedCounts.parseGroupBy(queryParams, STATS_FIELDS));
+    String[] fields = groups.fields();
+    if (queryParams.containsKey("contains")) {
+      Map<String, List<String>> filters = new HashMap<>(queryParams);
+      filters.keySet().retainAll(List.of("owner", "category", "status", "contains"));
+      for (int row : findRows(filters)) {
+        groups.add(groupOf(cellOf(row), fields), 1);
+      }
+    } else {
+      Predicate<TodoCounts.Cell> filter = cellFilter(queryParams);
+      for (int number = 0; number < counts.cellCount(); number++) {
+        TodoCounts.Cell cell = counts.cell(number);
+        if (filter.test(cell)) {
+          groups.add(groupOf(cell, fields), counts.count(number));
+        }
+      }
+    }
+    Map<String, Object> stats = groups.toJson();
+    stats.put("version", version);
+    return stats;
+  }
+
+  // Which combinations of owner, category, and status pass the filters in
+  // the query params.
+  private static Predicate<TodoCounts.Cell> cellFilter(Map<String, List<String>> queryParams) {
+    Predicate<TodoCounts.Cell> filter = cell -> true;
+    if (queryParams.containsKey("status")) {
+      String statusParam = queryParams.get("status").get(0);
+      if (!statusParam.equals("complete") && !statusParam.equals("incomplete")) {
+        throw new BadRequestResponse("Specified status '" + statusParam + "' must be complete or incomplete");
+      }
+      boolean targetStatus = statusParam.equals("complete");
+      filter = filter.and(cell -> cell.status() == targetStatus);
+    }
+    if (queryParams.containsKey("category")) {
+      String targetCategory = queryParams.get("category").get(0);
+      filter = filter.and(cell -> targetCategory.equals(cell.category()));
+    }
+    if (queryParams.containsKey("owner")) {
+      String targetOwner = queryParams.get("owner").get(0);
+      filter = filter.and(cell -> targetOwner.equals(cell.owner()));
+    }
+    return filter;
+  }
+
+  // The combination of owner, category, and status in a row.
+  private TodoCounts.Cell cellOf(int row) {
+    if (row >= store.size()) {
+      Todo todo = tail.peek(row - store.size());
+      return new TodoCounts.Cell(todo.owner, todo.category, todo.status);
+    }
+    return new TodoCounts.Cell(store.owners().valueOf(store.ownerCode(row)),
+        store.categories().valueOf(store.categoryCode(row)), store.status(row));
+  }
+
+  // The group a combination of owner, category, and status falls into.
+  private static Object[] groupOf(TodoCounts.Cell cell, String[] fields) {
+    Object[] values = new Object[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      if (fields[i].equals("owner")) {
+        values[i] = cell.owner();
+      } else if (fields[i].equals("category")) {
+        values[i] = cell.category();
+      } else {
+        values[i] = cell.status();
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Turn the filters in the query params into a `QueryPlan`. Every filter
+   * becomes a step with an estimate, from the counts we gathered when
+   * loading, of how many todos it lets through; the plan uses those to
+   * decide what order to check things in.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the (not yet executed) plan
+   */
+  private QueryPlan planFilters(Map<String, List<String>> queryParams) {
+    QueryPlan plan = new QueryPlan(store.size());
+
+    // Filter status if defined
+    if (queryParams.containsKey("status")) {
+      String statusParam = queryParams.get("status").get(0);
+      BitSet bitmap = statusBitmap(statusParam);
+      boolean targetStatus = bitmap == completeTodos;
+      long estimate = targetStatus ? completeCount : store.size() - completeCount;
+      plan.addFilter("status = " + statusParam, estimate, QueryPlan.FIELD_CHECK_COST,
+          row -> store.status(row) == targetStatus, bitmap);
+    }
+    // Filter category if defined
+    if (queryParams.containsKey("category")) {
+      String targetCategory = queryParams.get("category").get(0);
+      // A category that isn't in the dictionary has code -1, which no row
+      // has, so the filter still works (and matches nothing).
+      int code = store.categories().codeOf(targetCategory);
+      plan.addFilter("category = " + targetCategory, code < 0 ? 0 : categoryCounts[code],
+          QueryPlan.FIELD_CHECK_COST, row -> store.categoryCode(row) == code,
+          code < 0 ? EMPTY_BITMAP : categoryIndex[code]);
+    }
+    // Filter owner if defined
+    if (queryParams.containsKey("owner")) {
+      String targetOwner = queryParams.get("owner").get(0);
+      int code = store.owners().codeOf(targetOwner);
+      plan.addFilter("owner = " + targetOwner, code < 0 ? 0 : ownerCounts[code],
+          QueryPlan.FIELD_CHECK_COST, row -> store.ownerCode(row) == code,
+          code < 0 ? EMPTY_BITMAP : ownerIndex[code]);
+    }
+    // Filter body if defined. The trigram index (if it can help) only finds
+    // rows that *might* contain the target, so there's always a row check
+    // as well, which searches the stored UTF-8 bytes directly.
+    if (queryParams.containsKey("contains")) {
+      String targetBody = queryParams.get("contains").get(0);
+      BitSet candidates = bodyIndex.candidates(targetBody);
+      if (candidates != null) {
+        plan.addCandidates("body trigrams match '" + targetBody + "'", candidates);
+      }
+      byte[] needle = targetBody.getBytes(StandardCharsets.UTF_8);
+      TextColumn bodies = store.bodies();
+      plan.addFilter("body contains '" + targetBody + "'",
+          candidates == null ? store.size() : candidates.cardinality(),
+          QueryPlan.SUBSTRING_CHECK_COST, row -> bodies.contains(row, needle), null);
+    }
+    return plan;
+  }
+
+  /**
+   * Execute the filters in the plan, and then apply any `orderBy` and
+   * `limit` in the query params.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @param plan the plan for the filters in the query
+   * @param sortDescription if not `null`, filled in with how the rows
+   *                        were sorted, for `explainTodos()`
+   * @return the rows in the result, in order
+   */
+  private int[] runQuery(Map<String, List<String>> queryParams, QueryPlan plan, Map<String, Object> sortDescription) {
+    int targetLimit = parseLimit(queryParams);
+    int[] tailRows = tailMatches(queryParams);
+    if (!queryParams.containsKey("orderBy")) {
+      // Without an order, the plan can just stop as soon as it has found
+      // enough todos. Todos in the tail come after all the ones in the base.
+      skipDeletedRows(plan);
+      int[] rows = plan.execute(targetLimit);
+      int fromTail = (int) Math.min(tailRows.length, (long) targetLimit - rows.length);
+      int[] result = Arrays.copyOf(rows, rows.length + fromTail);
+      System.arraycopy(tailRows, 0, result, rows.length, fromTail);
+      return result;
+    }
+    String[] fields = queryParams.get("orderBy").get(0).split(",");
+    boolean[] descending = new boolean[fields.length];
+    SortKey[] keys = parseOrder(fields, descending);
+    int[] rows = sortBaseRows(plan, keys, descending, targetLimit, sortDescription);
+    if (tailRows.length == 0) {
+      return rows;
+    }
+    // The tail is small, and any todo in the result from the base must be
+    // among the first `targetLimit` todos from the base, so we just sort
+    // those together with the matching tail todos, comparing their actual
+    // values, since tail todos don't have ranks.
+    Comparator<Integer> order = null;
+    for (int i = 0; i < keys.length; i++) {
+      Comparator<Integer> key = descending[i] ? keys[i].values.reversed() : keys[i].values;
+      order = order == null ? key : order.thenComparing(key);
+    }
+    Integer[] merged = new Integer[rows.length + tailRows.length];
+    for (int i = 0; i < rows.length; i++) {
+      merged[i] = rows[i];
+    }
+    for (int i = 0; i < tailRows.length; i++) {
+      merged[rows.length + i] = tailRows[i];
+    }
+    Arrays.sort(merged, order.thenComparing(Comparator.naturalOrder()));
+    return Arrays.stream(merged).limit(targetLimit).mapToInt(Integer::intValue).toArray();
+  }
+
+  // Filter limit if defined
+  private static int parseLimit(Map<String, List<String>> queryParams) {
+    if (!queryParams.containsKey("limit")) {
+      return Integer.MAX_VALUE;
+    }
+    String limitParam = queryParams.get("limit").get(0);
+    int targetLimit;
+    try {
+      targetLimit = Integer.parseInt(limitParam);
+    } catch (NumberFormatException e) {
+      throw new BadRequestResponse("Specified limit '" + limitParam + "' can't be parsed to an integer");
+    }
+    if (targetLimit < 0) {
+      throw new BadRequestResponse("Specified limit '" + limitParam + "' can't be negative");
+    }
+    return targetLimit;
+  }
+
+  // Make a plan skip the base rows that have been deleted, if there are
+  // any.
+  private void skipDeletedRows(QueryPlan plan) {
+    if (deletedBaseRows > 0) {
+      plan.addFilter("not deleted", store.size() - deletedBaseRows, QueryPlan.FIELD_CHECK_COST,
+          row -> !deletedRows.get(row), null);
+    }
+  }
+
+  /**
+   * Run the filters in the plan over the base, and sort (and limit) the
+   * rows that match.
+   *
+   * @param plan the plan for the filters in the query
+   * @param keys the keys to sort by
+   * @param descending whether each key is sorted in descending order
+   * @param targetLimit the maximum number of rows wanted
+   * @param sortDescription if not `null`, filled in with how the rows
+   *                        were sorted
+   * @return the first `targetLimit` matching rows in the base, in order
+   */
+  private int[] sortBaseRows(QueryPlan plan, SortKey[] keys, boolean[] descending, int targetLimit,
+      Map<String, Object> sortDescription) {
+    // Ordering by a single field: walk the presorted permutation, skipping
+    // rows that don't match, until we have enough. That's free if there are
+    // no filters, but if the filters only match a few rows we could end up
+    // walking most of the permutation to find them, and it's cheaper to
+    // select the best few of the matching rows directly (below).
+    if (keys.length == 1) {
+      BitSet matching = plan.executeAsBitSet();
+      int matchCount = matching == null ? store.size() : matching.cardinality();
+      if (permutationWalkIsCheaper(matchCount, targetLimit)) {
+        describeSort(sortDescription, "presorted permutation");
+        IntPredicate filter = matching == null ? null : matching::get;
+        return keys[0].permutation.first(targetLimit, descending[0], baseFilter(filter));
+      }
+      describeSort(sortDescription, "top-k selection");
+      int[] rows = notDeleted(matching.stream().toArray());
+      return keys[0].order(descending[0]).topK(rows, rows.length, targetLimit);
+    }
+    // Otherwise sorting and limiting happen together as a top-K selection
+    // over the matching rows, so asking for the first few todos in some
+    // order doesn't require sorting all of them.
+    IntUnaryOperator[] ranks = new IntUnaryOperator[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      ranks[i] = keys[i].ranks;
+    }
+    int[] rows = notDeleted(plan.execute(Integer.MAX_VALUE));
+    describeSort(sortDescription, "top-k selection");
+    return new RowOrder(ranks, descending).topK(rows, rows.length, targetLimit);
+  }
+
+  // Which base rows a permutation walk may return: the ones that match
+  // (all of them, if `matching` is `null`) and haven't been deleted.
+  private IntPredicate baseFilter(IntPredicate matching) {
+    if (deletedBaseRows > 0) {
+      return matching == null ? row -> !deletedRows.get(row) : row -> matching.test(row) && !deletedRows.get(row);
+    }
+    return matching;
+  }
+
+  private int[] notDeleted(int[] rows) {
+    if (deletedBaseRows == 0) {
+      return rows;
+    }
+    return Arrays.stream(rows).filter(row -> !deletedRows.get(row)).toArray();
+  }
+
+  /**
+   * Find the todos in the tail that match the filters in the query params.
+   * The tail is small, so we just check every todo in it.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the matching rows, in row order
+   */
+  private int[] tailMatches(Map<String, List<String>> queryParams) {
+    if (tailLength == 0) {
+      return new int[0];
+    }
+    Predicate<Todo> filter = todo -> true;
+    if (queryParams.containsKey("status")) {
+      boolean targetStatus = "complete".equals(queryParams.get("status").get(0));
+      filter = filter.and(todo -> todo.status == targetStatus);
+    }
+    if (queryParams.containsKey("category")) {
+      String targetCategory = queryParams.get("category").get(0);
+      filter = filter.and(todo -> targetCategory.equals(todo.category));
+    }
+    if (queryParams.containsKey("owner")) {
+      String targetOwner = queryParams.get("owner").get(0);
+      filter = filter.and(todo -> targetOwner.equals(todo.owner));
+    }
+    if (queryParams.containsKey("contains")) {
+      String targetBody = queryParams.get("contains").get(0);
+      filter = filter.and(todo -> todo.body != null && todo.body.contains(targetBody));
+    }
+    int[] rows = new int[tailLength];
+    int found = 0;
+    for (int index = 0; index < tailLength; index++) {
+      int row = store.size() + index;
+      if (!deletedRows.get(row) && filter.test(tail.peek(index))) {
+        rows[found++] = row;
+      }
+    }
+    return Arrays.copyOf(rows, found);
+  }
+
+  /**
+   * Decide between walking a presorted permutation and selecting the top `k`
+   * matching rows. If the matches are spread evenly through the
+   * permutation, the walk looks at about `k * size / matchCount` rows (and
+   * at most all of them), each a cheap bitmap lookup, while a top-K
+   * selection does about `log2(k)` comparisons for each matching row.
+   */
+  private boolean permutationWalkIsCheaper(int matchCount, int limit) {
+    if (matchCount == store.size()) {
+      return true;
+    }
+    double walk = Math.min(store.size(), (double) limit * store.size() / Math.max(matchCount, 1));
+    double select = (double) matchCount * (Integer.SIZE - Integer.numberOfLeadingZeros(Math.min(limit, matchCount)));
+    return walk <= select;
+  }
+
+  private static void describeSort(Map<String, Object> sortDescription, String strategy) {
+    if (sortDescription != null) {
+      sortDescription.put("sort", strategy);
+    }
+  }
+
+  /**
+   * Look up the sort keys in an `orderBy` parameter.
+   * <p>
+   * The parameter is a comma-separated list of field names (`owner`,
+   * `category`, `status` or `body`), most significant first, e.g.,
+   * `orderBy=category,owner`. Prefixing a field with `-` sorts it in
+   * descending order, e.g., `orderBy=-status,owner`.
+   *
+   * @param fields the value of the `orderBy` query parameter, split on commas
+   * @param descending filled in with whether each field is descending
+   * @return the key for each field
+   */
+  private SortKey[] parseOrder(String[] fields, boolean[] descending) {
+    SortKey[] keys = new SortKey[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      String field = fields[i].trim();
+      descending[i] = field.startsWith("-");
+      if (descending[i]) {
+        field = field.substring(1);
+      }
+      keys[i] = sortKeys.get(field);
+      if (keys[i] == null) {
+        throw new BadRequestResponse("Specified orderBy field '" + field + "' must be one of " + sortKeys.keySet());
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Get the bitmap of todos having the given status.
+   *
+   * @param targetStatus either "complete" or "incomplete"
+   * @return the set of rows with that status
+   */
+  private BitSet statusBitmap(String targetStatus) {
+    if (targetStatus.equals("complete")) {
+      return completeTodos;
+    } else if (targetStatus.equals("incomplete")) {
+      return incompleteTodos;
+    } else {
+      throw new IllegalArgumentException("Invalid targetStatus: " + targetStatus);
+    }
+  }
+
+  /**
+   * Look up the todos for the given rows.
+   *
+   * @param rows the rows to return
+   * @return the todos in those rows, in the same order
+   */
+  public Todo[] toTodos(int[] rows) {
+    Todo[] todos = new Todo[rows.length];
+    for (int i = 0; i < rows.length; i++) {
+      todos[i] = toTodo(rows[i]);
+    }
+    return todos;
+  }
+
+  /**
+   * Put together a JSON array of the todos in the given rows, out of the
+   * JSON serialized for each of them when they were added (see
+   * `JsonRecords`), without creating any `Todo` objects.
+   *
+   * @param rows the rows to return
+   * @return a JSON array of the todos in those rows, in the same order, as
+   *         UTF-8
+   */
+  public byte[] toJson(int[] rows) {
+    TextColumn baseJson = store.json();
+    int baseSize = store.size();
+    return JsonRecords.toArray(rows.length, new JsonRecords.Source() {
+      @Override
+      public int length(int i) {
+        int row = rows[i];
+        return row < baseSize ? baseJson.length(row) : tail.json(row - baseSize).length;
+      }
+
+      @Override
+      public void copy(int i, byte[] destination, int at) {
+        int row = rows[i];
+        if (row < baseSize) {
+          baseJson.copyTo(row, destination, at);
+        } else {
+          byte[] json = tail.json(row - baseSize);
+          System.arraycopy(json, 0, destination, at, json.length);
+        }
+      }
+    });
+  }
+
+  /**
+   * Write the todos in the given rows to a stream, one at a time, from
+   * their pre-serialized JSON.
+   *
+   * @param rows the rows to write
+   * @param out where to write them
+   * @throws IOException if they can't be written
+   */
+  public void writeJson(int[] rows, JsonRecords.RecordWriter out) throws IOException {
+    for (int row : rows) {
+      writeRow(row, out);
+    }
+  }
+
+  /**
+   * Write the todos with the given ids to a stream, in the same order,
+   * looking each one up in the id index (see `findRow()`) and writing it
+   * as soon as it's found. This is what `POST /api/todos/_batch` sends.
+   *
+   * @param ids the ids to look for
+   * @param out where to write the todos
+   * @return the ids that aren't in this snapshot, in the same order
+   * @throws IOException if the todos can't be written
+   */
+  public List<String> writeJsonById(List<String> ids, JsonRecords.RecordWriter out) throws IOException {
+    List<String> missing = new ArrayList<>();
+    for (String id : ids) {
+      int row = findRow(id);
+      if (row < 0) {
+        missing.add(id);
+      } else {
+        writeRow(row, out);
+      }
+    }
+    return missing;
+  }
+
+  /**
+   * Write all the todos satisfying the queries in the params to a stream.
+   * If the query has no `orderBy`, each todo is written as soon as the
+   * filters find it, without collecting the matching rows first, so this
+   * needs the same (small) amount of memory however many todos match.
+   * Sorting needs all the matching rows first, so an ordered query is
+   * just run as usual (see `findRows()`) and then written.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @param out where to write the todos
+   * @throws IOException if they can't be written
+   */
+  public void streamJson(Map<String, List<String>> queryParams, JsonRecords.RecordWriter out) throws IOException {
+    if (queryParams.containsKey("orderBy")) {
+      writeJson(findRows(queryParams), out);
+      return;
+    }
+    // Everything that can reject the query happens before anything's
+    // written.
+    int targetLimit = parseLimit(queryParams);
+    QueryPlan plan = planFilters(queryParams);
+    skipDeletedRows(plan);
+    int[] tailRows = tailMatches(queryParams);
+    int written;
+    try {
+      written = plan.execute(targetLimit, row -> {
+        try {
+          writeRow(row, out);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    for (int i = 0; i < tailRows.length && written < targetLimit; i++, written++) {
+      writeRow(tailRows[i], out);
+    }
+  }
+
+  private void writeRow(int row, JsonRecords.RecordWriter out) throws IOException {
+    int baseSize = store.size();
+    if (row < baseSize) {
+      TextColumn baseJson = store.json();
+      out.write(baseJson.page(row), baseJson.offset(row), baseJson.length(row));
+    } else {
+      out.write(tail.json(row - baseSize));
+    }
+  }
+
+  /**
+   * Get one page of the todos satisfying the queries in the params, as a
+   * JSON object holding the todos and a cursor for the next page, e.g.,
+   * `{"todos":[...],"next":"WyJvd25lci..."}`. On the last page `next` is
+   * `null`.
+   * <p>
+   * A query asks to be paged with a `cursor` parameter: empty for the first
+   * page, and then the `next` of each page to get the one after it, along
+   * with the same filters and `orderBy` as before. `limit` is the page size
+   * (`DEFAULT_PAGE_SIZE` if it isn't given). The todos are ordered by the
+   * `orderBy` fields (if any) and then by `_id`, rather than by row as in
+   * unpaged queries, so that every todo has a place in the order that
+   * doesn't change as todos are written, and the cursor (see `TodoCursor`)
+   * can say exactly where a page ended.
+   * <p>
+   * The base rows after the cursor are found without looking at any of the
+   * earlier pages: a single-field (or unordered) query does a binary search
+   * for the cursor in a permutation presorted by the field and `_id`, and
+   * walks on from there, so the thousandth page costs the same as the
+   * first. A multi-field query selects the best matching rows after the
+   * cursor, which costs the same for every page too.
+   *
+   * @param queryParams map of key-value pairs for the query, including
+   *                    `cursor`
+   * @return a JSON object with the page of todos and the next cursor, as
+   *         UTF-8
+   */
+  public byte[] pageJson(Map<String, List<String>> queryParams) {
+    String orderBy = queryParams.containsKey("orderBy") ? queryParams.get("orderBy").get(0) : "";
+    String[] fields = orderBy.isEmpty() ? new String[0] : orderBy.split(",");
+    boolean[] descending = new boolean[fields.length];
+    SortKey[] keys = parseOrder(fields, descending);
+    int pageSize = queryParams.containsKey("limit") ? parseLimit(queryParams) : DEFAULT_PAGE_SIZE;
+    if (pageSize == 0) {
+      throw new BadRequestResponse("Specified limit '0' must be positive for a paged query");
+    }
+    TodoCursor after = parseCursor(queryParams.get("cursor").get(0), orderBy, keys.length);
+    // Look for one more todo than will fit on the page, to know whether
+    // there's another page after this one.
+    int wanted = pageSize == Integer.MAX_VALUE ? pageSize : pageSize + 1;
+    int[] rows = findPage(queryParams, keys, descending, after, wanted);
+    String next = null;
+    if (rows.length > pageSize) {
+      rows = Arrays.copyOf(rows, pageSize);
+      next = cursorAt(orderBy, keys, rows[pageSize - 1]).encode();
+    }
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    json.writeBytes("{\"todos\":".getBytes(StandardCharsets.UTF_8));
+    json.writeBytes(toJson(rows));
+    // Cursors are base64, so they never need escaping.
+    String end = ",\"next\":" + (next == null ? "null" : "\"" + next + "\"") + "}";
+    json.writeBytes(end.getBytes(StandardCharsets.UTF_8));
+    return json.toByteArray();
+  }
+
+  private static TodoCursor parseCursor(String cursorParam, String orderBy, int keyCount) {
+    if (cursorParam.isEmpty()) {
+      return null;
+    }
+    TodoCursor cursor = TodoCursor.decode(cursorParam);
+    if (!cursor.orderBy().equals(orderBy)) {
+      throw new BadRequestResponse("Specified cursor is for orderBy '" + cursor.orderBy() + "', not '" + orderBy + "'");
+    }
+    if (cursor.valueCount() != keyCount) {
+      throw new BadRequestResponse("Specified cursor '" + cursorParam + "' isn't a valid cursor");
+    }
+    return cursor;
+  }
+
+  // A cursor for the place of the todo in a row.
+  private TodoCursor cursorAt(String orderBy, SortKey[] keys, int row) {
+    Todo todo = todoValue(row);
+    String[] values = new String[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      values[i] = keys[i].field.apply(todo);
+    }
+    return new TodoCursor(orderBy, todo._id, values);
+  }
+
+  /**
+   * Find the first few todos after a cursor, in paged order (the keys and
+   * then `_id`).
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @param keys the keys to sort by
+   * @param descending whether each key is sorted in descending order
+   * @param after the cursor, or `null` to start at the beginning
+   * @param count the maximum number of rows wanted
+   * @return the first `count` matching rows after the cursor, in order
+   */
+  private int[] findPage(Map<String, List<String>> queryParams, SortKey[] keys, boolean[] descending,
+      TodoCursor after, int count) {
+    QueryPlan plan = planFilters(queryParams);
+    int[] tailRows = tailMatches(queryParams);
+    // Where the cursor falls among the ranks of each key, and of `_id`
+    // (last), in the base.
+    int[] positions = after == null ? null : seek(keys, after);
+    int[] rows;
+    // Unlike `sortBaseRows()`, the walk checks the filters row by row rather
+    // than finding every matching row first, so a page deep into the
+    // results doesn't cost more than it takes to walk over the page.
+    int estimate = (int) Math.min(plan.estimateRows(), store.size());
+    if (keys.length <= 1 && permutationWalkIsCheaper(estimate, count)) {
+      SortPermutation permutation = keys.length == 0 ? idOrder : keys[0].pagePermutation;
+      boolean walkDescending = keys.length == 1 && descending[0];
+      QueryPlan.RowPredicate matching = plan.asPredicate();
+      IntPredicate filter = baseFilter(matching == null ? null : matching::test);
+      rows = after == null
+          ? permutation.first(count, walkDescending, filter)
+          : permutation.after(count, walkDescending, filter, positions[0], idRanks::get, positions[keys.length]);
+    } else {
+      IntUnaryOperator[] ranks = new IntUnaryOperator[keys.length + 1];
+      boolean[] directions = Arrays.copyOf(descending, keys.length + 1);
+      for (int i = 0; i < keys.length; i++) {
+        ranks[i] = keys[i].ranks;
+      }
+      ranks[keys.length] = idRanks::get;
+      RowOrder order = new RowOrder(ranks, directions);
+      if (keys.length > 1 && permutationWalkIsCheaper(estimate, count)) {
+        rows = firstInGroups(plan, keys[0].pagePermutation, order, descending[0], after == null ? null : positions,
+            count);
+      } else {
+        rows = notDeleted(plan.execute(Integer.MAX_VALUE));
+        if (after != null) {
+          rows = Arrays.stream(rows).filter(row -> order.compareWith(row, positions) > 0).toArray();
+        }
+        rows = order.topK(rows, rows.length, count);
+      }
+    }
+    if (after != null) {
+      tailRows = Arrays.stream(tailRows).filter(row -> compareToCursor(todoValue(row), keys, descending, after) > 0)
+          .toArray();
+    }
+    if (tailRows.length == 0) {
+      return rows;
+    }
+    // As in `runQuery()`, sort the base rows together with the tail ones by
+    // their values.
+    Comparator<Integer> order = Comparator.comparing(row -> todoValue(row)._id, STRINGS);
+    for (int i = keys.length - 1; i >= 0; i--) {
+      Comparator<Integer> key = descending[i] ? keys[i].values.reversed() : keys[i].values;
+      order = key.thenComparing(order);
+    }
+    Integer[] merged = new Integer[rows.length + tailRows.length];
+    for (int i = 0; i < rows.length; i++) {
+      merged[i] = rows[i];
+    }
+    for (int i = 0; i < tailRows.length; i++) {
+      merged[rows.length + i] = tailRows[i];
+    }
+    Arrays.sort(merged, order);
+    return Arrays.stream(merged).limit(count).mapToInt(Integer::intValue).toArray();
+  }
+
+  // Find where a cursor falls in the base, for each key and then for `_id`
+  // (see `SortPermutation.seek()`).
+  private int[] seek(SortKey[] keys, TodoCursor after) {
+    int[] positions = new int[keys.length + 1];
+    for (int i = 0; i < keys.length; i++) {
+      Function<Todo, String> field = keys[i].field;
+      String value = after.value(i);
+      positions[i] = keys[i].permutation.seek(row -> STRINGS.compare(field.apply(store.toTodo(row)), value));
+    }
+    positions[keys.length] = idOrder.seek(row -> STRINGS.compare(store.id(row), after.id()));
+    return positions;
+  }
+
+  /**
+   * Find the first few matching base rows after a cursor in a multi-field
+   * order, a group of the first field at a time: the rows with the
+   * cursor's value for the first field, then the rows with the next value,
+   * and so on, selecting the best rows of each group until there are
+   * enough. A page then costs about as much as the groups it spans, rather
+   * than every matching row.
+   *
+   * @param plan the plan for the filters in the query
+   * @param permutation the first field's permutation
+   * @param order the full order
+   * @param descending whether the first field is descending
+   * @param positions where the cursor falls for each field, or `null` to
+   *                  start at the beginning
+   * @param count the maximum number of rows wanted
+   * @return the first `count` matching rows after the cursor, in order
+   */
+  private int[] firstInGroups(QueryPlan plan, SortPermutation permutation, RowOrder order, boolean descending,
+      int[] positions, int count) {
+    QueryPlan.RowPredicate matching = plan.asPredicate();
+    IntPredicate filter = baseFilter(matching == null ? null : matching::test);
+    if (positions != null) {
+      IntPredicate isAfter = row -> order.compareWith(row, positions) > 0;
+      filter = filter == null ? isAfter : filter.and(isAfter);
+    }
+    int step = descending ? -1 : 1;
+    int rank = descending ? permutation.rankCount() - 1 : 0;
+    if (positions != null) {
+      // The first group that can have rows after the cursor: the cursor's
+      // own, or the next one along if no row has the cursor's value.
+      rank = descending ? Math.floorDiv(positions[0], 2) : -Math.floorDiv(-positions[0], 2);
+    }
+    int[] rows = new int[0];
+    for (; rank >= 0 && rank < permutation.rankCount() && rows.length < count; rank += step) {
+      int[] group = permutation.group(rank, filter);
+      int[] best = order.topK(group, group.length, count - rows.length);
+      int found = rows.length;
+      rows = Arrays.copyOf(rows, found + best.length);
+      System.arraycopy(best, 0, rows, found, best.length);
+    }
+    return rows;
+  }
+
+  // Compare a todo's place in paged order with a cursor's.
+  private static int compareToCursor(Todo todo, SortKey[] keys, boolean[] descending, TodoCursor cursor) {
+    for (int i = 0; i < keys.length; i++) {
+      int comparison = STRINGS.compare(keys[i].field.apply(todo), cursor.value(i));
+      if (comparison != 0) {
+        return descending[i] ? -comparison : comparison;
+      }
+    }
+    return STRINGS.compare(todo._id, cursor.id());
+  }
+
+  /**
+   * A field we can sort by: how to get each base row's rank, the base rows
+   * presorted by it (with ties in row order, and in `_id` order for paged
+   * queries), and how to get and compare rows' values.
+   */
+  private static final class SortKey {
+    private final IntUnaryOperator ranks;
+    private final SortPermutation permutation;
+    private final SortPermutation pagePermutation;
+    // A todo's value for the field, as a string.
+    private final Function<Todo, String> field;
+    // Compares rows (base or tail) by their values.
+    private final Comparator<Integer> values;
+
+    SortKey(int rowCount, IntUnaryOperator ranks, int rankCount, Function<Todo, String> field,
+        Comparator<Integer> values, SortPermutation idOrder) {
+      this.ranks = ranks;
+      this.permutation = SortPermutation.build(rowCount, ranks, rankCount);
+      this.pagePermutation = SortPermutation.build(rowCount, ranks, rankCount, idOrder);
+      this.field = field;
+      this.values = values;
+    }
+
+    RowOrder order(boolean descending) {
+      return new RowOrder(new IntUnaryOperator[] {ranks}, new boolean[] {descending});
+    }
+  }
+}
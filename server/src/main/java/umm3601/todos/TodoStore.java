@@ -0,0 +1,353 @@
+package umm3601.todos;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import umm3601.JsonRecords;
+import umm3601.index.ObjectIdIndex;
+import umm3601.index.RowOrder;
+import umm3601.index.SnapshotReader;
+import umm3601.index.SnapshotWriter;
+import umm3601.index.StringDictionary;
+import umm3601.index.TextColumn;
+
+/**
+ * Column-oriented storage for the todos.
+ * <p>
+ * Instead of an array of `Todo` objects (each with its own header, and a
+ * separate `String` for every field of every todo), each field is stored
+ * as its own column:
+ * <ul>
+ * <li>`_id`: the 12 bytes of each ObjectId, decoded into a `long[]` and an
+ * `int[]` (any id that isn't an ObjectId is kept on the side);</li>
+ * <li>`owner` and `category`: dictionary encoded, i.e., an `int[]` of codes
+ * plus one `StringDictionary` holding each distinct value once. Codes are
+ * in sorted order of the values, so they double as sort ranks;</li>
+ * <li>`status`: one bit per todo, packed into a `long[]`; and</li>
+ * <li>`body`: all the bodies back to back as UTF-8 in a `TextColumn`.</li>
+ * </ul>
+ * Each todo's JSON is also serialized once, when it's added, into another
+ * `TextColumn` (see `JsonRecords`), so that list responses can be put
+ * together from those bytes without creating `Todo` objects at all. Those
+ * are only created (by `toTodo()`) when someone asks for one.
+ * <p>
+ * The columns are `java.nio` buffers, so that a store read back from a
+ * snapshot file (see `readFrom()`) can use columns mapped straight out of
+ * the file, and only the parts that are actually used get read from disk.
+ */
+public final class TodoStore {
+
+  private static final int WORD_SHIFT = 6;
+  private static final int INITIAL_ROWS = 16;
+
+  private final int size;
+  private final LongBuffer idHighs;
+  private final IntBuffer idLows;
+  // Ids that aren't ObjectIds (including `null`s), by row.
+  private final Map<Integer, String> irregularIds;
+  private final StringDictionary owners;
+  private final IntBuffer ownerCodes;
+  private final StringDictionary categories;
+  private final IntBuffer categoryCodes;
+  private final LongBuffer statusBits;
+  private final TextColumn bodies;
+  private final TextColumn json;
+
+  private TodoStore(Builder builder) {
+    size = builder.size;
+    idHighs = LongBuffer.wrap(Arrays.copyOf(builder.idHighs, size));
+    idLows = IntBuffer.wrap(Arrays.copyOf(builder.idLows, size));
+    irregularIds = builder.irregularIds;
+    statusBits = LongBuffer.wrap(Arrays.copyOf(builder.statusBits, (size + Long.SIZE - 1) / Long.SIZE));
+    bodies = builder.bodies;
+    bodies.trimToSize();
+    json = builder.json;
+    json.trimToSize();
+
+    // Swap the provisional dictionary codes for the final (sorted) ones.
+    int[] remap = new int[builder.owners.size()];
+    owners = builder.owners.build(remap);
+    int[] codes = Arrays.copyOf(builder.ownerCodes, size);
+    for (int row = 0; row < size; row++) {
+      codes[row] = remap[codes[row]];
+    }
+    ownerCodes = IntBuffer.wrap(codes);
+    remap = new int[builder.categories.size()];
+    categories = builder.categories.build(remap);
+    codes = Arrays.copyOf(builder.categoryCodes, size);
+    for (int row = 0; row < size; row++) {
+      codes[row] = remap[codes[row]];
+    }
+    categoryCodes = IntBuffer.wrap(codes);
+  }
+
+  // Read a store back from a snapshot, in the order `writeTo()` wrote it.
+  private TodoStore(SnapshotReader in) throws IOException {
+    size = in.readInt();
+    idHighs = in.readLongs(size);
+    idLows = in.readInts(size);
+    irregularIds = new HashMap<>();
+    for (int i = in.readInt(); i > 0; i--) {
+      irregularIds.put(in.readInt(), in.readString());
+    }
+    owners = StringDictionary.readFrom(in);
+    ownerCodes = in.readInts(size);
+    categories = StringDictionary.readFrom(in);
+    categoryCodes = in.readInts(size);
+    statusBits = in.readLongs(in.readInt());
+    bodies = TextColumn.readFrom(in);
+    json = TextColumn.readFrom(in);
+  }
+
+  /**
+   * Read a store back from a snapshot. The columns are mapped from the
+   * file rather than copied onto the heap.
+   *
+   * @param in the snapshot being read
+   * @return the store
+   * @throws IOException if it can't be read
+   */
+  public static TodoStore readFrom(SnapshotReader in) throws IOException {
+    return new TodoStore(in);
+  }
+
+  /**
+   * Write the store to a snapshot.
+   *
+   * @param out the snapshot being written
+   * @throws IOException if it can't be written
+   */
+  public void writeTo(SnapshotWriter out) throws IOException {
+    out.writeInt(size);
+    out.writeLongs(idHighs);
+    out.writeInts(idLows);
+    out.writeInt(irregularIds.size());
+    for (Map.Entry<Integer, String> id : irregularIds.entrySet()) {
+      out.writeInt(id.getKey());
+      out.writeString(id.getValue());
+    }
+    owners.writeTo(out);
+    out.writeInts(ownerCodes);
+    categories.writeTo(out);
+    out.writeInts(categoryCodes);
+    out.writeInt(statusBits.limit());
+    out.writeLongs(statusBits);
+    bodies.writeTo(out);
+    json.writeTo(out);
+  }
+
+  /**
+   * Load an array of todos into a store.
+   *
+   * @param todos the todos, in row order
+   * @return the store
+   */
+  public static TodoStore of(Todo[] todos) {
+    Builder builder = new Builder();
+    for (Todo todo : todos) {
+      builder.add(todo);
+    }
+    return builder.build();
+  }
+
+  /**
+   * @return the number of todos
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param row a row number
+   * @return that todo's `_id`
+   */
+  public String id(int row) {
+    if (irregularIds.containsKey(row)) {
+      return irregularIds.get(row);
+    }
+    return ObjectIdIndex.format(idHighs.get(row), idLows.get(row));
+  }
+
+  /**
+   * Build an index from `_id` to row number.
+   *
+   * @return the index
+   */
+  public ObjectIdIndex buildIdIndex() {
+    ObjectIdIndex index = ObjectIdIndex.withCapacity(size);
+    for (int row = 0; row < size; row++) {
+      if (irregularIds.containsKey(row)) {
+        index.add(irregularIds.get(row), row);
+      } else {
+        index.add(idHighs.get(row), idLows.get(row), row);
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Work out the rank of each todo's `_id` among all the ids, in string
+   * order (see `RowOrder.ranksOf()`). If every id is an ObjectId, they're
+   * radix sorted as numbers; otherwise they have to be compared as strings.
+   *
+   * @return the rank of each row's id
+   */
+  public int[] idRanks() {
+    if (irregularIds.isEmpty()) {
+      return ObjectIdIndex.ranksOf(size, idHighs::get, idLows::get);
+    }
+    String[] ids = new String[size];
+    for (int row = 0; row < size; row++) {
+      ids[row] = id(row);
+    }
+    return RowOrder.ranksOf(ids);
+  }
+
+  /**
+   * @return the dictionary of owners
+   */
+  public StringDictionary owners() {
+    return owners;
+  }
+
+  /**
+   * @param row a row number
+   * @return the code (in `owners()`) of that todo's owner
+   */
+  public int ownerCode(int row) {
+    return ownerCodes.get(row);
+  }
+
+  /**
+   * @return the dictionary of categories
+   */
+  public StringDictionary categories() {
+    return categories;
+  }
+
+  /**
+   * @param row a row number
+   * @return the code (in `categories()`) of that todo's category
+   */
+  public int categoryCode(int row) {
+    return categoryCodes.get(row);
+  }
+
+  /**
+   * @param row a row number
+   * @return that todo's status
+   */
+  public boolean status(int row) {
+    return (statusBits.get(row >>> WORD_SHIFT) & (1L << row)) != 0;
+  }
+
+  /**
+   * @return the column of todo bodies
+   */
+  public TextColumn bodies() {
+    return bodies;
+  }
+
+  /**
+   * @return the column of each todo's JSON (see `JsonRecords`)
+   */
+  public TextColumn json() {
+    return json;
+  }
+
+  /**
+   * Create a `Todo` object for one row.
+   *
+   * @param row a row number
+   * @return a new `Todo` with that row's values
+   */
+  public Todo toTodo(int row) {
+    Todo todo = new Todo();
+    todo._id = id(row);
+    todo.owner = owners.valueOf(ownerCodes.get(row));
+    todo.status = status(row);
+    todo.body = bodies.get(row);
+    todo.category = categories.valueOf(categoryCodes.get(row));
+    return todo;
+  }
+
+  /**
+   * A rough estimate of the heap used by the store (not counting any
+   * indexes built from it).
+   *
+   * @return the estimated size in bytes
+   */
+  public long estimatedBytes() {
+    final int perIrregularIdBytes = 96;
+    // `idLows`, `ownerCodes`, and `categoryCodes`
+    final int intColumns = 3;
+    return (long) size * (Long.BYTES + Integer.BYTES * intColumns)
+        + (long) statusBits.limit() * Long.BYTES
+        + (long) irregularIds.size() * perIrregularIdBytes
+        + owners.estimatedBytes() + categories.estimatedBytes() + bodies.estimatedBytes()
+        + json.estimatedBytes();
+  }
+
+  /**
+   * Accumulates todos one at a time (e.g., as they're parsed), growing the
+   * columns as needed. `build()` then produces the finished store.
+   */
+  public static final class Builder {
+    private int size;
+    private long[] idHighs = new long[INITIAL_ROWS];
+    private int[] idLows = new int[INITIAL_ROWS];
+    private final Map<Integer, String> irregularIds = new HashMap<>();
+    private final StringDictionary.Builder owners = new StringDictionary.Builder();
+    private int[] ownerCodes = new int[INITIAL_ROWS];
+    private final StringDictionary.Builder categories = new StringDictionary.Builder();
+    private int[] categoryCodes = new int[INITIAL_ROWS];
+    private long[] statusBits = new long[1];
+    private final TextColumn bodies = new TextColumn();
+    private final TextColumn json = new TextColumn();
+
+    /**
+     * Add a todo as the next row.
+     *
+     * @param todo the todo to add
+     * @return this builder
+     */
+    public Builder add(Todo todo) {
+      if (size == idHighs.length) {
+        int capacity = size * 2;
+        idHighs = Arrays.copyOf(idHighs, capacity);
+        idLows = Arrays.copyOf(idLows, capacity);
+        ownerCodes = Arrays.copyOf(ownerCodes, capacity);
+        categoryCodes = Arrays.copyOf(categoryCodes, capacity);
+        statusBits = Arrays.copyOf(statusBits, capacity / Long.SIZE + 1);
+      }
+      if (ObjectIdIndex.isObjectId(todo._id)) {
+        idHighs[size] = ObjectIdIndex.decodeHigh(todo._id);
+        idLows[size] = ObjectIdIndex.decodeLow(todo._id);
+      } else {
+        irregularIds.put(size, todo._id);
+      }
+      ownerCodes[size] = owners.add(todo.owner);
+      categoryCodes[size] = categories.add(todo.category);
+      if (todo.status) {
+        statusBits[size >>> WORD_SHIFT] |= 1L << size;
+      }
+      bodies.add(todo.body);
+      json.add(JsonRecords.serialize(todo));
+      size++;
+      return this;
+    }
+
+    /**
+     * Finish building. The builder shouldn't be used afterwards.
+     *
+     * @return the store
+     */
+    public TodoStore build() {
+      return new TodoStore(this);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package umm3601.todos;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+
+import umm3601.JsonRecords;
+
+/**
+ * The todos written (added, or changed) since a snapshot's columnar base
+ * was built, kept in the order they were written.
+ * <p>
+ * Rebuilding the base and all its indexes on every write would make writes
+ * take time proportional to the whole dataset, so instead writes just
+ * append the new version of a todo here (and mark any old version as
+ * deleted in the snapshot). Every snapshot over the same base shares one
+ * tail, and each snapshot only looks at the entries that existed when it
+ * was published (its "tail length"), so appending never disturbs readers
+ * of older snapshots. Once the tail gets long enough, `TodoDatabase` folds
+ * it into a fresh base.
+ * <p>
+ * Each entry's JSON is serialized as it's appended (see `JsonRecords`),
+ * just like the todos in the base.
+ * <p>
+ * Only one thread may append at a time, and always at the end of the tail
+ * of the latest snapshot; `TodoDatabase` makes sure of that. Entries are
+ * never changed once appended.
+ */
+final class TodoTail {
+
+  private static final int CHUNK_SHIFT = 10;
+  private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  // The entries, in fixed-size chunks so that appending never copies the
+  // entries themselves. Replaced (never modified) when a chunk is added.
+  private volatile Todo[][] chunks = new Todo[0][];
+  // Each entry's JSON, in chunks matching `chunks`. Grown along with them.
+  private volatile byte[][][] jsonChunks = new byte[0][][];
+  // Every tail index holding a version of each id, oldest first.
+  private final Map<String, int[]> versions = new ConcurrentHashMap<>();
+
+  /**
+   * Append an entry.
+   *
+   * @param index the index of the new entry, which must be the tail length
+   *              of the latest snapshot
+   * @param todo the todo to append; it must not be changed afterwards
+   */
+  void append(int index, Todo todo) {
+    int chunk = index >>> CHUNK_SHIFT;
+    if (chunk >= chunks.length) {
+      Todo[][] grown = Arrays.copyOf(chunks, chunk + 1);
+      grown[chunk] = new Todo[CHUNK_SIZE];
+      byte[][][] grownJson = Arrays.copyOf(jsonChunks, chunk + 1);
+      grownJson[chunk] = new byte[CHUNK_SIZE][];
+      chunks = grown;
+      jsonChunks = grownJson;
+    }
+    chunks[chunk][index & CHUNK_MASK] = todo;
+    jsonChunks[chunk][index & CHUNK_MASK] = JsonRecords.serialize(todo);
+    versions.merge(todo._id, new int[] {index}, TodoTail::concat);
+  }
+
+  private static int[] concat(int[] a, int[] b) {
+    int[] both = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, both, a.length, b.length);
+    return both;
+  }
+
+  /**
+   * Look at an entry. The caller mustn't change it.
+   *
+   * @param index the index of an entry
+   * @return the entry
+   */
+  Todo peek(int index) {
+    return chunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+  }
+
+  /**
+   * Look at an entry's JSON. The caller mustn't change it.
+   *
+   * @param index the index of an entry
+   * @return the entry's JSON, as UTF-8
+   */
+  byte[] json(int index) {
+    return jsonChunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+  }
+
+  /**
+   * Find the newest entry for an id that a snapshot can see.
+   *
+   * @param id the id to look for
+   * @param length the snapshot's tail length
+   * @param deleted which entries the snapshot has deleted
+   * @return the entry's index, or -1 if there isn't one
+   */
+  int latest(String id, int length, IntPredicate deleted) {
+    int[] indexes = id == null ? null : versions.get(id);
+    if (indexes == null) {
+      return -1;
+    }
+    for (int i = indexes.length - 1; i >= 0; i--) {
+      if (indexes[i] < length && !deleted.test(indexes[i])) {
+        return indexes[i];
+      }
+    }
+    return -1;
+  }
+}
@@ -1,19 +1,34 @@
 package umm3601.user;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 import io.javalin.Javalin;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import umm3601.BatchLookup;
 import umm3601.Controller;
+import umm3601.HttpCaching;
+import umm3601.JsonRecords;
+import umm3601.QueryCache;
+import umm3601.ResponseCompression;
 
 /**
  * Controller that manages requests for info about users.
  */
 public class UserController implements Controller {
 
+  // The query parameters that make a difference to the response of each
+  // route, for its `ETag` (see `HttpCaching`).
+  private static final Set<String> LIST_PARAMS = Set.of("age", "company", "stream", "explain");
+  private static final Set<String> STATS_PARAMS = Set.of("age", "company", "groupBy", "ageBucket");
+
   private UserDatabase userDatabase;
+  private HttpCaching caching;
+  private ResponseCompression compression;
 
   /**
    * Construct a controller for users.
@@ -25,7 +40,21 @@ public class UserController implements Controller {
    * @param database the `Database` containing user data
    */
   public UserController(UserDatabase userDatabase) {
+    this(userDatabase, HttpCaching.DEFAULT, ResponseCompression.DEFAULT);
+  }
+
+  /**
+   * Construct a controller for users, with its own `Cache-Control` headers
+   * and compression settings.
+   *
+   * @param userDatabase the `Database` containing user data
+   * @param caching the `Cache-Control` header for each route
+   * @param compression how to compress big responses
+   */
+  public UserController(UserDatabase userDatabase, HttpCaching caching, ResponseCompression compression) {
     this.userDatabase = userDatabase;
+    this.caching = caching;
+    this.compression = compression;
   }
 
   /***
@@ -39,10 +68,27 @@ public class UserController implements Controller {
    * @throws IOException
    */
   public static UserController buildUserController(String userDataFile) throws IOException {
+    return buildUserController(userDataFile, HttpCaching.DEFAULT, ResponseCompression.DEFAULT);
+  }
+
+  /***
+   * Create a database using the json file, and use it as data source for a
+   * new UserController that sends the given `Cache-Control` headers, and
+   * compresses big responses as given.
+   *
+   * @param userDataFile the JSON data file
+   * @param caching the `Cache-Control` header for each route
+   * @param compression how to compress big responses
+   * @throws IOException if the data can't be loaded
+   */
+  public static UserController buildUserController(String userDataFile, HttpCaching caching,
+      ResponseCompression compression) throws IOException {
     UserController userController = null;
 
     UserDatabase userDatabase = new UserDatabase(userDataFile);
-    userController = new UserController(userDatabase);
+    // Reload the users whenever the data file changes.
+    userDatabase.watchDataFile();
+    userController = new UserController(userDatabase, caching, compression);
 
     return userController;
   }
@@ -54,10 +100,15 @@ public class UserController implements Controller {
    */
   public void getUser(Context ctx) {
     String id = ctx.pathParam("id");
+    // Read the version before looking the user up (see `HttpCaching`).
+    long version = userDatabase.datasetVersion();
     User user = userDatabase.getUser(id);
     if (user != null) {
-      ctx.json(user);
-      ctx.status(HttpStatus.OK);
+      // Only a user that exists can be "not modified".
+      if (!caching.notModified(ctx, "/api/users/{id}", version, id)) {
+        ctx.json(user);
+        ctx.status(HttpStatus.OK);
+      }
     } else {
       throw new NotFoundResponse("No user with id " + id + " was found.");
     }
@@ -65,12 +116,84 @@ public class UserController implements Controller {
 
   /**
    * Get a JSON response with a list of all the users in the "database".
+   * <p>
+   * With `?stream=true` the users are streamed as a JSON array instead, and
+   * with `Accept: application/x-ndjson` as newline-delimited JSON (see
+   * `JsonRecords.startStream()`), so that even a huge list doesn't need to
+   * fit in memory.
+   * <p>
+   * If the client already has the response (its `If-None-Match` holds the
+   * `ETag` for this version of the users and this query), we just say so,
+   * without running the query (see `HttpCaching`).
    *
    * @param ctx a Javalin HTTP context
+   * @throws IOException if a streamed response can't be written
    */
-  public void getUsers(Context ctx) {
-    User[] users = userDatabase.listUsers(ctx.queryParamMap());
-    ctx.json(users);
+  public void getUsers(Context ctx) throws IOException {
+    if (caching.notModified(ctx, "/api/users", userDatabase.datasetVersion(),
+        QueryCache.key(ctx.queryParamMap(), LIST_PARAMS))) {
+      return;
+    }
+    // With `?explain=true`, describe how the query would be run (and how
+    // many rows each step actually let through) instead of returning
+    // the matching users.
+    if ("true".equals(ctx.queryParam("explain"))) {
+      ctx.json(userDatabase.explainUsers(ctx.queryParamMap()));
+      return;
+    }
+    JsonRecords.RecordWriter stream = JsonRecords.startStream(ctx, compression);
+    if (stream != null) {
+      userDatabase.streamUsers(ctx.queryParamMap(), stream);
+      stream.finish();
+      return;
+    }
+    // The users' JSON is already serialized, so we send those bytes
+    // rather than having `ctx.json()` serialize every user again, gzipped
+    // if the client accepts that (see `ResponseCompression`).
+    ctx.contentType(JsonRecords.CONTENT_TYPE);
+    compression.send(ctx, userDatabase.listUsersJson(ctx.queryParamMap()));
+  }
+
+  /**
+   * Get the users with the ids in the request body, `{"ids":[...]}`, in one
+   * response (see `BatchLookup`), instead of one request for each user.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if the response can't be written
+   */
+  public void getUserBatch(Context ctx) throws IOException {
+    BatchLookup.send(ctx, compression, "users", userDatabase::streamUsersById);
+  }
+
+  /**
+   * Get counts of the users, grouped by company and/or age range, e.g.,
+   * `GET /api/users/stats?groupBy=company,age&ageBucket=10`.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getUserStats(Context ctx) {
+    if (caching.notModified(ctx, "/api/users/stats", userDatabase.datasetVersion(),
+        QueryCache.key(ctx.queryParamMap(), STATS_PARAMS))) {
+      return;
+    }
+    ctx.json(userDatabase.userStats(ctx.queryParamMap()));
+  }
+
+  /**
+   * Describe the users we're serving: which version of the data file
+   * (which goes up each time the file changes and is reloaded), how long
+   * that took to load, how many users there are, and how well the cache of
+   * query results is working.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getDataset(Context ctx) {
+    Map<String, Object> dataset = new LinkedHashMap<>();
+    dataset.put("version", userDatabase.datasetVersion());
+    dataset.put("lastReloadMillis", userDatabase.lastReloadMillis());
+    dataset.put("size", userDatabase.size());
+    dataset.put("cache", userDatabase.cacheStats());
+    ctx.json(dataset);
   }
 
   /**
@@ -80,8 +203,14 @@ public class UserController implements Controller {
    * - `GET /api/users?age=NUMBER&company=STRING&name=STRING`
    * - List users, filtered using query parameters
    * - `age`, `company`, and `name` are optional query parameters
+   * - `GET /api/users/dataset`
+   * - Describe the version of the data file being served
+   * - `GET /api/users/stats?groupBy=company,age&ageBucket=NUMBER`
+   * - Count the users, grouped by company and/or age range
    * - `GET /api/users/:id`
    * - Get the specified user
+   * - `POST /api/users/_batch`
+   * - Get the users with the given ids, e.g., `{"ids":["588935f5..."]}`
    *
    * GROUPS SHOULD CREATE THEIR OWN CONTROLLER FOR TODOS THAT
    * IMPLEMENTS THE `Controller` INTERFACE.
@@ -94,10 +223,18 @@ public class UserController implements Controller {
    */
   @Override
   public void addRoutes(Javalin server) {
+    // Describe the dataset, and count the users. These have to come before
+    // `{id}`, or "dataset" and "stats" would be taken as ids.
+    server.get("/api/users/dataset", this::getDataset);
+    server.get("/api/users/stats", this::getUserStats);
+
     // Get specific user
     server.get("/api/users/{id}", this::getUser);
 
     // List users, filtered using query parameters
     server.get("/api/users", this::getUsers);
+
+    // Get lots of users by id at once
+    server.post("/api/users/_batch", this::getUserBatch);
   }
 }
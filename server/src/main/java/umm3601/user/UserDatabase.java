@@ -1,15 +1,27 @@
 package umm3601.user;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.javalin.http.BadRequestResponse;
+import umm3601.DataFileWatcher;
+import umm3601.GroupedCounts;
+import umm3601.JsonDataFile;
+import umm3601.JsonRecords;
+import umm3601.QueryCache;
+import umm3601.index.ObjectIdIndex;
+import umm3601.index.QueryPlan;
 
 /**
  * A fake "database" of user info
@@ -18,30 +30,174 @@ import io.javalin.http.BadRequestResponse;
  * to instead just read a bunch of user data from a specified JSON file, and
  * then provide various database-like methods that allow the `UserController` to
  * "query" the "database".
+ * <p>
+ * Everything loaded from the data file (the users, and the index and
+ * counts built from them) is kept together in a `Dataset`, which never
+ * changes once it's built. If the data file is changed while the server
+ * is running (see `watchDataFile()`), we load a whole new `Dataset` on a
+ * background thread and then swap it in. Each request uses whichever
+ * `Dataset` was current when it started, so requests never wait for a
+ * reload, and never see a mix of old and new users.
  */
 public class UserDatabase {
 
-  private User[] allUsers;
+  private static final Logger LOGGER = LoggerFactory.getLogger(UserDatabase.class);
+  private static final double BYTES_PER_MEGABYTE = 1024.0 * 1024.0;
+  private static final long NANOS_PER_MILLI = 1_000_000;
+  // How long the data file's directory has to be left alone before we
+  // reload the file.
+  private static final long WATCH_QUIET_MILLIS = 200;
+  // The query parameters that make a difference to `listUsers()`.
+  private static final Set<String> QUERY_PARAMS = Set.of("age", "company");
+  // How many results, with how many users in all, to cache.
+  private static final int CACHED_QUERIES = 1024;
+  private static final long CACHED_USERS = 1_000_000;
+  // The fields `userStats()` can group by, and how many years wide each age
+  // range is unless the request says otherwise.
+  private static final List<String> STATS_FIELDS = List.of("company", "age");
+  private static final int DEFAULT_AGE_BUCKET = 10;
 
-  public UserDatabase(String userDataFile) throws IOException {
-    // The `.getResourceAsStream` method searches for the given resource in
-    // the classpath, and returns `null` if it isn't found. We want to throw
-    // an IOException if the data file isn't found, so we need to check for
-    // `null` ourselves, and throw an IOException if necessary.
-    InputStream resourceAsStream = getClass().getResourceAsStream(userDataFile);
-    if (resourceAsStream == null) {
-      throw new IOException("Could not find " + userDataFile);
+  /**
+   * The users loaded from one version of the data file, along with
+   * everything we build from them.
+   */
+  private static final class Dataset {
+    private final long version;
+    private final User[] allUsers;
+    // Each user's JSON, serialized once when the users are loaded (see
+    // `JsonRecords`).
+    private final byte[][] json;
+    private final ObjectIdIndex idIndex;
+    // How many users have each age and company. The query planner uses
+    // these to estimate how selective each filter is.
+    private final Map<Integer, Integer> ageCounts = new HashMap<>();
+    private final Map<String, Integer> companyCounts = new HashMap<>();
+    // How many users of each age work for each company, for `userStats()`.
+    private final Map<String, Map<Integer, Integer>> companyAgeCounts = new HashMap<>();
+
+    Dataset(long version, User[] allUsers) {
+      this.version = version;
+      this.allUsers = allUsers;
+      json = new byte[allUsers.length][];
+      for (int row = 0; row < allUsers.length; row++) {
+        json[row] = JsonRecords.serialize(allUsers[row]);
+      }
+      // Build the `_id` index once up front so that `getUser()` doesn't have to
+      // scan every user on every request.
+      idIndex = ObjectIdIndex.build(Arrays.stream(allUsers).map(x -> x._id).toArray(String[]::new));
+      for (User user : allUsers) {
+        ageCounts.merge(user.age, 1, Integer::sum);
+        companyCounts.merge(user.company, 1, Integer::sum);
+        companyAgeCounts.computeIfAbsent(user.company, company -> new HashMap<>()).merge(user.age, 1, Integer::sum);
+      }
     }
-    InputStreamReader reader = new InputStreamReader(resourceAsStream);
+  }
+
+  private final String userDataFile;
+  // The current dataset. It's `volatile` so that a request on any thread
+  // always sees a completely built dataset.
+  private volatile Dataset dataset;
+  private volatile long lastReloadMillis;
+  private DataFileWatcher watcher;
+  // The rows found by recent `listUsers()` queries, which are thrown away
+  // whenever the data file is reloaded.
+  private final QueryCache<int[]> queryCache = new QueryCache<>(CACHED_QUERIES, CACHED_USERS,
+      rows -> rows.length + 1);
+
+  /**
+   * Load the users from a data file.
+   *
+   * @param userDataFile a filesystem path, or the path of a classpath
+   *                     resource, holding a JSON array of users
+   * @throws IOException if the file can't be found or read
+   */
+  public UserDatabase(String userDataFile) throws IOException {
+    this.userDataFile = userDataFile;
+    long startTime = System.nanoTime();
+    dataset = new Dataset(1, loadUsers(userDataFile));
+    lastReloadMillis = (System.nanoTime() - startTime) / NANOS_PER_MILLI;
+  }
+
+  private static User[] loadUsers(String userDataFile) throws IOException {
+    long startTime = System.nanoTime();
+    JsonDataFile.resetPeakHeap();
     // A Jackson JSON mapper knows how to parse JSON into sensible 'User'
-    // objects.
+    // objects. We hand it one user at a time as we stream through the
+    // file, rather than the whole file at once.
     ObjectMapper objectMapper = new ObjectMapper();
-    // Read our user data file into an array of User objects.
-    allUsers = objectMapper.readValue(reader, User[].class);
+    List<User> users = new ArrayList<>();
+    JsonDataFile.readArray(userDataFile, parser -> users.add(objectMapper.readValue(parser, User.class)));
+    LOGGER.info("Loaded {} users from {} in {} ms, peak heap at most {} MB", users.size(), userDataFile,
+        (System.nanoTime() - startTime) / NANOS_PER_MILLI,
+        String.format("%.1f", JsonDataFile.peakHeapBytes() / BYTES_PER_MEGABYTE));
+    return users.toArray(new User[0]);
+  }
+
+  /**
+   * Load the data file again, and swap the new users in once they're ready.
+   * If the file can't be loaded (e.g., it's only half written) we keep
+   * the users we've got.
+   *
+   * @throws IOException if the file can't be found or read
+   */
+  public synchronized void reload() throws IOException {
+    long startTime = System.nanoTime();
+    Dataset reloaded = new Dataset(dataset.version + 1, loadUsers(userDataFile));
+    dataset = reloaded;
+    lastReloadMillis = (System.nanoTime() - startTime) / NANOS_PER_MILLI;
+    LOGGER.info("Swapped in version {} of the users", reloaded.version);
+  }
+
+  /**
+   * Start reloading the data file whenever it changes. This does nothing if
+   * the data file is on the classpath, since that can't change.
+   *
+   * @return whether the file is being watched
+   * @throws IOException if the file can't be watched
+   */
+  public synchronized boolean watchDataFile() throws IOException {
+    if (watcher == null) {
+      watcher = DataFileWatcher.forDataFile(userDataFile, WATCH_QUIET_MILLIS, () -> {
+        try {
+          reload();
+        } catch (IOException e) {
+          LOGGER.error("Couldn't reload {}; still using version {}", userDataFile, dataset.version, e);
+        }
+      });
+    }
+    return watcher != null;
+  }
+
+  /**
+   * Stop watching the data file.
+   *
+   * @throws IOException if the watcher can't be stopped
+   */
+  public synchronized void stopWatching() throws IOException {
+    if (watcher != null) {
+      watcher.close();
+      watcher = null;
+    }
+  }
+
+  /**
+   * @return the version of the data file we're using: 1 for the one loaded
+   *         when we started, and one more each time it's reloaded
+   */
+  public long datasetVersion() {
+    return dataset.version;
+  }
+
+  /**
+   * @return how long the last (re)load of the data file took, in
+   *         milliseconds
+   */
+  public long lastReloadMillis() {
+    return lastReloadMillis;
   }
 
   public int size() {
-    return allUsers.length;
+    return dataset.allUsers.length;
   }
 
   /**
@@ -52,7 +208,9 @@ public class UserDatabase {
    * @return the user with the given ID, or null if there is no user with that ID
    */
   public User getUser(String id) {
-    return Arrays.stream(allUsers).filter(x -> x._id.equals(id)).findFirst().orElse(null);
+    Dataset current = dataset;
+    int row = current.idIndex.find(id);
+    return row < 0 ? null : current.allUsers[row];
   }
 
   /**
@@ -62,50 +220,209 @@ public class UserDatabase {
    * @return an array of all the users matching the given criteria
    */
   public User[] listUsers(Map<String, List<String>> queryParams) {
-    User[] filteredUsers = allUsers;
+    Dataset current = dataset;
+    int[] rows = findRows(current, queryParams);
+    User[] users = new User[rows.length];
+    for (int i = 0; i < rows.length; i++) {
+      users[i] = current.allUsers[rows[i]];
+    }
+    return users;
+  }
 
-    // Filter age if defined
-    if (queryParams.containsKey("age")) {
-      String ageParam = queryParams.get("age").get(0);
-      try {
-        int targetAge = Integer.parseInt(ageParam);
-        filteredUsers = filterUsersByAge(filteredUsers, targetAge);
-      } catch (NumberFormatException e) {
-        throw new BadRequestResponse("Specified age '" + ageParam + "' can't be parsed to an integer");
+  /**
+   * Get a JSON array of all the users satisfying the queries in the
+   * params, put together from each user's pre-serialized JSON. This is
+   * what `GET /api/users` sends.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return a JSON array of all the users matching the given criteria, as
+   *         UTF-8
+   */
+  public byte[] listUsersJson(Map<String, List<String>> queryParams) {
+    Dataset current = dataset;
+    int[] rows = findRows(current, queryParams);
+    return JsonRecords.toArray(rows.length, new JsonRecords.Source() {
+      @Override
+      public int length(int i) {
+        return current.json[rows[i]].length;
       }
+
+      @Override
+      public void copy(int i, byte[] destination, int at) {
+        byte[] json = current.json[rows[i]];
+        System.arraycopy(json, 0, destination, at, json.length);
+      }
+    });
+  }
+
+  /**
+   * Write all the users satisfying the queries in the params to a stream,
+   * each one as soon as the filters find it, without collecting the
+   * matching users first (or going through the cache).
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @param out where to write the users
+   * @throws IOException if they can't be written
+   */
+  public void streamUsers(Map<String, List<String>> queryParams, JsonRecords.RecordWriter out) throws IOException {
+    Dataset current = dataset;
+    QueryPlan plan = planFilters(current, queryParams);
+    try {
+      plan.execute(Integer.MAX_VALUE, row -> {
+        try {
+          out.write(current.json[row]);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
     }
-    // Filter company if defined
-    if (queryParams.containsKey("company")) {
-      String targetCompany = queryParams.get("company").get(0);
-      filteredUsers = filterUsersByCompany(filteredUsers, targetCompany);
+  }
+
+  /**
+   * Write the users with the given ids to a stream, in the same order,
+   * looking each one up in the id index and writing it as soon as it's
+   * found. This is what `POST /api/users/_batch` sends.
+   *
+   * @param ids the ids to look for
+   * @param out where to write the users
+   * @return the ids of users that don't exist, in the same order
+   * @throws IOException if the users can't be written
+   */
+  public List<String> streamUsersById(List<String> ids, JsonRecords.RecordWriter out) throws IOException {
+    Dataset current = dataset;
+    List<String> missing = new ArrayList<>();
+    for (String id : ids) {
+      int row = current.idIndex.find(id);
+      if (row < 0) {
+        missing.add(id);
+      } else {
+        out.write(current.json[row]);
+      }
     }
-    // Process other query parameters here...
+    return missing;
+  }
+
+  // The rows of a dataset matching a query, from the cache if we can.
+  private int[] findRows(Dataset current, Map<String, List<String>> queryParams) {
+    return queryCache.get(current.version, QueryCache.key(queryParams, QUERY_PARAMS),
+        () -> planFilters(current, queryParams).execute(Integer.MAX_VALUE));
+  }
 
-    return filteredUsers;
+  /**
+   * @return how full the cache of query results is, and how well it's
+   *         working (see `QueryCache.stats()`)
+   */
+  public Map<String, Object> cacheStats() {
+    return queryCache.stats();
   }
 
   /**
-   * Get an array of all the users having the target age.
+   * Count the users satisfying the filters in the params, grouped by the
+   * fields in the `groupBy` parameter: `company` and/or `age`. Ages are
+   * grouped into ranges `ageBucket` years wide (10 unless given), each
+   * labelled with its youngest age; e.g., with the default, users aged 20
+   * to 29 are counted together under `"age": 20`. This is what
+   * `GET /api/users/stats` returns.
+   * <p>
+   * The counts come from the ones kept with the dataset, so this takes time
+   * proportional to the number of different companies and ages, however
+   * many users there are.
    *
-   * @param users     the list of users to filter by age
-   * @param targetAge the target age to look for
-   * @return an array of all the users from the given list that have the target
-   *         age
+   * @param queryParams map of key-value pairs for the query
+   * @return the counts (see `GroupedCounts.toJson()`)
    */
-  public User[] filterUsersByAge(User[] users, int targetAge) {
-    return Arrays.stream(users).filter(x -> x.age == targetAge).toArray(User[]::new);
+  public Map<String, Object> userStats(Map<String, List<String>> queryParams) {
+    Dataset current = dataset;
+    GroupedCounts groups = new GroupedCounts(GroupedCounts.parseGroupBy(queryParams, STATS_FIELDS));
+    String[] fields = groups.fields();
+    int bucket = DEFAULT_AGE_BUCKET;
+    if (queryParams.containsKey("ageBucket")) {
+      bucket = parseInt("ageBucket", queryParams.get("ageBucket").get(0));
+      if (bucket < 1) {
+        throw new BadRequestResponse("Specified ageBucket '" + bucket + "' must be at least 1");
+      }
+    }
+    Integer targetAge = queryParams.containsKey("age") ? parseInt("age", queryParams.get("age").get(0)) : null;
+    String targetCompany = queryParams.containsKey("company") ? queryParams.get("company").get(0) : null;
+    for (Map.Entry<String, Map<Integer, Integer>> company : current.companyAgeCounts.entrySet()) {
+      if (targetCompany != null && !targetCompany.equals(company.getKey())) {
+        continue;
+      }
+      for (Map.Entry<Integer, Integer> age : company.getValue().entrySet()) {
+        if (targetAge != null && !targetAge.equals(age.getKey())) {
+          continue;
+        }
+        Object[] values = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+          values[i] = fields[i].equals("company") ? company.getKey() : Math.floorDiv(age.getKey(), bucket) * bucket;
+        }
+        groups.add(values, age.getValue());
+      }
+    }
+    Map<String, Object> stats = groups.toJson();
+    if (Arrays.asList(fields).contains("age")) {
+      stats.put("ageBucket", bucket);
+    }
+    stats.put("version", current.version);
+    return stats;
+  }
+
+  private static int parseInt(String param, String value) {
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new BadRequestResponse("Specified " + param + " '" + value + "' can't be parsed to an integer");
+    }
   }
 
   /**
-   * Get an array of all the users having the target company.
+   * Run the query in the params, and describe how it was run instead of
+   * returning the users. This is what `?explain=true` returns.
    *
-   * @param users         the list of users to filter by company
-   * @param targetCompany the target company to look for
-   * @return an array of all the users from the given list that have the target
-   *         company
+   * @param queryParams map of key-value pairs for the query
+   * @return a description of the query plan, with estimated and actual row
+   *         counts for each step
    */
-  public User[] filterUsersByCompany(User[] users, String targetCompany) {
-    return Arrays.stream(users).filter(x -> x.company.equals(targetCompany)).toArray(User[]::new);
+  public Map<String, Object> explainUsers(Map<String, List<String>> queryParams) {
+    QueryPlan plan = planFilters(dataset, queryParams);
+    plan.execute(Integer.MAX_VALUE);
+    return plan.explain();
   }
 
+  /**
+   * Turn the filters in the query params into a `QueryPlan`, which checks
+   * them all in a single pass over the users, most selective first (based
+   * on the counts we gathered when loading).
+   *
+   * @param current the dataset to query
+   * @param queryParams map of key-value pairs for the query
+   * @return the (not yet executed) plan
+   */
+  private QueryPlan planFilters(Dataset current, Map<String, List<String>> queryParams) {
+    User[] allUsers = current.allUsers;
+    QueryPlan plan = new QueryPlan(allUsers.length);
+
+    // Filter age if defined
+    if (queryParams.containsKey("age")) {
+      String ageParam = queryParams.get("age").get(0);
+      try {
+        int targetAge = Integer.parseInt(ageParam);
+        plan.addFilter("age = " + targetAge, current.ageCounts.getOrDefault(targetAge, 0),
+            QueryPlan.FIELD_CHECK_COST, row -> allUsers[row].age == targetAge, null);
+      } catch (NumberFormatException e) {
+        throw new BadRequestResponse("Specified age '" + ageParam + "' can't be parsed to an integer");
+      }
+    }
+    // Filter company if defined
+    if (queryParams.containsKey("company")) {
+      String targetCompany = queryParams.get("company").get(0);
+      plan.addFilter("company = " + targetCompany, current.companyCounts.getOrDefault(targetCompany, 0),
+          QueryPlan.FIELD_CHECK_COST, row -> allUsers[row].company.equals(targetCompany), null);
+    }
+    // Process other query parameters here...
+
+    return plan;
+  }
 }
@@ -0,0 +1,206 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import umm3601.todos.Todo;
+import umm3601.todos.TodoController;
+import umm3601.todos.TodoDatabase;
+import umm3601.user.UserController;
+import umm3601.user.UserDatabase;
+
+/**
+ * Tests looking up batches of todos and users by id.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class BatchLookupSpec {
+
+  private static final String BLANCHE_TODO = "58895985a22c04e761776d54";
+  private static final String FRY_TODO = "58895985c1849992336c219b";
+  private static final String CONNIE = "588935f57546a2daea44de7c";
+  private static final String LYNN = "588935f5597715f06f3e8f6c";
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  // A response body, as the output stream of a (mock) `Context`.
+  private static final class ResponseBody extends ServletOutputStream {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    @Override
+    public void write(int b) {
+      bytes.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      bytes.write(b, off, len);
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener listener) {
+    }
+  }
+
+  // A mock context for a batch request with the given body.
+  private static Context batchRequest(Map<String, ?> body, ResponseBody response) throws IOException {
+    Context ctx = Mockito.mock(Context.class);
+    when(ctx.bodyAsClass(Map.class)).thenReturn(body);
+    when(ctx.outputStream()).thenReturn(response);
+    return ctx;
+  }
+
+  // A mock context for a batch request with the given (raw JSON) body,
+  // which is parsed the way Javalin does, with Jackson.
+  private static Context batchRequest(String json, ResponseBody response) throws IOException {
+    Context ctx = Mockito.mock(Context.class);
+    when(ctx.bodyAsClass(Map.class)).thenAnswer(invocation -> new ObjectMapper().readValue(json, Map.class));
+    when(ctx.outputStream()).thenReturn(response);
+    return ctx;
+  }
+
+  private static List<String> field(JsonNode response, String name, String subfield) {
+    List<String> values = new ArrayList<>();
+    for (JsonNode value : response.get(name)) {
+      values.add(subfield == null ? value.asText() : value.get(subfield).asText());
+    }
+    return values;
+  }
+
+  @Test
+  public void findsTodosInOrderAndReportsMissingOnes() throws IOException {
+    TodoDatabase db = new TodoDatabase(Main.TODO_DATA_FILE);
+    // One todo that's only in the tail, and one that's been deleted.
+    Todo todo = new Todo();
+    todo.owner = "Aaron";
+    todo.body = "In the tail";
+    todo.category = "groceries";
+    String added = db.addTodo(todo);
+    db.deleteTodo(BLANCHE_TODO);
+
+    ResponseBody response = new ResponseBody();
+    Context ctx = batchRequest(Map.of("ids", List.of(FRY_TODO, "no-such-todo", added, BLANCHE_TODO, FRY_TODO)),
+        response);
+    new TodoController(db).getTodoBatch(ctx);
+    verify(ctx).contentType(JsonRecords.CONTENT_TYPE);
+
+    JsonNode json = mapper.readTree(response.bytes.toByteArray());
+    assertEquals(List.of(FRY_TODO, added), field(json, "todos", "_id"));
+    assertEquals("Aaron", json.get("todos").get(1).get("owner").asText());
+    assertEquals(List.of("no-such-todo", BLANCHE_TODO), field(json, "missing", null));
+    // The todos are exactly the ones a single lookup would get.
+    assertEquals(db.getTodo(FRY_TODO), mapper.treeToValue(json.get("todos").get(0), Todo.class));
+  }
+
+  @Test
+  public void findsUsersAndGzipsWhenAccepted() throws IOException {
+    UserController userController = new UserController(new UserDatabase(Main.USER_DATA_FILE));
+    ResponseBody response = new ResponseBody();
+    Context ctx = batchRequest(Map.of("ids", List.of(LYNN, CONNIE, "588935f5000000000000000")), response);
+    when(ctx.header("Accept-Encoding")).thenReturn("gzip");
+    userController.getUserBatch(ctx);
+    verify(ctx).header("Content-Encoding", "gzip");
+
+    JsonNode json;
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(response.bytes.toByteArray()))) {
+      json = mapper.readTree(in);
+    }
+    assertEquals(List.of("Lynn Ferguson", "Connie Stewart"), field(json, "users", "name"));
+    assertEquals(List.of("588935f5000000000000000"), field(json, "missing", null));
+  }
+
+  @Test
+  public void answersAnEmptyBatch() throws IOException {
+    ResponseBody response = new ResponseBody();
+    new UserController(new UserDatabase(Main.USER_DATA_FILE)).getUserBatch(batchRequest(Map.of("ids", List.of()),
+        response));
+    assertEquals("{\"users\":[],\"missing\":[]}", response.bytes.toString(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void rejectsBadBatchesBeforeWritingAnything() throws IOException {
+    TodoController todoController = new TodoController(new TodoDatabase(Main.TODO_DATA_FILE));
+    List<String> tooMany = new ArrayList<>();
+    for (int i = 0; i <= BatchLookup.MAX_IDS; i++) {
+      tooMany.add(BLANCHE_TODO);
+    }
+    Map<String, Object> extraField = new LinkedHashMap<>();
+    extraField.put("ids", List.of(BLANCHE_TODO));
+    extraField.put("fields", List.of("owner"));
+    List<Map<String, ?>> bodies = new ArrayList<>(List.of(Map.of(), Map.of("ids", BLANCHE_TODO),
+        Map.of("ids", List.of(BLANCHE_TODO, 3)), Map.of("ids", tooMany), extraField));
+    bodies.add(null);
+    for (Map<String, ?> body : bodies) {
+      ResponseBody response = new ResponseBody();
+      Context ctx = batchRequest(body, response);
+      Assertions.assertThrows(BadRequestResponse.class, () -> todoController.getTodoBatch(ctx));
+      assertEquals(0, response.bytes.size());
+    }
+  }
+
+  @Test
+  public void rejectsBodiesThatArentJson() throws IOException {
+    UserController userController = new UserController(new UserDatabase(Main.USER_DATA_FILE));
+    for (String body : List.of("{\"ids\": [\"" + LYNN + "\"", "ids=" + LYNN, "")) {
+      ResponseBody response = new ResponseBody();
+      Context ctx = batchRequest(body, response);
+      Assertions.assertThrows(BadRequestResponse.class, () -> userController.getUserBatch(ctx));
+      assertEquals(0, response.bytes.size());
+    }
+  }
+
+  @Test
+  public void rejectsBodiesThatArentObjects() throws IOException {
+    UserController userController = new UserController(new UserDatabase(Main.USER_DATA_FILE));
+    for (String body : List.of("[\"" + LYNN + "\", \"" + CONNIE + "\"]", "\"" + LYNN + "\"", "5")) {
+      ResponseBody response = new ResponseBody();
+      Context ctx = batchRequest(body, response);
+      Assertions.assertThrows(BadRequestResponse.class, () -> userController.getUserBatch(ctx));
+      assertEquals(0, response.bytes.size());
+    }
+  }
+
+  @Test
+  public void writesRecordsAsAFieldOfAnObject() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsonRecords.RecordWriter writer = new JsonRecords.RecordWriter(out, "a \"b\"");
+    writer.write("{\"x\":1}".getBytes(StandardCharsets.UTF_8));
+    writer.write("{}".getBytes(StandardCharsets.UTF_8));
+    Map<String, Object> more = new LinkedHashMap<>();
+    more.put("missing", List.of("é"));
+    more.put("n", 2);
+    writer.finish(more);
+    assertEquals("{\"a \\\"b\\\"\":[{\"x\":1},{}],\"missing\":[\"é\"],\"n\":2}", out.toString(StandardCharsets.UTF_8));
+
+    out.reset();
+    new JsonRecords.RecordWriter(out, "todos").finish();
+    assertEquals("{\"todos\":[]}", out.toString(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,116 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests watching data files for changes.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class DataFileWatcherSpec {
+
+  private Path directory;
+  private Path dataFile;
+  // Released each time the watcher calls back.
+  private Semaphore changes;
+  private DataFileWatcher watcher;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("watched");
+    dataFile = directory.resolve("data.json");
+    Files.writeString(dataFile, "[]");
+    changes = new Semaphore(0);
+    watcher = new DataFileWatcher(dataFile, 50, changes::release);
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    watcher.close();
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  private boolean changed() throws InterruptedException {
+    return changes.tryAcquire(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void callsBackWhenTheFileIsWritten() throws Exception {
+    Files.writeString(dataFile, "[{}]");
+    assertTrue(changed());
+  }
+
+  @Test
+  public void callsBackWhenTheFileIsReplaced() throws Exception {
+    Path replacement = directory.resolve("data.json.new");
+    Files.writeString(replacement, "[{}, {}]");
+    Files.move(replacement, dataFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    assertTrue(changed());
+  }
+
+  @Test
+  public void callsBackOnceForABurstOfChanges() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      Files.writeString(dataFile, "[" + i + "]");
+    }
+    assertTrue(changed());
+    Thread.sleep(300);
+    assertEquals(0, changes.availablePermits());
+  }
+
+  @Test
+  public void ignoresOtherFiles() throws Exception {
+    Files.writeString(directory.resolve("other.json"), "[]");
+    Thread.sleep(300);
+    assertEquals(0, changes.availablePermits());
+    // ... but carries on watching.
+    Files.writeString(dataFile, "[{}]");
+    assertTrue(changed());
+  }
+
+  @Test
+  public void keepsWatchingIfTheCallbackFails() throws Exception {
+    watcher.close();
+    watcher = new DataFileWatcher(dataFile, 50, () -> {
+      changes.release();
+      throw new IllegalStateException("Oops");
+    });
+    Files.writeString(dataFile, "[{}]");
+    assertTrue(changed());
+    Files.writeString(dataFile, "[{}, {}]");
+    assertTrue(changed());
+  }
+
+  @Test
+  public void onlyWatchesFilesInTheFilesystem() throws IOException {
+    assertNull(DataFileWatcher.forDataFile(Main.TODO_DATA_FILE, 50, changes::release));
+    DataFileWatcher another = DataFileWatcher.forDataFile(dataFile.toString(), 50, changes::release);
+    another.close();
+  }
+
+  @Test
+  public void stopsOnceClosed() throws Exception {
+    watcher.close();
+    Files.writeString(dataFile, "[{}]");
+    Thread.sleep(300);
+    assertEquals(0, changes.availablePermits());
+  }
+}
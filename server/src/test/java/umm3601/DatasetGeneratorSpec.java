@@ -0,0 +1,221 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import umm3601.todos.Todo;
+import umm3601.todos.TodoDatabase;
+import umm3601.user.User;
+import umm3601.user.UserDatabase;
+
+/**
+ * Tests making up todo and user datasets.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class DatasetGeneratorSpec {
+
+  private Path dataFile;
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    dataFile = Files.createTempFile("generated", ".json");
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(dataFile);
+  }
+
+  private static byte[] todos(long count, String... options) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DatasetGenerator.parse(List.of(options)).writeTodos(out, count);
+    return out.toByteArray();
+  }
+
+  private static byte[] users(long count, String... options) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DatasetGenerator.parse(List.of(options)).writeUsers(out, count);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void writesTodosTheDatabaseCanLoad() throws IOException {
+    Files.write(dataFile, todos(1000, "--owners=20", "--categories=6"));
+    TodoDatabase db = new TodoDatabase(dataFile.toString());
+    assertEquals(1000, db.size());
+
+    DatasetGenerator generator = DatasetGenerator.parse(List.of());
+    Todo first = db.getTodo(generator.id(0));
+    assertTrue(first.owner.startsWith("Owner "));
+    assertTrue(first.body.endsWith("."));
+    assertTrue(Character.isUpperCase(first.body.charAt(0)));
+    Set<String> categories = new HashSet<>();
+    for (Todo todo : db.listTodos(new HashMap<>())) {
+      categories.add(todo.category);
+    }
+    assertEquals(Set.of("groceries", "homework", "software design", "video games", "category 4", "category 5"),
+        categories);
+  }
+
+  @Test
+  public void writesUsersTheDatabaseCanLoad() throws IOException {
+    Files.write(dataFile, users(500, "--companies=7"));
+    UserDatabase db = new UserDatabase(dataFile.toString());
+    assertEquals(500, db.size());
+
+    Set<String> companies = new HashSet<>();
+    for (User user : db.listUsers(new HashMap<>())) {
+      companies.add(user.company);
+      assertTrue(user.age >= 18 && user.age <= 80);
+      assertTrue(user.email.endsWith("@" + user.company.toLowerCase() + ".com"));
+    }
+    assertEquals(7, companies.size());
+    assertTrue(db.listUsers(Map.of("company", List.of("COMPANY6"))).length > 0);
+  }
+
+  @Test
+  public void theSameSeedGivesTheSameRecords() throws IOException {
+    assertArrayEquals(todos(200, "--seed=7"), todos(200, "--seed=7"));
+    assertArrayEquals(users(200, "--seed=7"), users(200, "--seed=7"));
+    assertFalse(Arrays.equals(todos(200, "--seed=7"), todos(200, "--seed=8")));
+  }
+
+  @Test
+  public void idsAreDistinctAndLookLikeObjectIds() {
+    DatasetGenerator generator = DatasetGenerator.parse(List.of("--seed=255"));
+    assertEquals("000000ff0000000000000000", generator.id(0));
+    assertEquals("000000ff00000000000000ff", generator.id(255));
+    assertNotEquals(generator.id(1), generator.id(2));
+  }
+
+  @Test
+  public void writesTheSameRecordsAsNdjson() throws IOException {
+    Todo[] array = mapper.readValue(todos(50), Todo[].class);
+    String ndjson = new String(todos(50, "--format=NDJSON"), StandardCharsets.UTF_8);
+    String[] lines = ndjson.split("\n");
+    assertEquals(50, lines.length);
+    assertTrue(ndjson.endsWith("}\n"));
+    for (int i = 0; i < lines.length; i++) {
+      assertEquals(array[i], mapper.readValue(lines[i], Todo.class));
+    }
+
+    String userLines = new String(users(3, "--format=ndjson"), StandardCharsets.UTF_8);
+    assertEquals(3, userLines.split("\n").length);
+    assertEquals("User 2", mapper.readValue(userLines.split("\n")[2], User.class).name);
+  }
+
+  @Test
+  public void skewFavoursTheFirstOwners() throws IOException {
+    Map<String, Integer> even = countOwners(mapper.readValue(todos(10_000, "--owners=10"), Todo[].class));
+    Map<String, Integer> skewed = countOwners(mapper.readValue(todos(10_000, "--owners=10", "--skew=1.5"),
+        Todo[].class));
+    // Evenly, each has about 1,000.
+    for (int count : even.values()) {
+      assertTrue(count > 850 && count < 1150, "Owner count " + count);
+    }
+    // With a skew of 1.5, owner 0 has 1 / (1 + 1/2^1.5 + ... + 1/10^1.5)
+    // of them (about half) and owner 9 about 1/31 as many as that.
+    assertTrue(skewed.get("Owner 0") > 4500 && skewed.get("Owner 0") < 5500);
+    assertTrue(skewed.get("Owner 0") > 20 * skewed.get("Owner 9"));
+  }
+
+  private static Map<String, Integer> countOwners(Todo[] todos) {
+    Map<String, Integer> counts = new HashMap<>();
+    for (Todo todo : todos) {
+      counts.merge(todo.owner, 1, Integer::sum);
+    }
+    return counts;
+  }
+
+  @Test
+  public void bodiesAndStatusesFollowTheOptions() throws IOException {
+    Todo[] todos = mapper.readValue(todos(2000, "--min-words=3", "--max-words=4", "--complete=0.25"), Todo[].class);
+    int complete = 0;
+    Set<Integer> lengths = new HashSet<>();
+    for (Todo todo : todos) {
+      lengths.add(todo.body.split(" ").length);
+      complete += todo.status ? 1 : 0;
+    }
+    assertEquals(Set.of(3, 4), lengths);
+    assertTrue(complete > 400 && complete < 600, "Complete " + complete);
+
+    for (Todo todo : mapper.readValue(todos(100, "--complete=1", "--min-words=1", "--max-words=1"), Todo[].class)) {
+      assertTrue(todo.status);
+      assertFalse(todo.body.contains(" "));
+    }
+  }
+
+  @Test
+  public void describesItsValues() {
+    DatasetGenerator generator = DatasetGenerator.parse(List.of("--owners=3", "--categories=2", "--companies=4"));
+    assertEquals(DatasetGenerator.JSON, generator.format());
+    assertEquals(3, generator.owners());
+    assertEquals("Owner 2", generator.owner(2));
+    assertEquals(2, generator.categories());
+    assertEquals("groceries", generator.category(0));
+    assertEquals(4, generator.companies());
+    assertEquals("COMPANY3", generator.company(3));
+    assertEquals(18, generator.minAge());
+    assertEquals(80, generator.maxAge());
+    assertTrue(generator.word(0).matches("[a-z]+"));
+  }
+
+  @Test
+  public void rejectsBadOptions() {
+    for (String option : List.of("owners=3", "--owners", "--colour=red", "--format=xml", "--owners=lots",
+        "--owners=0", "--categories=0", "--companies=0", "--min-words=0", "--min-words=30", "--skew=-1",
+        "--skew=NaN", "--complete=1.5", "--complete=-0.1", "--seed=x")) {
+      assertThrows(IllegalArgumentException.class, () -> DatasetGenerator.parse(List.of(option)));
+    }
+  }
+
+  @Test
+  public void runWritesAFile() throws IOException {
+    DatasetGenerator.run(new String[] {"users", "25", dataFile.toString(), "--seed=1"});
+    assertEquals(25, mapper.readValue(dataFile.toFile(), User[].class).length);
+    DatasetGenerator.run(new String[] {"todos", "30", dataFile.toString(), "--format=ndjson"});
+    assertEquals(30, Files.readAllLines(dataFile).size());
+
+    // It makes any directories the file needs.
+    Path nested = dataFile.resolveSibling(dataFile.getFileName() + ".d").resolve("todos.json");
+    try {
+      DatasetGenerator.run(new String[] {"todos", "5", nested.toString()});
+      assertEquals(5, mapper.readValue(nested.toFile(), Todo[].class).length);
+    } finally {
+      Files.deleteIfExists(nested);
+      Files.deleteIfExists(nested.getParent());
+    }
+  }
+
+  @Test
+  public void runRejectsBadArguments() {
+    assertThrows(IllegalArgumentException.class, () -> DatasetGenerator.run(new String[] {"todos", "30"}));
+    assertThrows(IllegalArgumentException.class,
+        () -> DatasetGenerator.run(new String[] {"widgets", "30", dataFile.toString()}));
+    assertThrows(IllegalArgumentException.class,
+        () -> DatasetGenerator.run(new String[] {"todos", "many", dataFile.toString()}));
+  }
+}
@@ -0,0 +1,195 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.NotFoundResponse;
+import umm3601.todos.Todo;
+import umm3601.todos.TodoController;
+import umm3601.todos.TodoDatabase;
+import umm3601.user.UserController;
+import umm3601.user.UserDatabase;
+
+/**
+ * Tests `ETag`s, `If-None-Match`, and `Cache-Control` headers.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class HttpCachingSpec {
+
+  @Mock
+  private Context ctx;
+
+  @BeforeEach
+  public void setUp() {
+    MockitoAnnotations.openMocks(this);
+  }
+
+  // The `ETag` the most recent response was sent with.
+  private String sentEtag() {
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(eq("ETag"), etag.capture());
+    return etag.getValue();
+  }
+
+  @Test
+  public void etagsDependOnTheVersionAndTheQuery() {
+    String etag = HttpCaching.etag(3, "owner=Fry");
+    assertEquals(etag, HttpCaching.etag(3, "owner=Fry"));
+    assertNotEquals(etag, HttpCaching.etag(4, "owner=Fry"));
+    assertNotEquals(etag, HttpCaching.etag(3, "owner=Dawn"));
+    assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+  }
+
+  @Test
+  public void answersNotModifiedForAMatchingEtag() {
+    HttpCaching caching = HttpCaching.DEFAULT;
+    String etag = HttpCaching.etag(7, "q");
+    when(ctx.header("If-None-Match")).thenReturn("\"other\", W/" + etag);
+    assertTrue(caching.notModified(ctx, "/api/todos", 7, "q"));
+    verify(ctx).status(HttpStatus.NOT_MODIFIED);
+    verify(ctx).header("ETag", etag);
+    verify(ctx).header("Cache-Control", "no-cache");
+    verify(ctx).header("Vary", "Accept, Accept-Encoding");
+
+    when(ctx.header("If-None-Match")).thenReturn("*");
+    assertTrue(caching.notModified(ctx, "/api/todos", 8, "q"));
+  }
+
+  @Test
+  public void sendsTheWholeResponseOtherwise() {
+    HttpCaching caching = HttpCaching.DEFAULT;
+    assertFalse(caching.notModified(ctx, "/api/todos", 7, "q"));
+    when(ctx.header("If-None-Match")).thenReturn(HttpCaching.etag(6, "q"));
+    assertFalse(caching.notModified(ctx, "/api/todos", 7, "q"));
+    // NDJSON is a different representation, with its own `ETag`.
+    when(ctx.header("If-None-Match")).thenReturn(HttpCaching.etag(7, "q"));
+    when(ctx.header("Accept")).thenReturn(JsonRecords.NDJSON_CONTENT_TYPE);
+    assertFalse(caching.notModified(ctx, "/api/todos", 7, "q"));
+    verify(ctx, never()).status(any(HttpStatus.class));
+  }
+
+  @Test
+  public void gzippedAndPlainResponsesHaveDifferentEtags() {
+    HttpCaching caching = HttpCaching.DEFAULT;
+    caching.notModified(ctx, "/api/todos", 7, "q");
+    String plain = sentEtag();
+    verify(ctx).header("Vary", HttpCaching.VARY);
+    assertTrue(HttpCaching.VARY.contains("Accept-Encoding"));
+
+    MockitoAnnotations.openMocks(this);
+    when(ctx.header("Accept-Encoding")).thenReturn("gzip, deflate, br");
+    caching.notModified(ctx, "/api/todos", 7, "q");
+    String gzipped = sentEtag();
+    verify(ctx).header("Vary", HttpCaching.VARY);
+    assertNotEquals(plain, gzipped);
+
+    // A client that got the plain response can't get a 304 for the gzipped
+    // one, or the other way around.
+    MockitoAnnotations.openMocks(this);
+    when(ctx.header("Accept-Encoding")).thenReturn("gzip");
+    when(ctx.header("If-None-Match")).thenReturn(plain);
+    assertFalse(caching.notModified(ctx, "/api/todos", 7, "q"));
+    MockitoAnnotations.openMocks(this);
+    when(ctx.header("If-None-Match")).thenReturn(gzipped);
+    assertFalse(caching.notModified(ctx, "/api/todos", 7, "q"));
+    verify(ctx, never()).status(any(HttpStatus.class));
+  }
+
+  @Test
+  public void readsCacheControlPerRoute() {
+    HttpCaching caching = HttpCaching.parse(" /api/users=max-age=60, public ; /api/todos/stats=no-store;");
+    assertEquals("max-age=60, public", caching.cacheControl("/api/users"));
+    assertEquals("no-store", caching.cacheControl("/api/todos/stats"));
+    assertEquals(HttpCaching.DEFAULT_CACHE_CONTROL, caching.cacheControl("/api/todos"));
+    assertEquals(HttpCaching.DEFAULT_CACHE_CONTROL, HttpCaching.parse(null).cacheControl("/api/users"));
+    assertThrows(IllegalArgumentException.class, () -> HttpCaching.parse("/api/users"));
+    assertThrows(IllegalArgumentException.class, () -> HttpCaching.parse("=no-store"));
+    assertThrows(IllegalArgumentException.class, () -> HttpCaching.parse("/api/users= "));
+
+    caching.notModified(ctx, "/api/users", 1, "");
+    verify(ctx).header("Cache-Control", "max-age=60, public");
+  }
+
+  @Test
+  public void todoListIsNotModifiedUntilATodoChanges() throws IOException {
+    TodoDatabase db = new TodoDatabase(Main.TODO_DATA_FILE);
+    TodoController controller = new TodoController(db);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", List.of("Fry"));
+    queryParams.put("ignored", List.of("anything"));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    controller.getTodos(ctx);
+    String etag = sentEtag();
+
+    // The same query again, from a client that has the response.
+    MockitoAnnotations.openMocks(this);
+    when(ctx.queryParamMap()).thenReturn(Map.of("owner", List.of("Fry")));
+    when(ctx.header("If-None-Match")).thenReturn(etag);
+    controller.getTodos(ctx);
+    verify(ctx).status(HttpStatus.NOT_MODIFIED);
+    verify(ctx, never()).result(any(byte[].class));
+
+    // After a write, it gets the new todos.
+    Todo todo = new Todo();
+    todo.owner = "Fry";
+    todo.body = "Something new";
+    todo.category = "homework";
+    db.addTodo(todo);
+    MockitoAnnotations.openMocks(this);
+    when(ctx.queryParamMap()).thenReturn(Map.of("owner", List.of("Fry")));
+    when(ctx.header("If-None-Match")).thenReturn(etag);
+    controller.getTodos(ctx);
+    verify(ctx, never()).status(HttpStatus.NOT_MODIFIED);
+    verify(ctx).result(any(byte[].class));
+    assertNotEquals(etag, sentEtag());
+  }
+
+  @Test
+  public void otherRoutesAreConditionalToo() throws IOException {
+    TodoDatabase todos = new TodoDatabase(Main.TODO_DATA_FILE);
+    UserDatabase users = new UserDatabase(Main.USER_DATA_FILE);
+    HttpCaching caching = HttpCaching.parse("/api/users/stats=max-age=5");
+    TodoController todoController = new TodoController(todos, caching, ResponseCompression.DEFAULT);
+    UserController userController = new UserController(users, caching, ResponseCompression.DEFAULT);
+    when(ctx.queryParamMap()).thenReturn(Map.of("groupBy", List.of("owner")));
+    when(ctx.header("If-None-Match")).thenReturn("*");
+
+    when(ctx.pathParam("id")).thenReturn("58895985a22c04e761776d54");
+    todoController.getTodo(ctx);
+    todoController.getTodoStats(ctx);
+    when(ctx.pathParam("id")).thenReturn("588935f5c668650dc77df581");
+    userController.getUser(ctx);
+    userController.getUsers(ctx);
+    userController.getUserStats(ctx);
+    verify(ctx, times(5)).status(HttpStatus.NOT_MODIFIED);
+    verify(ctx).header("Cache-Control", "max-age=5");
+    verify(ctx, never()).json(any());
+
+    // A todo that doesn't exist isn't "not modified", even for `*`.
+    when(ctx.pathParam("id")).thenReturn("nope");
+    assertThrows(NotFoundResponse.class,
+        () -> todoController.getTodo(ctx));
+  }
+}
@@ -0,0 +1,128 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonToken;
+
+import umm3601.todos.Todo;
+import umm3601.todos.TodoDatabase;
+import umm3601.user.UserDatabase;
+
+/**
+ * Tests streaming the data files in from the filesystem or the classpath.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class JsonDataFileSpec {
+
+  private Path dataFile;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    dataFile = Files.createTempFile("data", ".json");
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(dataFile);
+  }
+
+  // Read the name of the first field of each object in a file.
+  private static List<String> readFirstFields(String file) throws IOException {
+    List<String> fields = new ArrayList<>();
+    JsonDataFile.readArray(file, parser -> {
+      fields.add(parser.nextFieldName());
+      // Skip the rest of the object, whatever's in it.
+      for (JsonToken token = parser.currentToken(); token != JsonToken.END_OBJECT; token = parser.nextToken()) {
+        parser.skipChildren();
+      }
+    });
+    return fields;
+  }
+
+  @Test
+  public void readsEachObjectInAFile() throws IOException {
+    Files.writeString(dataFile, "[{\"a\": 1}, {\"b\": [2, {\"c\": 3}], \"d\": 4}, {}]");
+    assertEquals(Arrays.asList("a", "b", null), readFirstFields(dataFile.toString()));
+  }
+
+  @Test
+  public void readsFilesFromTheClasspath() throws IOException {
+    assertEquals(300, JsonDataFile.readArray(Main.TODO_DATA_FILE, parser -> parser.skipChildren()));
+  }
+
+  @Test
+  public void failsIfTheFileIsMissing() {
+    Throwable exception = Assertions.assertThrows(IOException.class, () -> {
+      readFirstFields("/no/such/file.json");
+    });
+    assertEquals("Could not find /no/such/file.json", exception.getMessage());
+  }
+
+  @Test
+  public void failsIfTheFileIsNotAnArrayOfObjects() throws IOException {
+    Files.writeString(dataFile, "{\"a\": 1}");
+    Assertions.assertThrows(IOException.class, () -> {
+      readFirstFields(dataFile.toString());
+    });
+
+    Files.writeString(dataFile, "[{\"a\": 1}, 2]");
+    Throwable exception = Assertions.assertThrows(IOException.class, () -> {
+      readFirstFields(dataFile.toString());
+    });
+    assertEquals("Element 1 of " + dataFile + " should be a JSON object", exception.getMessage());
+  }
+
+  @Test
+  public void canLoadTodosFromTheFilesystem() throws IOException {
+    Files.writeString(dataFile, "[{\"_id\": \"58895985a22c04e761776d54\", \"owner\": \"Blanche\", \"status\": true,"
+        + " \"body\": \"In sunt ex\", \"category\": \"software design\", \"tags\": [\"extra\", {\"a\": 1}]},"
+        + " {\"_id\": \"58895985c1849992336c219b\", \"owner\": \"Fry\", \"body\": null,"
+        + " \"category\": \"video games\"}]");
+
+    TodoDatabase db = new TodoDatabase(dataFile.toString());
+
+    assertEquals(2, db.size());
+    Todo first = db.getTodo("58895985a22c04e761776d54");
+    assertEquals("Blanche", first.owner);
+    assertEquals(true, first.status);
+    assertEquals("In sunt ex", first.body);
+    assertEquals("software design", first.category);
+    // Fields that are missing (or null) in one todo don't carry over from
+    // the one before it.
+    Todo second = db.getTodo("58895985c1849992336c219b");
+    assertEquals(false, second.status);
+    assertEquals(null, second.body);
+    assertEquals(1, db.listTodos(new HashMap<>(Map.of("owner", List.of("Fry")))).length);
+  }
+
+  @Test
+  public void canLoadUsersFromTheFilesystem() throws IOException {
+    Files.writeString(dataFile, "[{\"_id\": \"588935f57546a2daea44de7c\", \"name\": \"Connie Stewart\", \"age\": 25,"
+        + " \"company\": \"OHMNET\", \"email\": \"conniestewart@ohmnet.com\"}]");
+
+    UserDatabase db = new UserDatabase(dataFile.toString());
+
+    assertEquals(1, db.size());
+    assertEquals("Connie Stewart", db.getUser("588935f57546a2daea44de7c").name);
+  }
+
+  @Test
+  public void canMeasurePeakHeap() {
+    JsonDataFile.resetPeakHeap();
+    assertEquals(true, JsonDataFile.peakHeapBytes() > 0);
+  }
+}
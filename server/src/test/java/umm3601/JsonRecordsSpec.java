@@ -0,0 +1,336 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import umm3601.todos.Todo;
+import umm3601.todos.TodoController;
+import umm3601.todos.TodoDatabase;
+import umm3601.user.User;
+import umm3601.user.UserController;
+import umm3601.user.UserDatabase;
+
+/**
+ * Tests serving pre-serialized JSON.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class JsonRecordsSpec {
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  private static Map<String, List<String>> params(String... namesAndValues) {
+    Map<String, List<String>> params = new HashMap<>();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      params.put(namesAndValues[i], List.of(namesAndValues[i + 1]));
+    }
+    return params;
+  }
+
+  // Concatenate some strings' UTF-8 bytes into a JSON array.
+  private static String toArray(String... records) {
+    byte[][] bytes = new byte[records.length][];
+    for (int i = 0; i < records.length; i++) {
+      bytes[i] = records[i].getBytes(StandardCharsets.UTF_8);
+    }
+    byte[] json = JsonRecords.toArray(records.length, new JsonRecords.Source() {
+      @Override
+      public int length(int i) {
+        return bytes[i].length;
+      }
+
+      @Override
+      public void copy(int i, byte[] destination, int at) {
+        System.arraycopy(bytes[i], 0, destination, at, bytes[i].length);
+      }
+    });
+    return new String(json, StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void joinsRecordsIntoAnArray() {
+    assertEquals("[]", toArray());
+    assertEquals("[{\"a\":1}]", toArray("{\"a\":1}"));
+    assertEquals("[{\"a\":1},{},{\"b\":\"é\"}]", toArray("{\"a\":1}", "{}", "{\"b\":\"é\"}"));
+  }
+
+  @Test
+  public void serializesLikeJackson() throws IOException {
+    Todo todo = new Todo();
+    todo._id = "58895985a22c04e761776d54";
+    todo.owner = "Blanche \"B\" Ünal";
+    todo.body = "Line one\nline two\t\\ done";
+    todo.category = null;
+    assertArrayEquals(mapper.writeValueAsBytes(todo), JsonRecords.serialize(todo));
+  }
+
+  @Test
+  public void servesTheSameTodosAsJackson() throws IOException {
+    TodoDatabase db = new TodoDatabase(Main.TODO_DATA_FILE);
+    Map<String, List<String>> query = params("category", "groceries", "orderBy", "owner");
+    assertArrayEquals(mapper.writeValueAsBytes(db.listTodos(query)), db.listTodosJson(query));
+
+    // Todos in the tail are serialized when they're written.
+    Todo todo = new Todo();
+    todo.owner = "Aaron";
+    todo.body = "Buy \"good\" milk";
+    todo.category = "groceries";
+    db.addTodo(todo);
+    String changed = db.listTodos(query)[3]._id;
+    db.updateTodo(changed, updated -> updated.status = !updated.status);
+    db.deleteTodo(db.listTodos(query)[5]._id);
+    assertEquals("Aaron", db.listTodos(query)[0].owner);
+    assertArrayEquals(mapper.writeValueAsBytes(db.listTodos(query)), db.listTodosJson(query));
+    assertArrayEquals(mapper.writeValueAsBytes(db.listTodos(params())), db.listTodosJson(params()));
+    assertEquals("[]", new String(db.listTodosJson(params("owner", "Nobody")), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void readsTheJsonBackFromASnapshot() throws IOException {
+    Path directory = Files.createTempDirectory("todos");
+    Path snapshotFile = directory.resolve("todos.snapshot");
+    try {
+      TodoDatabase saved = new TodoDatabase(Main.TODO_DATA_FILE, snapshotFile.toString());
+      TodoDatabase opened = new TodoDatabase(Main.TODO_DATA_FILE, snapshotFile.toString());
+      assertTrue(opened.snapshot().store().json().page(0).isDirect());
+      Map<String, List<String>> query = params("contains", "ipsum", "orderBy", "body");
+      assertArrayEquals(saved.listTodosJson(query), opened.listTodosJson(query));
+      assertArrayEquals(mapper.writeValueAsBytes(opened.listTodos(query)), opened.listTodosJson(query));
+      // Streaming copies the JSON out of the mapped file.
+      assertEquals(new String(opened.listTodosJson(params()), StandardCharsets.UTF_8),
+          streamTodos(opened, params(), false));
+    } finally {
+      Files.deleteIfExists(snapshotFile);
+      Files.delete(directory);
+    }
+  }
+
+  @Test
+  public void servesTheSameUsersAsJackson() throws IOException {
+    UserDatabase db = new UserDatabase(Main.USER_DATA_FILE);
+    Map<String, List<String>> query = params("company", "OHMNET");
+    assertArrayEquals(mapper.writeValueAsBytes(db.listUsers(query)), db.listUsersJson(query));
+    assertArrayEquals(mapper.writeValueAsBytes(db.listUsers(params())), db.listUsersJson(params()));
+  }
+
+  // A response body, as the output stream of a (mock) `Context`.
+  private static final class ResponseBody extends ServletOutputStream {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    @Override
+    public void write(int b) {
+      bytes.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      bytes.write(b, off, len);
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener listener) {
+    }
+
+    @Override
+    public String toString() {
+      return bytes.toString(StandardCharsets.UTF_8);
+    }
+  }
+
+  // Stream some records (as strings) to a string.
+  private static String stream(boolean ndjson, String... records) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsonRecords.RecordWriter writer = new JsonRecords.RecordWriter(out, ndjson);
+    for (int i = 0; i < records.length; i++) {
+      byte[] bytes = records[i].getBytes(StandardCharsets.UTF_8);
+      // Write records in all three ways: whole arrays, pages on the heap,
+      // and pages off the heap (like the ones mapped from a snapshot).
+      if (i % 3 == 0) {
+        writer.write(bytes);
+      } else {
+        int capacity = bytes.length + 5;
+        ByteBuffer page = i % 3 == 1 ? ByteBuffer.allocate(capacity) : ByteBuffer.allocateDirect(capacity);
+        page.put(5, bytes);
+        writer.write(page, 5, bytes.length);
+      }
+    }
+    writer.finish();
+    return out.toString(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void streamsRecords() throws IOException {
+    assertEquals("[]", stream(false));
+    assertEquals("[{\"a\":1}]", stream(false, "{\"a\":1}"));
+    assertEquals("[{\"a\":1},{},{\"b\":\"é\"},[]]", stream(false, "{\"a\":1}", "{}", "{\"b\":\"é\"}", "[]"));
+    assertEquals("", stream(true));
+    assertEquals("{\"a\":1}\n{}\n{\"b\":\"é\"}\n", stream(true, "{\"a\":1}", "{}", "{\"b\":\"é\"}"));
+    // Records bigger than the buffer used to copy them off the heap.
+    String big = "\"" + "x".repeat(20_000) + "\"";
+    assertEquals("[" + big + "," + big + "," + big + "]", stream(false, big, big, big));
+  }
+
+  // Turn an NDJSON response back into records.
+  private <T> List<T> parseLines(String ndjson, Class<T> type) throws IOException {
+    List<T> records = new ArrayList<>();
+    for (String line : ndjson.split("\n")) {
+      records.add(mapper.readValue(line, type));
+    }
+    return records;
+  }
+
+  private static String streamTodos(TodoDatabase db, Map<String, List<String>> query, boolean ndjson)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsonRecords.RecordWriter writer = new JsonRecords.RecordWriter(out, ndjson);
+    db.streamTodos(query, writer);
+    writer.finish();
+    return out.toString(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void streamsTheSameTodosAsTheyWouldBeListed() throws IOException {
+    TodoDatabase db = new TodoDatabase(Main.TODO_DATA_FILE);
+    Todo todo = new Todo();
+    todo.owner = "Aaron";
+    todo.body = "In the tail";
+    todo.category = "groceries";
+    db.addTodo(todo);
+    db.deleteTodo(db.listTodos(params("category", "groceries"))[2]._id);
+    List<Map<String, List<String>>> queries = List.of(params(), params("category", "groceries"),
+        params("category", "groceries", "limit", "10"), params("limit", "0"), params("owner", "Aaron"),
+        params("contains", "ipsum", "orderBy", "owner,-body", "limit", "30"), params("orderBy", "category"),
+        params("owner", "Nobody"));
+    for (Map<String, List<String>> query : queries) {
+      String listed = new String(db.listTodosJson(query), StandardCharsets.UTF_8);
+      assertEquals(listed, streamTodos(db, query, false));
+      String ndjson = streamTodos(db, query, true);
+      assertEquals(listed.equals("[]") ? "" : listed.substring(1, listed.length() - 1).replace("},{", "}\n{") + "\n",
+          ndjson);
+    }
+    assertEquals(List.of(db.listTodos(params("owner", "Aaron"))), parseLines(streamTodos(db, params("owner", "Aaron"),
+        true), Todo.class));
+  }
+
+  @Test
+  public void rejectsBadQueriesBeforeStreamingAnything() throws IOException {
+    TodoDatabase db = new TodoDatabase(Main.TODO_DATA_FILE);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsonRecords.RecordWriter writer = new JsonRecords.RecordWriter(out, false);
+    Assertions.assertThrows(BadRequestResponse.class, () -> {
+      db.streamTodos(params("category", "groceries", "limit", "lots"), writer);
+    });
+    Assertions.assertThrows(IllegalArgumentException.class, () -> {
+      db.streamTodos(params("status", "maybe"), writer);
+    });
+    assertEquals(0, out.size());
+  }
+
+  @Test
+  public void stopsStreamingWhenTheClientGoesAway() throws IOException {
+    TodoDatabase db = new TodoDatabase(Main.TODO_DATA_FILE);
+    OutputStream closed = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("Connection reset");
+      }
+    };
+    Assertions.assertThrows(IOException.class, () -> {
+      db.streamTodos(params(), new JsonRecords.RecordWriter(closed, false));
+    });
+    UserDatabase users = new UserDatabase(Main.USER_DATA_FILE);
+    Assertions.assertThrows(IOException.class, () -> {
+      users.streamUsers(params(), new JsonRecords.RecordWriter(closed, true));
+    });
+  }
+
+  @Test
+  public void controllersStreamWhenAsked() throws IOException {
+    TodoController todoController = new TodoController(new TodoDatabase(Main.TODO_DATA_FILE));
+    Context ctx = Mockito.mock(Context.class);
+    ResponseBody body = new ResponseBody();
+    when(ctx.outputStream()).thenReturn(body);
+    when(ctx.queryParamMap()).thenReturn(params("owner", "Blanche", "stream", "true"));
+    when(ctx.queryParam("stream")).thenReturn("true");
+    todoController.getTodos(ctx);
+    verify(ctx).contentType(JsonRecords.CONTENT_TYPE);
+    Todo[] todos = mapper.readValue(body.toString(), Todo[].class);
+    assertEquals(43, todos.length);
+    for (Todo todo : todos) {
+      assertEquals("Blanche", todo.owner);
+    }
+
+    UserController userController = new UserController(new UserDatabase(Main.USER_DATA_FILE));
+    ctx = Mockito.mock(Context.class);
+    body = new ResponseBody();
+    when(ctx.outputStream()).thenReturn(body);
+    when(ctx.queryParamMap()).thenReturn(params("company", "OHMNET"));
+    when(ctx.header("Accept")).thenReturn("application/x-ndjson");
+    userController.getUsers(ctx);
+    verify(ctx).contentType(JsonRecords.NDJSON_CONTENT_TYPE);
+    List<User> users = parseLines(body.toString(), User.class);
+    assertEquals(2, users.size());
+    for (User user : users) {
+      assertEquals("OHMNET", user.company);
+    }
+  }
+
+  @Test
+  public void streamsGzipWhenAccepted() throws IOException {
+    UserController userController = new UserController(new UserDatabase(Main.USER_DATA_FILE));
+    Context ctx = Mockito.mock(Context.class);
+    ResponseBody body = new ResponseBody();
+    when(ctx.outputStream()).thenReturn(body);
+    when(ctx.queryParamMap()).thenReturn(params("company", "OHMNET"));
+    when(ctx.header("Accept")).thenReturn("application/x-ndjson");
+    when(ctx.header("Accept-Encoding")).thenReturn("gzip, deflate, br");
+    userController.getUsers(ctx);
+    verify(ctx).header("Content-Encoding", "gzip");
+    String ndjson;
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body.bytes.toByteArray()))) {
+      ndjson = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+    assertEquals(2, parseLines(ndjson, User.class).size());
+  }
+
+  @Test
+  public void onlyStreamsWhenAsked() throws IOException {
+    Context ctx = Mockito.mock(Context.class);
+    assertNull(JsonRecords.startStream(ctx));
+    when(ctx.header("Accept")).thenReturn("application/json, text/plain");
+    assertNull(JsonRecords.startStream(ctx));
+  }
+}
@@ -0,0 +1,90 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests recording latencies and finding their quantiles.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class LatencyHistogramSpec {
+
+  @Test
+  public void emptyHistogramsAreAllZero() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.count());
+    assertEquals(0, histogram.max());
+    assertEquals(0, histogram.valueAtQuantile(0.99));
+  }
+
+  @Test
+  public void smallValuesAreExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int value = 1; value <= 100; value++) {
+      histogram.record(value);
+    }
+    assertEquals(50, histogram.valueAtQuantile(0.5));
+    assertEquals(99, histogram.valueAtQuantile(0.99));
+    assertEquals(100, histogram.valueAtQuantile(1));
+    assertEquals(1, histogram.valueAtQuantile(0));
+    assertEquals(5050, histogram.sum());
+  }
+
+  @Test
+  public void quantilesAreWithinTheBucketWidth() {
+    // Latencies spread over several orders of magnitude, from 1 µs to
+    // 10 s, as real ones are.
+    Random random = new Random(3601);
+    long[] values = new long[100_000];
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < values.length; i++) {
+      values[i] = (long) Math.pow(10, 3 + random.nextDouble() * 7);
+      histogram.record(values[i]);
+    }
+    Arrays.sort(values);
+    for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+      long exact = values[(int) Math.ceil(quantile * values.length) - 1];
+      long estimate = histogram.valueAtQuantile(quantile);
+      assertTrue(estimate >= exact, quantile + ": " + estimate + " < " + exact);
+      assertTrue(estimate <= exact + exact / 64, quantile + ": " + estimate + " is too far above " + exact);
+    }
+    assertEquals(values[values.length - 1], histogram.max());
+    assertEquals(values[values.length - 1], histogram.valueAtQuantile(1));
+    assertEquals(values.length, histogram.count());
+  }
+
+  @Test
+  public void hugeAndNegativeValuesAreClamped() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+    histogram.record(Long.MAX_VALUE);
+    assertEquals(0, histogram.valueAtQuantile(0.5));
+    assertEquals(LatencyHistogram.MAX_VALUE, histogram.valueAtQuantile(1));
+    assertEquals(LatencyHistogram.MAX_VALUE, histogram.max());
+  }
+
+  @Test
+  public void threadsCanRecordAtOnce() throws InterruptedException {
+    LatencyHistogram histogram = new LatencyHistogram();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(() -> {
+        for (int i = 1; i <= 10_000; i++) {
+          histogram.record(i);
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(40_000, histogram.count());
+    assertEquals(10_000, histogram.max());
+    assertEquals(4L * 10_000 * 10_001 / 2, histogram.sum());
+  }
+}
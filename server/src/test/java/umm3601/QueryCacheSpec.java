@@ -0,0 +1,167 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import umm3601.todos.Todo;
+import umm3601.todos.TodoDatabase;
+import umm3601.user.UserDatabase;
+
+/**
+ * Tests caching query results.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class QueryCacheSpec {
+
+  // A cache of strings, where a string weighs as much as it's long, that
+  // can hold at most 3 of them, or 10 characters.
+  private QueryCache<String> cache;
+  // How many times a query has actually been run.
+  private AtomicInteger runs;
+
+  @BeforeEach
+  public void setUp() {
+    cache = new QueryCache<>(3, 10, String::length);
+    runs = new AtomicInteger();
+  }
+
+  private String query(long version, String key) {
+    return cache.get(version, key, () -> {
+      runs.incrementAndGet();
+      return key;
+    });
+  }
+
+  private static Map<String, List<String>> params(String... namesAndValues) {
+    Map<String, List<String>> params = new HashMap<>();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      params.put(namesAndValues[i], List.of(namesAndValues[i + 1]));
+    }
+    return params;
+  }
+
+  @Test
+  public void normalizesQueries() {
+    Set<String> relevant = Set.of("owner", "status", "limit");
+    String key = QueryCache.key(params("owner", "Fry", "status", "complete"), relevant);
+    assertEquals("owner=Fry&status=complete", key);
+    assertEquals(key, QueryCache.key(params("status", "complete", "owner", "Fry"), relevant));
+    assertEquals(key, QueryCache.key(params("status", "complete", "explain", "false", "owner", "Fry"), relevant));
+    assertNotEquals(key, QueryCache.key(params("owner", "Fry"), relevant));
+    // Values can't be confused with the separators.
+    assertNotEquals(QueryCache.key(params("owner", "Fry&status=complete"), relevant), key);
+    assertEquals("", QueryCache.key(params(), relevant));
+    Map<String, List<String>> empty = new HashMap<>(Map.of("owner", List.of()));
+    assertEquals("", QueryCache.key(empty, relevant));
+  }
+
+  @Test
+  public void runsEachQueryOnce() {
+    assertEquals("a", query(1, "a"));
+    assertEquals("a", query(1, "a"));
+    assertEquals("b", query(1, "b"));
+    assertEquals(2, runs.get());
+    Map<String, Object> stats = cache.stats();
+    assertEquals(2, stats.get("entries"));
+    assertEquals(2L, stats.get("weight"));
+    assertEquals(1L, stats.get("hits"));
+    assertEquals(2L, stats.get("misses"));
+  }
+
+  @Test
+  public void evictsTheLeastRecentlyUsed() {
+    query(1, "a");
+    query(1, "b");
+    query(1, "c");
+    // Using "a" makes "b" the least recently used.
+    query(1, "a");
+    query(1, "d");
+    assertEquals(4, runs.get());
+    query(1, "a");
+    query(1, "c");
+    query(1, "d");
+    assertEquals(4, runs.get());
+    query(1, "b");
+    assertEquals(5, runs.get());
+    assertEquals(2L, cache.stats().get("evictions"));
+  }
+
+  @Test
+  public void evictsToStayUnderTheWeightLimit() {
+    query(1, "aaaa");
+    query(1, "bbbb");
+    query(1, "cccc");
+    assertEquals(2, cache.stats().get("entries"));
+    assertEquals(8L, cache.stats().get("weight"));
+    // Too heavy to cache at all.
+    query(1, "dddddddddddd");
+    query(1, "dddddddddddd");
+    assertEquals(5, runs.get());
+    assertEquals(2, cache.stats().get("entries"));
+  }
+
+  @Test
+  public void forgetsEverythingWhenTheDataChanges() {
+    query(1, "a");
+    query(1, "b");
+    query(2, "a");
+    assertEquals(3, runs.get());
+    assertEquals(1, cache.stats().get("entries"));
+    assertEquals(1L, cache.stats().get("invalidations"));
+    // A query against older data doesn't use the cache, or disturb it.
+    assertSame("a", query(1, "a"));
+    assertEquals(4, runs.get());
+    query(2, "a");
+    assertEquals(4, runs.get());
+  }
+
+  @Test
+  public void doesntCacheResultsThatWereOutOfDateBeforeTheyFinished() {
+    cache.get(1, "a", () -> {
+      // The data changes while this query is running.
+      query(2, "b");
+      return "a";
+    });
+    query(2, "a");
+    assertEquals(2, runs.get());
+  }
+
+  @Test
+  public void cachesTodoQueriesUntilTheTodosChange() throws Exception {
+    TodoDatabase db = new TodoDatabase(Main.TODO_DATA_FILE);
+    Map<String, List<String>> query = params("category", "video games", "orderBy", "owner", "limit", "5");
+    Todo[] first = db.listTodos(query);
+    assertArrayEquals(first, db.listTodos(params("limit", "5", "orderBy", "owner", "category", "video games")));
+    assertEquals(1L, db.cacheStats().get("hits"));
+
+    Todo todo = new Todo();
+    todo.owner = "Aaron";
+    todo.category = "video games";
+    db.addTodo(todo);
+    Todo[] second = db.listTodos(query);
+    assertEquals("Aaron", second[0].owner);
+    assertEquals(1L, db.cacheStats().get("invalidations"));
+  }
+
+  @Test
+  public void cachesUserQueriesUntilTheUsersChange() throws Exception {
+    UserDatabase db = new UserDatabase(Main.USER_DATA_FILE);
+    assertArrayEquals(db.listUsersJson(params("age", "25")), db.listUsersJson(params("age", "25", "name", "Connie")));
+    assertEquals(1L, db.cacheStats().get("hits"));
+    db.reload();
+    db.listUsers(params("age", "25"));
+    assertEquals(1L, db.cacheStats().get("hits"));
+    assertEquals(1L, db.cacheStats().get("invalidations"));
+  }
+}
@@ -0,0 +1,132 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+
+/**
+ * Tests measuring requests and serving the measurements.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class RequestMetricsSpec {
+
+  private RequestMetrics metrics;
+
+  @Mock
+  private Context ctx;
+
+  @BeforeEach
+  public void setUp() {
+    MockitoAnnotations.openMocks(this);
+    metrics = new RequestMetrics();
+  }
+
+  // The lines of the metrics that start with a prefix.
+  private List<String> lines(String prefix) {
+    return metrics.prometheus().lines().filter(line -> line.startsWith(prefix)).toList();
+  }
+
+  @Test
+  public void addsTheRouteAndTheHandlers() {
+    Javalin server = Mockito.mock(Javalin.class);
+    metrics.addRoutes(server);
+    verify(server).before(any());
+    verify(server).after(any());
+    verify(server).get(eq("/api/metrics"), any());
+  }
+
+  @Test
+  public void measuresRequestsAroundTheirRoutes() {
+    metrics.started(ctx);
+    assertEquals(1, metrics.inFlight());
+    when(ctx.method()).thenReturn(HandlerType.GET);
+    when(ctx.endpointHandlerPath()).thenReturn("/api/todos/{id}");
+    when(ctx.statusCode()).thenReturn(200);
+    metrics.finished(ctx);
+    assertEquals(0, metrics.inFlight());
+    assertEquals(List.of("http_requests_total{method=\"GET\",route=\"/api/todos/{id}\"} 1"),
+        lines("http_requests_total"));
+    assertEquals(List.of("http_request_errors_total{method=\"GET\",route=\"/api/todos/{id}\"} 0"),
+        lines("http_request_errors_total"));
+  }
+
+  @Test
+  public void countsUnmatchedRequestsAndErrors() {
+    metrics.record(HandlerType.POST, "/api/todos", 500, 1_000_000);
+    metrics.record(HandlerType.POST, "/api/todos", 201, 3_000_000);
+    metrics.record(HandlerType.GET, RequestMetrics.UNMATCHED, 404, 1_000);
+
+    when(ctx.method()).thenReturn(HandlerType.GET);
+    when(ctx.endpointHandlerPath()).thenReturn("");
+    metrics.started(ctx);
+    metrics.finished(ctx);
+
+    assertEquals(List.of("http_requests_total{method=\"GET\",route=\"(unmatched)\"} 2",
+        "http_requests_total{method=\"POST\",route=\"/api/todos\"} 2"), lines("http_requests_total"));
+    assertEquals(List.of("http_request_errors_total{method=\"GET\",route=\"(unmatched)\"} 0",
+        "http_request_errors_total{method=\"POST\",route=\"/api/todos\"} 1"), lines("http_request_errors_total"));
+    assertTrue(lines("http_request_duration_seconds_max{method=\"POST\"").get(0).endsWith(" 0.003"));
+    assertEquals(List.of("http_request_duration_seconds_sum{method=\"POST\",route=\"/api/todos\"} 0.004"),
+        lines("http_request_duration_seconds_sum{method=\"POST\""));
+  }
+
+  @Test
+  public void ignoresRequestsItDidNotSeeStart() throws InterruptedException {
+    when(ctx.method()).thenReturn(HandlerType.GET);
+    metrics.finished(ctx);
+    assertEquals(List.of(), lines("http_requests_total{"));
+
+    // A request started on another thread isn't this thread's, and a
+    // request is only counted once.
+    Thread other = new Thread(() -> metrics.started(ctx));
+    other.start();
+    other.join();
+    metrics.finished(ctx);
+    assertEquals(List.of(), lines("http_requests_total{"));
+    assertEquals(1, metrics.inFlight());
+    metrics.started(ctx);
+    metrics.finished(ctx);
+    metrics.finished(ctx);
+    assertEquals(List.of("http_requests_total{method=\"GET\",route=\"(unmatched)\"} 1"),
+        lines("http_requests_total{"));
+    assertEquals(1, metrics.inFlight());
+  }
+
+  @Test
+  public void servesPrometheusText() {
+    for (int i = 1; i <= 1000; i++) {
+      metrics.record(HandlerType.GET, "/api/users", 200, i * 1_000L);
+    }
+    metrics.getMetrics(ctx);
+    verify(ctx).contentType(RequestMetrics.CONTENT_TYPE);
+    ArgumentCaptor<String> body = ArgumentCaptor.forClass(String.class);
+    verify(ctx).result(body.capture());
+    String text = body.getValue();
+    assertTrue(text.contains("# TYPE http_request_duration_seconds summary\n"));
+    assertTrue(text.contains("http_requests_in_flight 0\n"));
+    // The 99th percentile of 1..1000 µs is 990 µs, give or take a bucket.
+    String p99 = lines("http_request_duration_seconds{method=\"GET\",route=\"/api/users\",quantile=\"0.99\"}")
+        .get(0);
+    double seconds = Double.parseDouble(p99.substring(p99.lastIndexOf(' ') + 1));
+    assertTrue(seconds >= 0.000990 && seconds <= 0.000990 * 1.016, p99);
+    for (String line : text.lines().toList()) {
+      assertTrue(line.startsWith("#") || line.matches("[a-z_]+(\\{.*\\})? [0-9.E-]+"), line);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests picking the threads requests are handled on.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class RequestThreadsSpec {
+
+  @Test
+  public void readsSettings() {
+    assertFalse(RequestThreads.parse(null, null).isVirtual());
+    assertFalse(RequestThreads.parse("platform", "500").isVirtual());
+    assertTrue(RequestThreads.parse(" Virtual ", null).isVirtual());
+    assertThrows(IllegalArgumentException.class, () -> RequestThreads.parse("green", null));
+    assertThrows(IllegalArgumentException.class, () -> RequestThreads.parse(null, "lots"));
+    assertThrows(IllegalArgumentException.class, () -> RequestThreads.parse(null, "2"));
+  }
+
+  @Test
+  public void platformThreadsArePooled() {
+    ThreadPool pool = RequestThreads.parse("platform", "500").threadPool();
+    assertEquals(500, ((QueuedThreadPool) pool).getMaxThreads());
+    assertEquals(RequestThreads.DEFAULT_MAX_THREADS,
+        ((QueuedThreadPool) RequestThreads.DEFAULT.threadPool()).getMaxThreads());
+    assertEquals(pool.getClass(), RequestThreads.DEFAULT.jettyServer().getThreadPool().getClass());
+  }
+
+  @Test
+  public void virtualThreadsRunEveryTaskAtOnce() throws Exception {
+    ThreadPool pool = new RequestThreads(true, RequestThreads.DEFAULT_MAX_THREADS).threadPool();
+    // Far more tasks than a platform pool would have threads, all
+    // waiting for each other: they only finish if they all run at once.
+    int tasks = 10_000;
+    CountDownLatch started = new CountDownLatch(tasks);
+    CountDownLatch release = new CountDownLatch(1);
+    CompletableFuture<Boolean> virtual = new CompletableFuture<>();
+    for (int i = 0; i < tasks; i++) {
+      pool.execute(() -> {
+        virtual.complete(Thread.currentThread().isVirtual());
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+    }
+    assertTrue(started.await(30, TimeUnit.SECONDS));
+    assertTrue(virtual.get());
+    assertEquals(tasks, pool.getThreads());
+    assertEquals(0, pool.getIdleThreads());
+    assertFalse(pool.isLowOnThreads());
+    release.countDown();
+  }
+}
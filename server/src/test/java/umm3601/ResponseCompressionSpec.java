@@ -0,0 +1,187 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import umm3601.todos.TodoController;
+import umm3601.todos.TodoDatabase;
+
+/**
+ * Tests gzipping API responses.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ResponseCompressionSpec {
+
+  @Mock
+  private Context ctx;
+
+  @BeforeEach
+  public void setUp() {
+    MockitoAnnotations.openMocks(this);
+  }
+
+  private static byte[] gunzip(byte[] gzipped) throws IOException {
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+      return in.readAllBytes();
+    }
+  }
+
+  // The body the most recent response was sent with.
+  private byte[] sentBody() {
+    ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx).result(body.capture());
+    return body.getValue();
+  }
+
+  @Test
+  public void readsAcceptEncoding() {
+    assertTrue(ResponseCompression.acceptsGzip("gzip, deflate, br"));
+    assertTrue(ResponseCompression.acceptsGzip("br;q=1.0, GZIP;q=0.5"));
+    assertTrue(ResponseCompression.acceptsGzip("x-gzip"));
+    assertTrue(ResponseCompression.acceptsGzip("*"));
+    assertFalse(ResponseCompression.acceptsGzip(null));
+    assertFalse(ResponseCompression.acceptsGzip("identity"));
+    assertFalse(ResponseCompression.acceptsGzip("gzip;q=0"));
+    assertFalse(ResponseCompression.acceptsGzip("gzip;q=0.0, *"));
+    assertFalse(ResponseCompression.acceptsGzip("gzip;q=zero"));
+    assertTrue(ResponseCompression.accepts("gzip, br", "br"));
+    assertFalse(ResponseCompression.accepts("gzip", "br"));
+    assertFalse(ResponseCompression.accepts("*;q=0", "br"));
+  }
+
+  @Test
+  public void readsSettings() {
+    ResponseCompression.parse(null, null);
+    ResponseCompression.parse(" 0 ", "9");
+    assertThrows(IllegalArgumentException.class, () -> ResponseCompression.parse("1024", "10"));
+    assertThrows(IllegalArgumentException.class, () -> ResponseCompression.parse("1024", "-1"));
+    assertThrows(IllegalArgumentException.class, () -> ResponseCompression.parse("big", null));
+  }
+
+  @Test
+  public void gzipsBigResponsesForClientsThatAcceptIt() throws IOException {
+    byte[] body = "{\"owner\":\"Fry\"},".repeat(100).getBytes();
+    when(ctx.header("Accept-Encoding")).thenReturn("gzip");
+    new ResponseCompression(1024, 6).send(ctx, body);
+    verify(ctx).header("Content-Encoding", "gzip");
+    verify(ctx).header("Vary", HttpCaching.VARY);
+    byte[] sent = sentBody();
+    assertTrue(sent.length < body.length / 10);
+    assertArrayEquals(body, gunzip(sent));
+  }
+
+  @Test
+  public void sendsOtherResponsesAsTheyAre() {
+    byte[] small = "[]".getBytes();
+    byte[] big = new byte[4096];
+    when(ctx.header("Accept-Encoding")).thenReturn("gzip");
+    ResponseCompression.DEFAULT.send(ctx, small);
+    assertSame(small, sentBody());
+
+    // Level 0 turns compression off.
+    MockitoAnnotations.openMocks(this);
+    when(ctx.header("Accept-Encoding")).thenReturn("gzip");
+    new ResponseCompression(0, 0).send(ctx, big);
+    assertSame(big, sentBody());
+
+    MockitoAnnotations.openMocks(this);
+    when(ctx.header("Accept-Encoding")).thenReturn("identity");
+    ResponseCompression.DEFAULT.send(ctx, big);
+    assertSame(big, sentBody());
+    verify(ctx, never()).header(eq("Content-Encoding"), any());
+  }
+
+  @Test
+  public void controllersGzipLists() throws IOException {
+    TodoDatabase db = new TodoDatabase(Main.TODO_DATA_FILE);
+    TodoController controller = new TodoController(db, HttpCaching.DEFAULT, ResponseCompression.DEFAULT);
+    Map<String, List<String>> query = Map.of("owner", List.of("Fry"));
+    when(ctx.queryParamMap()).thenReturn(query);
+    when(ctx.header("Accept-Encoding")).thenReturn("gzip, deflate, br");
+    controller.getTodos(ctx);
+    verify(ctx).header("Content-Encoding", "gzip");
+    assertArrayEquals(db.listTodosJson(query), gunzip(sentBody()));
+
+    // Pages, too.
+    MockitoAnnotations.openMocks(this);
+    Map<String, List<String>> page = Map.of("cursor", List.of(""), "limit", List.of("50"));
+    when(ctx.queryParamMap()).thenReturn(page);
+    when(ctx.header("Accept-Encoding")).thenReturn("gzip");
+    controller.getTodos(ctx);
+    verify(ctx).header("Content-Encoding", "gzip");
+    assertArrayEquals(db.listTodosPage(page), gunzip(sentBody()));
+  }
+
+  // A response body, as the output stream of a (mock) `Context`.
+  private static final class ResponseBody extends ServletOutputStream {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    @Override
+    public void write(int b) {
+      bytes.write(b);
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener listener) {
+    }
+  }
+
+  @Test
+  public void streamedResponsesStartGzippingOnTheFirstWrite() throws IOException {
+    TodoController controller = new TodoController(new TodoDatabase(Main.TODO_DATA_FILE), HttpCaching.DEFAULT,
+        ResponseCompression.DEFAULT);
+    ResponseBody response = new ResponseBody();
+    when(ctx.outputStream()).thenReturn(response);
+    when(ctx.queryParam("stream")).thenReturn("true");
+    when(ctx.header("Accept-Encoding")).thenReturn("gzip");
+
+    // A streamed request that's rejected gets a plain error response.
+    when(ctx.queryParamMap()).thenReturn(Map.of("stream", List.of("true"), "limit", List.of("abc")));
+    assertThrows(BadRequestResponse.class, () -> controller.getTodos(ctx));
+    verify(ctx, never()).header(eq("Content-Encoding"), any());
+    assertEquals(0, response.bytes.size());
+
+    MockitoAnnotations.openMocks(this);
+    response = new ResponseBody();
+    when(ctx.outputStream()).thenReturn(response);
+    when(ctx.queryParam("stream")).thenReturn("true");
+    when(ctx.header("Accept-Encoding")).thenReturn("gzip");
+    when(ctx.queryParamMap()).thenReturn(Map.of("stream", List.of("true"), "owner", List.of("Fry")));
+    controller.getTodos(ctx);
+    verify(ctx).header("Content-Encoding", "gzip");
+    assertArrayEquals(new TodoDatabase(Main.TODO_DATA_FILE).listTodosJson(Map.of("owner", List.of("Fry"))),
+        gunzip(response.bytes.toByteArray()));
+  }
+}
@@ -0,0 +1,189 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.NotFoundResponse;
+
+/**
+ * Tests serving the client's files.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class StaticAssetsSpec {
+
+  private static final String SCRIPT = "function hello() {\n  console.log('Hello');\n}\n".repeat(20);
+  private static final String PAGE = "<html><head>\n"
+      + "  <script type=\"text/javascript\" src=\"/javascript/hello.js\"></script>\n"
+      + "</head><body><a href=\"/other.html\">Other</a></body></html>\n";
+
+  private Path directory;
+
+  @Mock
+  private Context ctx;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    MockitoAnnotations.openMocks(this);
+    directory = Files.createTempDirectory("client");
+    Files.createDirectory(directory.resolve("javascript"));
+    Files.writeString(directory.resolve("javascript/hello.js"), SCRIPT);
+    Files.writeString(directory.resolve("index.html"), PAGE);
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  private StaticAssets load() throws IOException {
+    return StaticAssets.load(directory.toString());
+  }
+
+  // The fingerprinted path the script is served at.
+  private static String scriptPath(StaticAssets assets) {
+    return assets.paths().stream()
+        .filter(path -> path.matches("/javascript/hello\\.[0-9a-f]{10}\\.js"))
+        .findFirst().orElseThrow();
+  }
+
+  private byte[] sentBody() {
+    ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx).result(body.capture());
+    return body.getValue();
+  }
+
+  private String sentEtag() {
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(eq("ETag"), etag.capture());
+    return etag.getValue();
+  }
+
+  private static byte[] gunzip(byte[] gzipped) throws IOException {
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+      return in.readAllBytes();
+    }
+  }
+
+  @Test
+  public void servesEveryFileWithAFingerprintedName() throws IOException {
+    StaticAssets assets = load();
+    String script = scriptPath(assets);
+    assertEquals(List.of("/", "/index.html", script, "/javascript/hello.js"),
+        assets.paths().stream().sorted().toList());
+
+    Javalin server = Mockito.mock(Javalin.class);
+    assets.addRoutes(server);
+    verify(server).get(eq(script), any());
+    verify(server).get(eq("/"), any());
+
+    assets.send(ctx, script);
+    verify(ctx).header("Cache-Control", StaticAssets.IMMUTABLE);
+    verify(ctx).contentType("text/javascript; charset=utf-8");
+    assertArrayEquals(SCRIPT.getBytes(StandardCharsets.UTF_8), sentBody());
+  }
+
+  @Test
+  public void rewritesPagesToUseFingerprintedNames() throws IOException {
+    StaticAssets assets = load();
+    assets.send(ctx, "/");
+    String page = new String(sentBody(), StandardCharsets.UTF_8);
+    assertEquals(PAGE.replace("/javascript/hello.js", scriptPath(assets)), page);
+    verify(ctx).header("Cache-Control", HttpCaching.DEFAULT_CACHE_CONTROL);
+    verify(ctx).contentType("text/html; charset=utf-8");
+  }
+
+  @Test
+  public void fingerprintsChangeWithTheContents() throws IOException {
+    String before = scriptPath(load());
+    Files.writeString(directory.resolve("javascript/hello.js"), SCRIPT + "hello();\n");
+    assertNotEquals(before, scriptPath(load()));
+  }
+
+  @Test
+  public void sendsTheSmallestEncodingAccepted() throws IOException {
+    // A Brotli copy, as a build step would make (these aren't really
+    // Brotli, but it's only the bytes that matter here).
+    byte[] brotli = {1, 2, 3};
+    Files.write(directory.resolve("javascript/hello.js.br"), brotli);
+    StaticAssets assets = load();
+    String script = scriptPath(assets);
+
+    when(ctx.header("Accept-Encoding")).thenReturn("gzip, deflate, br");
+    assets.send(ctx, script);
+    verify(ctx).header("Content-Encoding", "br");
+    verify(ctx).header("Vary", "Accept-Encoding");
+    assertArrayEquals(brotli, sentBody());
+    String brotliEtag = sentEtag();
+
+    MockitoAnnotations.openMocks(this);
+    when(ctx.header("Accept-Encoding")).thenReturn("gzip");
+    assets.send(ctx, script);
+    verify(ctx).header("Content-Encoding", "gzip");
+    byte[] gzipped = sentBody();
+    assertTrue(gzipped.length < SCRIPT.length() / 5);
+    assertArrayEquals(SCRIPT.getBytes(StandardCharsets.UTF_8), gunzip(gzipped));
+    assertNotEquals(brotliEtag, sentEtag());
+
+    MockitoAnnotations.openMocks(this);
+    assets.send(ctx, script);
+    verify(ctx, never()).header(eq("Content-Encoding"), any());
+    assertArrayEquals(SCRIPT.getBytes(StandardCharsets.UTF_8), sentBody());
+  }
+
+  @Test
+  public void answersNotModifiedForAMatchingEtag() throws IOException {
+    StaticAssets assets = load();
+    when(ctx.header("Accept-Encoding")).thenReturn("gzip");
+    assets.send(ctx, "/index.html");
+    String etag = sentEtag();
+
+    MockitoAnnotations.openMocks(this);
+    when(ctx.header("Accept-Encoding")).thenReturn("gzip");
+    when(ctx.header("If-None-Match")).thenReturn(etag);
+    assets.send(ctx, "/index.html");
+    verify(ctx).status(HttpStatus.NOT_MODIFIED);
+    verify(ctx, never()).result(any(byte[].class));
+  }
+
+  @Test
+  public void missingFilesAndDirectories() throws IOException {
+    StaticAssets assets = load();
+    assertThrows(NotFoundResponse.class, () -> assets.send(ctx, "/nope.js"));
+    assertThrows(NoSuchFileException.class, () -> StaticAssets.load(directory.resolve("nope").toString()));
+  }
+}
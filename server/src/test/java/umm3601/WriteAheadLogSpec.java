@@ -0,0 +1,162 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests appending to a write-ahead log, and replaying it (including after
+ * a crash part way through a write).
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class WriteAheadLogSpec {
+
+  private Path logFile;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    logFile = Files.createTempFile("writes", ".log");
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(logFile);
+  }
+
+  private List<String> replay() throws IOException {
+    List<String> records = new ArrayList<>();
+    int count = WriteAheadLog.replay(logFile, record -> {
+      byte[] bytes = new byte[record.remaining()];
+      record.get(bytes);
+      records.add(new String(bytes, StandardCharsets.UTF_8));
+    });
+    assertEquals(records.size(), count);
+    return records;
+  }
+
+  private static byte[] utf8(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void replaysWhatWasAppended() throws IOException {
+    try (WriteAheadLog log = new WriteAheadLog(logFile, 0)) {
+      assertEquals(1, log.append(utf8("first")));
+      assertEquals(2, log.append(utf8("")));
+      long last = log.append(utf8("crème brûlée"));
+      log.awaitDurable(last);
+      assertEquals(3, log.records());
+      assertTrue(log.batches() >= 1);
+    }
+    assertEquals(List.of("first", "", "crème brûlée"), replay());
+
+    // Appending again carries on from the end.
+    try (WriteAheadLog log = new WriteAheadLog(logFile, 100)) {
+      log.awaitDurable(log.append(new byte[100_000]));
+    }
+    List<String> records = replay();
+    assertEquals(4, records.size());
+    assertEquals(100_000, records.get(3).length());
+  }
+
+  @Test
+  public void replaysNothingIfThereIsNoLog() throws IOException {
+    Files.delete(logFile);
+    assertEquals(List.of(), replay());
+  }
+
+  @Test
+  public void cutsOffAnIncompleteRecordAtTheEnd() throws IOException {
+    try (WriteAheadLog log = new WriteAheadLog(logFile, 0)) {
+      log.append(utf8("saved"));
+      log.append(utf8("also saved"));
+    }
+    long goodSize = Files.size(logFile);
+    // The start of a record, as if the server died while writing it.
+    Files.write(logFile, new byte[] {0, 0, 0, 20, 1, 2}, StandardOpenOption.APPEND);
+
+    assertEquals(List.of("saved", "also saved"), replay());
+    assertEquals(goodSize, Files.size(logFile));
+
+    // New records follow on from the last good one.
+    try (WriteAheadLog log = new WriteAheadLog(logFile, 0)) {
+      log.append(utf8("after the crash"));
+    }
+    assertEquals(List.of("saved", "also saved", "after the crash"), replay());
+  }
+
+  @Test
+  public void stopsAtAGarbledRecord() throws IOException {
+    try (WriteAheadLog log = new WriteAheadLog(logFile, 0)) {
+      log.append(utf8("saved"));
+      log.append(utf8("garbled"));
+    }
+    byte[] bytes = Files.readAllBytes(logFile);
+    bytes[bytes.length - 1] ^= 1;
+    Files.write(logFile, bytes);
+    assertEquals(List.of("saved"), replay());
+
+    // A nonsense length is caught too.
+    Files.write(logFile, new byte[] {(byte) 0xFF, 0, 0, 0, 0, 0, 0, 0, 0}, StandardOpenOption.APPEND);
+    assertEquals(List.of("saved"), replay());
+  }
+
+  @Test
+  public void refusesRecordsOnceClosed() throws IOException {
+    WriteAheadLog log = new WriteAheadLog(logFile, 0);
+    log.close();
+    Assertions.assertThrows(IOException.class, () -> {
+      log.append(utf8("too late"));
+    });
+  }
+
+  @Test
+  public void batchesConcurrentRecordsTogether() throws Exception {
+    int threads = 8;
+    int recordsPerThread = 200;
+    // A long batch window means each batch has time to collect records
+    // from every thread.
+    try (WriteAheadLog log = new WriteAheadLog(logFile, 2000)) {
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      List<Future<?>> writers = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        int thread = t;
+        writers.add(pool.submit(() -> {
+          for (int i = 0; i < recordsPerThread; i++) {
+            log.awaitDurable(log.append(utf8(thread + ":" + i)));
+          }
+          return null;
+        }));
+      }
+      for (Future<?> writer : writers) {
+        writer.get();
+      }
+      pool.shutdown();
+      assertEquals(threads * recordsPerThread, log.records());
+      assertTrue(log.batches() < log.records(), log.batches() + " batches");
+    }
+
+    // Each thread's records are in the order it wrote them.
+    int[] next = new int[threads];
+    for (String record : replay()) {
+      String[] parts = record.split(":");
+      int thread = Integer.parseInt(parts[0]);
+      assertEquals(next[thread]++, Integer.parseInt(parts[1]));
+    }
+  }
+}
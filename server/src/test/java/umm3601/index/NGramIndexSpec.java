@@ -0,0 +1,112 @@
+package umm3601.index;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the n-gram index used for `contains` searches.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class NGramIndexSpec {
+
+  private static final String[] TEXTS = {
+    "the quick brown fox",
+    "jumps over the lazy dog",
+    "quick quick quick",
+    null,
+    "",
+  };
+
+  @Test
+  public void findsRowsContainingTerm() {
+    NGramIndex index = NGramIndex.build(TEXTS);
+    assertEquals(bits(0, 2), index.candidates("quick"));
+    assertEquals(bits(0, 1), index.candidates("the"));
+    assertEquals(bits(1), index.candidates("lazy dog"));
+  }
+
+  @Test
+  public void returnsNothingForUnknownTrigrams() {
+    NGramIndex index = NGramIndex.build(TEXTS);
+    assertEquals(new BitSet(), index.candidates("potato"));
+  }
+
+  @Test
+  public void candidatesAreASupersetThatNeedsChecking() {
+    // Both rows have all the trigrams of "abcab", but only one
+    // actually contains it.
+    NGramIndex index = NGramIndex.build(new String[] {"abcab", "abcxbcab", "xyz"});
+    assertEquals(bits(0, 1), index.candidates("abcab"));
+  }
+
+  @Test
+  public void returnsNullForShortTerms() {
+    NGramIndex index = NGramIndex.build(TEXTS);
+    assertNull(index.candidates("qu"));
+    assertNull(index.candidates(""));
+  }
+
+  @Test
+  public void supportsOtherGramLengths() {
+    NGramIndex index = NGramIndex.build(TEXTS, 2, 100);
+    assertEquals(2, index.gramLength());
+    assertEquals(bits(1), index.candidates("zy"));
+    assertThrows(IllegalArgumentException.class, () -> NGramIndex.build(TEXTS, 0, 100));
+    assertThrows(IllegalArgumentException.class, () -> NGramIndex.build(TEXTS, 9, 100));
+  }
+
+  @Test
+  public void dropsCommonGramsToStayWithinBudget() {
+    Random random = new Random(3601);
+    String[] texts = new String[2000];
+    for (int i = 0; i < texts.length; i++) {
+      StringBuilder text = new StringBuilder("common prefix ");
+      for (int j = 0; j < 20; j++) {
+        text.append((char) ('a' + random.nextInt(26)));
+      }
+      texts[i] = text.toString();
+    }
+    NGramIndex index = NGramIndex.build(texts, 3, 4);
+    assertTrue(index.retainedPostings() <= 4L * texts.length);
+    assertTrue(index.retainedGrams() < index.totalGrams());
+    assertTrue(index.estimatedBytes() > 0);
+    // Every trigram of "common prefix" appears in every row, so they
+    // should all have been dropped, leaving the index unable to help.
+    assertNull(index.candidates("common prefix"));
+    // But the rare trigrams are still there, and still find the right row.
+    String term = texts[1234].substring(14, 24);
+    assertTrue(index.candidates(term).get(1234));
+  }
+
+  @Test
+  public void matchesNonAsciiText() {
+    NGramIndex index = NGramIndex.build(new String[] {"crème brûlée", "creme brulee", "日本語のテキスト"});
+    assertEquals(bits(0), index.candidates("brûl"));
+    assertEquals(bits(2), index.candidates("テキ"));
+  }
+
+  @Test
+  public void growsItsHashTable() {
+    String[] texts = new String[3000];
+    for (int i = 0; i < texts.length; i++) {
+      texts[i] = String.format("row%05d", i);
+    }
+    NGramIndex index = NGramIndex.build(texts);
+    assertEquals(bits(1234), index.candidates("row01234"));
+  }
+
+  private static BitSet bits(int... rows) {
+    BitSet bits = new BitSet();
+    for (int row : rows) {
+      bits.set(row);
+    }
+    return bits;
+  }
+}
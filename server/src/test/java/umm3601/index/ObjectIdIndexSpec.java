@@ -0,0 +1,110 @@
+package umm3601.index;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the `_id` index used by the todo and user "databases".
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ObjectIdIndexSpec {
+
+  @Test
+  public void findsEveryRowById() {
+    String[] ids = new String[1000];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = String.format("58895985%016x", i * 7919L);
+    }
+    ObjectIdIndex index = ObjectIdIndex.build(ids);
+    for (int i = 0; i < ids.length; i++) {
+      assertEquals(i, index.find(ids[i]));
+    }
+  }
+
+  @Test
+  public void returnsMinusOneForUnknownIds() {
+    ObjectIdIndex index = ObjectIdIndex.build(new String[] {"5889598559efd8cf490ef771"});
+    assertEquals(-1, index.find("5889598559efd8cf490ef772"));
+    assertEquals(-1, index.find(null));
+    assertEquals(-1, index.find("not an id"));
+    assertEquals(-1, index.find(""));
+  }
+
+  @Test
+  public void firstRowWinsForDuplicateIds() {
+    ObjectIdIndex index = ObjectIdIndex.build(new String[] {
+      "5889598559efd8cf490ef771", "5889598559efd8cf490ef771", "oddball", "oddball"
+    });
+    assertEquals(0, index.find("5889598559efd8cf490ef771"));
+    assertEquals(2, index.find("oddball"));
+  }
+
+  @Test
+  public void handlesIdsThatAreNotObjectIds() {
+    ObjectIdIndex index = ObjectIdIndex.build(new String[] {
+      "5889598559EFD8CF490EF771", "5889598559efd8cf490ef771", "short", null
+    });
+    assertEquals(0, index.find("5889598559EFD8CF490EF771"));
+    assertEquals(1, index.find("5889598559efd8cf490ef771"));
+    assertEquals(2, index.find("short"));
+  }
+
+  @Test
+  public void formatsDecodedIdsBackToStrings() {
+    String id = "5889598559efd8cf490ef771";
+    assertEquals(id, ObjectIdIndex.format(ObjectIdIndex.decodeHigh(id), ObjectIdIndex.decodeLow(id)));
+    assertEquals("ffffffffffffffff80000000", ObjectIdIndex.format(-1L, Integer.MIN_VALUE));
+  }
+
+  @Test
+  public void canAddDecodedIds() {
+    String id = "5889598559efd8cf490ef771";
+    ObjectIdIndex index = ObjectIdIndex.withCapacity(2);
+    index.add(ObjectIdIndex.decodeHigh(id), ObjectIdIndex.decodeLow(id), 1);
+    index.add(ObjectIdIndex.decodeHigh(id), ObjectIdIndex.decodeLow(id), 0);
+    assertEquals(1, index.find(id));
+  }
+
+  @Test
+  public void worksOnAnEmptyIndex() {
+    ObjectIdIndex index = ObjectIdIndex.build(new String[0]);
+    assertEquals(-1, index.find("5889598559efd8cf490ef771"));
+  }
+
+  @Test
+  public void recognizesObjectIds() {
+    assertTrue(ObjectIdIndex.isObjectId("0123456789abcdef01234567"));
+    assertFalse(ObjectIdIndex.isObjectId("0123456789abcdef0123456g"));
+    assertFalse(ObjectIdIndex.isObjectId("0123456789abcdef0123456"));
+    assertFalse(ObjectIdIndex.isObjectId(null));
+  }
+
+  @Test
+  public void decodesBothHalves() {
+    String id = "0123456789abcdeffedcba98";
+    assertEquals(0x0123456789abcdefL, ObjectIdIndex.decodeHigh(id));
+    assertEquals(0xfedcba98, ObjectIdIndex.decodeLow(id));
+  }
+
+  @Test
+  public void ranksIdsInTheSameOrderAsTheirStrings() {
+    Random random = new Random(3601);
+    String[] ids = new String[5000];
+    for (int i = 0; i < ids.length; i++) {
+      // Plenty of ids sharing their high or low half, or the whole thing,
+      // and plenty with the top bit of either half set.
+      long high = random.nextBoolean() ? random.nextLong() : random.nextInt(4);
+      int low = random.nextBoolean() ? random.nextInt() : random.nextInt(4);
+      ids[i] = ObjectIdIndex.format(high, low);
+    }
+    int[] ranks = ObjectIdIndex.ranksOf(ids.length, row -> ObjectIdIndex.decodeHigh(ids[row]),
+        row -> ObjectIdIndex.decodeLow(ids[row]));
+    assertArrayEquals(RowOrder.ranksOf(ids), ranks);
+  }
+}
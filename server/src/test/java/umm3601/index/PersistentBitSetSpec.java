@@ -0,0 +1,62 @@
+package umm3601.index;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the copy-on-write bitmaps used to mark deleted rows.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class PersistentBitSetSpec {
+
+  @Test
+  public void theEmptySetHasNoRows() {
+    assertEquals(0, PersistentBitSet.EMPTY.cardinality());
+    assertEquals(false, PersistentBitSet.EMPTY.get(0));
+    assertEquals(false, PersistentBitSet.EMPTY.get(1_000_000));
+    assertEquals(-1, PersistentBitSet.EMPTY.nextSetBit(0));
+    assertEquals(0, PersistentBitSet.EMPTY.countBelow(100));
+  }
+
+  @Test
+  public void addingARowLeavesTheOriginalAlone() {
+    PersistentBitSet one = PersistentBitSet.EMPTY.with(5);
+    PersistentBitSet two = one.with(10_000);
+
+    assertEquals(true, one.get(5));
+    assertEquals(false, one.get(10_000));
+    assertEquals(1, one.cardinality());
+    assertEquals(true, two.get(5));
+    assertEquals(true, two.get(10_000));
+    assertEquals(2, two.cardinality());
+  }
+
+  @Test
+  public void addingARowTwiceChangesNothing() {
+    PersistentBitSet set = PersistentBitSet.EMPTY.with(63);
+    assertSame(set, set.with(63));
+  }
+
+  @Test
+  public void canWalkAndCountTheRows() {
+    PersistentBitSet set = PersistentBitSet.EMPTY;
+    int[] rows = {0, 63, 64, 4095, 4096, 20_000};
+    for (int row : rows) {
+      set = set.with(row);
+    }
+
+    int found = 0;
+    for (int row = set.nextSetBit(0); row >= 0; row = set.nextSetBit(row + 1)) {
+      assertEquals(rows[found++], row);
+    }
+    assertEquals(rows.length, found);
+    assertEquals(4095, set.nextSetBit(4000));
+    assertEquals(4096, set.nextSetBit(4096));
+    assertEquals(20_000, set.nextSetBit(4097));
+    assertEquals(-1, set.nextSetBit(20_001));
+    assertEquals(3, set.countBelow(4095));
+    assertEquals(6, set.countBelow(Integer.MAX_VALUE));
+  }
+}
@@ -0,0 +1,134 @@
+package umm3601.index;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the single-pass query planner.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class QueryPlanSpec {
+
+  private static final int ROWS = 6400;
+
+  private static BitSet multiplesOf(int n) {
+    BitSet bits = new BitSet(ROWS);
+    for (int row = 0; row < ROWS; row += n) {
+      bits.set(row);
+    }
+    return bits;
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void ordersStepsBySelectivityAndSwitchesToRowChecks() {
+    QueryPlan plan = new QueryPlan(ROWS);
+    plan.addFilter("even", ROWS / 2, QueryPlan.FIELD_CHECK_COST, row -> row % 2 == 0, multiplesOf(2));
+    plan.addFilter("multiple of 320", ROWS / 320, QueryPlan.FIELD_CHECK_COST, row -> row % 320 == 0,
+        multiplesOf(320));
+    plan.addFilter("multiple of 3", ROWS / 3, QueryPlan.FIELD_CHECK_COST, row -> row % 3 == 0, null);
+
+    int[] rows = plan.execute(Integer.MAX_VALUE);
+
+    assertEquals(ROWS / 960 + 1, rows.length);
+    for (int row : rows) {
+      assertEquals(0, row % 960);
+    }
+    List<Map<String, Object>> steps = (List<Map<String, Object>>) plan.explain().get("steps");
+    // The most selective filter drives the query through its bitmap. That
+    // leaves only 20 candidates, which is too few to be worth ANDing in
+    // the 6400-row "even" bitmap, so that becomes a row check.
+    assertEquals("multiple of 320", steps.get(0).get("filter"));
+    assertEquals("bitmap index", steps.get(0).get("access"));
+    assertEquals(20L, steps.get(0).get("actualRows"));
+    assertEquals("row check", steps.get(1).get("access"));
+    assertEquals("row check", steps.get(2).get("access"));
+    assertEquals((long) rows.length, plan.explain().get("actualRows"));
+  }
+
+  @Test
+  public void canCheckRowsOneAtATime() {
+    QueryPlan plan = new QueryPlan(ROWS);
+    plan.addFilter("even", ROWS / 2, QueryPlan.FIELD_CHECK_COST, row -> row % 2 == 0, multiplesOf(2));
+    plan.addFilter("multiple of 5", ROWS / 5, QueryPlan.FIELD_CHECK_COST, row -> row % 5 == 0, null);
+    // Assuming the filters are independent.
+    assertEquals(ROWS / 10, plan.estimateRows());
+    QueryPlan.RowPredicate matches = plan.asPredicate();
+    assertTrue(matches.test(0));
+    assertTrue(matches.test(10));
+    assertFalse(matches.test(4));
+    assertFalse(matches.test(5));
+    assertThrows(IllegalStateException.class, () -> plan.execute(1));
+
+    QueryPlan everything = new QueryPlan(ROWS);
+    assertEquals(ROWS, everything.estimateRows());
+    assertNull(everything.asPredicate());
+  }
+
+  @Test
+  public void canStopAtALimit() {
+    QueryPlan plan = new QueryPlan(ROWS);
+    plan.addFilter("odd", ROWS / 2, QueryPlan.FIELD_CHECK_COST, row -> row % 2 == 1, null);
+    assertArrayEquals(new int[] {1, 3, 5}, plan.execute(3));
+  }
+
+  @Test
+  public void returnsEveryRowWithoutFilters() {
+    QueryPlan plan = new QueryPlan(10);
+    assertEquals(10, plan.execute(Integer.MAX_VALUE).length);
+    assertEquals(10L, plan.explain().get("estimatedRows"));
+  }
+
+  @Test
+  public void usesCandidateBitmapsFirst() {
+    QueryPlan plan = new QueryPlan(ROWS);
+    BitSet candidates = multiplesOf(5);
+    plan.addFilter("everything", ROWS, QueryPlan.FIELD_CHECK_COST, row -> true, multiplesOf(1));
+    plan.addCandidates("maybe multiples of 10", candidates);
+    plan.addFilter("multiple of 10", ROWS / 5, QueryPlan.SUBSTRING_CHECK_COST, row -> row % 10 == 0, null);
+    assertEquals(ROWS / 10, plan.execute(Integer.MAX_VALUE).length);
+    assertEquals(ROWS / 5, candidates.cardinality());
+  }
+
+  @Test
+  public void handlesEmptyTables() {
+    QueryPlan plan = new QueryPlan(0);
+    plan.addFilter("anything", 0, QueryPlan.FIELD_CHECK_COST, row -> true, new BitSet());
+    assertEquals(0, plan.execute(Integer.MAX_VALUE).length);
+  }
+
+  @Test
+  public void canOnlyBeExecutedOnce() {
+    QueryPlan plan = new QueryPlan(10);
+    plan.execute(Integer.MAX_VALUE);
+    assertThrows(IllegalStateException.class, () -> plan.execute(Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void canReturnTheMatchingRowsAsABitSet() {
+    QueryPlan plan = new QueryPlan(ROWS);
+    plan.addFilter("multiple of 3", ROWS / 3, QueryPlan.FIELD_CHECK_COST, row -> row % 3 == 0, null);
+    BitSet matching = plan.executeAsBitSet();
+    assertEquals(ROWS / 3 + 1, matching.cardinality());
+    assertEquals(0, matching.nextClearBit(0) - 1);
+    assertEquals(3, matching.nextSetBit(1));
+  }
+
+  @Test
+  public void anEmptyPlanMatchesEveryRowWithoutScanning() {
+    QueryPlan plan = new QueryPlan(ROWS);
+    assertEquals(null, plan.executeAsBitSet());
+    assertEquals((long) ROWS, plan.explain().get("actualRows"));
+    assertThrows(IllegalStateException.class, plan::executeAsBitSet);
+  }
+}
@@ -0,0 +1,96 @@
+package umm3601.index;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the rank-based row ordering and top-K selection.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class RowOrderSpec {
+
+  @Test
+  public void computesDenseRanks() {
+    int[] ranks = RowOrder.ranksOf(new String[] {"pear", "apple", "pear", "fig"});
+    assertEquals(2, ranks[0]);
+    assertEquals(0, ranks[1]);
+    assertEquals(2, ranks[2]);
+    assertEquals(1, ranks[3]);
+  }
+
+  @Test
+  public void ranksNullsFirst() {
+    int[] ranks = RowOrder.ranksOf(new String[] {"pear", null, "apple", null});
+    assertEquals(2, ranks[0]);
+    assertEquals(0, ranks[1]);
+    assertEquals(1, ranks[2]);
+    assertEquals(0, ranks[3]);
+  }
+
+  @Test
+  public void topKMatchesAFullSort() {
+    Random random = new Random(3601);
+    int n = 5000;
+    Integer[] values = new Integer[n];
+    Boolean[] flags = new Boolean[n];
+    for (int i = 0; i < n; i++) {
+      values[i] = random.nextInt(100);
+      flags[i] = random.nextBoolean();
+    }
+    RowOrder order = new RowOrder(
+        new int[][] {RowOrder.ranksOf(flags), RowOrder.ranksOf(values)},
+        new boolean[] {true, false});
+
+    Integer[] expected = new Integer[n];
+    Arrays.setAll(expected, i -> i);
+    Arrays.sort(expected, Comparator.<Integer, Boolean>comparing(i -> flags[i]).reversed()
+        .thenComparing(i -> values[i])
+        .thenComparing(i -> i));
+
+    int[] rows = new int[n];
+    Arrays.setAll(rows, i -> i);
+    for (int k : new int[] {0, 1, 7, 100, n, n + 10}) {
+      int[] top = order.topK(rows.clone(), n, k);
+      assertEquals(Math.min(k, n), top.length);
+      for (int i = 0; i < top.length; i++) {
+        assertEquals((int) expected[i], top[i]);
+      }
+    }
+  }
+
+  @Test
+  public void onlyConsidersTheFirstCountRows() {
+    RowOrder order = new RowOrder(new int[][] {{3, 2, 1, 0}}, new boolean[] {false});
+    assertArrayEquals(new int[] {1, 0}, order.topK(new int[] {0, 1, 2, 3}, 2, 5));
+  }
+
+  @Test
+  public void breaksTiesByRowNumber() {
+    RowOrder order = new RowOrder(new int[][] {{0, 0, 0}}, new boolean[] {true});
+    assertEquals(-1, order.compare(0, 2));
+    assertEquals(0, order.compare(1, 1));
+  }
+
+  @Test
+  public void comparesRowsWithPointsBetweenThem() {
+    RowOrder order = new RowOrder(new int[][] {{0, 1, 1}, {2, 0, 1}}, new boolean[] {true, false});
+    // Rank 1 for the first key, and between ranks 0 and 1 for the second.
+    int[] point = {2, 1};
+    assertEquals(1, order.compareWith(0, point));
+    assertEquals(-1, order.compareWith(1, point));
+    assertEquals(1, order.compareWith(2, point));
+    assertEquals(0, order.compareWith(2, new int[] {2, 2}));
+  }
+
+  @Test
+  public void requiresADirectionPerKey() {
+    assertThrows(IllegalArgumentException.class, () -> new RowOrder(new int[][] {{0}}, new boolean[0]));
+  }
+}
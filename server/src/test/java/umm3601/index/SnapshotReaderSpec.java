@@ -0,0 +1,206 @@
+package umm3601.index;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests writing snapshot files and mapping them back in.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class SnapshotReaderSpec {
+
+  private Path file;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    file = Files.createTempFile("snapshot", ".bin");
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  @Test
+  public void readsBackWhatWasWritten() throws IOException {
+    try (SnapshotWriter out = new SnapshotWriter(file, "test")) {
+      out.writeInt(42);
+      out.writeString("crème brûlée");
+      out.writeString(null);
+      out.writeInts(IntBuffer.wrap(new int[] {1, 2, 3}));
+      out.appendInts(IntBuffer.wrap(new int[] {4, 5}));
+      out.writeLong(-7L);
+      out.writeLongs(LongBuffer.wrap(new long[] {Long.MIN_VALUE, 0, Long.MAX_VALUE}));
+      out.writeBytes(ByteBuffer.wrap("abc".getBytes(StandardCharsets.UTF_8)));
+      out.writeString("");
+      out.writeInts(IntBuffer.wrap(new int[] {9, 8, 7}).position(1));
+    }
+
+    try (SnapshotReader in = new SnapshotReader(file, "test")) {
+      assertEquals(42, in.readInt());
+      assertEquals("crème brûlée", in.readString());
+      assertNull(in.readString());
+      IntBuffer ints = in.readInts(5);
+      for (int i = 0; i < 5; i++) {
+        assertEquals(i + 1, ints.get(i));
+      }
+      assertEquals(-7L, in.readLong());
+      LongBuffer longs = in.readLongs(3);
+      assertEquals(Long.MIN_VALUE, longs.get(0));
+      assertEquals(0L, longs.get(1));
+      assertEquals(Long.MAX_VALUE, longs.get(2));
+      ByteBuffer bytes = in.readBytes(3);
+      assertEquals((byte) 'a', bytes.get(0));
+      assertEquals((byte) 'c', bytes.get(2));
+      assertEquals("", in.readString());
+      IntBuffer rest = in.readInts(2);
+      assertEquals(8, rest.get(0));
+      assertEquals(7, rest.get(1));
+    }
+  }
+
+  @Test
+  public void writesSectionsBiggerThanItsBuffer() throws IOException {
+    int[] values = new int[1_000_000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = i * 3;
+    }
+    try (SnapshotWriter out = new SnapshotWriter(file, "test")) {
+      out.writeInt(1);
+      out.writeInts(IntBuffer.wrap(values));
+    }
+    try (SnapshotReader in = new SnapshotReader(file, "test")) {
+      assertEquals(1, in.readInt());
+      IntBuffer ints = in.readInts(values.length);
+      assertEquals(0, ints.get(0));
+      assertEquals(1_500_000, ints.get(500_000));
+      assertEquals(2_999_997, ints.get(999_999));
+    }
+  }
+
+  @Test
+  public void structuresSurviveARoundTrip() throws IOException {
+    String[] texts = {"the quick brown fox", null, "jumps over the lazy dog", "", "crème brûlée", "quick quick"};
+    TextColumn column = new TextColumn();
+    for (String text : texts) {
+      column.add(text);
+    }
+    NGramIndex index = NGramIndex.build(column);
+    // Allowing only one posting per row drops most of the grams.
+    NGramIndex smallIndex = NGramIndex.build(column, 2, 1);
+    StringDictionary.Builder builder = new StringDictionary.Builder();
+    builder.add("Fry");
+    builder.add(null);
+    builder.add("Barry");
+    StringDictionary dictionary = builder.build(new int[builder.size()]);
+
+    try (SnapshotWriter out = new SnapshotWriter(file, "test")) {
+      column.writeTo(out);
+      index.writeTo(out);
+      smallIndex.writeTo(out);
+      dictionary.writeTo(out);
+    }
+
+    try (SnapshotReader in = new SnapshotReader(file, "test")) {
+      TextColumn mappedColumn = TextColumn.readFrom(in);
+      NGramIndex mappedIndex = NGramIndex.readFrom(in);
+      NGramIndex mappedSmallIndex = NGramIndex.readFrom(in);
+      StringDictionary readDictionary = StringDictionary.readFrom(in);
+
+      assertEquals(texts.length, mappedColumn.size());
+      assertTrue(mappedColumn.page(0).isDirect());
+      for (int row = 0; row < texts.length; row++) {
+        assertEquals(texts[row], mappedColumn.get(row));
+      }
+      assertTrue(mappedColumn.isNull(1));
+      assertTrue(mappedColumn.contains(4, "brûl".getBytes(StandardCharsets.UTF_8)));
+      assertFalse(mappedColumn.contains(0, "lazy".getBytes(StandardCharsets.UTF_8)));
+
+      for (String term : new String[] {"quick", "the", "lazy dog", "brûlée", "potato", "qu"}) {
+        assertEquals(index.candidates(term), mappedIndex.candidates(term));
+        assertEquals(smallIndex.candidates(term), mappedSmallIndex.candidates(term));
+      }
+      assertEquals(index.retainedGrams(), mappedIndex.retainedGrams());
+      assertEquals(index.totalGrams(), mappedIndex.totalGrams());
+      assertEquals(smallIndex.retainedPostings(), mappedSmallIndex.retainedPostings());
+      assertEquals(2, mappedSmallIndex.gramLength());
+
+      assertEquals(3, readDictionary.size());
+      assertNull(readDictionary.valueOf(0));
+      assertEquals(2, readDictionary.codeOf("Fry"));
+    }
+  }
+
+  @Test
+  public void rejectsOtherFiles() throws IOException {
+    Files.writeString(file, "This is not a snapshot at all");
+    Throwable exception = Assertions.assertThrows(IOException.class, () -> {
+      new SnapshotReader(file, "test");
+    });
+    assertEquals(file + " is not a snapshot file", exception.getMessage());
+
+    Files.write(file, new byte[0]);
+    Assertions.assertThrows(IOException.class, () -> {
+      new SnapshotReader(file, "test");
+    });
+  }
+
+  @Test
+  public void rejectsSnapshotsOfOtherThings() throws IOException {
+    new SnapshotWriter(file, "users").close();
+    Throwable exception = Assertions.assertThrows(IOException.class, () -> {
+      new SnapshotReader(file, "todos");
+    });
+    assertEquals(file + " is a snapshot of users, not todos", exception.getMessage());
+  }
+
+  @Test
+  public void rejectsOtherFormatVersions() throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+    header.putLong(SnapshotWriter.MAGIC).putInt(SnapshotWriter.FORMAT_VERSION + 1);
+    Files.write(file, header.array());
+    Throwable exception = Assertions.assertThrows(IOException.class, () -> {
+      new SnapshotReader(file, "todos");
+    });
+    assertEquals(file + " is in snapshot format " + (SnapshotWriter.FORMAT_VERSION + 1) + ", not "
+        + SnapshotWriter.FORMAT_VERSION, exception.getMessage());
+  }
+
+  @Test
+  public void rejectsTruncatedFiles() throws IOException {
+    try (SnapshotWriter out = new SnapshotWriter(file, "test")) {
+      out.writeString("some text");
+    }
+    Files.write(file, Arrays.copyOf(Files.readAllBytes(file), (int) Files.size(file) - 3));
+    try (SnapshotReader in = new SnapshotReader(file, "test")) {
+      Assertions.assertThrows(IOException.class, () -> {
+        in.readString();
+      });
+    }
+    try (SnapshotReader in = new SnapshotReader(file, "test")) {
+      Assertions.assertThrows(IOException.class, () -> {
+        in.readLongs(100);
+      });
+      Assertions.assertThrows(IOException.class, () -> {
+        in.readLong();
+      });
+    }
+  }
+}
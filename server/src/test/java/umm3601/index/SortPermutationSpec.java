@@ -0,0 +1,123 @@
+package umm3601.index;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.BitSet;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the presorted permutations used for single-field orders.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class SortPermutationSpec {
+
+  // Ranks for rows 0 to 7.
+  private static final int[] RANKS = {2, 0, 1, 0, 2, 1, 0, 2};
+
+  private static SortPermutation permutation() {
+    return SortPermutation.build(RANKS.length, row -> RANKS[row], 3);
+  }
+
+  @Test
+  public void sortsByRankThenRow() {
+    assertArrayEquals(new int[] {1, 3, 6, 2, 5, 0, 4, 7}, permutation().first(100, false, null));
+    assertEquals(8, permutation().size());
+  }
+
+  @Test
+  public void keepsTiesInRowOrderWhenDescending() {
+    assertArrayEquals(new int[] {0, 4, 7, 2, 5, 1, 3, 6}, permutation().first(100, true, null));
+  }
+
+  @Test
+  public void stopsAtTheLimit() {
+    assertArrayEquals(new int[] {1, 3, 6}, permutation().first(3, false, null));
+    assertArrayEquals(new int[] {0, 4}, permutation().first(2, true, null));
+    assertArrayEquals(new int[0], permutation().first(0, true, null));
+  }
+
+  @Test
+  public void skipsRowsNotInTheFilter() {
+    BitSet filter = new BitSet();
+    filter.set(0);
+    filter.set(3);
+    filter.set(5);
+    assertArrayEquals(new int[] {3, 5, 0}, permutation().first(100, false, filter::get));
+    assertArrayEquals(new int[] {0, 5}, permutation().first(2, true, filter::get));
+  }
+
+  // A second field for rows 0 to 7, to break ties with.
+  private static final int[] TIES = {5, 7, 1, 3, 0, 6, 4, 2};
+
+  private static SortPermutation pagePermutation() {
+    SortPermutation ties = SortPermutation.build(TIES.length, row -> TIES[row], TIES.length);
+    return SortPermutation.build(RANKS.length, row -> RANKS[row], 3, ties);
+  }
+
+  // Find a value in the page permutation, where the value of a row is ten
+  // times its rank.
+  private static int seek(int value) {
+    return pagePermutation().seek(row -> Integer.compare(RANKS[row] * 10, value));
+  }
+
+  @Test
+  public void canBreakTiesWithAnotherField() {
+    assertArrayEquals(new int[] {3, 6, 1, 2, 5, 4, 7, 0}, pagePermutation().first(100, false, null));
+    assertArrayEquals(new int[] {4, 7, 0, 2, 5, 3, 6, 1}, pagePermutation().first(100, true, null));
+  }
+
+  @Test
+  public void seeksToValues() {
+    assertEquals(0, seek(0));
+    assertEquals(2, seek(10));
+    assertEquals(4, seek(20));
+    // Values no row has fall between the ranks either side of them.
+    assertEquals(-1, seek(-5));
+    assertEquals(3, seek(15));
+    assertEquals(5, seek(25));
+  }
+
+  @Test
+  public void carriesOnAfterAPoint() {
+    SortPermutation permutation = pagePermutation();
+    // Just after row 2 (rank 1, tie 1).
+    assertArrayEquals(new int[] {5, 4, 7, 0}, permutation.after(100, false, null, 2, row -> TIES[row], 2));
+    assertArrayEquals(new int[] {5, 3, 6, 1}, permutation.after(100, true, null, 2, row -> TIES[row], 2));
+    // Between ranks 1 and 2.
+    assertArrayEquals(new int[] {4, 7, 0}, permutation.after(100, false, null, 3, row -> TIES[row], 0));
+    assertArrayEquals(new int[] {2, 5, 3, 6, 1}, permutation.after(100, true, null, 3, row -> TIES[row], 0));
+    // Rank 0, between ties 3 and 4.
+    assertArrayEquals(new int[] {6, 1, 2, 5}, permutation.after(4, false, null, 0, row -> TIES[row], 7));
+    assertArrayEquals(new int[] {6, 1}, permutation.after(100, true, null, 0, row -> TIES[row], 7));
+    // Before or after everything.
+    assertArrayEquals(new int[] {3, 6, 1}, permutation.after(3, false, null, -1, row -> TIES[row], 0));
+    assertArrayEquals(new int[0], permutation.after(100, false, null, 5, row -> TIES[row], 0));
+    assertArrayEquals(new int[] {4, 7}, permutation.after(2, true, null, 5, row -> TIES[row], 0));
+    assertArrayEquals(new int[] {5, 0}, permutation.after(100, false, row -> row % 5 == 0, 0, row -> TIES[row], 4));
+  }
+
+  @Test
+  public void listsTheRowsWithEachRank() {
+    assertEquals(3, pagePermutation().rankCount());
+    assertArrayEquals(new int[] {3, 6, 1}, pagePermutation().group(0, null));
+    assertArrayEquals(new int[] {4, 0}, pagePermutation().group(2, row -> row % 2 == 0));
+  }
+
+  @Test
+  public void seeksPastRanksNoRowHas() {
+    int[] ranks = {3, 0, 0};
+    SortPermutation permutation = SortPermutation.build(ranks.length, row -> ranks[row], 4);
+    int position = permutation.seek(row -> Integer.compare(ranks[row], 2));
+    assertEquals(5, position);
+    assertArrayEquals(new int[] {0}, permutation.after(10, false, null, position, row -> row, 0));
+    assertArrayEquals(new int[] {1, 2}, permutation.after(10, true, null, position, row -> row, 0));
+    assertArrayEquals(new int[] {2, 0}, permutation.after(10, false, null, 0, row -> row, 2));
+  }
+
+  @Test
+  public void estimatesItsSize() {
+    assertEquals((8 + 4) * Integer.BYTES, permutation().estimatedBytes());
+  }
+}
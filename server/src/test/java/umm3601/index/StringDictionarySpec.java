@@ -0,0 +1,38 @@
+package umm3601.index;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the dictionaries used to encode the owner and category columns.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class StringDictionarySpec {
+
+  @Test
+  public void assignsCodesInSortedOrder() {
+    StringDictionary.Builder builder = new StringDictionary.Builder();
+    assertEquals(0, builder.add("Fry"));
+    assertEquals(1, builder.add("Barry"));
+    assertEquals(0, builder.add("Fry"));
+    assertEquals(2, builder.add(null));
+    assertEquals(3, builder.add("Dawn"));
+    assertEquals(4, builder.size());
+
+    int[] remap = new int[builder.size()];
+    StringDictionary dictionary = builder.build(remap);
+    // `null` sorts first, then Barry, Dawn, Fry.
+    assertArrayEquals(new int[] {3, 1, 0, 2}, remap);
+    assertEquals(4, dictionary.size());
+    assertNull(dictionary.valueOf(0));
+    assertEquals("Barry", dictionary.valueOf(1));
+    assertEquals(3, dictionary.codeOf("Fry"));
+    assertEquals(0, dictionary.codeOf(null));
+    assertEquals(-1, dictionary.codeOf("Nobody"));
+    assertTrue(dictionary.estimatedBytes() > 0);
+  }
+}
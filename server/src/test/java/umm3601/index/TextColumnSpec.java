@@ -0,0 +1,85 @@
+package umm3601.index;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the column used to store todo bodies.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class TextColumnSpec {
+
+  private static byte[] utf8(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void storesAndReturnsText() {
+    TextColumn column = new TextColumn();
+    assertEquals(0, column.add("Lorem ipsum"));
+    assertEquals(1, column.add((String) null));
+    assertEquals(2, column.add(""));
+    assertEquals(3, column.add("crème brûlée"));
+    assertEquals(4, column.size());
+    assertEquals("Lorem ipsum", column.get(0));
+    assertNull(column.get(1));
+    assertTrue(column.isNull(1));
+    assertEquals(0, column.length(1));
+    assertEquals("", column.get(2));
+    assertEquals("crème brûlée", column.get(3));
+    assertEquals(15, column.length(3));
+  }
+
+  @Test
+  public void searchesTheStoredBytes() {
+    TextColumn column = new TextColumn();
+    column.add("Lorem ipsum dolor");
+    column.add((String) null);
+    column.add("crème brûlée");
+    assertTrue(column.contains(0, utf8("ipsum")));
+    assertTrue(column.contains(0, utf8("Lorem")));
+    assertTrue(column.contains(0, utf8("dolor")));
+    assertTrue(column.contains(0, utf8("")));
+    assertFalse(column.contains(0, utf8("ipsa")));
+    assertFalse(column.contains(0, utf8("Lorem ipsum dolor sit")));
+    assertFalse(column.contains(1, utf8("")));
+    assertTrue(column.contains(2, utf8("brûl")));
+    assertFalse(column.contains(2, utf8("brul")));
+  }
+
+  @Test
+  public void spillsOntoNewPagesWithoutSplittingRows() {
+    TextColumn column = new TextColumn();
+    // Two 10 MB rows don't fit in one 16 MB page, and a 20 MB row needs an
+    // oversized page of its own.
+    String big = "x".repeat(10 << 20);
+    String huge = "y".repeat(20 << 20);
+    column.add(big);
+    column.add(big + "!");
+    column.add(huge);
+    column.add("small");
+    assertEquals(big, column.get(0));
+    assertEquals(big + "!", column.get(1));
+    assertEquals(huge, column.get(2));
+    assertEquals("small", column.get(3));
+    assertTrue(column.contains(1, utf8("x!")));
+    assertTrue(column.estimatedBytes() >= 40 << 20);
+  }
+
+  @Test
+  public void canStillAddAfterTrimming() {
+    TextColumn column = new TextColumn();
+    column.trimToSize();
+    column.add("first");
+    column.trimToSize();
+    column.add("second");
+    assertEquals("first", column.get(0));
+    assertEquals("second", column.get(1));
+  }
+}
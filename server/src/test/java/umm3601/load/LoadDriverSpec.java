@@ -0,0 +1,122 @@
+package umm3601.load;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import umm3601.DatasetGenerator;
+
+/**
+ * Tests making requests at a fixed rate, and what's recorded about them.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class LoadDriverSpec {
+
+  private static final long MILLIS = 1_000_000;
+
+  private final Workload workload = Workload.parse("filter:1,id:1", DatasetGenerator.parse(List.of()), 100, 10);
+
+  @Test
+  public void sendsRequestsAtTheRate() {
+    LoadDriver driver = new LoadDriver(1000, 100 * MILLIS, 500 * MILLIS, 100);
+    LoadResults results = driver.run(workload, 1, path -> 200);
+    // The requests due from 0.1 s to 0.6 s are measured.
+    assertEquals(500, results.sent());
+    assertEquals(0, results.errors());
+    assertEquals(0.0, results.errorRate());
+    assertEquals(Map.of(200, 500L), results.statuses());
+    assertTrue(results.achievedRate() > 900 && results.achievedRate() <= 1000, "Rate " + results.achievedRate());
+    assertEquals(500, results.latency("filter").count() + results.latency("id").count());
+  }
+
+  @Test
+  public void keepsSendingWhileTheServerStalls() {
+    // The "server" stalls from 0.3 s to 0.6 s in: nothing it's sent in that
+    // time finishes until the end of it.
+    long start = System.nanoTime();
+    LoadDriver driver = new LoadDriver(200, 0, 1000 * MILLIS, 1000);
+    LoadResults results = driver.run(workload, 1, path -> {
+      long now = System.nanoTime() - start;
+      if (now >= 300 * MILLIS && now < 600 * MILLIS) {
+        Thread.sleep((600 * MILLIS - now) / MILLIS);
+      }
+      return 200;
+    });
+    // Every request was still sent on time, so the ones due during the
+    // stall waited for it, and the slowest 30% took up to 300 ms.
+    assertEquals(200, results.sent());
+    assertTrue(results.latency().valueAtQuantile(0.5) < 50 * MILLIS);
+    assertTrue(results.latency().valueAtQuantile(0.9) > 100 * MILLIS);
+    assertTrue(results.latency().max() > 250 * MILLIS);
+  }
+
+  @Test
+  public void countsFailedRequests() {
+    AtomicInteger count = new AtomicInteger();
+    LoadDriver driver = new LoadDriver(1000, 0, 300 * MILLIS, 100);
+    LoadResults results = driver.run(workload, 1, path -> {
+      int n = count.incrementAndGet();
+      if (n % 3 == 0) {
+        throw new IOException("No response");
+      }
+      return n % 3 == 1 ? 200 : 500;
+    });
+    assertEquals(300, results.sent());
+    assertEquals(200, results.errors());
+    assertTrue(Math.abs(results.errorRate() - 2 / 3.0) < 1e-9);
+    assertEquals(Map.of(0, 100L, 200, 100L, 500, 100L), results.statuses());
+  }
+
+  @Test
+  public void dropsRequestsWhenTooManyAreInFlight() {
+    LoadDriver driver = new LoadDriver(200, 0, 500 * MILLIS, 5);
+    LoadResults results = driver.run(workload, 1, path -> {
+      Thread.sleep(200);
+      return 200;
+    });
+    // Only about 5 can be in flight every 200 ms.
+    assertTrue(results.dropped() > 70, "Dropped " + results.dropped());
+    assertEquals(100, results.sent() + results.dropped());
+    assertEquals(results.dropped(), results.errors());
+  }
+
+  @Test
+  public void reportsTheResults() {
+    LoadDriver driver = new LoadDriver(1000, 0, 100 * MILLIS, 100);
+    LoadResults results = driver.run(workload, 1, path -> path.startsWith("/api/todos/") ? 404 : 200);
+    String report = results.report();
+    assertTrue(report.startsWith("Target 1000.0 requests/s"), report);
+    assertTrue(report.contains("p99.9"), report);
+    for (String kind : List.of("filter", "id", "all")) {
+      assertTrue(report.contains("\n" + kind + " "), report);
+    }
+
+    Map<String, Object> map = results.toMap();
+    assertEquals(1000.0, map.get("targetRate"));
+    assertEquals(0.1, map.get("seconds"));
+    @SuppressWarnings("unchecked")
+    Map<String, Map<String, Object>> kinds = (Map<String, Map<String, Object>>) map.get("kinds");
+    assertEquals(List.of("filter", "id", "all"), List.copyOf(kinds.keySet()));
+    assertEquals(100L, kinds.get("all").get("sent"));
+    assertEquals(kinds.get("id").get("sent"), kinds.get("id").get("errors"));
+    assertEquals(0L, kinds.get("filter").get("errors"));
+    @SuppressWarnings("unchecked")
+    Map<String, Double> millis = (Map<String, Double>) kinds.get("all").get("latencyMillis");
+    assertEquals(List.of("p50", "p90", "p99", "p99.9", "max"), List.copyOf(millis.keySet()));
+  }
+
+  @Test
+  public void rejectsBadSettings() {
+    assertThrows(IllegalArgumentException.class, () -> new LoadDriver(0, 0, MILLIS, 1));
+    assertThrows(IllegalArgumentException.class, () -> new LoadDriver(1, -1, MILLIS, 1));
+    assertThrows(IllegalArgumentException.class, () -> new LoadDriver(1, 0, 0, 1));
+    assertThrows(IllegalArgumentException.class, () -> new LoadDriver(1, 0, MILLIS, 0));
+  }
+}
@@ -0,0 +1,83 @@
+package umm3601.load;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests running load tests, against a stand-in server that answers todo
+ * requests but not user ones.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class LoadTestSpec {
+
+  private HttpServer server;
+  private String url;
+  private Path reportFile;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/api/todos", exchange -> {
+      exchange.sendResponseHeaders(200, -1);
+      exchange.close();
+    });
+    server.createContext("/api/users", exchange -> {
+      exchange.sendResponseHeaders(404, -1);
+      exchange.close();
+    });
+    server.start();
+    url = "http://localhost:" + server.getAddress().getPort();
+    reportFile = Files.createTempFile("load", ".json");
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    server.stop(0);
+    Files.deleteIfExists(reportFile);
+  }
+
+  @Test
+  public void testsTheServerAtAUrl() throws IOException {
+    LoadTest test = LoadTest.parse(List.of("--url=" + url, "--rate=200", "--seconds=0.5", "--warmup=0.1",
+        "--mix=filter:1,users:1", "--report=" + reportFile, "--owners=7"));
+    LoadResults results = test.run();
+    assertEquals(100, results.sent() + results.dropped());
+    assertEquals(Long.valueOf(results.latency("users").count()), results.statuses().get(404));
+    assertTrue(results.latency("filter").count() > 30);
+
+    Map<?, ?> saved = new ObjectMapper().readValue(reportFile.toFile(), Map.class);
+    assertEquals(200.0, saved.get("targetRate"));
+    assertEquals(List.of("filter", "users", "all"), List.copyOf(((Map<?, ?>) saved.get("kinds")).keySet()));
+  }
+
+  @Test
+  public void runsAServerInThisJvm() throws IOException {
+    LoadTest test = LoadTest.parse(List.of("--todos=50", "--users=10", "--rate=100", "--seconds=0.2", "--warmup=0",
+        "--threads=virtual", "--timeout=2"));
+    LoadResults results = test.run();
+    assertEquals(20, results.sent() + results.dropped());
+  }
+
+  @Test
+  public void rejectsBadOptions() {
+    for (String option : List.of("url", "--rate=fast", "--rate=0", "--seconds=0", "--timeout=0", "--threads=green",
+        "--mix=widgets:1", "--format=ndjson", "--owners=0", "--seed=x")) {
+      assertThrows(IllegalArgumentException.class, () -> LoadTest.parse(List.of(option)));
+    }
+  }
+}
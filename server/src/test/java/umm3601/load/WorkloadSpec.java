@@ -0,0 +1,98 @@
+package umm3601.load;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+import umm3601.DatasetGenerator;
+
+/**
+ * Tests making up the requests for a load test.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class WorkloadSpec {
+
+  private final DatasetGenerator data = DatasetGenerator.parse(List.of("--owners=5", "--companies=3"));
+
+  @Test
+  public void makesEachKindAboutAsOftenAsItsWeight() {
+    Workload workload = Workload.parse("filter:3, id:1,users:0", data, 100, 10);
+    assertEquals(List.of("filter", "id"), workload.kinds());
+    Map<String, Integer> counts = new HashMap<>();
+    SplittableRandom random = new SplittableRandom(1);
+    for (int i = 0; i < 4000; i++) {
+      counts.merge(workload.next(random).kind(), 1, Integer::sum);
+    }
+    assertEquals(Set.of("filter", "id"), counts.keySet());
+    assertTrue(counts.get("filter") > 2800 && counts.get("filter") < 3200, "Filters " + counts);
+  }
+
+  @Test
+  public void makesRequestsForTheDataset() {
+    Workload workload = Workload.parse(Workload.DEFAULT_MIX, data, 100, 10);
+    SplittableRandom random = new SplittableRandom(1);
+    Set<String> params = new HashSet<>();
+    for (int i = 0; i < 2000; i++) {
+      Workload.Request request = workload.next(random);
+      String path = request.path();
+      if (request.kind().equals("id")) {
+        String id = path.substring("/api/todos/".length());
+        assertTrue(id.matches("[0-9a-f]{24}") && Long.parseLong(id.substring(8), 16) < 100, path);
+      } else if (request.kind().equals("users")) {
+        assertTrue(path.startsWith("/api/users?"), path);
+      } else {
+        assertTrue(path.startsWith("/api/todos?"), path);
+      }
+      if (path.contains("?")) {
+        for (String param : path.substring(path.indexOf('?') + 1).split("&")) {
+          params.add(param.split("=")[0]);
+        }
+      }
+    }
+    assertEquals(Set.of("owner", "category", "status", "contains", "orderBy", "limit", "company", "age"), params);
+  }
+
+  @Test
+  public void encodesQueryValues() {
+    Workload workload = Workload.parse("filter:1", data, 100, 10);
+    SplittableRandom random = new SplittableRandom(1);
+    boolean sawOwner = false;
+    for (int i = 0; i < 100; i++) {
+      String path = workload.next(random).path();
+      assertTrue(!path.contains(" "), path);
+      sawOwner |= path.contains("owner=Owner+");
+    }
+    assertTrue(sawOwner);
+  }
+
+  @Test
+  public void theSameSeedMakesTheSameRequests() {
+    Workload workload = Workload.parse(Workload.DEFAULT_MIX, data, 100, 10);
+    SplittableRandom first = new SplittableRandom(7);
+    SplittableRandom second = new SplittableRandom(7);
+    for (int i = 0; i < 100; i++) {
+      assertEquals(workload.next(first), workload.next(second));
+    }
+  }
+
+  @Test
+  public void rejectsBadMixes() {
+    for (String mix : List.of("", "filter", "widgets:3", "filter:lots", "filter:-1", "filter:0", "id:3:4")) {
+      assertThrows(IllegalArgumentException.class, () -> Workload.parse(mix, data, 100, 10));
+    }
+    // There have to be todos to ask for, unless it's all users, and users
+    // if there are any user queries.
+    assertThrows(IllegalArgumentException.class, () -> Workload.parse("id:1", data, 0, 10));
+    assertThrows(IllegalArgumentException.class, () -> Workload.parse("users:1", data, 100, 0));
+    assertEquals(List.of("users"), Workload.parse("users:1", data, 0, 10).kinds());
+  }
+}
@@ -7,10 +7,15 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -21,6 +26,8 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
@@ -57,10 +64,16 @@ public class TodoControllerSpec {
 
   // A captor allows us to make assertions on arguments to method
   // calls that are made "indirectly" by the code we are testing,
-  // in this case `json()` calls in `TodoController`. We'll use
-  // this to make assertions about the data passed to `json()`.
+  // in this case `result()` calls in `TodoController`, which sends
+  // lists of todos as pre-serialized JSON bytes. We'll use this to
+  // make assertions about the todos in those bytes (see `returnedTodos()`).
+  @Captor
+  private ArgumentCaptor<byte[]> todoJsonCaptor;
+
+  // Captures the query plan description passed to `json()` when
+  // a request asks for `explain=true`.
   @Captor
-  private ArgumentCaptor<Todo[]> todoArrayCaptor;
+  private ArgumentCaptor<Map<String, Object>> explanationCaptor;
 
   /**
    * Setup the "database" with some example todos and
@@ -80,6 +93,15 @@ public class TodoControllerSpec {
     todoController = new TodoController(db);
   }
 
+  // The todos in the JSON most recently passed to `result()`.
+  private Todo[] returnedTodos() {
+    try {
+      return new ObjectMapper().readValue(todoJsonCaptor.getValue(), Todo[].class);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
   /**
    * Verify that we can successfully build a TodoController
    * and call it's `addRoutes` method. This doesn't verify
@@ -124,19 +146,21 @@ public class TodoControllerSpec {
     // back.
     todoController.getTodos(ctx);
 
-    // Confirm that `json` was called with all the todos.
-    // The ArgumentCaptor<Todo[]> todoArrayCaptor was initialized in the @BeforeEach
-    // Here, we wait to see what happens *when ctx calls the json method* in the call
-    // todoController.getTodos(ctx) and the json method is passed a Todo[]
-    // (That's when the Todo[] that was passed as input to the json method is captured)
-    verify(ctx).json(todoArrayCaptor.capture());
-    // Now that the Todo[] that was passed as input to the json method is captured,
-    // we can make assertions about it. In particular, we'll assert that its length
+    // Confirm that `result` was called with JSON for all the todos.
+    // The ArgumentCaptor<byte[]> todoJsonCaptor was initialized in the @BeforeEach
+    // Here, we wait to see what happens *when ctx calls the result method* in the call
+    // todoController.getTodos(ctx) and the result method is passed the JSON bytes
+    // (That's when the byte[] that was passed as input to the result method is captured)
+    verify(ctx).contentType("application/json");
+    verify(ctx).result(todoJsonCaptor.capture());
+    // Now that the JSON that was passed as input to the result method is captured,
+    // we can turn it back into a Todo[] (with `returnedTodos()`) and make assertions
+    // about it. In particular, we'll assert that its length
     // is the same as the size of the "database". We could also confirm that the
     // particular todos are the same/correct, but that can get complicated
     // since the order of the todos in the "database" isn't specified. So we'll
     // just check that the counts are correct.
-    assertEquals(db.size(), todoArrayCaptor.getValue().length);
+    assertEquals(db.size(), returnedTodos().length);
   }
 
   /**
@@ -160,12 +184,12 @@ public class TodoControllerSpec {
     todoController.getTodos(ctx);
 
     // Confirm that all the todos passed to `json` have age 25.
-    verify(ctx).json(todoArrayCaptor.capture());
-    for (Todo todo : todoArrayCaptor.getValue()) {
+    verify(ctx).result(todoJsonCaptor.capture());
+    for (Todo todo : returnedTodos()) {
       assertEquals(true, todo.status);
     }
     // Confirm that there are 143 todos with status true
-    assertEquals(143, todoArrayCaptor.getValue().length);
+    assertEquals(143, returnedTodos().length);
   }
   @Test
   public void canGetTodosWithIncompleteStatus() throws IOException {
@@ -183,12 +207,12 @@ public class TodoControllerSpec {
     todoController.getTodos(ctx);
 
     // Confirm that all the todos passed to `json` have age 25.
-    verify(ctx).json(todoArrayCaptor.capture());
-    for (Todo todo : todoArrayCaptor.getValue()) {
+    verify(ctx).result(todoJsonCaptor.capture());
+    for (Todo todo : returnedTodos()) {
       assertEquals(false, todo.status);
     }
     // Confirm that there are 143 todos with status true
-    assertEquals(157, todoArrayCaptor.getValue().length);
+    assertEquals(157, returnedTodos().length);
   }
 /*
   @Test
@@ -207,12 +231,12 @@ public class TodoControllerSpec {
     todoController.getTodos(ctx);
 
     // Confirm that all the todos passed to `json` have age 25.
-    verify(ctx).json(todoArrayCaptor.capture());
-    for (Todo todo : todoArrayCaptor.getValue()) {
+    verify(ctx).result(todoJsonCaptor.capture());
+    for (Todo todo : returnedTodos()) {
       assertEquals(false, todo.status);
     }
     // Confirm that there are 143 todos with status true
-    assertEquals(0, todoArrayCaptor.getValue().length);
+    assertEquals(0, returnedTodos().length);
   }
 
 */
@@ -270,12 +294,41 @@ public class TodoControllerSpec {
     todoController.getTodos(ctx);
 
     // Confirm that all the todos passed to `json` work for OHMNET.
-    verify(ctx).json(todoArrayCaptor.capture());
-    for (Todo todo : todoArrayCaptor.getValue()) {
+    verify(ctx).result(todoJsonCaptor.capture());
+    for (Todo todo : returnedTodos()) {
       assertEquals(true, todo.body.contains("ipsum"));
     }
   }
 
+  @Test
+  public void canGetTodosWithContainsCount() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("contains", Arrays.asList(new String[] {"ipsum"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).result(todoJsonCaptor.capture());
+    assertEquals(60, returnedTodos().length);
+  }
+
+  @Test
+  public void canGetTodosWithContainsShorterThanTrigram() throws IOException {
+    // "ut" is too short for the trigram index, so this has to fall back
+    // to checking every body.
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("contains", Arrays.asList(new String[] {"ut"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).result(todoJsonCaptor.capture());
+    for (Todo todo : returnedTodos()) {
+      assertEquals(true, todo.body.contains("ut"));
+    }
+    assertEquals(135, returnedTodos().length);
+  }
+
   @Test
   public void canGetTodosWithContainsNotInList() throws IOException {
     Map<String, List<String>> queryParams = new HashMap<>();
@@ -285,11 +338,11 @@ public class TodoControllerSpec {
     todoController.getTodos(ctx);
 
     // Confirm that all the todos passed to `json` work for OHMNET.
-    verify(ctx).json(todoArrayCaptor.capture());
-    for (Todo todo : todoArrayCaptor.getValue()) {
+    verify(ctx).result(todoJsonCaptor.capture());
+    for (Todo todo : returnedTodos()) {
       assertEquals(true, todo.body.contains("potato"));
     }
-    assertEquals(0, todoArrayCaptor.getValue().length);
+    assertEquals(0, returnedTodos().length);
   }
 
   @Test
@@ -301,11 +354,11 @@ public class TodoControllerSpec {
     todoController.getTodos(ctx);
 
     // Confirm that all the todos passed to `json` work for OHMNET.
-    verify(ctx).json(todoArrayCaptor.capture());
-    for (Todo todo : todoArrayCaptor.getValue()) {
+    verify(ctx).result(todoJsonCaptor.capture());
+    for (Todo todo : returnedTodos()) {
       assertEquals("Barry", todo.owner);
     }
-    assertEquals(51, todoArrayCaptor.getValue().length);
+    assertEquals(51, returnedTodos().length);
   }
 
   @Test
@@ -317,13 +370,61 @@ public class TodoControllerSpec {
     todoController.getTodos(ctx);
 
     // Confirm that all the todos passed to `json` work for OHMNET.
-    verify(ctx).json(todoArrayCaptor.capture());
-    for (Todo todo : todoArrayCaptor.getValue()) {
+    verify(ctx).result(todoJsonCaptor.capture());
+    for (Todo todo : returnedTodos()) {
       assertEquals("homework", todo.category);
     }
-    assertEquals(79, todoArrayCaptor.getValue().length);
+    assertEquals(79, returnedTodos().length);
   }
 
+  @Test
+  public void canGetTodosWithOwnerCategoryAndStatus() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Fry"}));
+    queryParams.put("category", Arrays.asList(new String[] {"video games"}));
+    queryParams.put("status", Arrays.asList(new String[] {"complete"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).result(todoJsonCaptor.capture());
+    for (Todo todo : returnedTodos()) {
+      assertEquals("Fry", todo.owner);
+      assertEquals("video games", todo.category);
+      assertEquals(true, todo.status);
+    }
+    assertEquals(6, returnedTodos().length);
+  }
+
+  @Test
+  public void canGetTodosWithOwnerAndContains() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Fry"}));
+    queryParams.put("contains", Arrays.asList(new String[] {"ipsum"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).result(todoJsonCaptor.capture());
+    for (Todo todo : returnedTodos()) {
+      assertEquals("Fry", todo.owner);
+      assertEquals(true, todo.body.contains("ipsum"));
+    }
+    assertEquals(17, returnedTodos().length);
+  }
+
+  @Test
+  public void canGetTodosWithUnknownOwner() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("category", Arrays.asList(new String[] {"homework"}));
+    queryParams.put("owner", Arrays.asList(new String[] {"Nobody"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).result(todoJsonCaptor.capture());
+    assertEquals(0, returnedTodos().length);
+  }
 
   @Test
   public void canGetTodosSorted() throws IOException {
@@ -334,9 +435,9 @@ public class TodoControllerSpec {
     todoController.getTodos(ctx);
 
     // Confirm that all the todos passed to `json` work for OHMNET.
-    verify(ctx).json(todoArrayCaptor.capture());
-    for (int x = 0; x < todoArrayCaptor.getValue().length - 1; x++) {
-      assertEquals(true, todoArrayCaptor.getValue()[x].owner.compareTo(todoArrayCaptor.getValue()[x + 1].owner) <= 0);
+    verify(ctx).result(todoJsonCaptor.capture());
+    for (int x = 0; x < returnedTodos().length - 1; x++) {
+      assertEquals(true, returnedTodos()[x].owner.compareTo(returnedTodos()[x + 1].owner) <= 0);
     }
   }
 
@@ -349,9 +450,9 @@ public class TodoControllerSpec {
     todoController.getTodos(ctx);
 
     // Confirm that all the todos passed to `json` work for OHMNET.
-    verify(ctx).json(todoArrayCaptor.capture());
-    for (int x = 0; x < todoArrayCaptor.getValue().length - 1; x++) {
-      assertEquals(true, todoArrayCaptor.getValue()[x].body.compareTo(todoArrayCaptor.getValue()[x + 1].body) <= 0);
+    verify(ctx).result(todoJsonCaptor.capture());
+    for (int x = 0; x < returnedTodos().length - 1; x++) {
+      assertEquals(true, returnedTodos()[x].body.compareTo(returnedTodos()[x + 1].body) <= 0);
     }
   }
 
@@ -364,10 +465,10 @@ public class TodoControllerSpec {
     todoController.getTodos(ctx);
 
     // Confirm that all the todos passed to `json` work for OHMNET.
-    verify(ctx).json(todoArrayCaptor.capture());
-    for (int x = 0; x < todoArrayCaptor.getValue().length - 1; x++) {
+    verify(ctx).result(todoJsonCaptor.capture());
+    for (int x = 0; x < returnedTodos().length - 1; x++) {
       assertEquals(
-        true, todoArrayCaptor.getValue()[x].category.compareTo(todoArrayCaptor.getValue()[x + 1].category) <= 0);
+        true, returnedTodos()[x].category.compareTo(returnedTodos()[x + 1].category) <= 0);
     }
   }
 
@@ -380,16 +481,16 @@ public class TodoControllerSpec {
     todoController.getTodos(ctx);
 
     // Confirm that all the todos passed to `json` work for OHMNET.
-    verify(ctx).json(todoArrayCaptor.capture());
-    Todo[] todos = todoArrayCaptor.getValue();
+    verify(ctx).result(todoJsonCaptor.capture());
+    Todo[] todos = returnedTodos();
 
     // Confirm that all the todos passed to `json` work for OHMNET.
-    verify(ctx).json(todoArrayCaptor.capture());
-    for (int x = 0; x < todoArrayCaptor.getValue().length - 1; x++) {
+    verify(ctx).result(todoJsonCaptor.capture());
+    for (int x = 0; x < returnedTodos().length - 1; x++) {
       assertEquals(
         true,
-        new Boolean(todoArrayCaptor.getValue()[x].status)
-          .compareTo(new Boolean(todoArrayCaptor.getValue()[x + 1].status)) <= 0);
+        new Boolean(returnedTodos()[x].status)
+          .compareTo(new Boolean(returnedTodos()[x + 1].status)) <= 0);
     }
   }
 
@@ -406,9 +507,217 @@ public class TodoControllerSpec {
 
     // Confirm that all the todos passed to `json` have ipsum in description
     // and limits it to 3.
-    verify(ctx).json(todoArrayCaptor.capture());
-    assertEquals(25, todoArrayCaptor.getValue().length);
+    verify(ctx).result(todoJsonCaptor.capture());
+    assertEquals(25, returnedTodos().length);
+  }
+  @Test
+  public void canGetTodosSortedThenLimited() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("orderBy", Arrays.asList(new String[] {"owner"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"20"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    // "Barry" is alphabetically first and owns 51 todos, so the first
+    // 20 todos sorted by owner should all be his.
+    verify(ctx).result(todoJsonCaptor.capture());
+    assertEquals(20, returnedTodos().length);
+    for (Todo todo : returnedTodos()) {
+      assertEquals("Barry", todo.owner);
+    }
+  }
+
+  @Test
+  public void canGetTodosSortedByMultipleKeys() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("orderBy", Arrays.asList(new String[] {"category,-owner"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).result(todoJsonCaptor.capture());
+    Todo[] todos = returnedTodos();
+    assertEquals(db.size(), todos.length);
+    for (int x = 0; x < todos.length - 1; x++) {
+      int byCategory = todos[x].category.compareTo(todos[x + 1].category);
+      assertEquals(true, byCategory <= 0);
+      if (byCategory == 0) {
+        assertEquals(true, todos[x].owner.compareTo(todos[x + 1].owner) >= 0);
+      }
+    }
   }
+
+  @Test
+  public void canGetTodosSortedDescendingWithLimitLargerThanResults() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("orderBy", Arrays.asList(new String[] {"-status"}));
+    queryParams.put("owner", Arrays.asList(new String[] {"Fry"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"1000"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).result(todoJsonCaptor.capture());
+    Todo[] todos = returnedTodos();
+    assertEquals(61, todos.length);
+    for (int x = 0; x < todos.length - 1; x++) {
+      assertEquals(true, todos[x].status || !todos[x + 1].status);
+    }
+  }
+
+  @Test
+  public void canGetFewTodosSortedBySingleField() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Fry"}));
+    queryParams.put("category", Arrays.asList(new String[] {"video games"}));
+    queryParams.put("status", Arrays.asList(new String[] {"complete"}));
+    queryParams.put("orderBy", Arrays.asList(new String[] {"-body"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"10"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).result(todoJsonCaptor.capture());
+    Todo[] todos = returnedTodos();
+    assertEquals(6, todos.length);
+    for (int x = 0; x < todos.length - 1; x++) {
+      assertEquals(true, todos[x].body.compareTo(todos[x + 1].body) >= 0);
+    }
+  }
+
+  @Test
+  public void sortsFewMatchesDirectlyInsteadOfWalkingThePermutation() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Fry"}));
+    queryParams.put("category", Arrays.asList(new String[] {"video games"}));
+    queryParams.put("status", Arrays.asList(new String[] {"complete"}));
+    queryParams.put("orderBy", Arrays.asList(new String[] {"body"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"10"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam("explain")).thenReturn("true");
+
+    todoController.getTodos(ctx);
+
+    // Only 6 todos match, so walking the permutation would mean looking at
+    // most of the 300 rows; sorting the 6 matches is cheaper.
+    verify(ctx).json(explanationCaptor.capture());
+    assertEquals("top-k selection", explanationCaptor.getValue().get("sort"));
+  }
+
+  @Test
+  public void concurrentSortedQueriesGetTheSameAnswers() throws Exception {
+    Map<String, List<String>> byOwner = new HashMap<>();
+    byOwner.put("orderBy", Arrays.asList(new String[] {"-owner"}));
+    Map<String, List<String>> byBody = new HashMap<>();
+    byBody.put("orderBy", Arrays.asList(new String[] {"body"}));
+    byBody.put("limit", Arrays.asList(new String[] {"50"}));
+    Map<String, List<String>> byStatusAndCategory = new HashMap<>();
+    byStatusAndCategory.put("orderBy", Arrays.asList(new String[] {"status,-category"}));
+    List<Map<String, List<String>>> queries = List.of(byOwner, byBody, byStatusAndCategory);
+    List<Todo[]> expected = new ArrayList<>();
+    for (Map<String, List<String>> query : queries) {
+      expected.add(db.listTodos(query));
+    }
+
+    // Run the same queries from several threads at once; since nothing is
+    // sorted in place, every thread should get exactly the same answers.
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (int i = 0; i < 64; i++) {
+        int which = i % queries.size();
+        results.add(pool.submit(() -> Arrays.equals(expected.get(which), db.listTodos(queries.get(which)))));
+      }
+      for (Future<Boolean> result : results) {
+        assertEquals(true, result.get());
+      }
+    } finally {
+      pool.shutdown();
+    }
+    assertEquals(1L, db.version());
+  }
+
+  @Test
+  public void respondsAppropriatelyToIllegalOrderBy() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("orderBy", Arrays.asList(new String[] {"owner,color"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+    assertEquals("Specified orderBy field 'color' must be one of [owner, category, status, body]",
+        exception.getMessage());
+  }
+
+  @Test
+  public void respondsAppropriatelyToNegativeLimit() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", Arrays.asList(new String[] {"-3"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+    assertEquals("Specified limit '-3' can't be negative", exception.getMessage());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void canExplainTodoQueries() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Fry"}));
+    queryParams.put("category", Arrays.asList(new String[] {"video games"}));
+    queryParams.put("status", Arrays.asList(new String[] {"complete"}));
+    queryParams.put("explain", Arrays.asList(new String[] {"true"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam("explain")).thenReturn("true");
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(explanationCaptor.capture());
+    Map<String, Object> explanation = explanationCaptor.getValue();
+    assertEquals(300, explanation.get("totalRows"));
+    assertEquals(6L, explanation.get("actualRows"));
+    assertEquals(6, explanation.get("returnedRows"));
+    List<Map<String, Object>> steps = (List<Map<String, Object>>) explanation.get("steps");
+    assertEquals(3, steps.size());
+    // Fry owns the fewest todos of the three filters, so the planner
+    // should start with that one.
+    assertEquals("owner = Fry", steps.get(0).get("filter"));
+    assertEquals("bitmap index", steps.get(0).get("access"));
+    assertEquals(61L, steps.get(0).get("estimatedRows"));
+    assertEquals(61L, steps.get(0).get("actualRows"));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void canExplainContainsQueries() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("contains", Arrays.asList(new String[] {"ipsum"}));
+    queryParams.put("orderBy", Arrays.asList(new String[] {"owner"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"5"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam("explain")).thenReturn("true");
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(explanationCaptor.capture());
+    Map<String, Object> explanation = explanationCaptor.getValue();
+    assertEquals(60L, explanation.get("actualRows"));
+    assertEquals(5, explanation.get("returnedRows"));
+    assertEquals("owner", explanation.get("orderBy"));
+    // 60 of the 300 todos match, so we expect to find 5 of them within the
+    // first 25 or so rows of the presorted permutation.
+    assertEquals("presorted permutation", explanation.get("sort"));
+    assertEquals(1L, explanation.get("version"));
+    List<Map<String, Object>> steps = (List<Map<String, Object>>) explanation.get("steps");
+    assertEquals("n-gram index", steps.get(0).get("access"));
+    assertEquals("row check", steps.get(1).get("access"));
+    assertEquals(60L, steps.get(1).get("actualRows"));
+  }
+
   /**
    * Test that if the todo sends a request with an illegal value in
    * the age field (i.e., something that can't be parsed to a number)
@@ -449,11 +758,11 @@ public class TodoControllerSpec {
 
     // Confirm that all the todos passed to `json` have ipsum in description
     // and limits it to 3.
-    verify(ctx).json(todoArrayCaptor.capture());
-    for (Todo todo : todoArrayCaptor.getValue()) {
+    verify(ctx).result(todoJsonCaptor.capture());
+    for (Todo todo : returnedTodos()) {
       assertEquals(true, todo.body.contains("ipsum"));
     }
-    assertEquals(25, todoArrayCaptor.getValue().length);
+    assertEquals(25, returnedTodos().length);
   }
 
 
@@ -0,0 +1,297 @@
+package umm3601.todos;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import umm3601.Main;
+import umm3601.WriteAheadLog;
+
+/**
+ * Tests saving writes to the todos in a log, and replaying them when the
+ * server restarts, including after the server is killed mid-write.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class TodoLogSpec {
+
+  private Path logFile;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    logFile = Files.createTempFile("todos", ".log");
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(logFile);
+  }
+
+  private TodoDatabase restart() throws IOException {
+    TodoDatabase db = new TodoDatabase(Main.TODO_DATA_FILE);
+    db.openLog(logFile.toString(), 0);
+    return db;
+  }
+
+  private static Todo todo(String owner, boolean status, String body, String category) {
+    Todo todo = new Todo();
+    todo.owner = owner;
+    todo.status = status;
+    todo.body = body;
+    todo.category = category;
+    return todo;
+  }
+
+  @Test
+  public void writesSurviveARestart() throws IOException {
+    TodoDatabase db = restart();
+    String added = db.addTodo(todo("Fry", true, "Deliver the pizza", null));
+    String changed = db.addTodo(todo("Leela", false, "Fly the ship", "work"));
+    db.updateTodo(changed, todo -> todo.status = true);
+    db.updateTodo("58895985a22c04e761776d54", todo -> todo.body = "Changed");
+    db.deleteTodo("58895985c1849992336c219b");
+    db.deleteTodo(added);
+    String kept = db.addTodo(todo("Bender", false, "crème brûlée", "cooking"));
+    db.closeLog();
+
+    TodoDatabase restarted = restart();
+    assertEquals(db.size(), restarted.size());
+    assertNull(restarted.getTodo(added));
+    assertNull(restarted.getTodo("58895985c1849992336c219b"));
+    assertEquals(true, restarted.getTodo(changed).status);
+    assertEquals("Changed", restarted.getTodo("58895985a22c04e761776d54").body);
+    assertEquals(db.getTodo(kept), restarted.getTodo(kept));
+    Map<String, List<String>> query = new HashMap<>(Map.of("contains", List.of("brûlée")));
+    assertEquals(1, restarted.listTodos(query).length);
+
+    // ... and further writes add to the same log.
+    restarted.deleteTodo(kept);
+    restarted.closeLog();
+    assertNull(restart().getTodo(kept));
+  }
+
+  @Test
+  public void replaysOnTopOfACompactedSnapshot() throws Exception {
+    TodoDatabase db = restart();
+    for (int i = 0; i < 3000; i++) {
+      db.addTodo(todo("Owner " + (i % 7), i % 2 == 0, "Body " + i, null));
+    }
+    db.compact();
+    db.closeLog();
+    TodoDatabase restarted = restart();
+    restarted.compact();
+    assertEquals(3300, restarted.size());
+    Map<String, List<String>> query = new HashMap<>(Map.of("owner", List.of("Owner 3")));
+    assertEquals(db.listTodos(query).length, restarted.listTodos(query).length);
+  }
+
+  // Several threads each add one to a counter in the same todo while a
+  // compaction is held up and the tail is full, so every one of them has
+  // to wait for the compaction. No update may be lost, and replaying the
+  // log has to give the same todo as the one in memory, so each write must
+  // be logged in the order it was made.
+  @Test
+  public void updatesThatWaitForACompactionArentLostOrReordered() throws Exception {
+    TodoDatabase db = restart();
+    CountDownLatch compacting = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    db.setDuringCompaction(() -> {
+      compacting.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    String id = "58895985a22c04e761776d54";
+    db.updateTodo(id, todo -> todo.owner = "0");
+    // Fill the tail up to the point where writers have to wait (four times
+    // the 1024 writes that start a compaction).
+    for (int i = 0; db.snapshot().tailLength() < 4096; i++) {
+      db.addTodo(todo("Filler", false, "Filler " + i, null));
+      if (i == 1024) {
+        assertTrue(compacting.await(1, TimeUnit.MINUTES));
+      }
+    }
+    int threads = 4;
+    int updates = 25;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      for (int t = 0; t < threads; t++) {
+        pool.execute(() -> {
+          for (int i = 0; i < updates; i++) {
+            db.updateTodo(id, todo -> todo.owner = String.valueOf(Integer.parseInt(todo.owner) + 1));
+          }
+        });
+      }
+      // Give them all time to start waiting.
+      Thread.sleep(200);
+      release.countDown();
+    } finally {
+      pool.shutdown();
+      assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+    }
+    assertEquals(String.valueOf(threads * updates), db.getTodo(id).owner);
+    db.closeLog();
+    assertEquals(db.getTodo(id), restart().getTodo(id));
+  }
+
+  @Test
+  public void cantOpenTheLogTwice() throws IOException {
+    TodoDatabase db = restart();
+    Assertions.assertThrows(IllegalStateException.class, () -> {
+      db.openLog(logFile.toString(), 0);
+    });
+    db.closeLog();
+  }
+
+  @Test
+  public void writesFailOnceTheLogIsClosed() throws IOException {
+    TodoDatabase db = restart();
+    db.closeLog();
+    Assertions.assertThrows(UncheckedIOException.class, () -> {
+      db.addTodo(todo("Fry", true, "Too late", null));
+    });
+  }
+
+  @Test
+  public void failsOnRecordsItDoesntKnow() throws IOException {
+    try (WriteAheadLog log = new WriteAheadLog(logFile, 0)) {
+      log.append(new byte[] {'X'});
+    }
+    Assertions.assertThrows(IOException.class, () -> {
+      restart();
+    });
+  }
+
+  @Test
+  public void controllerCanUseALog() throws IOException {
+    TodoController.buildTodoController(Main.TODO_DATA_FILE, null, logFile.toString(), 0);
+    TodoController.buildTodoController(Main.TODO_DATA_FILE, null, null, 0);
+  }
+
+  /**
+   * Run by `recoversAfterBeingKilledMidWrite()` in a separate process,
+   * which adds, changes, and deletes todos from several threads as fast as
+   * it can, printing a line as each write is acknowledged, until it's
+   * killed.
+   *
+   * @param args the log file
+   * @throws IOException if the todos or the log can't be loaded
+   */
+  public static void main(String[] args) throws IOException {
+    TodoDatabase db = new TodoDatabase(Main.TODO_DATA_FILE);
+    db.openLog(args[0], 0);
+    Todo[] original = db.listTodos(new HashMap<>());
+    int threads = 4;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    for (int t = 0; t < threads; t++) {
+      int thread = t;
+      pool.execute(() -> {
+        for (int i = 0; true; i++) {
+          String id = db.addTodo(todo("Writer " + thread, false, "todo " + thread + "/" + i, null));
+          acknowledge("added " + id + " todo " + thread + "/" + i);
+          db.updateTodo(id, todo -> todo.body = todo.body + " changed");
+          acknowledge("changed " + id);
+          int victim = i * threads + thread;
+          if (victim < original.length) {
+            db.deleteTodo(original[victim]._id);
+            acknowledge("deleted " + original[victim]._id);
+          }
+        }
+      });
+    }
+  }
+
+  private static synchronized void acknowledge(String line) {
+    System.out.println(line);
+    System.out.flush();
+  }
+
+  @Test
+  public void recoversAfterBeingKilledMidWrite() throws Exception {
+    String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    Process writer = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+        TodoLogSpec.class.getName(), logFile.toString())
+        .redirectError(ProcessBuilder.Redirect.DISCARD)
+        .start();
+
+    // What the writer has told us it saved.
+    Map<String, String> addedBodies = new HashMap<>();
+    Set<String> changed = new HashSet<>();
+    Set<String> deleted = new HashSet<>();
+    try (BufferedReader lines = new BufferedReader(
+        new InputStreamReader(writer.getInputStream(), StandardCharsets.UTF_8))) {
+      int acknowledged = 0;
+      for (String line = lines.readLine(); line != null && acknowledged < 2000; line = lines.readLine()) {
+        String[] words = line.split(" ", 3);
+        switch (words[0]) {
+          case "added":
+            addedBodies.put(words[1], words[2]);
+            break;
+          case "changed":
+            changed.add(words[1]);
+            break;
+          case "deleted":
+            deleted.add(words[1]);
+            break;
+          default:
+            // Logging, not an acknowledgement.
+            continue;
+        }
+        acknowledged++;
+      }
+      // Kill it while it's still writing as fast as it can.
+      writer.destroyForcibly();
+      assertTrue(writer.waitFor(30, TimeUnit.SECONDS));
+    }
+    assertNotEquals(0, addedBodies.size());
+
+    // Make sure the log ends part way through a record, whether or not
+    // the writer happened to die in the middle of one.
+    Files.write(logFile, new byte[] {0, 0, 1}, StandardOpenOption.APPEND);
+
+    TodoDatabase db = restart();
+    for (Map.Entry<String, String> added : addedBodies.entrySet()) {
+      Todo todo = db.getTodo(added.getKey());
+      String body = added.getValue();
+      if (changed.contains(added.getKey())) {
+        assertEquals(body + " changed", todo.body);
+      } else {
+        // The change may or may not have been saved before it was killed.
+        assertTrue(todo.body.equals(body) || todo.body.equals(body + " changed"), todo.body);
+      }
+    }
+    for (String id : deleted) {
+      assertNull(db.getTodo(id));
+    }
+
+    // The database is still usable, and its log too.
+    String id = db.addTodo(todo("Fry", true, "After the crash", null));
+    db.closeLog();
+    assertEquals("After the crash", restart().getTodo(id).body);
+  }
+}
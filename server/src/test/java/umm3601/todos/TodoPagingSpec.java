@@ -0,0 +1,261 @@
+package umm3601.todos;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import umm3601.Main;
+
+/**
+ * Tests paging through the todos with cursors.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class TodoPagingSpec {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final Comparator<String> STRINGS = Comparator.nullsFirst(Comparator.naturalOrder());
+  private static final Map<String, Function<Todo, String>> FIELDS = Map.of(
+      "owner", todo -> todo.owner,
+      "category", todo -> todo.category,
+      "status", todo -> String.valueOf(todo.status),
+      "body", todo -> todo.body);
+
+  private TodoDatabase db;
+
+  @Mock
+  private Context ctx;
+
+  @Captor
+  private ArgumentCaptor<byte[]> jsonCaptor;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    MockitoAnnotations.openMocks(this);
+    db = new TodoDatabase(Main.TODO_DATA_FILE);
+  }
+
+  private static Map<String, List<String>> query(String... keysAndValues) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      queryParams.put(keysAndValues[i], List.of(keysAndValues[i + 1]));
+    }
+    return queryParams;
+  }
+
+  private static Todo newTodo(String owner, boolean status, String body, String category) {
+    Todo todo = new Todo();
+    todo.owner = owner;
+    todo.status = status;
+    todo.body = body;
+    todo.category = category;
+    return todo;
+  }
+
+  // One page: its todos, and the cursor for the next one.
+  private record Page(List<Todo> todos, String next) {
+  }
+
+  private static Page parse(byte[] json) {
+    try {
+      JsonNode page = MAPPER.readTree(json);
+      Todo[] todos = MAPPER.treeToValue(page.get("todos"), Todo[].class);
+      return new Page(Arrays.asList(todos), page.get("next").isNull() ? null : page.get("next").asText());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private Page page(Map<String, List<String>> queryParams, String cursor) {
+    Map<String, List<String>> paged = new HashMap<>(queryParams);
+    paged.put("cursor", List.of(cursor));
+    return parse(db.listTodosPage(paged));
+  }
+
+  // Follow the cursors from the first page to the last, checking that
+  // every page but the last is full.
+  private List<Todo> allPages(Map<String, List<String>> queryParams, int pageSize) {
+    List<Todo> todos = new ArrayList<>();
+    Page page = page(queryParams, "");
+    while (page.next() != null) {
+      assertEquals(pageSize, page.todos().size());
+      todos.addAll(page.todos());
+      page = page(queryParams, page.next());
+    }
+    assertTrue(page.todos().size() <= pageSize);
+    todos.addAll(page.todos());
+    return todos;
+  }
+
+  // What the pages should hold: the todos that pass the filter, in order of
+  // the `orderBy` fields and then `_id`.
+  private static List<Todo> expected(List<Todo> todos, Predicate<Todo> filter, String orderBy) {
+    Comparator<Todo> order = Comparator.comparing(todo -> todo._id, STRINGS);
+    if (!orderBy.isEmpty()) {
+      String[] fields = orderBy.split(",");
+      for (int i = fields.length - 1; i >= 0; i--) {
+        boolean descending = fields[i].startsWith("-");
+        Comparator<Todo> key = Comparator.comparing(FIELDS.get(fields[i].replace("-", "")), STRINGS);
+        order = (descending ? key.reversed() : key).thenComparing(order);
+      }
+    }
+    return todos.stream().filter(filter).sorted(order).toList();
+  }
+
+  private void checkPages(List<Todo> model, Predicate<Todo> filter, String orderBy, int pageSize,
+      String... filters) {
+    Map<String, List<String>> queryParams = query(filters);
+    queryParams.put("limit", List.of(String.valueOf(pageSize)));
+    if (!orderBy.isEmpty()) {
+      queryParams.put("orderBy", List.of(orderBy));
+    }
+    assertEquals(expected(model, filter, orderBy), allPages(queryParams, pageSize));
+  }
+
+  // Every kind of query, each with a page size that doesn't divide the
+  // number of matching todos evenly.
+  private void checkAllKindsOfPages(List<Todo> model) {
+    checkPages(model, todo -> true, "", 7);
+    checkPages(model, todo -> true, "owner", 23);
+    checkPages(model, todo -> true, "-owner", 23);
+    checkPages(model, todo -> true, "-status", 50);
+    checkPages(model, todo -> true, "body", 31);
+    checkPages(model, todo -> todo.owner.equals("Fry"), "category", 4, "owner", "Fry");
+    checkPages(model, todo -> todo.status && todo.body.contains("sit"), "-category", 9,
+        "status", "complete", "contains", "sit");
+    checkPages(model, todo -> todo.category.equals("homework"), "status,-owner", 11, "category", "homework");
+    checkPages(model, todo -> true, "-category,status,owner", 40);
+    checkPages(model, todo -> todo.owner.equals("Fry") && todo.body.contains("sit"), "-status,body", 3,
+        "owner", "Fry", "contains", "sit");
+  }
+
+  @Test
+  public void pagesThroughEveryTodoInOrder() {
+    checkAllKindsOfPages(Arrays.asList(db.listTodos(new HashMap<>())));
+  }
+
+  @Test
+  public void pagesSeeWrites() throws Exception {
+    List<Todo> model = new ArrayList<>(Arrays.asList(db.listTodos(new HashMap<>())));
+    Random random = new Random(3601);
+    String[] owners = {"Blanche", "Fry", "Kitty", "Workman"};
+    for (int i = 0; i < 100; i++) {
+      if (random.nextBoolean()) {
+        Todo todo = newTodo(owners[random.nextInt(owners.length)], random.nextBoolean(), "Extra sit-ups " + i,
+            "homework");
+        todo._id = db.addTodo(todo);
+        model.add(todo);
+      } else {
+        Todo old = model.remove(random.nextInt(model.size()));
+        model.add(db.updateTodo(old._id, todo -> todo.owner = owners[random.nextInt(owners.length)]));
+      }
+    }
+    db.deleteTodo(model.remove(0)._id);
+    checkAllKindsOfPages(model);
+    db.compact();
+    checkAllKindsOfPages(model);
+  }
+
+  @Test
+  public void carriesOnFromTheCursorAfterItsTodoIsGone() {
+    Map<String, List<String>> queryParams = query("orderBy", "owner", "limit", "10");
+    List<Todo> model = new ArrayList<>(Arrays.asList(db.listTodos(new HashMap<>())));
+    Page first = page(queryParams, "");
+    Todo last = first.todos().get(9);
+    // The last todo on the page is deleted, and new todos are added before
+    // and after the cursor; the next page still starts right after where
+    // the first one left off.
+    db.deleteTodo(last._id);
+    model.remove(last);
+    for (String owner : new String[] {"Aaron", last.owner, "Zed"}) {
+      Todo todo = newTodo(owner, false, "New", "homework");
+      todo._id = db.addTodo(todo);
+      model.add(todo);
+    }
+    Comparator<Todo> order = Comparator.comparing((Todo todo) -> todo.owner).thenComparing(todo -> todo._id);
+    List<Todo> rest = expected(model, todo -> order.compare(todo, last) > 0, "owner");
+    assertEquals(rest.subList(0, 10), page(queryParams, first.next()).todos());
+  }
+
+  @Test
+  public void lastPageHasNoNextCursor() {
+    Page page = page(query("owner", "Fry", "category", "homework"), "");
+    assertNull(page.next());
+    Map<String, List<String>> exactlyOnePage = query("owner", "Fry", "category", "homework", "limit",
+        String.valueOf(page.todos().size()));
+    assertNull(page(exactlyOnePage, "").next());
+    assertEquals(0, page(query("owner", "Nobody"), "").todos().size());
+  }
+
+  @Test
+  public void usesTheDefaultPageSize() {
+    Page page = page(query(), "");
+    assertEquals(TodoSnapshot.DEFAULT_PAGE_SIZE, page.todos().size());
+    assertNotNull(page.next());
+  }
+
+  @Test
+  public void rejectsBadCursors() {
+    assertThrows(BadRequestResponse.class, () -> page(query(), "not a cursor"));
+    assertThrows(BadRequestResponse.class, () -> page(query(), "WzFd"));
+    String cursor = page(query("orderBy", "owner"), "").next();
+    assertThrows(BadRequestResponse.class, () -> page(query("orderBy", "body"), cursor));
+    assertThrows(BadRequestResponse.class, () -> page(query(), cursor));
+    String forged = new TodoCursor("owner", "58895985a22c04e761776d54", new String[0]).encode();
+    assertThrows(BadRequestResponse.class, () -> page(query("orderBy", "owner"), forged));
+    assertThrows(BadRequestResponse.class, () -> page(query("limit", "0"), ""));
+    assertThrows(BadRequestResponse.class, () -> page(query("orderBy", "size"), ""));
+  }
+
+  @Test
+  public void cursorsRoundTrip() {
+    TodoCursor cursor = TodoCursor.decode(new TodoCursor("-body,status", null, new String[] {"Ünïcode", "true"})
+        .encode());
+    assertEquals("-body,status", cursor.orderBy());
+    assertNull(cursor.id());
+    assertEquals(2, cursor.valueCount());
+    assertEquals("Ünïcode", cursor.value(0));
+    assertEquals("true", cursor.value(1));
+  }
+
+  @Test
+  public void controllerPagesWhenGivenACursor() throws IOException {
+    TodoController todoController = new TodoController(db);
+    when(ctx.queryParamMap()).thenReturn(query("owner", "Blanche", "orderBy", "body", "limit", "5", "cursor", ""));
+    when(ctx.queryParam("stream")).thenReturn("true");
+    todoController.getTodos(ctx);
+    verify(ctx).contentType("application/json");
+    verify(ctx).result(jsonCaptor.capture());
+    Page page = parse(jsonCaptor.getValue());
+    assertEquals(expected(Arrays.asList(db.listTodos(query("owner", "Blanche"))), todo -> true, "body").subList(0, 5),
+        page.todos());
+    assertNotNull(page.next());
+  }
+}
@@ -0,0 +1,232 @@
+package umm3601.todos;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import io.javalin.http.Context;
+import umm3601.Main;
+
+/**
+ * Tests reloading the todos when their data file changes.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class TodoReloadSpec {
+
+  private Path directory;
+  private Path dataFile;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("todos");
+    dataFile = directory.resolve("todos.json");
+    Files.writeString(dataFile, todos("Blanche", 3));
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  // A data file of todos that all belong to the same owner. Blanche's
+  // todos have ids starting with "a", and everyone else's with "b".
+  private static String todos(String owner, int count) {
+    String idPrefix = owner.equals("Blanche") ? "aaaaaaaa" : "bbbbbbbb";
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < count; i++) {
+      json.append(i == 0 ? "" : ", ")
+          .append(String.format("{\"_id\": \"%s%016x\", \"owner\": \"%s\", \"status\": %b, \"body\": \"Todo %d\","
+              + " \"category\": \"homework\"}", idPrefix, i, owner, i % 2 == 0, i));
+    }
+    return json.append("]").toString();
+  }
+
+  // Change the data file, making sure its modification time changes too.
+  private void rewrite(String contents) throws IOException {
+    FileTime modified = Files.getLastModifiedTime(dataFile);
+    Files.writeString(dataFile, contents);
+    Files.setLastModifiedTime(dataFile, FileTime.fromMillis(modified.toMillis() + 1000));
+  }
+
+  private static Map<String, List<String>> owner(String owner) {
+    return new HashMap<>(Map.of("owner", List.of(owner)));
+  }
+
+  @Test
+  public void swapsInTheNewTodos() throws IOException {
+    TodoDatabase db = new TodoDatabase(dataFile.toString());
+    assertEquals(1, db.datasetVersion());
+    long version = db.version();
+
+    rewrite(todos("Fry", 5));
+    db.reload();
+
+    assertEquals(2, db.datasetVersion());
+    assertTrue(db.version() > version);
+    assertTrue(db.lastReloadMillis() >= 0);
+    assertEquals(5, db.size());
+    assertNull(db.getTodo("aaaaaaaa0000000000000000"));
+    assertEquals("Todo 4", db.getTodo("bbbbbbbb0000000000000004").body);
+    assertEquals(5, db.listTodos(owner("Fry")).length);
+    assertEquals(0, db.listTodos(owner("Blanche")).length);
+  }
+
+  @Test
+  public void rebuildsTheSnapshotFile() throws IOException {
+    Path snapshotFile = directory.resolve("todos.snapshot");
+    TodoDatabase db = new TodoDatabase(dataFile.toString(), snapshotFile.toString());
+    rewrite(todos("Fry", 5));
+    db.reload();
+    assertEquals(5, db.size());
+
+    // The snapshot file was saved from the new data file.
+    TodoDatabase restarted = new TodoDatabase(dataFile.toString(), snapshotFile.toString());
+    assertTrue(restarted.snapshot().store().bodies().page(0).isDirect());
+    assertEquals(5, restarted.listTodos(owner("Fry")).length);
+  }
+
+  @Test
+  public void replaysTheLogOnTopOfTheNewTodos() throws Exception {
+    Path logFile = directory.resolve("todos.log");
+    TodoDatabase db = new TodoDatabase(dataFile.toString());
+    db.openLog(logFile.toString(), 0);
+    Todo todo = new Todo();
+    todo.owner = "Fry";
+    todo.body = "Added before the reload";
+    String added = db.addTodo(todo);
+    db.deleteTodo("aaaaaaaa0000000000000001");
+
+    rewrite(todos("Blanche", 4));
+    db.reload();
+
+    assertEquals(4, db.size());
+    assertEquals("Added before the reload", db.getTodo(added).body);
+    assertNull(db.getTodo("aaaaaaaa0000000000000001"));
+    assertEquals("Todo 3", db.getTodo("aaaaaaaa0000000000000003").body);
+
+    // Writes carry on as normal afterwards, and a restart ends up in the
+    // same place.
+    db.updateTodo(added, changed -> changed.status = true);
+    db.closeLog();
+    TodoDatabase restarted = new TodoDatabase(dataFile.toString());
+    restarted.openLog(logFile.toString(), 0);
+    assertEquals(db.getTodo(added), restarted.getTodo(added));
+    assertEquals(4, restarted.size());
+    restarted.closeLog();
+  }
+
+  @Test
+  public void dropsUnloggedWrites() throws IOException {
+    TodoDatabase db = new TodoDatabase(dataFile.toString());
+    db.deleteTodo("aaaaaaaa0000000000000001");
+    db.reload();
+    assertEquals("Todo 1", db.getTodo("aaaaaaaa0000000000000001").body);
+  }
+
+  @Test
+  public void keepsTheOldTodosIfTheFileIsBroken() throws IOException {
+    TodoDatabase db = new TodoDatabase(dataFile.toString());
+    rewrite("[{\"_id\": \"aaaaaaaa0000000000000000\", \"owner\": \"Fr");
+    Assertions.assertThrows(IOException.class, () -> {
+      db.reload();
+    });
+    assertEquals(1, db.datasetVersion());
+    assertEquals(3, db.size());
+  }
+
+  @Test
+  public void requestsSeeOneVersionOrTheOther() throws Exception {
+    TodoDatabase db = new TodoDatabase(dataFile.toString());
+    AtomicBoolean reloading = new AtomicBoolean(true);
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    Future<Integer> reader = pool.submit(() -> {
+      int reads = 0;
+      while (reloading.get()) {
+        Todo[] todos = db.listTodos(new HashMap<>());
+        // Either all three of Blanche's todos, or all five of Fry's, never
+        // a mix.
+        String owner = todos[0].owner;
+        assertEquals(owner.equals("Blanche") ? 3 : 5, todos.length);
+        for (Todo todo : todos) {
+          assertEquals(owner, todo.owner);
+        }
+        reads++;
+      }
+      return reads;
+    });
+    for (int i = 0; i < 30; i++) {
+      rewrite(i % 2 == 0 ? todos("Fry", 5) : todos("Blanche", 3));
+      db.reload();
+    }
+    reloading.set(false);
+    assertTrue(reader.get() > 0);
+    pool.shutdown();
+    assertEquals(31, db.datasetVersion());
+  }
+
+  @Test
+  public void reloadsWhenTheFileChanges() throws Exception {
+    TodoDatabase db = new TodoDatabase(dataFile.toString());
+    assertTrue(db.watchDataFile());
+    assertTrue(db.watchDataFile());
+
+    rewrite(todos("Fry", 5));
+    for (int wait = 0; wait < 100 && db.datasetVersion() == 1; wait++) {
+      Thread.sleep(100);
+    }
+    assertEquals(2, db.datasetVersion());
+    assertEquals(5, db.size());
+
+    // A broken file is ignored, and we keep the last good version.
+    rewrite("[");
+    Thread.sleep(1000);
+    assertEquals(2, db.datasetVersion());
+    db.stopWatching();
+    db.stopWatching();
+  }
+
+  @Test
+  public void doesntWatchTheClasspath() throws IOException {
+    TodoDatabase db = new TodoDatabase(Main.TODO_DATA_FILE);
+    assertFalse(db.watchDataFile());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void controllerDescribesTheDataset() throws IOException {
+    TodoController controller = TodoController.buildTodoController(dataFile.toString());
+    Context ctx = Mockito.mock(Context.class);
+    controller.getDataset(ctx);
+    ArgumentCaptor<Map<String, Object>> captor = ArgumentCaptor.forClass(Map.class);
+    verify(ctx).json(captor.capture());
+    assertEquals(1L, captor.getValue().get("version"));
+    assertEquals(3, captor.getValue().get("size"));
+  }
+}
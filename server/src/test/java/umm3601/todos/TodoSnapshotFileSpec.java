@@ -0,0 +1,184 @@
+package umm3601.todos;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import umm3601.Main;
+import umm3601.index.SnapshotWriter;
+
+/**
+ * Tests saving the todos to a binary snapshot file, and starting up from
+ * that file instead of the JSON data file.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class TodoSnapshotFileSpec {
+
+  private Path directory;
+  private Path dataFile;
+  private Path snapshotFile;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("todos");
+    dataFile = directory.resolve("todos.json");
+    snapshotFile = directory.resolve("todos.snapshot");
+    try (InputStream todos = Main.class.getResourceAsStream(Main.TODO_DATA_FILE)) {
+      Files.copy(todos, dataFile);
+    }
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  private TodoDatabase open() throws IOException {
+    return new TodoDatabase(dataFile.toString(), snapshotFile.toString());
+  }
+
+  private static Map<String, List<String>> query(String... keysAndValues) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      queryParams.put(keysAndValues[i], List.of(keysAndValues[i + 1]));
+    }
+    return queryParams;
+  }
+
+  // A few queries that between them use every part of the snapshot.
+  private static void assertSameAnswers(TodoDatabase expected, TodoDatabase actual) {
+    assertEquals(expected.size(), actual.size());
+    List<Map<String, List<String>>> queries = List.of(
+        query(),
+        query("owner", "Blanche"),
+        query("category", "video games", "status", "complete"),
+        query("contains", "Lorem", "orderBy", "body"),
+        query("contains", "tempor", "orderBy", "owner", "limit", "7"),
+        query("orderBy", "category", "skip", "100", "limit", "20"));
+    for (Map<String, List<String>> queryParams : queries) {
+      assertArrayEquals(expected.listTodos(queryParams), actual.listTodos(queryParams));
+    }
+    // Paged queries use the `_id` ranks saved in the snapshot.
+    assertArrayEquals(expected.listTodosPage(query("orderBy", "-owner", "limit", "30", "cursor", "")),
+        actual.listTodosPage(query("orderBy", "-owner", "limit", "30", "cursor", "")));
+    assertArrayEquals(expected.listTodosPage(query("status", "complete", "cursor", "")),
+        actual.listTodosPage(query("status", "complete", "cursor", "")));
+    assertEquals(expected.getTodo("58895985a22c04e761776d54"), actual.getTodo("58895985a22c04e761776d54"));
+  }
+
+  @Test
+  public void savesASnapshotTheFirstTimeAndOpensItAfterThat() throws IOException {
+    assertFalse(Files.exists(snapshotFile));
+    TodoDatabase fromJson = open();
+    assertTrue(Files.exists(snapshotFile));
+    assertFalse(fromJson.snapshot().store().bodies().page(0).isDirect());
+
+    TodoDatabase fromSnapshot = open();
+    // The bodies are mapped straight out of the file rather than copied
+    // onto the heap.
+    assertTrue(fromSnapshot.snapshot().store().bodies().page(0).isDirect());
+    assertSameAnswers(fromJson, fromSnapshot);
+    assertSameAnswers(new TodoDatabase(Main.TODO_DATA_FILE), fromSnapshot);
+  }
+
+  @Test
+  public void canStillWriteToTodosFromASnapshot() throws Exception {
+    open();
+    TodoDatabase db = open();
+    assertTrue(db.snapshot().store().bodies().page(0).isDirect());
+
+    Todo todo = new Todo();
+    todo.owner = "Fry";
+    todo.body = "Deliver the pizza";
+    todo.category = "homework";
+    String id = db.addTodo(todo);
+    db.updateTodo("58895985a22c04e761776d54", changed -> changed.body = "Changed");
+    db.deleteTodo("58895985c1849992336c219b");
+    db.compact();
+
+    assertEquals(300, db.size());
+    assertEquals("Deliver the pizza", db.getTodo(id).body);
+    assertEquals("Changed", db.getTodo("58895985a22c04e761776d54").body);
+    assertEquals(null, db.getTodo("58895985c1849992336c219b"));
+  }
+
+  @Test
+  public void ignoresTheSnapshotOnceTheDataFileChanges() throws IOException {
+    open();
+    Files.writeString(dataFile, "[{\"_id\": \"not an object id\", \"owner\": \"Fry\", \"status\": true,"
+        + " \"body\": \"In sunt ex\", \"category\": \"video games\"}]");
+    Files.setLastModifiedTime(dataFile, FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+
+    TodoDatabase changed = open();
+    assertEquals(1, changed.size());
+    assertFalse(changed.snapshot().store().bodies().page(0).isDirect());
+
+    // The new snapshot has the irregular id too.
+    TodoDatabase reopened = open();
+    assertTrue(reopened.snapshot().store().bodies().page(0).isDirect());
+    assertEquals("Fry", reopened.getTodo("not an object id").owner);
+    assertEquals(1, reopened.listTodos(query("status", "complete")).length);
+  }
+
+  @Test
+  public void fallsBackToTheDataFileIfTheSnapshotIsBroken() throws IOException {
+    TodoDatabase fromJson = open();
+    byte[] bytes = Files.readAllBytes(snapshotFile);
+    Files.write(snapshotFile, Arrays.copyOf(bytes, bytes.length / 2));
+
+    TodoDatabase recovered = open();
+    assertSameAnswers(fromJson, recovered);
+    // ... and replaces the broken snapshot with a good one.
+    assertEquals(bytes.length, Files.size(snapshotFile));
+
+    Files.writeString(snapshotFile, "garbage");
+    assertSameAnswers(fromJson, open());
+  }
+
+  @Test
+  public void carriesOnWithoutASnapshotIfItCantBeSaved() throws IOException {
+    snapshotFile = directory.resolve("no such directory").resolve("todos.snapshot");
+    TodoDatabase db = open();
+    assertEquals(300, db.size());
+    assertFalse(Files.exists(snapshotFile));
+  }
+
+  @Test
+  public void onlySavesCompactedSnapshots() throws IOException {
+    TodoDatabase db = new TodoDatabase(Main.TODO_DATA_FILE);
+    db.deleteTodo("58895985a22c04e761776d54");
+    try (SnapshotWriter out = new SnapshotWriter(snapshotFile, "todos")) {
+      Assertions.assertThrows(IllegalStateException.class, () -> {
+        db.snapshot().writeTo(out);
+      });
+    }
+  }
+
+  @Test
+  public void controllerCanUseASnapshot() throws IOException {
+    TodoController.buildTodoController(dataFile.toString(), snapshotFile.toString());
+    assertTrue(Files.exists(snapshotFile));
+  }
+}
@@ -0,0 +1,201 @@
+package umm3601.todos;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import umm3601.Main;
+
+/**
+ * Tests counting the todos in groups.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class TodoStatsSpec {
+
+  private TodoDatabase db;
+
+  @Mock
+  private Context ctx;
+
+  @Captor
+  private ArgumentCaptor<Map<String, Object>> statsCaptor;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    MockitoAnnotations.openMocks(this);
+    db = new TodoDatabase(Main.TODO_DATA_FILE);
+  }
+
+  private static Map<String, List<String>> query(String... keysAndValues) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      queryParams.put(keysAndValues[i], List.of(keysAndValues[i + 1]));
+    }
+    return queryParams;
+  }
+
+  // The groups in a stats response, as "value,value,..." -> count.
+  @SuppressWarnings("unchecked")
+  private static Map<String, Long> groups(Map<String, Object> stats) {
+    String[] fields = (String[]) stats.get("groupBy");
+    Map<String, Long> groups = new TreeMap<>();
+    for (Object group : (Object[]) stats.get("groups")) {
+      Map<String, Object> entry = (Map<String, Object>) group;
+      List<String> values = new ArrayList<>();
+      for (String field : fields) {
+        values.add(String.valueOf(entry.get(field)));
+      }
+      groups.put(String.join(",", values), (Long) entry.get("count"));
+    }
+    return groups;
+  }
+
+  // Count the todos the list query returns, the slow way.
+  private Map<String, Long> counted(String groupBy, String... filters) {
+    Map<String, Long> groups = new TreeMap<>();
+    for (Todo todo : db.listTodos(query(filters))) {
+      List<String> values = new ArrayList<>();
+      for (String field : groupBy.isEmpty() ? new String[0] : groupBy.split(",")) {
+        values.add(field.equals("owner") ? todo.owner
+            : field.equals("category") ? todo.category : String.valueOf(todo.status));
+      }
+      groups.merge(String.join(",", values), 1L, Long::sum);
+    }
+    return groups;
+  }
+
+  private void checkStats(String groupBy, String... filters) {
+    Map<String, List<String>> queryParams = query(filters);
+    queryParams.put("groupBy", List.of(groupBy));
+    Map<String, Object> stats = db.todoStats(queryParams);
+    Map<String, Long> expected = counted(groupBy, filters);
+    assertEquals(expected, groups(stats));
+    assertEquals(expected.values().stream().mapToLong(count -> count).sum(), stats.get("total"));
+  }
+
+  private void checkAllKindsOfStats() {
+    checkStats("");
+    checkStats("owner");
+    checkStats("owner,category");
+    checkStats("category,owner", "status", "incomplete");
+    checkStats("status", "owner", "Fry");
+    checkStats("status,category,owner", "category", "homework", "status", "complete");
+    checkStats("owner", "owner", "Nobody");
+    checkStats("category", "contains", "sit");
+    checkStats("owner,status", "contains", "sit", "category", "video games");
+  }
+
+  @Test
+  public void countsMatchTheList() {
+    checkAllKindsOfStats();
+  }
+
+  @Test
+  public void countsSeeWrites() throws Exception {
+    Random random = new Random(3601);
+    String[] owners = {"Blanche", "Fry", "Nobody Before"};
+    Todo[] todos = db.listTodos(new HashMap<>());
+    for (int i = 0; i < 100; i++) {
+      int choice = random.nextInt(3);
+      if (choice == 0) {
+        Todo todo = new Todo();
+        todo.owner = owners[random.nextInt(owners.length)];
+        todo.status = random.nextBoolean();
+        todo.body = "New " + i;
+        todo.category = random.nextBoolean() ? "homework" : "brand new category";
+        db.addTodo(todo);
+      } else if (choice == 1) {
+        db.updateTodo(todos[random.nextInt(todos.length)]._id, todo -> todo.status = !todo.status);
+      } else {
+        db.deleteTodo(todos[random.nextInt(todos.length)]._id);
+      }
+    }
+    checkAllKindsOfStats();
+    db.compact();
+    checkAllKindsOfStats();
+  }
+
+  @Test
+  public void olderSnapshotsKeepTheirCounts() {
+    TodoSnapshot before = db.snapshot();
+    Map<String, Long> counts = groups(before.stats(query("groupBy", "owner")));
+    Todo todo = new Todo();
+    todo.owner = "Blanche";
+    todo.body = "One more";
+    todo.category = "homework";
+    db.addTodo(todo);
+    db.deleteTodo(db.listTodos(query("owner", "Fry"))[0]._id);
+    assertEquals(counts, groups(before.stats(query("groupBy", "owner"))));
+    assertEquals((Long) (counts.get("Blanche") + 1), groups(db.todoStats(query("groupBy", "owner"))).get("Blanche"));
+  }
+
+  @Test
+  public void groupsComeOutInOrder() {
+    Map<String, Object> stats = db.todoStats(query("groupBy", "status,owner"));
+    assertArrayEquals(new String[] {"status", "owner"}, (String[]) stats.get("groupBy"));
+    assertEquals(List.of("false,Barry", "false,Blanche", "false,Dawn", "false,Fry", "false,Roberta",
+        "false,Workman", "true,Barry", "true,Blanche", "true,Dawn", "true,Fry", "true,Roberta", "true,Workman"),
+        new ArrayList<>(groups(stats).keySet()));
+    Object[] list = (Object[]) stats.get("groups");
+    assertEquals(Boolean.FALSE, ((Map<?, ?>) list[0]).get("status"));
+    assertEquals(db.version(), stats.get("version"));
+  }
+
+  @Test
+  public void countsSparseCombinations() {
+    // Every todo has its own owner and category, so there are far more
+    // possible combinations than todos.
+    Todo[] todos = new Todo[12];
+    for (int i = 0; i < todos.length; i++) {
+      todos[i] = new Todo();
+      todos[i].owner = "Owner " + i % 6;
+      todos[i].category = "Category " + i % 4;
+      todos[i].status = i % 3 == 0;
+      todos[i].body = "Body " + i;
+    }
+    TodoSnapshot snapshot = new TodoSnapshot(1, TodoStore.of(todos));
+    Map<String, Long> byOwner = groups(snapshot.stats(query("groupBy", "owner", "status", "incomplete")));
+    assertEquals(Map.of("Owner 1", 2L, "Owner 2", 2L, "Owner 4", 2L, "Owner 5", 2L), byOwner);
+    Map<String, Object> all = snapshot.stats(query("groupBy", "category,owner"));
+    assertEquals(12L, all.get("total"));
+    assertEquals(12, ((Object[]) all.get("groups")).length);
+  }
+
+  @Test
+  public void rejectsBadQueries() {
+    assertThrows(BadRequestResponse.class, () -> db.todoStats(query("groupBy", "body")));
+    assertThrows(BadRequestResponse.class, () -> db.todoStats(query("groupBy", "owner,owner")));
+    assertThrows(BadRequestResponse.class, () -> db.todoStats(query("status", "done")));
+  }
+
+  @Test
+  public void controllerSendsTheCounts() {
+    TodoController todoController = new TodoController(db);
+    when(ctx.queryParamMap()).thenReturn(query("groupBy", "category", "owner", "Fry"));
+    todoController.getTodoStats(ctx);
+    verify(ctx).json(statsCaptor.capture());
+    assertEquals(counted("category", "owner", "Fry"), groups(statsCaptor.getValue()));
+    assertEquals(Arrays.stream(db.listTodos(query("owner", "Fry"))).count(),
+        statsCaptor.getValue().get("total"));
+  }
+}
@@ -0,0 +1,105 @@
+package umm3601.todos;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import umm3601.index.ObjectIdIndex;
+
+/**
+ * Tests the column-oriented storage behind `TodoDatabase`.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class TodoStoreSpec {
+
+  private static Todo todo(String id, String owner, boolean status, String body, String category) {
+    Todo todo = new Todo();
+    todo._id = id;
+    todo.owner = owner;
+    todo.status = status;
+    todo.body = body;
+    todo.category = category;
+    return todo;
+  }
+
+  @Test
+  public void materializesTheTodosItWasGiven() {
+    Todo[] todos = new Todo[200];
+    for (int i = 0; i < todos.length; i++) {
+      todos[i] = todo(String.format("58895985%016x", i), i % 3 == 0 ? "Fry" : "Barry", i % 7 == 0,
+          "Body number " + i, i % 2 == 0 ? "homework" : "groceries");
+    }
+    TodoStore store = TodoStore.of(todos);
+    assertEquals(todos.length, store.size());
+    for (int i = 0; i < todos.length; i++) {
+      Todo copy = store.toTodo(i);
+      assertEquals(todos[i], copy);
+      assertNotSame(todos[i], copy);
+      assertEquals(todos[i].hashCode(), copy.hashCode());
+    }
+    assertTrue(store.estimatedBytes() > 0);
+  }
+
+  @Test
+  public void ranksIdsInStringOrder() {
+    Todo[] todos = {
+      todo("5889598559efd8cf490ef772", "Fry", true, "a", "video games"),
+      todo("5889598559efd8cf490ef771", "Barry", false, "b", "homework"),
+      todo("a889598559efd8cf490ef771", "Dawn", true, "c", "groceries"),
+    };
+    assertArrayEquals(new int[] {1, 0, 2}, TodoStore.of(todos).idRanks());
+    // Ids that aren't ObjectIds still sort as strings alongside the others.
+    todos[1]._id = "6 is not an ObjectId";
+    assertArrayEquals(new int[] {0, 1, 2}, TodoStore.of(todos).idRanks());
+  }
+
+  @Test
+  public void codesAreSortRanks() {
+    TodoStore store = TodoStore.of(new Todo[] {
+      todo("5889598559efd8cf490ef771", "Fry", true, "a", "video games"),
+      todo("5889598559efd8cf490ef772", "Barry", false, "b", "homework"),
+      todo("5889598559efd8cf490ef773", "Dawn", true, "c", "groceries"),
+    });
+    assertEquals(3, store.owners().size());
+    assertEquals(2, store.ownerCode(0));
+    assertEquals(0, store.ownerCode(1));
+    assertEquals(1, store.ownerCode(2));
+    assertEquals("video games", store.categories().valueOf(store.categoryCode(0)));
+    assertEquals(0, store.categoryCode(2));
+    assertTrue(store.status(0));
+    assertFalse(store.status(1));
+    assertEquals("c", store.bodies().get(2));
+  }
+
+  @Test
+  public void keepsIdsThatAreNotObjectIds() {
+    TodoStore store = TodoStore.of(new Todo[] {
+      todo("5889598559efd8cf490ef771", "Fry", true, "a", "homework"),
+      todo("oddball", "Fry", true, "b", "homework"),
+      todo(null, "Fry", true, null, "homework"),
+    });
+    assertEquals("5889598559efd8cf490ef771", store.id(0));
+    assertEquals("oddball", store.id(1));
+    assertEquals(null, store.id(2));
+    assertEquals(null, store.toTodo(2).body);
+
+    ObjectIdIndex index = store.buildIdIndex();
+    assertEquals(0, index.find("5889598559efd8cf490ef771"));
+    assertEquals(1, index.find("oddball"));
+    assertEquals(-1, index.find(null));
+  }
+
+  @Test
+  public void todosAreEqualWhenTheirFieldsAre() {
+    Todo todo = todo("5889598559efd8cf490ef771", "Fry", true, "a", "homework");
+    assertEquals(todo, todo("5889598559efd8cf490ef771", "Fry", true, "a", "homework"));
+    assertNotEquals(todo, todo("5889598559efd8cf490ef771", "Fry", false, "a", "homework"));
+    assertNotEquals(todo, todo("5889598559efd8cf490ef771", "Fry", true, "b", "homework"));
+    assertNotEquals(todo, "Fry");
+  }
+}
@@ -0,0 +1,428 @@
+package umm3601.todos;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.NotFoundResponse;
+import umm3601.Main;
+
+/**
+ * Tests adding, changing, and deleting todos, both through the
+ * `TodoController` and directly against the `TodoDatabase`, including
+ * while other threads are reading.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class TodoWritesSpec {
+
+  private TodoController todoController;
+  private TodoDatabase db;
+
+  @Mock
+  private Context ctx;
+
+  @Captor
+  private ArgumentCaptor<Map<String, String>> idCaptor;
+
+  @Captor
+  private ArgumentCaptor<Todo> todoCaptor;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    MockitoAnnotations.openMocks(this);
+    db = new TodoDatabase(Main.TODO_DATA_FILE);
+    todoController = new TodoController(db);
+  }
+
+  private static Todo newTodo(String owner, boolean status, String body, String category) {
+    Todo todo = new Todo();
+    todo.owner = owner;
+    todo.status = status;
+    todo.body = body;
+    todo.category = category;
+    return todo;
+  }
+
+  private static Map<String, List<String>> query(String... keysAndValues) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      queryParams.put(keysAndValues[i], Arrays.asList(new String[] {keysAndValues[i + 1]}));
+    }
+    return queryParams;
+  }
+
+  @Test
+  public void canAddTodo() {
+    when(ctx.bodyAsClass(Todo.class)).thenReturn(newTodo("Kitty", false, "Find the laser pointer", "homework"));
+
+    todoController.addNewTodo(ctx);
+
+    verify(ctx).status(HttpStatus.CREATED);
+    verify(ctx).json(idCaptor.capture());
+    String id = idCaptor.getValue().get("id");
+    assertEquals(24, id.length());
+    Todo added = db.getTodo(id);
+    assertEquals("Kitty", added.owner);
+    assertEquals("Find the laser pointer", added.body);
+    assertEquals(301, db.size());
+    assertEquals(2L, db.version());
+    assertEquals(1, db.listTodos(query("owner", "Kitty")).length);
+    assertEquals(1, db.listTodos(query("contains", "laser pointer")).length);
+  }
+
+  @Test
+  public void addedTodosGetDifferentIds() {
+    String first = db.addTodo(newTodo("Kitty", false, "One", "homework"));
+    String second = db.addTodo(newTodo("Kitty", false, "Two", "homework"));
+    assertNotEquals(first, second);
+    assertEquals("One", db.getTodo(first).body);
+    assertEquals("Two", db.getTodo(second).body);
+  }
+
+  @Test
+  public void respondsAppropriatelyToTodoWithoutOwner() {
+    when(ctx.bodyAsClass(Todo.class)).thenReturn(newTodo(" ", false, "Find the laser pointer", "homework"));
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.addNewTodo(ctx);
+    });
+    assertEquals("The todo's owner must be a non-empty string.", exception.getMessage());
+    assertEquals(300, db.size());
+  }
+
+  @Test
+  public void respondsAppropriatelyToMissingTodo() {
+    when(ctx.bodyAsClass(Todo.class)).thenReturn(null);
+
+    Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.addNewTodo(ctx);
+    });
+  }
+
+  // A mock context for updating the todo with the given id, which parses
+  // the request body the way Javalin does, with Jackson, so a bad body fails
+  // with one of Jackson's (checked) exceptions.
+  private static Context requestWithBody(String id, String json) {
+    ObjectMapper mapper = new ObjectMapper();
+    Context request = Mockito.mock(Context.class);
+    when(request.pathParam("id")).thenReturn(id);
+    when(request.bodyAsClass(Todo.class)).thenAnswer(invocation -> mapper.readValue(json, Todo.class));
+    when(request.bodyAsClass(Map.class)).thenAnswer(invocation -> mapper.readValue(json, Map.class));
+    return request;
+  }
+
+  @Test
+  public void respondsAppropriatelyToBodiesThatArentTodos() {
+    String id = "5889598559efd8cf490ef771";
+    for (String body : List.of("{\"owner\": \"Kitty\"", "not json", "{\"bogus\": 1}", "[1, 2]", "\"Kitty\"")) {
+      Context request = requestWithBody(id, body);
+      Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+        todoController.addNewTodo(request);
+      });
+      assertEquals("The request body must be a todo.", exception.getMessage());
+      if (!body.contains("bogus")) {
+        exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+          todoController.updateTodo(request);
+        });
+        assertEquals("The request body must be an object of the fields to change.", exception.getMessage());
+      }
+    }
+    // A body that parses goes on to be checked field by field.
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.updateTodo(requestWithBody(id, "{\"bogus\": 1}"));
+    });
+    assertEquals("Can't change the todo field 'bogus'.", exception.getMessage());
+    assertEquals(300, db.size());
+    assertEquals(1L, db.version());
+  }
+
+  @Test
+  public void canUpdateTodo() {
+    String id = "5889598559efd8cf490ef771";
+    Map<String, Object> changes = new HashMap<>();
+    changes.put("status", true);
+    changes.put("body", "Already done");
+    when(ctx.pathParam("id")).thenReturn(id);
+    when(ctx.bodyAsClass(Map.class)).thenReturn(changes);
+    Todo before = db.getTodo(id);
+
+    todoController.updateTodo(ctx);
+
+    verify(ctx).status(HttpStatus.OK);
+    verify(ctx).json(todoCaptor.capture());
+    Todo after = todoCaptor.getValue();
+    assertEquals(id, after._id);
+    assertEquals(before.owner, after.owner);
+    assertEquals(before.category, after.category);
+    assertEquals(true, after.status);
+    assertEquals("Already done", after.body);
+    assertEquals(after, db.getTodo(id));
+    assertEquals(300, db.size());
+    // The old version shouldn't turn up in queries any more.
+    assertEquals(0, db.listTodos(query("contains", before.body)).length);
+    assertEquals(1, db.listTodos(query("contains", "Already done")).length);
+  }
+
+  @Test
+  public void canUpdateTodoMoreThanOnce() {
+    String id = "5889598559efd8cf490ef771";
+    db.updateTodo(id, todo -> todo.body = "First");
+    db.updateTodo(id, todo -> todo.owner = "Kitty");
+
+    Todo todo = db.getTodo(id);
+    assertEquals("First", todo.body);
+    assertEquals("Kitty", todo.owner);
+    assertEquals(300, db.size());
+    assertEquals(1, db.listTodos(query("owner", "Kitty")).length);
+  }
+
+  @Test
+  public void respondsAppropriatelyToUpdatingUnknownField() {
+    when(ctx.pathParam("id")).thenReturn("5889598559efd8cf490ef771");
+    when(ctx.bodyAsClass(Map.class)).thenReturn(Map.of("_id", "588935f57546a2daea44de7c"));
+
+    Throwable exception = Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.updateTodo(ctx);
+    });
+    assertEquals("Can't change the todo field '_id'.", exception.getMessage());
+    assertEquals(1L, db.version());
+  }
+
+  @Test
+  public void respondsAppropriatelyToUpdatingWithWrongTypes() {
+    when(ctx.pathParam("id")).thenReturn("5889598559efd8cf490ef771");
+    when(ctx.bodyAsClass(Map.class)).thenReturn(Map.of("status", "complete"));
+    Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.updateTodo(ctx);
+    });
+
+    when(ctx.bodyAsClass(Map.class)).thenReturn(Map.of("category", 12));
+    Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.updateTodo(ctx);
+    });
+
+    when(ctx.bodyAsClass(Map.class)).thenReturn(null);
+    Assertions.assertThrows(BadRequestResponse.class, () -> {
+      todoController.updateTodo(ctx);
+    });
+    assertEquals(1L, db.version());
+  }
+
+  @Test
+  public void respondsAppropriatelyToUpdatingNonexistentTodo() {
+    when(ctx.pathParam("id")).thenReturn("not an id");
+    when(ctx.bodyAsClass(Map.class)).thenReturn(Map.of("status", true));
+
+    Throwable exception = Assertions.assertThrows(NotFoundResponse.class, () -> {
+      todoController.updateTodo(ctx);
+    });
+    assertEquals("No todo with id not an id was found.", exception.getMessage());
+  }
+
+  @Test
+  public void canDeleteTodo() {
+    String id = "5889598559efd8cf490ef771";
+    String body = db.getTodo(id).body;
+    when(ctx.pathParam("id")).thenReturn(id);
+
+    todoController.deleteTodo(ctx);
+
+    verify(ctx).status(HttpStatus.OK);
+    assertNull(db.getTodo(id));
+    assertEquals(299, db.size());
+    assertEquals(0, db.listTodos(query("contains", body)).length);
+    assertEquals(299, db.listTodos(new HashMap<>()).length);
+
+    // It's gone now, so deleting it again should fail.
+    Throwable exception = Assertions.assertThrows(NotFoundResponse.class, () -> {
+      todoController.deleteTodo(ctx);
+    });
+    assertEquals("No todo with id " + id + " was found.", exception.getMessage());
+  }
+
+  @Test
+  public void canDeleteAddedAndUpdatedTodos() {
+    String added = db.addTodo(newTodo("Kitty", false, "One", "homework"));
+    String updated = "5889598559efd8cf490ef771";
+    db.updateTodo(updated, todo -> todo.body = "Changed");
+
+    assertEquals(true, db.deleteTodo(added));
+    assertEquals(true, db.deleteTodo(updated));
+
+    assertNull(db.getTodo(added));
+    assertNull(db.getTodo(updated));
+    assertEquals(299, db.size());
+    assertEquals(299, db.listTodos(new HashMap<>()).length);
+  }
+
+  // Apply the same writes to the database and to a plain list of todos, in
+  // the order that the database keeps them (a changed todo moves to the
+  // end), and check that every kind of query gets the same answer from
+  // both, before and after compacting.
+  @Test
+  public void queriesSeeWritesTheSameWayAsAPlainList() throws Exception {
+    List<Todo> model = new ArrayList<>(Arrays.asList(db.listTodos(new HashMap<>())));
+    Random random = new Random(3601);
+    String[] owners = {"Blanche", "Fry", "Kitty", "Workman"};
+    String[] categories = {"homework", "groceries", "video games"};
+    for (int i = 0; i < 200; i++) {
+      int choice = random.nextInt(3);
+      if (choice == 0) {
+        Todo todo = newTodo(owners[random.nextInt(owners.length)], random.nextBoolean(),
+            "Extra chore number " + i, categories[random.nextInt(categories.length)]);
+        todo._id = db.addTodo(todo);
+        model.add(todo);
+      } else {
+        Todo old = model.remove(random.nextInt(model.size()));
+        if (choice == 1) {
+          Todo changed = db.updateTodo(old._id, todo -> {
+            todo.status = !todo.status;
+            todo.owner = owners[random.nextInt(owners.length)];
+          });
+          model.add(changed);
+        } else {
+          db.deleteTodo(old._id);
+        }
+      }
+    }
+
+    for (int round = 0; round < 2; round++) {
+      assertEquals(model.size(), db.size());
+      checkQuery(model, query(), todo -> true, null);
+      checkQuery(model, query("owner", "Kitty", "limit", "7"), todo -> todo.owner.equals("Kitty"), null);
+      checkQuery(model, query("status", "complete", "contains", "chore"),
+          todo -> todo.status && todo.body.contains("chore"), null);
+      checkQuery(model, query("orderBy", "owner", "limit", "40"), todo -> true,
+          Comparator.comparing(todo -> todo.owner));
+      checkQuery(model, query("orderBy", "-body", "limit", "15"), todo -> true,
+          Comparator.comparing((Todo todo) -> todo.body).reversed());
+      checkQuery(model, query("category", "homework", "orderBy", "-status"), todo -> todo.category.equals("homework"),
+          Comparator.comparing((Todo todo) -> todo.status).reversed());
+      checkQuery(model, query("owner", "Fry", "orderBy", "category,-body", "limit", "12"),
+          todo -> todo.owner.equals("Fry"),
+          Comparator.comparing((Todo todo) -> todo.category).thenComparing(Comparator.comparing(
+              (Todo todo) -> todo.body).reversed()));
+
+      long version = db.version();
+      db.compact();
+      assertEquals(0, db.snapshot().tailLength());
+      assertEquals(version + 1, db.version());
+    }
+  }
+
+  private void checkQuery(List<Todo> model, Map<String, List<String>> queryParams, Predicate<Todo> filter,
+      Comparator<Todo> order) {
+    List<Todo> expected = new ArrayList<>();
+    for (Todo todo : model) {
+      if (filter.test(todo)) {
+        expected.add(todo);
+      }
+    }
+    if (order != null) {
+      // `List.sort()` is stable, so ties stay in the list's order.
+      expected.sort(order);
+    }
+    if (queryParams.containsKey("limit")) {
+      int limit = Integer.parseInt(queryParams.get("limit").get(0));
+      expected = expected.subList(0, Math.min(limit, expected.size()));
+    }
+    assertEquals(expected, Arrays.asList(db.listTodos(queryParams)));
+  }
+
+  // Hammer the database with writes from one thread while several others
+  // query it. Every query must see a consistent snapshot (each todo at most
+  // once, and exactly as many as the snapshot says it holds), and there are
+  // enough writes to trigger background compactions along the way.
+  @Test
+  public void readersSeeConsistentSnapshotsWhileWritesHappen() throws Exception {
+    int writes = 5000;
+    AtomicBoolean writing = new AtomicBoolean(true);
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Integer>> readers = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        readers.add(pool.submit(() -> {
+          int reads = 0;
+          while (writing.get()) {
+            TodoSnapshot snapshot = db.snapshot();
+            Todo[] todos = snapshot.listTodos(new HashMap<>());
+            Set<String> ids = new HashSet<>();
+            for (Todo todo : todos) {
+              assertEquals(true, ids.add(todo._id));
+            }
+            assertEquals(snapshot.size(), todos.length);
+            assertEquals(true, snapshot.listTodos(query("orderBy", "-owner", "limit", "10")).length <= 10);
+            reads++;
+          }
+          return reads;
+        }));
+      }
+      Future<List<String>> writer = pool.submit(() -> {
+        List<String> live = new ArrayList<>();
+        try {
+          Random random = new Random(42);
+          for (int i = 0; i < writes; i++) {
+            if (live.isEmpty() || random.nextInt(4) > 0) {
+              live.add(db.addTodo(newTodo("Stress", false, "Write " + i, "homework")));
+            } else if (random.nextBoolean()) {
+              String id = live.get(random.nextInt(live.size()));
+              db.updateTodo(id, todo -> todo.status = true);
+            } else {
+              db.deleteTodo(live.remove(random.nextInt(live.size())));
+            }
+          }
+        } finally {
+          writing.set(false);
+        }
+        return live;
+      });
+      List<String> live = writer.get();
+      for (Future<Integer> reader : readers) {
+        assertEquals(true, reader.get() > 0);
+      }
+
+      db.compact();
+      assertEquals(300 + live.size(), db.size());
+      assertEquals(live.size(), db.listTodos(query("owner", "Stress")).length);
+      for (String id : live) {
+        assertEquals("Stress", db.getTodo(id).owner);
+      }
+      // Every write makes a new version, and each compaction one more.
+      assertEquals(true, db.version() > writes);
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
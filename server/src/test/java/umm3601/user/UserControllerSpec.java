@@ -6,10 +6,12 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -20,6 +22,8 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
@@ -56,10 +60,20 @@ public class UserControllerSpec {
 
   // A captor allows us to make assertions on arguments to method
   // calls that are made "indirectly" by the code we are testing,
-  // in this case `json()` calls in `UserController`. We'll use
-  // this to make assertions about the data passed to `json()`.
+  // in this case `result()` calls in `UserController`, which sends
+  // lists of users as pre-serialized JSON bytes. We'll use this to
+  // make assertions about the users in those bytes (see `returnedUsers()`).
+  @Captor
+  private ArgumentCaptor<byte[]> userJsonCaptor;
+
+  // Captures the query plan description passed to `json()` when
+  // a request asks for `explain=true`.
   @Captor
-  private ArgumentCaptor<User[]> userArrayCaptor;
+  private ArgumentCaptor<Map<String, Object>> explanationCaptor;
+
+  // Captures the counts passed to `json()` by `getUserStats()`.
+  @Captor
+  private ArgumentCaptor<Map<String, Object>> statsCaptor;
 
   /**
    * Setup the "database" with some example users and
@@ -79,6 +93,15 @@ public class UserControllerSpec {
     userController = new UserController(db);
   }
 
+  // The users in the JSON most recently passed to `result()`.
+  private User[] returnedUsers() {
+    try {
+      return new ObjectMapper().readValue(userJsonCaptor.getValue(), User[].class);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
   /**
    * Verify that we can successfully build a UserController
    * and call it's `addRoutes` method. This doesn't verify
@@ -123,19 +146,21 @@ public class UserControllerSpec {
     // back.
     userController.getUsers(ctx);
 
-    // Confirm that `json` was called with all the users.
-    // The ArgumentCaptor<User[]> userArrayCaptor was initialized in the @BeforeEach
-    // Here, we wait to see what happens *when ctx calls the json method* in the call
-    // userController.getUsers(ctx) and the json method is passed a User[]
-    // (That's when the User[] that was passed as input to the json method is captured)
-    verify(ctx).json(userArrayCaptor.capture());
-    // Now that the User[] that was passed as input to the json method is captured,
-    // we can make assertions about it. In particular, we'll assert that its length
+    // Confirm that `result` was called with JSON for all the users.
+    // The ArgumentCaptor<byte[]> userJsonCaptor was initialized in the @BeforeEach
+    // Here, we wait to see what happens *when ctx calls the result method* in the call
+    // userController.getUsers(ctx) and the result method is passed the JSON bytes
+    // (That's when the byte[] that was passed as input to the result method is captured)
+    verify(ctx).contentType("application/json");
+    verify(ctx).result(userJsonCaptor.capture());
+    // Now that the JSON that was passed as input to the result method is captured,
+    // we can turn it back into a User[] (with `returnedUsers()`) and make assertions
+    // about it. In particular, we'll assert that its length
     // is the same as the size of the "database". We could also confirm that the
     // particular users are the same/correct, but that can get complicated
     // since the order of the users in the "database" isn't specified. So we'll
     // just check that the counts are correct.
-    assertEquals(db.size(), userArrayCaptor.getValue().length);
+    assertEquals(db.size(), returnedUsers().length);
   }
 
   /**
@@ -159,12 +184,12 @@ public class UserControllerSpec {
     userController.getUsers(ctx);
 
     // Confirm that all the users passed to `json` have age 25.
-    verify(ctx).json(userArrayCaptor.capture());
-    for (User user : userArrayCaptor.getValue()) {
+    verify(ctx).result(userJsonCaptor.capture());
+    for (User user : returnedUsers()) {
       assertEquals(25, user.age);
     }
     // Confirm that there are 2 users with age 25
-    assertEquals(2, userArrayCaptor.getValue().length);
+    assertEquals(2, returnedUsers().length);
   }
 
   /**
@@ -204,8 +229,8 @@ public class UserControllerSpec {
     userController.getUsers(ctx);
 
     // Confirm that all the users passed to `json` work for OHMNET.
-    verify(ctx).json(userArrayCaptor.capture());
-    for (User user : userArrayCaptor.getValue()) {
+    verify(ctx).result(userJsonCaptor.capture());
+    for (User user : returnedUsers()) {
       assertEquals("OHMNET", user.company);
     }
   }
@@ -228,12 +253,93 @@ public class UserControllerSpec {
 
     // Confirm that all the users passed to `json` work for OHMNET
     // and have age 25.
-    verify(ctx).json(userArrayCaptor.capture());
-    for (User user : userArrayCaptor.getValue()) {
+    verify(ctx).result(userJsonCaptor.capture());
+    for (User user : returnedUsers()) {
       assertEquals(25, user.age);
       assertEquals("OHMNET", user.company);
     }
-    assertEquals(1, userArrayCaptor.getValue().length);
+    assertEquals(1, returnedUsers().length);
+  }
+
+  /**
+   * Confirm that `explain=true` describes how the age and company
+   * filters were checked, instead of returning the users.
+   *
+   * @throws IOException if there are problems reading from the "database" file.
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void canExplainUserQueries() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("company", Arrays.asList(new String[] {"OHMNET"}));
+    queryParams.put("age", Arrays.asList(new String[] {"25"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam("explain")).thenReturn("true");
+
+    userController.getUsers(ctx);
+
+    verify(ctx).json(explanationCaptor.capture());
+    Map<String, Object> explanation = explanationCaptor.getValue();
+    assertEquals(1L, explanation.get("actualRows"));
+    List<Map<String, Object>> steps = (List<Map<String, Object>>) explanation.get("steps");
+    assertEquals(2, steps.size());
+    for (Map<String, Object> step : steps) {
+      assertEquals("row check", step.get("access"));
+    }
+    assertEquals(2L, steps.get(0).get("actualRows"));
+    assertEquals(1L, steps.get(1).get("actualRows"));
+  }
+
+  /**
+   * Confirm that user stats count the users by company and age range, and
+   * agree with the list of users.
+   *
+   * @throws IOException if there are problems reading from the "database" file.
+   */
+  @Test
+  public void canGetUserStats() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("groupBy", Arrays.asList(new String[] {"age"}));
+    queryParams.put("ageBucket", Arrays.asList(new String[] {"5"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    userController.getUserStats(ctx);
+
+    verify(ctx).json(statsCaptor.capture());
+    Map<String, Object> stats = statsCaptor.getValue();
+    assertEquals((long) db.size(), stats.get("total"));
+    assertEquals(5, stats.get("ageBucket"));
+    Map<Integer, Long> expected = new TreeMap<>();
+    for (User user : db.listUsers(new HashMap<>())) {
+      expected.merge(user.age / 5 * 5, 1L, Long::sum);
+    }
+    Map<Integer, Long> counted = new TreeMap<>();
+    for (Object group : (Object[]) stats.get("groups")) {
+      Map<?, ?> entry = (Map<?, ?>) group;
+      counted.put((Integer) entry.get("age"), (Long) entry.get("count"));
+    }
+    assertEquals(expected, counted);
+  }
+
+  /**
+   * Confirm that user stats can be filtered, and grouped by company.
+   */
+  @Test
+  public void canGetFilteredUserStats() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("groupBy", Arrays.asList(new String[] {"company,age"}));
+    queryParams.put("company", Arrays.asList(new String[] {"OHMNET"}));
+    Map<String, Object> stats = db.userStats(queryParams);
+    Object[] groups = (Object[]) stats.get("groups");
+    assertEquals((long) db.listUsers(queryParams).length, stats.get("total"));
+    for (Object group : groups) {
+      assertEquals("OHMNET", ((Map<?, ?>) group).get("company"));
+    }
+
+    queryParams.put("ageBucket", Arrays.asList(new String[] {"0"}));
+    Assertions.assertThrows(BadRequestResponse.class, () -> db.userStats(queryParams));
+    queryParams.put("groupBy", Arrays.asList(new String[] {"name"}));
+    Assertions.assertThrows(BadRequestResponse.class, () -> db.userStats(queryParams));
   }
 
   /**
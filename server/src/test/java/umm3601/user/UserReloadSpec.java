@@ -0,0 +1,162 @@
+package umm3601.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import io.javalin.http.Context;
+import umm3601.Main;
+
+/**
+ * Tests reloading the users when their data file changes.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class UserReloadSpec {
+
+  private Path dataFile;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    dataFile = Files.createTempFile("users", ".json");
+    Files.writeString(dataFile, users("OHMNET", 3));
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(dataFile);
+  }
+
+  // A data file of users who all work for the same company. OHMNET's
+  // users have ids starting with "a", and everyone else's with "b".
+  private static String users(String company, int count) {
+    String idPrefix = company.equals("OHMNET") ? "aaaaaaaa" : "bbbbbbbb";
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < count; i++) {
+      json.append(i == 0 ? "" : ", ")
+          .append(String.format("{\"_id\": \"%s%016x\", \"name\": \"User %d\", \"age\": %d, \"company\": \"%s\"}",
+              idPrefix, i, i, 20 + i, company));
+    }
+    return json.append("]").toString();
+  }
+
+  @Test
+  public void swapsInTheNewUsers() throws IOException {
+    UserDatabase db = new UserDatabase(dataFile.toString());
+    assertEquals(1, db.datasetVersion());
+    assertEquals(3, db.size());
+    assertTrue(db.lastReloadMillis() >= 0);
+
+    Files.writeString(dataFile, users("NIQUENT", 5));
+    db.reload();
+
+    assertEquals(2, db.datasetVersion());
+    assertEquals(5, db.size());
+    assertNull(db.getUser("aaaaaaaa0000000000000000"));
+    assertEquals("User 4", db.getUser("bbbbbbbb0000000000000004").name);
+    Map<String, List<String>> query = new HashMap<>(Map.of("company", List.of("NIQUENT"), "age", List.of("21")));
+    assertEquals(1, db.listUsers(query).length);
+    assertEquals(1L, db.explainUsers(query).get("actualRows"));
+  }
+
+  @Test
+  public void keepsTheOldUsersIfTheFileIsBroken() throws IOException {
+    UserDatabase db = new UserDatabase(dataFile.toString());
+    Files.writeString(dataFile, "[{\"_id\": \"588935f57546a2daea44de7c\", \"na");
+    Assertions.assertThrows(IOException.class, () -> {
+      db.reload();
+    });
+    assertEquals(1, db.datasetVersion());
+    assertEquals(3, db.size());
+  }
+
+  @Test
+  public void requestsSeeOneVersionOrTheOther() throws Exception {
+    UserDatabase db = new UserDatabase(dataFile.toString());
+    AtomicBoolean reloading = new AtomicBoolean(true);
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    Future<Integer> reader = pool.submit(() -> {
+      int reads = 0;
+      while (reloading.get()) {
+        User[] users = db.listUsers(new HashMap<>());
+        // Either all three OHMNET users, or all five NIQUENT ones, never
+        // a mix.
+        String company = users[0].company;
+        assertEquals(company.equals("OHMNET") ? 3 : 5, users.length);
+        for (User user : users) {
+          assertEquals(company, user.company);
+        }
+        reads++;
+      }
+      return reads;
+    });
+    for (int i = 0; i < 50; i++) {
+      Files.writeString(dataFile, i % 2 == 0 ? users("NIQUENT", 5) : users("OHMNET", 3));
+      db.reload();
+    }
+    reloading.set(false);
+    assertTrue(reader.get() > 0);
+    pool.shutdown();
+    assertEquals(51, db.datasetVersion());
+  }
+
+  @Test
+  public void reloadsWhenTheFileChanges() throws Exception {
+    UserDatabase db = new UserDatabase(dataFile.toString());
+    assertTrue(db.watchDataFile());
+    // Watching twice is the same as watching once.
+    assertTrue(db.watchDataFile());
+
+    Files.writeString(dataFile, users("NIQUENT", 5));
+    for (int wait = 0; wait < 100 && db.datasetVersion() == 1; wait++) {
+      Thread.sleep(100);
+    }
+    assertEquals(2, db.datasetVersion());
+    assertEquals(5, db.size());
+
+    // A broken file is ignored, and we keep the last good version.
+    Files.writeString(dataFile, "[");
+    Thread.sleep(1000);
+    assertEquals(2, db.datasetVersion());
+    db.stopWatching();
+    db.stopWatching();
+  }
+
+  @Test
+  public void doesntWatchTheClasspath() throws IOException {
+    UserDatabase db = new UserDatabase(Main.USER_DATA_FILE);
+    assertFalse(db.watchDataFile());
+    db.stopWatching();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void controllerDescribesTheDataset() throws IOException {
+    UserController controller = UserController.buildUserController(dataFile.toString());
+    Context ctx = Mockito.mock(Context.class);
+    controller.getDataset(ctx);
+    ArgumentCaptor<Map<String, Object>> captor = ArgumentCaptor.forClass(Map.class);
+    verify(ctx).json(captor.capture());
+    assertEquals(1L, captor.getValue().get("version"));
+    assertEquals(3, captor.getValue().get("size"));
+  }
+}